@@ -0,0 +1,83 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of one consumption flush cycle with deadline-ordered scheduling,
+ * for a growing number of devices with a constant number of sessions due
+ * per cycle. The cost per cycle should stay flat, whereas a sweep over all
+ * devices grows linearly with their number.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeadlineQueueBenchmark {
+    private static final int DUE_PER_CYCLE = 1000;
+    private static final long CYCLE_MILLIS = ZapProcessor.CONSUMPTION_FLUSH_INTERVAL;
+
+    @Param({"10000", "100000", "1000000"})
+    public int deviceCount;
+
+    private DeadlineQueue<Integer> queue;
+    private ZapWorkload workload;
+    private long horizonMillis;
+    private long nowMillis;
+    private final List<Integer> due = new ArrayList<>(4 * DUE_PER_CYCLE);
+
+    @Setup
+    public void setUp() {
+        workload = new ZapWorkload(deviceCount, 100, deviceCount, 1000.0);
+        queue = new DeadlineQueue<>();
+        horizonMillis = (deviceCount / DUE_PER_CYCLE) * CYCLE_MILLIS; // spread deadlines so DUE_PER_CYCLE are due per cycle on average
+        for (int i = 0; i < deviceCount; i++) {
+            queue.schedule((long) (workload.nextDouble() * horizonMillis), i);
+        }
+        nowMillis = 0L;
+    }
+
+    @Benchmark
+    public int flushCycle() {
+        nowMillis += CYCLE_MILLIS;
+        due.clear();
+        final int n = queue.drainDue(nowMillis, due);
+        for (int i = 0; i < n; i++) { // every processed session is rescheduled past the horizon, keeping the device count constant
+            queue.schedule(nowMillis + horizonMillis + (long) (workload.nextDouble() * CYCLE_MILLIS), due.get(i));
+        }
+        return n;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffering the zaps of a device: into the device state's zap registry,
+ * which every zap goes through, and into the per tv-programme buffer of
+ * live-tv zaps. The number of zaps per device is long-tailed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceZapsBenchmark {
+    @Param({"5", "50", "500"})
+    public int zapsPerDevice;
+
+    private ZapProcessor processor;
+    private Consumer consumer;
+    private ConsumerEvent[] events;
+    private TvChannelProduct[] tvChannels;
+    private ZapRecord[] zaps;
+
+    @Setup
+    public void setUp() {
+        final ZapFixtures fixtures = new ZapFixtures();
+        final ZapWorkload workload = new ZapWorkload(zapsPerDevice, 100, 1000, 0.05); // one device zapping every 20 seconds on average
+        long timeMillis = 1000000000000L;
+        processor = new ZapProcessor(null, new VirtualZapClock(timeMillis), fixtures.newData(), 0, "none", null, null);
+        consumer = fixtures.consumer(1L);
+        final TvChannelProduct[] channels = new TvChannelProduct[100];
+        for (int i = 0; i < channels.length; i++) channels[i] = fixtures.tvChannel(i + 1L, "tv-channel-" + i);
+        events = new ConsumerEvent[zapsPerDevice];
+        tvChannels = new TvChannelProduct[zapsPerDevice];
+        zaps = new ZapRecord[zapsPerDevice];
+        final ZapRecord.Source source = new ZapRecord.Source(null, null, null, "device", null);
+        for (int i = 0; i < zapsPerDevice; i++) {
+            timeMillis += 1L + workload.nextZapIntervalMillis();
+            tvChannels[i] = channels[workload.nextTvChannel()];
+            events[i] = fixtures.zap(timeMillis, consumer, "device", tvChannels[i]);
+            zaps[i] = new ZapRecord(i, timeMillis, 1L, source, null);
+        }
+    }
+
+    @Benchmark
+    public DeviceState registerZaps() {
+        final DeviceState deviceState = new DeviceState(consumer, "device", 1, processor);
+        final ConsumerEvent[] events = this.events;
+        final TvChannelProduct[] tvChannels = this.tvChannels;
+        for (int i = 0; i < events.length; i++) deviceState.zap(events[i], tvChannels[i]);
+        return deviceState;
+    }
+
+    @Benchmark
+    public DeviceZaps storeLiveTvZaps() {
+        final DeviceZaps deviceZaps = new DeviceZaps();
+        final ZapRecord[] zaps = this.zaps;
+        for (int i = 0; i < zaps.length; i++) deviceZaps.store(zaps[i]);
+        return deviceZaps;
+    }
+}
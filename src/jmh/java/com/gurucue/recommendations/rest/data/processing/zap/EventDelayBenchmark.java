@@ -0,0 +1,88 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording event delays, which every processing thread does for every
+ * submitted event, and reading the merged distribution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDelayBenchmark {
+    private static final int SAMPLES = 4096; // a power of 2
+
+    @State(Scope.Benchmark)
+    public static class Recorder {
+        final EventDelayRecorder recorder = new EventDelayRecorder(ZapProcessor.STAT_RESOLUTION_MILLIS, ZapProcessor.STAT_MINUTES_COUNT, ZapProcessor.STAT_MINUTES_WINDOW);
+    }
+
+    @State(Scope.Thread)
+    public static class Delays {
+        final long[] deliveryMillis = new long[SAMPLES];
+        final long[] eventMillis = new long[SAMPLES];
+        int index = 0;
+
+        @Setup
+        public void setUp() {
+            final ZapWorkload workload = new ZapWorkload(Thread.currentThread().getId(), 100, 1000, 1000.0);
+            final long startMillis = System.currentTimeMillis();
+            for (int i = 0; i < SAMPLES; i++) {
+                deliveryMillis[i] = startMillis + i;
+                eventMillis[i] = deliveryMillis[i] - workload.nextDeliveryDelayMillis();
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordSingleThread(final Recorder recorder, final Delays delays) {
+        final int i = delays.index++ & (SAMPLES - 1);
+        recorder.recorder.record(delays.deliveryMillis[i], delays.eventMillis[i]);
+    }
+
+    @Benchmark
+    @Threads(10) // as many as there are zap processing threads
+    public void recordAllWorkers(final Recorder recorder, final Delays delays) {
+        final int i = delays.index++ & (SAMPLES - 1);
+        recorder.recorder.record(delays.deliveryMillis[i], delays.eventMillis[i]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public EventDelayDistribution distribution(final Recorder recorder) {
+        return recorder.recorder.distribution(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The device part of a consumption flush cycle over a replayed subscriber
+ * base, where a tenth of the zaps are catch-up: flushing the devices whose
+ * deadline passed and evicting the idle ones, against the sweep over all
+ * devices that the cycle did before, which flushed every device, checked
+ * whether it is idle and estimated its memory. Before every cycle a minute
+ * of zaps is replayed, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushCycleBenchmark {
+    private static final int TV_CHANNEL_COUNT = 100;
+    private static final long CYCLE_MILLIS = ZapProcessor.CONSUMPTION_FLUSH_INTERVAL;
+
+    @Param({"10000", "100000"})
+    public int deviceCount;
+
+    private ZapPopulation population;
+    private ZapReplay replay;
+    private ZapProcessor processor;
+    private long cycleMillis;
+    private final StringBuilder flushLog = new StringBuilder(32768);
+
+    @Setup
+    public void setUp() {
+        final double zapsPerSecond = deviceCount / 600.0; // a zap every 10 minutes per device on average
+        population = new ZapPopulation(deviceCount, TV_CHANNEL_COUNT, deviceCount, zapsPerSecond, 0.1);
+        replay = population.replay((int) (zapsPerSecond * 3600.0));
+        processor = replay.processor;
+        processor.stop(); // the benchmark runs the flush instead of the processor's timer, zaps are still replayed
+        cycleMillis = ((population.nowMillis / CYCLE_MILLIS) + 1L) * CYCLE_MILLIS;
+    }
+
+    @Setup(Level.Invocation)
+    public void replayCycle() {
+        while (population.nowMillis < cycleMillis) replay.replay(population.nextZap());
+        flushLog.setLength(0);
+    }
+
+    @TearDown(Level.Invocation)
+    public void nextCycle() {
+        cycleMillis += CYCLE_MILLIS;
+    }
+
+    @Benchmark
+    public int deadlines() {
+        processor.flushDueDevices(cycleMillis, flushLog);
+        return flushLog.length();
+    }
+
+    @Benchmark
+    public long sweep() {
+        final long idleSinceMillis = cycleMillis - processor.deviceIdleMillis;
+        long estimatedBytes = 0L;
+        for (final DeviceState state : processor.events.values()) {
+            state.flush(cycleMillis, flushLog);
+            if ((state.lastActivityMillis <= idleSinceMillis) && state.evict(idleSinceMillis, false, flushLog)) {
+                processor.events.remove(state.code, state);
+                continue;
+            }
+            estimatedBytes += state.estimatedBytes();
+        }
+        return estimatedBytes;
+    }
+}
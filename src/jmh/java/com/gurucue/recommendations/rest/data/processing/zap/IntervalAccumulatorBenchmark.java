@@ -0,0 +1,85 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulating the watched ranges of a catch-up/VoD session with the
+ * primitive interval accumulator, against Guava's TreeRangeSet that it
+ * replaced. The allocation rates reported by the gc profiler show the
+ * difference in footprint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntervalAccumulatorBenchmark {
+    @Param({"10", "100", "1000"})
+    public int eventsPerSession;
+
+    private long[] lowers;
+    private long[] uppers;
+
+    @Setup
+    public void setUp() {
+        final ProductZaps.EventData[] session = ProductZapsBenchmark.syntheticSession(new ZapWorkload(eventsPerSession, 100, 1000, 1000.0), eventsPerSession);
+        lowers = new long[session.length - 1];
+        uppers = new long[session.length - 1];
+        for (int i = 1; i < session.length; i++) { // the ranges as ConsumptionGenerator computes them, regardless of the playing state
+            final ProductZaps.EventData previous = session[i - 1];
+            final long delta = (long) ((session[i].timeMillis - previous.timeMillis) * Math.abs(previous.speed));
+            lowers[i - 1] = previous.speed < 0 ? previous.watchOffsetMillis - delta : previous.watchOffsetMillis;
+            uppers[i - 1] = previous.speed < 0 ? previous.watchOffsetMillis : previous.watchOffsetMillis + delta;
+        }
+    }
+
+    @Benchmark
+    public long intervalAccumulator() {
+        final IntervalAccumulator intervals = new IntervalAccumulator();
+        for (int i = 0; i < lowers.length; i++) intervals.add(lowers[i], uppers[i]);
+        return intervals.coverage();
+    }
+
+    @Benchmark
+    public long treeRangeSet() {
+        final RangeSet<Long> intervals = TreeRangeSet.create();
+        for (int i = 0; i < lowers.length; i++) intervals.add(Range.closed(lowers[i], uppers[i]));
+        long sum = 0L;
+        for (final Range<Long> range : intervals.asRanges()) sum += range.upperEndpoint() - range.lowerEndpoint();
+        return sum;
+    }
+}
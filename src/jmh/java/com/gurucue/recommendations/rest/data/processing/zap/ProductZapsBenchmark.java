@@ -0,0 +1,116 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulating the watched, fast-forwarded and rewound ranges of a
+ * catch-up/VoD session, and summing them when the consumption is
+ * produced, for sessions of varying lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProductZapsBenchmark {
+    private static final long CONTENT_MILLIS = 90L * 60000L; // a movie
+
+    @Param({"10", "100", "1000"})
+    public int eventsPerSession;
+
+    private ProductZaps.EventData[] session;
+    private final StringBuilder logBuilder = new StringBuilder(65536);
+
+    @Setup
+    public void setUp() {
+        session = syntheticSession(new ZapWorkload(eventsPerSession, 100, 1000, 1000.0), eventsPerSession);
+    }
+
+    /**
+     * Generates a viewing session: playing with pauses, seeks, fast-forwards
+     * and rewinds, starting from the beginning of the content.
+     */
+    static ProductZaps.EventData[] syntheticSession(final ZapWorkload workload, final int eventCount) {
+        final List<ProductZaps.EventData> events = new ArrayList<>(eventCount);
+        long timeMillis = 1000000000000L;
+        long offsetMillis = 0L;
+        double speed = 1.0;
+        PlayingState state = PlayingState.PLAY;
+        events.add(new ProductZaps.EventData(state, timeMillis, speed, offsetMillis, null));
+        while (events.size() < eventCount) {
+            final long deltaMillis = 1000L + workload.nextDurationMillis(CONTENT_MILLIS / 10L);
+            if (state == PlayingState.PLAY) offsetMillis += (long) (deltaMillis * speed);
+            if (offsetMillis < 0L) offsetMillis = 0L;
+            else if (offsetMillis > CONTENT_MILLIS) offsetMillis = workload.nextDurationMillis(CONTENT_MILLIS); // started over
+            timeMillis += deltaMillis;
+            final double r = workload.nextDouble();
+            if (r < 0.15) {
+                state = PlayingState.PAUSE;
+                speed = 0.0;
+            }
+            else if (r < 0.25) {
+                state = PlayingState.PLAY;
+                speed = 8.0;
+            }
+            else if (r < 0.30) {
+                state = PlayingState.PLAY;
+                speed = -8.0;
+            }
+            else if (r < 0.40) {
+                state = PlayingState.PLAY;
+                speed = 1.0;
+                offsetMillis = workload.nextDurationMillis(CONTENT_MILLIS); // seek
+            }
+            else {
+                state = PlayingState.PLAY;
+                speed = 1.0;
+            }
+            events.add(new ProductZaps.EventData(state, timeMillis, speed, offsetMillis, null));
+        }
+        return events.toArray(new ProductZaps.EventData[events.size()]);
+    }
+
+    @Benchmark
+    public long accumulateAndSum() {
+        final ProductZaps.EventData[] session = this.session;
+        final ProductZaps.ConsumptionGenerator generator = new ProductZaps.ConsumptionGenerator(session[0]);
+        for (int i = 1; i < session.length; i++) generator.addEvent(session[i]);
+        logBuilder.setLength(0);
+        return ProductZaps.ConsumptionGenerator.intervalSum(generator.consumedIntervals, logBuilder)
+                + ProductZaps.ConsumptionGenerator.intervalSum(generator.fastForwardIntervals, logBuilder)
+                + ProductZaps.ConsumptionGenerator.intervalSum(generator.rewoundIntervals, logBuilder);
+    }
+}
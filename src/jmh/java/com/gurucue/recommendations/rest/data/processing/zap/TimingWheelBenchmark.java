@@ -0,0 +1,105 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling a zap timer and advancing time by one tick, with a growing
+ * number of pending timers spread over the next few hours, like the
+ * tv-programme timers. The timing wheel should stay flat, whereas a heap
+ * grows logarithmically with the number of pending timers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimingWheelBenchmark {
+    private static final long TICK_MILLIS = WheelZapClock.TICK_MILLIS;
+    private static final long HORIZON_MILLIS = 4L * 3600000L;
+    private static final TimerListener LISTENER = (expiryTime) -> {};
+
+    @Param({"10000", "100000", "1000000"})
+    public int timerCount;
+
+    private ZapWorkload workload;
+    private TimingWheel wheel;
+    private PriorityQueue<TimingWheel.Timeout> heap;
+    private long wheelMillis;
+    private long heapMillis;
+    private final List<TimingWheel.Timeout> expired = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        workload = new ZapWorkload(1000, 100, 1000, 1000.0);
+        wheel = new TimingWheel(TICK_MILLIS, WheelZapClock.SLOT_COUNT, 0L);
+        heap = new PriorityQueue<>(timerCount, (a, b) -> Long.compare(a.millis, b.millis));
+        for (int i = 0; i < timerCount; i++) {
+            final long millis = 1L + (long) (workload.nextDouble() * HORIZON_MILLIS);
+            wheel.schedule(millis, LISTENER);
+            heap.add(new TimingWheel.Timeout(millis, LISTENER));
+        }
+        wheelMillis = 0L;
+        heapMillis = 0L;
+    }
+
+    @Benchmark
+    public int wheelScheduleAndTick() {
+        wheelMillis += TICK_MILLIS;
+        wheel.schedule(wheelMillis + (long) (workload.nextDouble() * HORIZON_MILLIS), LISTENER);
+        expired.clear();
+        return wheel.advance(wheelMillis, expired);
+    }
+
+    @Benchmark
+    public int heapScheduleAndTick() {
+        heapMillis += TICK_MILLIS;
+        heap.add(new TimingWheel.Timeout(heapMillis + (long) (workload.nextDouble() * HORIZON_MILLIS), LISTENER));
+        int count = 0;
+        TimingWheel.Timeout timeout;
+        while (((timeout = heap.peek()) != null) && (timeout.millis <= heapMillis)) {
+            heap.poll();
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public boolean wheelScheduleAndCancel() {
+        return wheel.cancel(wheel.schedule(wheelMillis + 1L + (long) (workload.nextDouble() * HORIZON_MILLIS), LISTENER));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.ConsumerEventType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating the viewership of every tv-channel at one moment, as the
+ * flush cycle does every 5 minutes: collecting the audience of the
+ * tv-programmes on air and of the zaps without EPG, and encoding it into
+ * viewership events. The subscriber base has replayed an hour of zaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewershipBenchmark {
+    private static final int TV_CHANNEL_COUNT = 100;
+
+    @Param({"10000", "100000"})
+    public int deviceCount;
+
+    private ZapProcessor processor;
+    private long viewershipMillis;
+    private ConsumerEventType viewershipType;
+    private DataTypeCodes dataTypeCodes;
+    private long idForTvChannel;
+
+    @Setup
+    public void setUp() {
+        final double zapsPerSecond = deviceCount / 600.0; // a zap every 10 minutes per device on average
+        final ZapPopulation population = new ZapPopulation(deviceCount, TV_CHANNEL_COUNT, deviceCount, zapsPerSecond, 0.1);
+        processor = population.replay((int) (zapsPerSecond * 3600.0)).processor;
+        processor.stop(); // nothing changes the audience while it is measured
+        viewershipMillis = (population.nowMillis / ZapProcessor.VIEWERSHIP_INTERVAL) * ZapProcessor.VIEWERSHIP_INTERVAL;
+        viewershipType = population.data.consumerEventTypeCodes().viewership;
+        dataTypeCodes = population.data.dataTypeCodes();
+        idForTvChannel = population.data.productTypeCodes().idForTvChannel;
+    }
+
+    @Benchmark
+    public int generate(final Blackhole blackhole) {
+        int viewerCount = 0;
+        for (final TvChannelState tvChannelState : processor.tvChannelStates.values()) {
+            final Viewership viewership = tvChannelState.viewership(viewershipMillis, idForTvChannel);
+            blackhole.consume(viewership.toEvent(viewershipType, dataTypeCodes));
+            viewerCount += viewership.viewerCount();
+        }
+        return viewerCount;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the zap IDs of one tv-channel's audience for a viewership
+ * event: the comma-separated string versus the compact form. The audience
+ * is a random sample of zap IDs from the last few hours of zaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewershipIdCodecBenchmark {
+    private static final long FIRST_ZAP_ID = 3000000000L;
+    private static final long ZAP_ID_RANGE = 20000000L; // zaps in the last few hours, across all tv-channels
+
+    @Param({"1000", "100000"})
+    public int viewerCount;
+
+    private long[] zapIds;
+    private final long[] scratch = new long[100000];
+
+    @Setup
+    public void setUp() {
+        final ZapWorkload workload = new ZapWorkload(viewerCount, 100, viewerCount, 1000.0);
+        zapIds = new long[viewerCount];
+        for (int i = 0; i < viewerCount; i++) {
+            zapIds[i] = FIRST_ZAP_ID + (long) (workload.nextDouble() * ZAP_ID_RANGE);
+        }
+        System.out.println("\nComma-separated length: " + commaSeparated().length() + ", compact length: " + compact().length());
+    }
+
+    @Benchmark
+    public String commaSeparated() {
+        final StringBuilder builder = new StringBuilder(zapIds.length * 14);
+        for (final long id : zapIds) {
+            if (builder.length() > 0) builder.append(",");
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public String compact() {
+        System.arraycopy(zapIds, 0, scratch, 0, zapIds.length); // encoding sorts in place
+        return ViewershipIdCodec.encode(scratch, zapIds.length);
+    }
+}
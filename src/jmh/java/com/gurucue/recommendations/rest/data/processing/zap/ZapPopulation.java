@@ -0,0 +1,111 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+
+/**
+ * A subscriber base for benchmarks that run whole zap processing: devices
+ * of their own consumers zapping between tv-channels with half-hour
+ * tv-programmes for a day, with the traffic of a {@link ZapWorkload}, over
+ * {@link InMemoryZapData}. A share of the zaps start catch-up playouts of
+ * tv-programmes that already aired.
+ */
+final class ZapPopulation {
+    static final long START_MILLIS = 1500000000000L - (1500000000000L % 86400000L); // at midnight
+    static final long TV_PROGRAMME_MILLIS = 1800000L;
+    static final int TV_PROGRAMMES_PER_DAY = (int) (86400000L / TV_PROGRAMME_MILLIS);
+
+    final ZapFixtures fixtures = new ZapFixtures();
+    final InMemoryZapData data = fixtures.newData();
+    final ZapWorkload workload;
+    final TvChannelProduct[] tvChannels;
+    final TvProgrammeProduct[][] tvProgrammes; // per tv-channel, in the order of airing
+    final double catchUpShare;
+    final Consumer[] consumers;
+    final String[] deviceIds;
+    long nowMillis = START_MILLIS;
+
+    /**
+     * @param seed the random seed, for repeatable runs
+     * @param tvChannelCount the number of tv-channels
+     * @param deviceCount the number of devices
+     * @param zapsPerSecond the zap rate of all devices together
+     * @param catchUpShare the share of zaps to catch-up tv-programmes, between 0 and 1
+     */
+    ZapPopulation(final long seed, final int tvChannelCount, final int deviceCount, final double zapsPerSecond, final double catchUpShare) {
+        workload = new ZapWorkload(seed, tvChannelCount, deviceCount, zapsPerSecond);
+        this.catchUpShare = catchUpShare;
+        tvChannels = new TvChannelProduct[tvChannelCount];
+        tvProgrammes = new TvProgrammeProduct[tvChannelCount][TV_PROGRAMMES_PER_DAY];
+        long productId = 1L;
+        for (int i = 0; i < tvChannelCount; i++) {
+            final TvChannelProduct tvChannel = fixtures.tvChannel(productId++, "tv-channel-" + i);
+            tvChannels[i] = tvChannel;
+            data.addTvChannel(fixtures.partner, tvChannel);
+            for (int j = 0; j < TV_PROGRAMMES_PER_DAY; j++) {
+                final long begin = START_MILLIS + (j * TV_PROGRAMME_MILLIS);
+                final TvProgrammeProduct tvProgramme = fixtures.tvProgramme(productId, "tv-programme-" + productId, begin, begin + TV_PROGRAMME_MILLIS);
+                productId++;
+                tvProgrammes[i][j] = tvProgramme;
+                data.addTvProgramme(tvChannel, tvProgramme);
+            }
+        }
+        consumers = new Consumer[deviceCount];
+        deviceIds = new String[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            consumers[i] = fixtures.consumer(i + 1L);
+            deviceIds[i] = "stb-" + i;
+        }
+    }
+
+    /**
+     * Creates the next zap of the traffic, moving the time forward.
+     *
+     * @return the zap
+     */
+    ConsumerEvent nextZap() {
+        nowMillis += workload.nextZapIntervalMillis();
+        final int device = workload.nextDevice();
+        final int tvChannel = workload.nextTvChannel();
+        if (workload.nextDouble() < catchUpShare) {
+            final int aired = (int) Math.min((nowMillis - START_MILLIS) / TV_PROGRAMME_MILLIS, TV_PROGRAMMES_PER_DAY - 1); // not before the first tv-programme
+            final TvProgrammeProduct tvProgramme = tvProgrammes[tvChannel][(int) (workload.nextDouble() * (aired + 1))];
+            return fixtures.play(nowMillis, consumers[device], deviceIds[device], tvProgramme, workload.nextDurationMillis(TV_PROGRAMME_MILLIS) / 1000L);
+        }
+        return fixtures.zap(nowMillis, consumers[device], deviceIds[device], tvChannels[tvChannel]);
+    }
+
+    /**
+     * Starts a replay and feeds it the given number of zaps, leaving the
+     * sessions they started open.
+     *
+     * @param zapCount the number of zaps to replay
+     * @return the started replay
+     */
+    ZapReplay replay(final int zapCount) {
+        final ZapReplay replay = new ZapReplay(data, nowMillis);
+        replay.start();
+        for (int i = 0; i < zapCount; i++) replay.replay(nextZap());
+        return replay;
+    }
+}
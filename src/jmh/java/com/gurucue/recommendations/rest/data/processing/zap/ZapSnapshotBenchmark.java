@@ -0,0 +1,93 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving the zap state into a snapshot and restoring it, as at a restart
+ * of the service, for a growing subscriber base with an hour of zaps
+ * buffered. The restore time is how long a restarted node keeps zaps
+ * waiting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZapSnapshotBenchmark {
+    private static final int TV_CHANNEL_COUNT = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int deviceCount;
+
+    private ZapPopulation population;
+    private ZapProcessor processor;
+    private File file;
+
+    @Setup
+    public void setUp(final BenchmarkParams params) throws IOException {
+        final double zapsPerSecond = deviceCount / 600.0; // a zap every 10 minutes per device on average
+        population = new ZapPopulation(deviceCount, TV_CHANNEL_COUNT, deviceCount, zapsPerSecond, 0.1);
+        processor = population.replay((int) (zapsPerSecond * 3600.0)).processor;
+        file = File.createTempFile("zap-snapshot-benchmark", ".bin");
+        ZapSnapshot.save(processor, file);
+        if (params.getBenchmark().endsWith(".restore")) {
+            // not to hold the state twice while restoring: at a million devices it takes more than half of a 4 GB heap
+            processor.stop();
+            processor = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (processor != null) processor.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        ZapSnapshot.save(processor, file);
+        return file.length();
+    }
+
+    @Benchmark
+    public ZapProcessor restore() {
+        final ZapProcessor restored = new ZapProcessor(null, new VirtualZapClock(population.nowMillis), population.data, 0, "none", null, null);
+        ZapSnapshot.restore(restored, file, Long.MAX_VALUE);
+        return restored;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submitting zaps from as many threads as servlets usually receive them on,
+ * into a running zap processor whose threads process them meanwhile, so the
+ * time per zap includes waiting for room in the queue when processing
+ * falls behind. Each submitting thread zaps its own devices, and the
+ * virtual time is shared, so a flush cycle runs between iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZapSubmitBenchmark {
+    private static final int TV_CHANNEL_COUNT = 100;
+    private static final int DEVICES_PER_THREAD = 25000;
+    private static final double ZAPS_PER_SECOND = 1000.0; // of all devices together, in virtual time
+
+    @Param({"2", "10"})
+    public int maxThreadCount;
+
+    private ZapPopulation population;
+    private ZapProcessor processor;
+    private VirtualZapClock clock;
+    private final AtomicLong nowMillis = new AtomicLong(ZapPopulation.START_MILLIS);
+    private final AtomicInteger submitterCount = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        population = new ZapPopulation(maxThreadCount, TV_CHANNEL_COUNT, 0, ZAPS_PER_SECOND, 0.0); // only the tv-channels, the submitters have their own devices
+        clock = new VirtualZapClock(ZapPopulation.START_MILLIS);
+        processor = new ZapProcessor(null, clock, population.data, maxThreadCount, "none", null, null);
+        processor.start();
+    }
+
+    @Setup(Level.Iteration)
+    public void advance() {
+        clock.advanceTo(nowMillis.get()); // the flush cycles that became due, outside of the measurement
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Submitter {
+        private ZapWorkload workload;
+        private Consumer[] consumers;
+        private String[] deviceIds;
+
+        @Setup
+        public void setUp(final ZapSubmitBenchmark benchmark) {
+            final int index = benchmark.submitterCount.getAndIncrement();
+            workload = new ZapWorkload(index, TV_CHANNEL_COUNT, DEVICES_PER_THREAD, ZAPS_PER_SECOND);
+            consumers = new Consumer[DEVICES_PER_THREAD];
+            deviceIds = new String[DEVICES_PER_THREAD];
+            for (int i = 0; i < DEVICES_PER_THREAD; i++) {
+                consumers[i] = benchmark.population.fixtures.consumer(((long) index * DEVICES_PER_THREAD) + i + 1L);
+                deviceIds[i] = "stb-" + index + "-" + i;
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void submit(final Submitter submitter) {
+        final long millis = nowMillis.addAndGet(1L + submitter.workload.nextZapIntervalMillis());
+        final int device = submitter.workload.nextDevice();
+        final ConsumerEvent zap = population.fixtures.zap(millis, submitter.consumers[device], submitter.deviceIds[device], population.tvChannels[submitter.workload.nextTvChannel()]);
+        processor.submit(zap);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic zap traffic resembling what the subscriber base produces: tv-channel
+ * popularity follows a Zipf distribution, device activity is long-tailed
+ * (a few devices zap a lot, most rarely), time between zaps is exponential,
+ * and delivery delays are mostly a few seconds with a tail of devices that
+ * were offline for minutes.
+ */
+final class ZapWorkload {
+    private final Random random;
+    private final double[] tvChannelCdf;
+    private final double[] deviceCdf;
+    private final double meanZapIntervalMillis;
+
+    /**
+     * @param seed the random seed, for repeatable runs
+     * @param tvChannelCount the number of tv-channels
+     * @param deviceCount the number of devices
+     * @param zapsPerSecond the zap rate of all devices together
+     */
+    ZapWorkload(final long seed, final int tvChannelCount, final int deviceCount, final double zapsPerSecond) {
+        this.random = new Random(seed);
+        this.tvChannelCdf = cdf(tvChannelCount, (i) -> 1.0 / (i + 1)); // Zipf, s = 1
+        this.deviceCdf = cdf(deviceCount, (i) -> Math.pow(1.0 - random.nextDouble(), -1.0 / 1.2)); // Pareto, alpha = 1.2
+        this.meanZapIntervalMillis = 1000.0 / zapsPerSecond;
+    }
+
+    private interface Weight {
+        double of(int index);
+    }
+
+    private static double[] cdf(final int n, final Weight weight) {
+        final double[] cdf = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += weight.of(i);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+    private int sample(final double[] cdf) {
+        final int index = Arrays.binarySearch(cdf, random.nextDouble());
+        final int i = index >= 0 ? index : -index - 1;
+        return i < cdf.length ? i : cdf.length - 1;
+    }
+
+    int nextTvChannel() {
+        return sample(tvChannelCdf);
+    }
+
+    int nextDevice() {
+        return sample(deviceCdf);
+    }
+
+    /**
+     * @return the time until the next zap of all the devices together, in milliseconds
+     */
+    long nextZapIntervalMillis() {
+        return (long) (-Math.log(1.0 - random.nextDouble()) * meanZapIntervalMillis);
+    }
+
+    /**
+     * @return the delay between a zap and its delivery, in milliseconds
+     */
+    long nextDeliveryDelayMillis() {
+        if (random.nextDouble() < 0.05) return 60000L + (long) (random.nextDouble() * 1740000.0); // offline for 1 to 30 minutes
+        return (long) Math.exp(7.6 + (random.nextGaussian() * 0.8)); // log-normal with a median of 2 seconds
+    }
+
+    /**
+     * @return a duration between 0 and the given maximum, skewed towards short durations
+     */
+    long nextDurationMillis(final long maxMillis) {
+        final double r = random.nextDouble();
+        return (long) (r * r * maxMillis);
+    }
+
+    double nextDouble() {
+        return random.nextDouble();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending the candidate products of a tv-grid request to a recommender over
+ * RMI: all the products, as the recommenders are sent without deltas,
+ * versus the fingerprint of a candidate set the recommender holds, versus a
+ * delta from a set differing in 1% of products, e.g. after programmes
+ * ended. The fingerprinting on every request is included in the latter two.
+ * The recommender is an in-process {@link StandInRecommender} on the
+ * loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidateTransferBenchmark {
+    private static final int REGISTRY_PORT = 41099;
+    private static final String BINDING = "AI1";
+
+    @Param({"1000", "10000"})
+    public int candidateCount;
+
+    private Registry registry;
+    private StandInRecommender standIn;
+    private DeltaRecommender recommender;
+    private RecommendProduct[] products;
+    private RecommendProduct[] changedProducts;
+    private CandidateSet candidates;
+    private CandidateSet changedCandidates;
+    private boolean changed = false;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Random random = new Random(candidateCount);
+        products = StandInRecommender.tvGridCandidates(1000000L, candidateCount, random);
+        changedProducts = products.clone();
+        for (int i = 0; i < candidateCount / 100; i++) changedProducts[random.nextInt(candidateCount)] = StandInRecommender.tvProgramme(2000000L + i, random);
+        candidates = CandidateSet.of(products);
+        changedCandidates = CandidateSet.of(changedProducts);
+
+        registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+        standIn = new StandInRecommender();
+        registry.rebind(BINDING, UnicastRemoteObject.exportObject(standIn, 0));
+        recommender = (DeltaRecommender) LocateRegistry.getRegistry("127.0.0.1", REGISTRY_PORT).lookup(BINDING);
+        // the recommender holds both candidate sets from now on
+        recommender.recommendations(1L, candidates.deltaFrom(null), null);
+        recommender.recommendations(1L, changedCandidates.deltaFrom(null), null);
+
+        System.out.println("\nSerialized candidates: all products: " + serializedSize(candidates.deltaFrom(null))
+                + " B, fingerprint: " + serializedSize(candidates.deltaFrom(candidates))
+                + " B, 1% delta: " + serializedSize(changedCandidates.deltaFrom(candidates)) + " B");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        registry.unbind(BINDING);
+        UnicastRemoteObject.unexportObject(standIn, true);
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    @Benchmark
+    public Recommendations allProducts() throws Exception {
+        return recommender.recommendations(1L, new CandidateDelta(0L, candidates.fingerprint(), products, CandidateDelta.NO_IDS), null);
+    }
+
+    @Benchmark
+    public Recommendations fingerprint() throws Exception {
+        final CandidateSet current = CandidateSet.of(products);
+        return recommender.recommendations(1L, current.deltaFrom(candidates), null);
+    }
+
+    @Benchmark
+    public Recommendations delta() throws Exception {
+        changed = !changed;
+        final CandidateSet current = CandidateSet.of(changed ? changedProducts : products);
+        return recommender.recommendations(1L, current.deltaFrom(changed ? candidates : changedCandidates), null);
+    }
+
+    private static int serializedSize(final Object o) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.BinaryCodec;
+import com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invoking a recommender over RMI versus the binary recommender protocol,
+ * with the same {@link StandInRecommender} behind both on the loopback
+ * interface: sending all candidate products of a tv-grid request, and
+ * sending just the fingerprint of a candidate set the recommender holds,
+ * the latter also from several threads at once, which the binary protocol
+ * multiplexes over a single connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecommenderTransportBenchmark {
+    private static final int REGISTRY_PORT = 41098;
+    private static final String BINDING = "AI1";
+
+    @Param({"rmi", "binary"})
+    public String transport;
+
+    @Param({"1000", "10000"})
+    public int candidateCount;
+
+    private Registry registry;
+    private StandInRecommender rmiStandIn;
+    private BinaryRecommenderServer server;
+    private BinaryRecommenderClient client;
+    private DeltaRecommender recommender;
+    private CandidateSet candidates;
+    private CandidateDelta all;
+    private CandidateDelta fingerprint;
+
+    @Setup
+    public void setUp() throws Exception {
+        final RecommendProduct[] products = StandInRecommender.tvGridCandidates(1000000L, candidateCount, new Random(candidateCount));
+        candidates = CandidateSet.of(products);
+        all = candidates.deltaFrom(null);
+        fingerprint = candidates.deltaFrom(candidates);
+
+        if ("rmi".equals(transport)) {
+            registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+            rmiStandIn = new StandInRecommender();
+            registry.rebind(BINDING, UnicastRemoteObject.exportObject(rmiStandIn, 0));
+            recommender = (DeltaRecommender) LocateRegistry.getRegistry("127.0.0.1", REGISTRY_PORT).lookup(BINDING);
+        }
+        else {
+            server = new BinaryRecommenderServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 8);
+            server.register(1L, new StandInRecommender());
+            server.start();
+            client = BinaryRecommenderClient.forAddress(1L, "127.0.0.1:" + server.getPort());
+            recommender = client;
+        }
+        recommender.recommendations(1L, all, null); // the recommender holds the set from now on
+
+        System.out.println("\nRequest with all products: Java-serialized " + serializedSize(all) + " B, binary " + BinaryCodec.request(1, 1L, 1L, null, all, null).remaining() + " B");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (registry != null) {
+            registry.unbind(BINDING);
+            UnicastRemoteObject.unexportObject(rmiStandIn, true);
+            UnicastRemoteObject.unexportObject(registry, true);
+        }
+        if (client != null) client.close();
+        if (server != null) server.close();
+    }
+
+    @Benchmark
+    public Recommendations allProducts() throws Exception {
+        return recommender.recommendations(1L, all, null);
+    }
+
+    @Benchmark
+    public Recommendations fingerprint() throws Exception {
+        return recommender.recommendations(1L, fingerprint, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Recommendations fingerprintConcurrently() throws Exception {
+        return recommender.recommendations(1L, fingerprint, null);
+    }
+
+    private static int serializedSize(final Object o) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendation;
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.CandidateSetStore;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stands in for a recommender server in benchmarks, keeping candidate sets
+ * as real recommenders would, and answering with the first 20 candidates,
+ * so the cost of the transport dominates.
+ */
+final class StandInRecommender implements DeltaRecommender {
+    private static final int RESULT_SIZE = 20;
+    private final CandidateSetStore store = new CandidateSetStore(16);
+
+    @Override
+    public Recommendations recommendations(final long consumerId, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+        return answer(store.resolve(candidates));
+    }
+
+    @Override
+    public Recommendations similar(final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+        return answer(store.resolve(candidates));
+    }
+
+    private static Recommendations answer(final RecommendProduct[] candidates) {
+        final Recommendation[] result = new Recommendation[Math.min(RESULT_SIZE, candidates.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new Recommendation(candidates[i].productId, candidates[i].tags, 1.0 - i * 0.01, "stand-in", Collections.singletonMap("Because you watched something", 0.5f));
+        }
+        return new Recommendations(result);
+    }
+
+    /**
+     * Returns candidates resembling a tv-grid request: programmes of 200
+     * tv-channels within a day.
+     */
+    static RecommendProduct[] tvGridCandidates(final long firstId, final int count, final Random random) {
+        final RecommendProduct[] result = new RecommendProduct[count];
+        for (int i = 0; i < count; i++) result[i] = tvProgramme(firstId + i, random);
+        return result;
+    }
+
+    static RecommendProduct tvProgramme(final long id, final Random random) {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("tv-channel", Integer.toString(random.nextInt(200)));
+        tags.put("begin-time", Long.toString(1500000000L + random.nextInt(86400)));
+        return new RecommendProduct(id, tags);
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendation;
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The framing and encoding of the binary recommender protocol, spoken by
+ * the REST API's client and the {@link BinaryRecommenderServer}.
+ * <p>
+ * A frame consists of its length, not counting the length itself, the ID
+ * of the request, which a response repeats so responses can arrive in any
+ * order, and the frame type, followed by the payload of the type. Counts,
+ * lengths and product IDs are variable-length integers. A string is
+ * written only at its first occurrence in a frame and referenced by its
+ * index later, so repeated tag names and values cost a byte or two. The
+ * recommendation settings are embedded Java-serialized, to stay compatible
+ * with all their fields; they are small compared to the candidates. Only
+ * the settings and the types of their fields are deserialized, see
+ * {@link #SETTINGS_CLASSES}.
+ * <p>
+ * Candidates are always sent as a {@link CandidateDelta}. A delta with
+ * neither a base nor a fingerprint carries products that weren't
+ * fingerprinted, and are not kept by the recommender.
+ */
+public final class BinaryCodec {
+    public static final int MAX_FRAME_SIZE = 64 * 1048576;
+    public static final byte TYPE_RECOMMENDATIONS = 1;
+    public static final byte TYPE_SIMILAR = 2;
+    public static final byte TYPE_RESULT = 3;
+    public static final byte TYPE_ERROR = 4;
+    public static final byte ERROR_UNKNOWN_CANDIDATE_SET = 1;
+    public static final byte ERROR_UNKNOWN_RECOMMENDER = 2;
+    public static final byte ERROR_FAILURE = 3;
+    /** The classes the serialized recommendation settings may consist of. */
+    static final Set<String> SETTINGS_CLASSES = settingsClasses();
+
+    private BinaryCodec() {} // not instantiable
+
+    /**
+     * Collects the recommendation settings with the declared types of their
+     * serialized fields, and of the fields of those in the same package,
+     * together with the JDK types that the fields hold at runtime: boxed
+     * primitives and the usual collections.
+     */
+    private static Set<String> settingsClasses() {
+        final Set<String> result = new HashSet<>();
+        final Class<?>[] jdkClasses = {
+                String.class, Number.class, Boolean.class, Byte.class, Short.class, Character.class, Integer.class, Long.class, Float.class, Double.class, Enum.class,
+                ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class,
+                HashSet.class, LinkedHashSet.class, TreeSet.class
+        };
+        for (final Class<?> c : jdkClasses) result.add(c.getName());
+        final List<Class<?>> pending = new ArrayList<>();
+        pending.add(RecommendationSettings.class);
+        final String settingsPackage = RecommendationSettings.class.getPackage().getName();
+        while (!pending.isEmpty()) {
+            for (Class<?> c = pending.remove(pending.size() - 1); (c != null) && (c != Object.class); c = c.getSuperclass()) {
+                if (!result.add(c.getName())) break;
+                for (final Field field : c.getDeclaredFields()) {
+                    if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) continue;
+                    Class<?> type = field.getType();
+                    while (type.isArray()) type = type.getComponentType();
+                    if (type.isPrimitive() || result.contains(type.getName())) continue;
+                    if ((type.getPackage() != null) && settingsPackage.equals(type.getPackage().getName())) pending.add(type);
+                    else result.add(type.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    public static ByteBuffer request(final int requestId, final long recommenderId, final long consumerId, final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws IOException {
+        final Writer out = new Writer(4096 + 16 * (candidates.added.length + candidates.removed.length));
+        out.beginFrame(requestId, productIdsForSimilar == null ? TYPE_RECOMMENDATIONS : TYPE_SIMILAR);
+        out.writeLong(recommenderId);
+        if (productIdsForSimilar == null) out.writeLong(consumerId);
+        else {
+            out.writeVarLong(productIdsForSimilar.length);
+            for (final long id : productIdsForSimilar) out.writeVarLong(id);
+        }
+        out.writeLong(candidates.baseFingerprint);
+        out.writeLong(candidates.fingerprint);
+        out.writeVarLong(candidates.added.length);
+        for (final RecommendProduct product : candidates.added) {
+            out.writeVarLong(product.productId);
+            out.writeTags(product.tags);
+        }
+        out.writeVarLong(candidates.removed.length);
+        for (final long id : candidates.removed) out.writeVarLong(id);
+        out.writeSerialized(settings);
+        return out.endFrame();
+    }
+
+    static ByteBuffer result(final int requestId, final Recommendations recommendations) {
+        final Recommendation[] items = recommendations.recommendations;
+        final Writer out = new Writer(256 + 64 * items.length);
+        out.beginFrame(requestId, TYPE_RESULT);
+        out.writeVarLong(items.length);
+        for (final Recommendation item : items) {
+            out.writeVarLong(item.productId);
+            out.writeTags(item.tags);
+            out.writeDouble(item.prediction);
+            out.writeString(item.explanation);
+            if (item.prettyExplanations == null) out.writeVarLong(0L);
+            else {
+                out.writeVarLong(item.prettyExplanations.size() + 1L);
+                item.prettyExplanations.forEach((final String explanation, final Float weight) -> {
+                    out.writeString(explanation);
+                    out.writeFloat(weight == null ? Float.NaN : weight.floatValue());
+                });
+            }
+        }
+        return out.endFrame();
+    }
+
+    static ByteBuffer error(final int requestId, final byte code, final String message) {
+        final Writer out = new Writer(256);
+        out.beginFrame(requestId, TYPE_ERROR);
+        out.writeByte(code);
+        out.writeString(message);
+        return out.endFrame();
+    }
+
+    /**
+     * Decodes the payload of a result frame.
+     */
+    public static Recommendations readResult(final Reader in) {
+        final int n = in.readCount();
+        final Recommendation[] items = new Recommendation[n];
+        for (int i = 0; i < n; i++) {
+            final long productId = in.readVarLong();
+            final Map<String, String> tags = in.readTags();
+            final double prediction = in.readDouble();
+            final String explanation = in.readString();
+            final int explanationCount = in.readCount() - 1;
+            Map<String, Float> prettyExplanations = null;
+            if (explanationCount >= 0) {
+                prettyExplanations = new HashMap<>(explanationCount * 2);
+                for (int j = 0; j < explanationCount; j++) {
+                    final String key = in.readString();
+                    final float weight = in.readFloat();
+                    prettyExplanations.put(key, Float.isNaN(weight) ? null : weight);
+                }
+            }
+            items[i] = new Recommendation(productId, tags, prediction, explanation, prettyExplanations);
+        }
+        return new Recommendations(items);
+    }
+
+    /**
+     * A decoded request frame.
+     */
+    static final class Request {
+        final int requestId;
+        final byte type;
+        final long recommenderId;
+        final long consumerId;
+        final long[] productIdsForSimilar;
+        final CandidateDelta candidates;
+        final RecommendationSettings settings;
+
+        private Request(final int requestId, final byte type, final long recommenderId, final long consumerId, final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) {
+            this.requestId = requestId;
+            this.type = type;
+            this.recommenderId = recommenderId;
+            this.consumerId = consumerId;
+            this.productIdsForSimilar = productIdsForSimilar;
+            this.candidates = candidates;
+            this.settings = settings;
+        }
+
+        /**
+         * Decodes the request frame, after its request ID and type were read.
+         */
+        static Request read(final int requestId, final byte type, final Reader in) throws IOException {
+            final long recommenderId = in.readLong();
+            long consumerId = 0L;
+            long[] productIdsForSimilar = null;
+            if (type == TYPE_RECOMMENDATIONS) consumerId = in.readLong();
+            else if (type == TYPE_SIMILAR) {
+                productIdsForSimilar = new long[in.readCount()];
+                for (int i = 0; i < productIdsForSimilar.length; i++) productIdsForSimilar[i] = in.readVarLong();
+            }
+            else throw new IOException("Not a request frame type: " + type);
+            final long baseFingerprint = in.readLong();
+            final long fingerprint = in.readLong();
+            final RecommendProduct[] added = new RecommendProduct[in.readCount()];
+            for (int i = 0; i < added.length; i++) {
+                final long productId = in.readVarLong();
+                added[i] = new RecommendProduct(productId, in.readTags());
+            }
+            final long[] removed = new long[in.readCount()];
+            for (int i = 0; i < removed.length; i++) removed[i] = in.readVarLong();
+            final RecommendationSettings settings = (RecommendationSettings) in.readSerialized();
+            return new Request(requestId, type, recommenderId, consumerId, productIdsForSimilar, new CandidateDelta(baseFingerprint, fingerprint, added, removed), settings);
+        }
+    }
+
+    /**
+     * Encodes a frame into a growing array.
+     */
+    static final class Writer extends OutputStream {
+        private byte[] bytes;
+        private int size = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(final int initialCapacity) {
+            bytes = new byte[initialCapacity];
+        }
+
+        void beginFrame(final int requestId, final byte type) {
+            size = 4; // the length is filled in by endFrame()
+            strings.clear();
+            writeInt(requestId);
+            writeByte(type);
+        }
+
+        ByteBuffer endFrame() {
+            final int length = size - 4;
+            bytes[0] = (byte) (length >>> 24);
+            bytes[1] = (byte) (length >>> 16);
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        private void ensure(final int extra) {
+            if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+
+        @Override
+        public void write(final int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void writeByte(final int value) {
+            write(value);
+        }
+
+        void writeInt(final int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeLong(final long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeDouble(final double value) {
+            writeLong(Double.doubleToLongBits(value));
+        }
+
+        void writeFloat(final float value) {
+            writeInt(Float.floatToIntBits(value));
+        }
+
+        /** Writes a zig-zag encoded variable-length integer, a byte per 7 bits of magnitude. */
+        void writeVarLong(final long value) {
+            long v = (value << 1) ^ (value >> 63);
+            ensure(10);
+            while ((v & ~0x7FL) != 0L) {
+                bytes[size++] = (byte) ((v & 0x7FL) | 0x80L);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        /** Writes 0 for null, 1 followed by the UTF-8 bytes for a new string, or 2 + the index of a string written before. */
+        void writeString(final String value) {
+            if (value == null) {
+                writeVarLong(0L);
+                return;
+            }
+            final Integer index = strings.get(value);
+            if (index != null) {
+                writeVarLong(index.longValue() + 2L);
+                return;
+            }
+            strings.put(value, strings.size());
+            final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(1L);
+            writeVarLong(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+
+        /** Writes the number of tags + 1, or 0 for null, followed by the keys and values. */
+        void writeTags(final Map<String, String> tags) {
+            if (tags == null) {
+                writeVarLong(0L);
+                return;
+            }
+            writeVarLong(tags.size() + 1L);
+            tags.forEach((final String key, final String value) -> {
+                writeString(key);
+                writeString(value);
+            });
+        }
+
+        void writeSerialized(final Object value) throws IOException {
+            if (value == null) {
+                writeVarLong(0L);
+                return;
+            }
+            final ByteArrayOutputStream serialized = new ByteArrayOutputStream(256);
+            try (final ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+                out.writeObject(value);
+            }
+            writeVarLong(serialized.size());
+            serialized.writeTo(this);
+        }
+    }
+
+    /**
+     * Decodes a frame, from after its length.
+     */
+    public static final class Reader extends InputStream {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        public Reader(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        public byte readByte() {
+            return buffer.get();
+        }
+
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        double readDouble() {
+            return buffer.getDouble();
+        }
+
+        float readFloat() {
+            return buffer.getFloat();
+        }
+
+        long readVarLong() {
+            long v = 0L;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63) throw new IllegalStateException("Malformed variable-length integer");
+                b = buffer.get();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1L);
+        }
+
+        /** Reads a count, verifying it can't exceed the frame, so a damaged frame doesn't cause a huge allocation. */
+        int readCount() {
+            final long n = readVarLong();
+            if ((n < 0L) || (n > buffer.remaining() + 1L)) throw new IllegalStateException("Malformed count: " + n);
+            return (int) n;
+        }
+
+        public String readString() {
+            final long marker = readVarLong();
+            if (marker == 0L) return null;
+            if (marker != 1L) {
+                if ((marker < 2L) || (marker - 2L >= strings.size())) throw new IllegalStateException("Reference to an unknown string: " + (marker - 2L));
+                return strings.get((int) (marker - 2L));
+            }
+            final int length = readCount();
+            if (length > buffer.remaining()) throw new BufferUnderflowException();
+            final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            strings.add(value);
+            return value;
+        }
+
+        Map<String, String> readTags() {
+            final int n = readCount() - 1;
+            if (n < 0) return null;
+            final Map<String, String> tags = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                final String key = readString();
+                tags.put(key, readString());
+            }
+            return tags;
+        }
+
+        Object readSerialized() throws IOException {
+            final int length = readCount();
+            if (length == 0) return null;
+            final int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            try (final ObjectInputStream in = new SettingsInputStream(this)) {
+                return in.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("Cannot deserialize recommendation settings: " + e.toString(), e);
+            }
+            finally {
+                buffer.position(buffer.limit());
+                buffer.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Deserializes only the {@link #SETTINGS_CLASSES}, and arrays of them
+     * or of primitives, so a request cannot instantiate arbitrary classes.
+     */
+    private static final class SettingsInputStream extends ObjectInputStream {
+        SettingsInputStream(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final String name = desc.getName();
+            int dimensions = 0;
+            while ((dimensions < name.length()) && (name.charAt(dimensions) == '[')) dimensions++;
+            final boolean allowed;
+            if (dimensions == 0) allowed = SETTINGS_CLASSES.contains(name);
+            else if (name.charAt(dimensions) == 'L') allowed = name.endsWith(";") && SETTINGS_CLASSES.contains(name.substring(dimensions + 1, name.length() - 1));
+            else allowed = name.length() == dimensions + 1; // an array of primitives
+            if (!allowed) throw new InvalidClassException(name, "Not allowed in recommendation settings");
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in recommendation settings");
+        }
+    }
+}
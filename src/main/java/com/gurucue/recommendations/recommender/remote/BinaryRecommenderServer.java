@@ -0,0 +1,290 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.Recommendations;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves recommenders over the binary recommender protocol, see
+ * {@link BinaryCodec}, as an alternative to exporting them via RMI. A
+ * recommender server embeds it and registers its recommenders by ID, the
+ * REST API then reaches them with a binary recommender client for
+ * each replica listed as binary://host:port.
+ * <p>
+ * One thread accepts connections and reads and writes frames of all
+ * connections without blocking, while requests are processed by worker
+ * threads, so requests of a connection are processed concurrently and
+ * their responses are written as they complete, in any order.
+ */
+public final class BinaryRecommenderServer implements Runnable {
+    private static final Logger log = LogManager.getLogger(BinaryRecommenderServer.class);
+    public static final int DEFAULT_PORT = 7421;
+    private static final int INITIAL_READ_BUFFER_SIZE = 65536;
+
+    private final ConcurrentMap<Long, DeltaRecommender> recommenders = new ConcurrentHashMap<>();
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    /** Connections with responses to write, handed from workers to the I/O thread. */
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final Thread ioThread;
+    private volatile boolean running = false;
+
+    /**
+     * Creates a server listening on the given address, use port 0 for any
+     * free port.
+     *
+     * @param address the address to listen on
+     * @param workerThreads the number of threads processing requests
+     * @throws IOException if the server cannot listen on the address
+     */
+    public BinaryRecommenderServer(final InetSocketAddress address, final int workerThreads) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        final AtomicInteger threadCounter = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            final Thread thread = new Thread(runnable, "Binary recommender worker " + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ioThread = new Thread(this, "Binary recommender server I/O at " + serverChannel.getLocalAddress());
+        ioThread.setDaemon(true);
+    }
+
+    public void register(final long recommenderId, final DeltaRecommender recommender) {
+        recommenders.put(recommenderId, recommender);
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public void start() {
+        running = true;
+        ioThread.start();
+        log.info("Binary recommender server listening at " + ioThread.getName().substring(ioThread.getName().lastIndexOf(' ') + 1));
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(5000L);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5L, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Connection connection;
+                while ((connection = writable.poll()) != null) connection.enableWrites();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else {
+                        final Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) c.read();
+                            if (key.isValid() && key.isWritable()) c.write();
+                        }
+                        catch (IOException | RuntimeException e) {
+                            log.warn("Closing the connection from " + c.remoteAddress + ": " + e.toString());
+                            c.close();
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException e) {
+            log.error("The binary recommender server failed: " + e.toString(), e);
+        }
+        finally {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            }
+            catch (IOException e) {
+                log.error("Failed to close the binary recommender server: " + e.toString(), e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        final Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Processes a request on a worker thread, and queues its response.
+     */
+    private void process(final Connection connection, final ByteBuffer frame) {
+        final BinaryCodec.Reader in = new BinaryCodec.Reader(frame);
+        final int requestId = in.readInt();
+        ByteBuffer response;
+        try {
+            final BinaryCodec.Request request = BinaryCodec.Request.read(requestId, in.readByte(), in);
+            final DeltaRecommender recommender = recommenders.get(request.recommenderId);
+            if (recommender == null) response = BinaryCodec.error(requestId, BinaryCodec.ERROR_UNKNOWN_RECOMMENDER, "There is no recommender " + request.recommenderId);
+            else {
+                final Recommendations result = request.type == BinaryCodec.TYPE_SIMILAR
+                        ? recommender.similar(request.productIdsForSimilar, request.candidates, request.settings)
+                        : recommender.recommendations(request.consumerId, request.candidates, request.settings);
+                response = BinaryCodec.result(requestId, result);
+            }
+        }
+        catch (UnknownCandidateSetException e) {
+            response = BinaryCodec.error(requestId, BinaryCodec.ERROR_UNKNOWN_CANDIDATE_SET, e.getMessage());
+        }
+        catch (Exception e) {
+            log.error("Request " + requestId + " from " + connection.remoteAddress + " failed: " + e.toString(), e);
+            response = BinaryCodec.error(requestId, BinaryCodec.ERROR_FAILURE, e.toString());
+        }
+        connection.queue(response);
+    }
+
+    /**
+     * A client connection, its state accessed only by the I/O thread,
+     * except for the queue of responses.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final String remoteAddress;
+        SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // access must be guarded with synchronized(out)
+
+        Connection(final SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                final int length = in.getInt(in.position());
+                if ((length < 5) || (length > BinaryCodec.MAX_FRAME_SIZE)) throw new IOException("Invalid frame length: " + length);
+                if (in.remaining() < 4 + length) {
+                    if (4 + length > in.capacity()) {
+                        // grow to hold the whole frame
+                        final ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(in);
+                        in = larger;
+                        return;
+                    }
+                    break;
+                }
+                in.position(in.position() + 4);
+                final byte[] frame = new byte[length];
+                in.get(frame);
+                try {
+                    workers.execute(() -> process(this, ByteBuffer.wrap(frame)));
+                }
+                catch (RejectedExecutionException e) {
+                    throw new IOException("The server is shutting down");
+                }
+            }
+            in.compact();
+        }
+
+        void queue(final ByteBuffer response) {
+            synchronized (out) {
+                out.add(response);
+            }
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        void enableWrites() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            synchronized (out) {
+                while (!out.isEmpty()) {
+                    final ByteBuffer head = out.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) return; // the socket buffer is full, continue when writable
+                    out.poll();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                log.warn("Failed to close the connection from " + remoteAddress + ": " + e.toString());
+            }
+        }
+    }
+}
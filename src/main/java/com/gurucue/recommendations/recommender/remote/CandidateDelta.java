@@ -0,0 +1,100 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+
+import java.io.Serializable;
+
+/**
+ * The candidate products of a request to a {@link DeltaRecommender}, as
+ * the difference from a candidate set the recommender already holds. A
+ * delta without a base carries all the products, a delta to the base
+ * itself carries nothing but the fingerprint.
+ *
+ * @see CandidateSetStore
+ */
+public final class CandidateDelta implements Serializable {
+    private static final long serialVersionUID = 4822531609213461773L;
+    public static final RecommendProduct[] NO_PRODUCTS = new RecommendProduct[0];
+    public static final long[] NO_IDS = new long[0];
+
+    /** The fingerprint of the candidate set the delta applies to, 0 if it contains all products. */
+    public final long baseFingerprint;
+    /** The fingerprint of the resulting candidate set, 0 if the products were not fingerprinted. */
+    public final long fingerprint;
+    /** The products to add to the base, including changed products. */
+    public final RecommendProduct[] added;
+    /** The IDs of products to remove from the base, including changed products. */
+    public final long[] removed;
+
+    public CandidateDelta(final long baseFingerprint, final long fingerprint, final RecommendProduct[] added, final long[] removed) {
+        this.baseFingerprint = baseFingerprint;
+        this.fingerprint = fingerprint;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * Returns a delta with all the given products, without a fingerprint,
+     * for a one-off request whose candidates are not kept.
+     */
+    public static CandidateDelta unfingerprinted(final RecommendProduct[] products) {
+        return new CandidateDelta(0L, 0L, products, NO_IDS);
+    }
+
+    public boolean isFull() {
+        return baseFingerprint == 0L;
+    }
+
+    /**
+     * Returns the hash of the given product, whose sum over a candidate
+     * set makes its fingerprint.
+     *
+     * @param product the product to hash
+     * @return the hash of the product
+     */
+    public static long productHash(final RecommendProduct product) {
+        return mix(product.productId * 0x9E3779B97F4A7C15L + (product.tags == null ? 0 : product.tags.hashCode()));
+    }
+
+    /**
+     * Returns the fingerprint of a candidate set with the given number of
+     * products and the sum of their {@link #productHash(RecommendProduct)}.
+     * It is never 0, which denotes no candidate set in a delta.
+     *
+     * @param productHashSum the sum of product hashes
+     * @param size the number of products
+     * @return the fingerprint
+     */
+    public static long fingerprint(final long productHashSum, final int size) {
+        final long result = mix(productHashSum ^ mix(size));
+        return result == 0L ? 1L : result;
+    }
+
+    /** The finalizer of the 64-bit MurmurHash3. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
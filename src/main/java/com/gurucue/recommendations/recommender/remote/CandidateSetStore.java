@@ -0,0 +1,101 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The recommender's side of candidate set deltas: keeps the most recently
+ * used candidate sets by their fingerprints, and reconstructs candidate
+ * sets from the deltas sent to a {@link DeltaRecommender}.
+ */
+public final class CandidateSetStore {
+    private final LinkedHashMap<Long, RecommendProduct[]> sets;
+
+    /**
+     * @param capacity the number of candidate sets to keep
+     */
+    public CandidateSetStore(final int capacity) {
+        this.sets = new LinkedHashMap<Long, RecommendProduct[]>(capacity * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, RecommendProduct[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the candidate products described by the given delta, and
+     * keeps them for later deltas.
+     *
+     * @param delta the delta received with a request
+     * @return the candidate products
+     * @throws UnknownCandidateSetException if the base of the delta is not kept, or the result doesn't match the fingerprint
+     */
+    public RecommendProduct[] resolve(final CandidateDelta delta) throws UnknownCandidateSetException {
+        if (delta.isFull()) {
+            if (delta.fingerprint == 0L) return delta.added; // not fingerprinted, so not to be kept
+            if (fingerprint(delta.added) != delta.fingerprint) throw new UnknownCandidateSetException("The candidate products don't match the fingerprint " + delta.fingerprint);
+            put(delta.fingerprint, delta.added);
+            return delta.added;
+        }
+        final RecommendProduct[] base = get(delta.baseFingerprint);
+        if (base == null) throw new UnknownCandidateSetException("Unknown candidate set " + delta.baseFingerprint);
+        if (delta.baseFingerprint == delta.fingerprint) return base;
+
+        final TLongSet removed = new TLongHashSet(delta.removed);
+        final RecommendProduct[] result = new RecommendProduct[base.length - delta.removed.length + delta.added.length];
+        int count = 0;
+        for (final RecommendProduct product : base) {
+            if (removed.contains(product.productId)) continue;
+            if (count == result.length) throw new UnknownCandidateSetException("The delta from the candidate set " + delta.baseFingerprint + " doesn't match the fingerprint " + delta.fingerprint);
+            result[count++] = product;
+        }
+        if (count + delta.added.length != result.length) throw new UnknownCandidateSetException("The delta from the candidate set " + delta.baseFingerprint + " doesn't match the fingerprint " + delta.fingerprint);
+        System.arraycopy(delta.added, 0, result, count, delta.added.length);
+        if (fingerprint(result) != delta.fingerprint) throw new UnknownCandidateSetException("The delta from the candidate set " + delta.baseFingerprint + " doesn't match the fingerprint " + delta.fingerprint);
+        put(delta.fingerprint, result);
+        return result;
+    }
+
+    public synchronized int size() {
+        return sets.size();
+    }
+
+    private synchronized RecommendProduct[] get(final long fingerprint) {
+        return sets.get(fingerprint);
+    }
+
+    private synchronized void put(final long fingerprint, final RecommendProduct[] products) {
+        sets.put(fingerprint, products);
+    }
+
+    private static long fingerprint(final RecommendProduct[] products) {
+        long sum = 0L;
+        for (final RecommendProduct product : products) sum += CandidateDelta.productHash(product);
+        return CandidateDelta.fingerprint(sum, products.length);
+    }
+}
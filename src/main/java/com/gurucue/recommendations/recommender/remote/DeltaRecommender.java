@@ -0,0 +1,38 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The remote interface of a recommender that keeps recent candidate sets,
+ * so it can be sent only their differences. A recommender exporting this
+ * interface alongside {@link com.gurucue.recommendations.recommender.BasicRecommender}
+ * is used through it, other recommenders are sent all products as before.
+ * A {@link CandidateSetStore} implements the recommender's side of it.
+ */
+public interface DeltaRecommender extends Remote {
+    Recommendations recommendations(long consumerId, CandidateDelta candidates, RecommendationSettings settings) throws RemoteException, UnknownCandidateSetException;
+
+    Recommendations similar(long[] productIdsForSimilar, CandidateDelta candidates, RecommendationSettings settings) throws RemoteException, UnknownCandidateSetException;
+}
@@ -0,0 +1,33 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+/**
+ * Thrown by a {@link DeltaRecommender} that doesn't hold the base of a
+ * {@link CandidateDelta}, e.g. after a restart or after evicting it, or
+ * whose reconstruction doesn't match the fingerprint. The request should
+ * be repeated with all the products.
+ */
+public class UnknownCandidateSetException extends Exception {
+    private static final long serialVersionUID = -3095614725833419046L;
+
+    public UnknownCandidateSetException(final String message) {
+        super(message);
+    }
+}
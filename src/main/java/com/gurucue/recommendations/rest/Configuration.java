@@ -0,0 +1,57 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the service settings from environment variables, in the same way
+ * the database connection parameters are configured. A missing or invalid
+ * setting results in the given default value.
+ */
+public final class Configuration {
+    private static final Logger log = LogManager.getLogger(Configuration.class);
+
+    private Configuration() {} // not instantiable
+
+    public static String getString(final String name, final String defaultValue) {
+        final String value = System.getenv(name);
+        if ((value == null) || (value.trim().length() == 0)) return defaultValue;
+        return value.trim();
+    }
+
+    public static long getLong(final String name, final long defaultValue) {
+        final String value = getString(name, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value, 10);
+        }
+        catch (NumberFormatException e) {
+            log.error("The setting " + name + " is not an integer: \"" + value + "\", using the default value " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        final String value = getString(name, null);
+        if (value == null) return defaultValue;
+        return "yes".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value) || "1".equals(value);
+    }
+}
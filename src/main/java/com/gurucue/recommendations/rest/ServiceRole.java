@@ -0,0 +1,65 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * What a node of the service does, configured with RECSRV_ROLE. By
+ * default a node does everything. Separating the roles keeps zap
+ * processing from competing with recommendations for CPU and heap: a
+ * serving node hands its zaps to a zap worker on the same host, through
+ * the channel in RECSRV_ZAP_CHANNEL_DIR.
+ */
+public enum ServiceRole {
+    /** Serves recommendations and processes zaps. */
+    ALL("all", true, true),
+    /** Serves recommendations and accepts events, hands zaps to a zap worker. */
+    SERVING("serving", true, false),
+    /** Accepts events and processes zaps and viewership, doesn't serve recommendations. */
+    ZAP_WORKER("zap-worker", false, true);
+
+    private static final Logger log = LogManager.getLogger(ServiceRole.class);
+
+    /** The role of this node. */
+    public static final ServiceRole CURRENT = fromConfiguration();
+
+    /** The value of RECSRV_ROLE denoting the role. */
+    public final String identifier;
+    /** Whether the recommenders and blenders are started, and recommendation and search requests served. */
+    public final boolean servesRecommendations;
+    /** Whether zaps are converted into consumptions and viewership on this node. */
+    public final boolean processesZaps;
+
+    ServiceRole(final String identifier, final boolean servesRecommendations, final boolean processesZaps) {
+        this.identifier = identifier;
+        this.servesRecommendations = servesRecommendations;
+        this.processesZaps = processesZaps;
+    }
+
+    private static ServiceRole fromConfiguration() {
+        final String identifier = Configuration.getString("RECSRV_ROLE", ALL.identifier);
+        for (final ServiceRole role : values()) {
+            if (role.identifier.equalsIgnoreCase(identifier)) return role;
+        }
+        log.error("The setting RECSRV_ROLE has an unknown role: \"" + identifier + "\", using the role " + ALL.identifier);
+        return ALL;
+    }
+}
@@ -65,6 +65,8 @@ public final class RequestCache {
     private Partner partner;
     public final List<String> trace = new ArrayList<>();
     private RequestLogger logger;
+    private boolean hasDeadline = false;
+    private long deadlineNanos;
 
     private RequestCache() {
         // not instantiate-able from outside
@@ -116,6 +118,7 @@ public final class RequestCache {
         }
         // purge per-request caches, and clear other per-request things
         partner = null;
+        hasDeadline = false;
         instance.remove();
 
         // make the instance available for new requests
@@ -146,6 +149,29 @@ public final class RequestCache {
         trace.add(line);
     }
 
+    /**
+     * Sets the time by which the current request should be answered, so
+     * the calls made on its behalf don't wait past it.
+     *
+     * @param deadlineNanos the deadline, in terms of System.nanoTime()
+     */
+    public void setDeadline(final long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        hasDeadline = true;
+    }
+
+    /**
+     * Returns the time by which the current request should be answered,
+     * in terms of System.nanoTime(). Without a deadline set this is the
+     * given time from now.
+     *
+     * @param defaultBudgetNanos the time the request has if no deadline was set
+     * @return the deadline
+     */
+    public long getDeadlineNanos(final long defaultBudgetNanos) {
+        return hasDeadline ? deadlineNanos : System.nanoTime() + defaultBudgetNanos;
+    }
+
     public RequestLogger getLogger() {
         final RequestLogger l = logger;
         if (l == null) return RequestLogger.getLogger("service.unknown", "[" + Thread.currentThread().getId() + "] ");
@@ -178,8 +178,47 @@ public final class RecommendationInput implements Serializable, StructuredTokenP
         return result;
     }
 
+    /**
+     * Returns the normalized form of the inputs that {@link #asBlendParameters()}
+     * hands to blenders, so equivalent requests have equal keys regardless
+     * of the order of their attributes and data. The user is not a part
+     * of the key.
+     *
+     * @return the key identifying equivalent requests of a consumer
+     */
+    public String cacheKey() {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(recommender).append('|').append(maxRecommendations).append('|');
+        if (data != null) {
+            final List<String> dataEntries = new ArrayList<>(data.size());
+            data.forEach((final ConsumerEventDataInput input) -> dataEntries.add(input.getType().getIdentifier() + "=" + input.getValue()));
+            appendSorted(sb, dataEntries);
+        }
+        sb.append('|');
+        if (attributes != null) {
+            final List<String> attributeEntries = new ArrayList<>(attributes.size());
+            for (final AttributeInput attribute : attributes) {
+                attributeEntries.add(attribute.getAttribute().getIdentifier() + (attribute.getLanguage() == null ? "" : "@" + attribute.getLanguage().getIso639_2t()) + "=" + attribute.getValue());
+            }
+            appendSorted(sb, attributeEntries);
+        }
+        sb.append('|');
+        if (refProducts != null) refProducts.forEach((final Product p) -> sb.append(p.id).append(','));
+        sb.append('|');
+        if (products != null) products.forEach((final Product p) -> sb.append(p.id).append(','));
+        return sb.toString();
+    }
+
     // utility methods
 
+    private static void appendSorted(final StringBuilder sb, final List<String> entries) {
+        Collections.sort(entries);
+        for (final String entry : entries) {
+            // escape the separators, so different entries cannot produce the same key
+            sb.append(entry.replace("\\", "\\\\").replace(",", "\\,").replace("|", "\\|")).append(',');
+        }
+    }
+
     // StructuredTokenParser interface
 
     @Override
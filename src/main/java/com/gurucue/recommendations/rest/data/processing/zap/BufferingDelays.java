@@ -0,0 +1,223 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Partner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tunes the zap buffering delay from the observed event delivery delays,
+ * for each partner separately. The buffering delay is how long zaps are
+ * collected after the end of a tv-programme, or after a playout, before
+ * they are converted into consumptions; zaps delivered later than that
+ * are not accounted for.
+ * <p>
+ * A partner's delay is the given percentile of its recent delivery delays,
+ * rounded up to the resolution, plus a safety margin, and limited to the
+ * given bounds. Partners that delivered too few events recently use the
+ * delay computed from the events of all partners.
+ */
+final class BufferingDelays {
+    private static final int PARTNER_STRIPES = 4; // a partner sees only a fraction of all events
+
+    private final long resolutionMillis;
+    private final int bucketCount;
+    private final int windowCount;
+    private final int percentile;
+    private final long marginMillis;
+    private final long minMillis;
+    private final long maxMillis;
+    private final long minEventCount;
+    private final EventDelayRecorder allDelays;
+    private final ConcurrentHashMap<Long, PartnerDelays> partnerDelays = new ConcurrentHashMap<>();
+    private volatile long globalDelayMillis;
+    private volatile long maxDelayMillis;
+
+    /**
+     * @param resolutionMillis the width of a histogram bucket, and the length of a recording interval, in milliseconds
+     * @param bucketCount the number of histogram buckets
+     * @param windowCount the number of most recent intervals to tune the delays from
+     * @param percentile the percentile of delivery delays that the buffering delay must cover, between 0 and 100
+     * @param marginMillis what to add to the delay at the percentile, in milliseconds
+     * @param minMillis the lowest buffering delay, in milliseconds
+     * @param maxMillis the highest buffering delay, in milliseconds
+     * @param minEventCount the fewest events of a partner to tune its delay from, in the window
+     */
+    BufferingDelays(final long resolutionMillis, final int bucketCount, final int windowCount, final int percentile, final long marginMillis, final long minMillis, final long maxMillis, final long minEventCount) {
+        this.resolutionMillis = resolutionMillis;
+        this.bucketCount = bucketCount;
+        this.windowCount = windowCount;
+        this.percentile = percentile;
+        this.marginMillis = marginMillis;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis < minMillis ? minMillis : maxMillis;
+        this.minEventCount = minEventCount;
+        this.allDelays = new EventDelayRecorder(resolutionMillis, bucketCount, windowCount);
+        this.globalDelayMillis = this.minMillis;
+        this.maxDelayMillis = this.minMillis;
+    }
+
+    /**
+     * Records the delivery delay of an event.
+     *
+     * @param partner the partner of the event, null if unknown
+     * @param deliveryMillis when the event was delivered
+     * @param eventMillis when the event happened
+     */
+    void record(final Partner partner, final long deliveryMillis, final long eventMillis) {
+        allDelays.record(deliveryMillis, eventMillis);
+        if ((partner == null) || (partner.getId() == null)) return;
+        PartnerDelays delays = partnerDelays.get(partner.getId());
+        if (delays == null) {
+            final PartnerDelays newDelays = new PartnerDelays(partner, new EventDelayRecorder(resolutionMillis, bucketCount, windowCount, PARTNER_STRIPES));
+            delays = partnerDelays.putIfAbsent(partner.getId(), newDelays);
+            if (delays == null) delays = newDelays;
+        }
+        delays.recorder.record(deliveryMillis, eventMillis);
+    }
+
+    /**
+     * Returns the buffering delay of the given partner.
+     *
+     * @param partner the partner, may be null
+     * @return the partner's buffering delay, or the delay of all partners if the partner has no delay of its own
+     */
+    long delayMillis(final Partner partner) {
+        if ((partner == null) || (partner.getId() == null)) return globalDelayMillis;
+        final PartnerDelays delays = partnerDelays.get(partner.getId());
+        if ((delays == null) || !delays.adaptive) return globalDelayMillis;
+        return delays.delayMillis;
+    }
+
+    /**
+     * Returns the buffering delay computed from the events of all partners.
+     *
+     * @return the buffering delay in milliseconds
+     */
+    long globalDelayMillis() {
+        return globalDelayMillis;
+    }
+
+    /**
+     * Returns the longest buffering delay in use by any partner.
+     *
+     * @return the buffering delay in milliseconds
+     */
+    long maxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Sets the delay of all partners, e.g. as restored from a snapshot,
+     * until the delays are tuned anew.
+     *
+     * @param delayMillis the buffering delay in milliseconds
+     */
+    void restoreGlobalDelayMillis(final long delayMillis) {
+        globalDelayMillis = delayMillis;
+        if (maxDelayMillis < delayMillis) maxDelayMillis = delayMillis;
+    }
+
+    /**
+     * Returns the distribution of recent delivery delays of all partners.
+     *
+     * @param nowMillis the current time
+     * @return the delay distribution
+     */
+    EventDelayDistribution distribution(final long nowMillis) {
+        return allDelays.distribution(nowMillis);
+    }
+
+    /**
+     * Computes the buffering delay that covers the given distribution.
+     *
+     * @param distribution the distribution of delivery delays
+     * @return the buffering delay in milliseconds
+     */
+    long delayFor(final EventDelayDistribution distribution) {
+        final long delay = ((distribution.percentileBucket(percentile) + 1) * resolutionMillis) + marginMillis;
+        if (delay < minMillis) return minMillis;
+        if (delay > maxMillis) return maxMillis;
+        return delay;
+    }
+
+    /**
+     * Tunes the delays of all partners to their recent delivery delays.
+     *
+     * @param nowMillis the current time
+     * @param globalDistribution the distribution of recent delivery delays of all partners
+     * @param logBuilder where to log any changed delays
+     */
+    void tune(final long nowMillis, final EventDelayDistribution globalDistribution, final StringBuilder logBuilder) {
+        final long globalDelay = delayFor(globalDistribution);
+        globalDelayMillis = globalDelay;
+        long maxDelay = globalDelay;
+        for (final PartnerDelays delays : partnerDelays.values()) {
+            final EventDelayDistribution distribution = delays.recorder.distribution(nowMillis);
+            final boolean adaptive = distribution.totalCount >= minEventCount;
+            final long delay = adaptive ? delayFor(distribution) : globalDelay;
+            if ((adaptive != delays.adaptive) || (adaptive && (delay != delays.delayMillis))) {
+                logBuilder.append("\nPartner ").append(delays.partner.getId()).append(" (").append(delays.partner.getUsername()).append("): ");
+                if (adaptive) logBuilder.append("buffering delay ").append(delay / 1000L).append(" s from ").append(distribution.totalCount).append(" events");
+                else logBuilder.append("too few events (").append(distribution.totalCount).append("), using the common buffering delay");
+            }
+            delays.delayMillis = delay;
+            delays.eventCount = distribution.totalCount;
+            delays.percentileMillis = distribution.percentileMillis(percentile);
+            delays.adaptive = adaptive;
+            if (delay > maxDelay) maxDelay = delay;
+        }
+        maxDelayMillis = maxDelay;
+    }
+
+    /**
+     * Returns the current buffering delay of each partner that delivered
+     * any events.
+     *
+     * @return the per-partner buffering delays, ordered by partner ID
+     */
+    List<PartnerBufferingStatus> status() {
+        final List<PartnerBufferingStatus> result = new ArrayList<>(partnerDelays.size());
+        final long globalDelay = globalDelayMillis;
+        for (final PartnerDelays delays : partnerDelays.values()) {
+            final boolean adaptive = delays.adaptive;
+            result.add(new PartnerBufferingStatus(delays.partner.getId(), delays.partner.getUsername(), adaptive ? delays.delayMillis : globalDelay, adaptive, delays.eventCount, delays.percentileMillis));
+        }
+        Collections.sort(result, (a, b) -> Long.compare(a.partnerId, b.partnerId));
+        return result;
+    }
+
+    private static final class PartnerDelays {
+        final Partner partner;
+        final EventDelayRecorder recorder;
+        volatile long delayMillis = 0L;
+        volatile boolean adaptive = false; // whether the partner delivered enough events to have its own delay
+        volatile long eventCount = 0L;
+        volatile long percentileMillis = 0L;
+
+        PartnerDelays(final Partner partner, final EventDelayRecorder recorder) {
+            this.partner = partner;
+            this.recorder = recorder;
+        }
+    }
+}
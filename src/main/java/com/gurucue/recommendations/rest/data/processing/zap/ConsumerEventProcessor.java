@@ -23,9 +23,16 @@ import com.gurucue.recommendations.Timer;
 import com.gurucue.recommendations.TimerListener;
 import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.entity.ConsumerEvent;
-import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.rest.ServiceRole;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Processing logic for zap events, implemented as a singleton class.
  * Proxies zaps further, depending on product type.
@@ -34,26 +41,71 @@ import org.apache.logging.log4j.Logger;
  * @see com.gurucue.recommendations.rest.data.processing.zap.TvChannelState
  */
 public final class ConsumerEventProcessor implements TimerListener {
+    private static final Logger log = LogManager.getLogger(ConsumerEventProcessor.class);
+
     /**
      * The instance to use for dispatching zap events for processing.
      * @see #saveNewServiceEvent(com.gurucue.recommendations.entity.ConsumerEvent)
      */
     public static final ConsumerEventProcessor INSTANCE = new ConsumerEventProcessor();
 
+    /** The HTTP header carrying the secret shared by the nodes sharing zap processing. */
+    public static final String CLUSTER_SECRET_HEADER = ZapCluster.SECRET_HEADER;
+
+    /** Processes zaps, null if this node hands zaps over to a zap worker, see {@link ServiceRole}. */
     private final ZapProcessor processor;
+    /** Shares zap processing with other nodes, null if this node processes all zaps alone. */
+    private final ZapCluster cluster;
+    /** Hands zaps over to a zap worker, on a serving node. */
+    private final ZapChannel.Writer channelWriter;
+    /** Receives zaps from serving nodes, on a zap worker. */
+    private final ZapChannel.Reader channelReader;
     private long timerMillis;
     private final long idEventTypeZap;
 
     private ConsumerEventProcessor() {
         idEventTypeZap = DataManager.getConsumerEventTypeCodes().idForZap;
-        processor = new ZapProcessor(this);
+        final ServiceRole role = ServiceRole.CURRENT;
+        final File channelDirectory = role == ServiceRole.ALL ? null : ZapChannel.directoryFromConfiguration();
+        if (role.processesZaps) {
+            processor = new ZapProcessor(this);
+            cluster = ZapCluster.fromConfiguration(processor);
+            channelWriter = null;
+            channelReader = channelDirectory == null ? null : new ZapChannel.Reader(channelDirectory, processor.data, this::processZap);
+        }
+        else {
+            processor = null;
+            cluster = null;
+            channelWriter = channelDirectory == null ? null : ZapChannel.Writer.fromConfiguration(channelDirectory);
+            channelReader = null;
+            if (channelWriter == null) log.warn("Zaps are not processed: this node doesn't process them, and the channel to a zap worker is disabled");
+        }
     }
 
     /**
      * Starts the processing threads. Should be called at a service startup.
      */
     public void start() {
-        processor.start();
+        if (processor != null) {
+            processor.start();
+            if (cluster != null) cluster.start();
+            if (channelReader != null) {
+                try {
+                    channelReader.start();
+                }
+                catch (IOException e) {
+                    log.error("Cannot receive zaps from serving nodes: " + e.toString(), e);
+                }
+            }
+        }
+        if (channelWriter != null) {
+            try {
+                channelWriter.open();
+            }
+            catch (IOException e) {
+                log.error("Cannot hand zaps over to a zap worker: " + e.toString(), e);
+            }
+        }
         synchronized (this) {
             timerMillis = Timer.currentTimeMillis() + 10000L; // 10 secs
             Timer.INSTANCE.schedule(timerMillis, this);
@@ -67,10 +119,26 @@ public final class ConsumerEventProcessor implements TimerListener {
         synchronized (this) {
             Timer.INSTANCE.unschedule(timerMillis, this);
         }
-        processor.stop();
+        if (channelReader != null) channelReader.stop();
+        if (cluster != null) {
+            cluster.leave(); // hand off the devices while still processing zaps
+            cluster.stop();
+        }
+        if (processor != null) processor.stop();
+        if (channelWriter != null) channelWriter.close();
     }
 
-    public final void saveNewServiceEvent(final ConsumerEvent consumerEvent){//}, final Product product) {
+    /**
+     * Stores the given event, and processes it if it is a zap. A zap is
+     * refused without being stored when too many zaps are already waiting
+     * to be processed, so the producer can send it again later.
+     *
+     * @param consumerEvent the event to store
+     * @return whether the event was accepted
+     */
+    public final boolean saveNewServiceEvent(final ConsumerEvent consumerEvent){//}, final Product product) {
+        final boolean isZap = (consumerEvent != null) && (consumerEvent.getEventType() != null) && (consumerEvent.getEventType().getId().longValue() == idEventTypeZap);
+        if (isZap && (processor != null) && !processor.admits()) return false; // too many zaps waiting, the producer should retry later
         try {
             DataManager.queueConsumerEvent(consumerEvent);
         }
@@ -78,11 +146,124 @@ public final class ConsumerEventProcessor implements TimerListener {
             throw new DatabaseException("Interrupted while queueing an event from the event service: " + e.toString(), e);
         }
 
-        if ((consumerEvent != null) && (consumerEvent.getEventType() != null) && (consumerEvent.getEventType().getId().longValue() == idEventTypeZap)) {
+        if (isZap) {
             // process a zap
             // TODO: check whether we're running
-            processor.submit(consumerEvent);
+            if (processor != null) processZap(consumerEvent);
+            else if (channelWriter != null) channelWriter.append(consumerEvent); // to the zap worker
         }
+        return true;
+    }
+
+    private void processZap(final ConsumerEvent consumerEvent) {
+        if (cluster == null) processor.submit(consumerEvent);
+        else cluster.submit(consumerEvent); // to the node processing the zaps of the device
+    }
+
+    /**
+     * Whether this node processes zaps, or hands them over to a zap worker.
+     *
+     * @return whether zaps are processed on this node
+     */
+    public boolean processesZaps() {
+        return processor != null;
+    }
+
+    /**
+     * Whether zap processing is shared with other nodes.
+     *
+     * @return whether this node is configured to share zap processing
+     */
+    public boolean isClustered() {
+        return cluster != null;
+    }
+
+    /**
+     * Whether this node currently takes part in shared zap processing, and
+     * accepts zaps forwarded by other nodes.
+     *
+     * @return whether this node is a member of shared zap processing
+     */
+    public boolean isClusterMember() {
+        return (cluster != null) && cluster.isMember();
+    }
+
+    /**
+     * Checks the shared secret presented with a request of another node
+     * sharing zap processing.
+     *
+     * @param secret the secret from the request, may be null
+     * @return whether the request may be served
+     */
+    public boolean authorizesClusterRequest(final String secret) {
+        return (cluster != null) && cluster.authorizes(secret);
+    }
+
+    /**
+     * Processes a batch of zaps forwarded by another node, forwarding any
+     * zaps of devices that this node doesn't own further.
+     *
+     * @param in the batch of zaps
+     * @return the number of zaps in the batch
+     * @throws IOException if the batch cannot be read
+     */
+    public int receiveForwardedZaps(final InputStream in) throws IOException {
+        if (cluster == null) throw new IllegalStateException("Zap processing is not shared with other nodes");
+        return cluster.receive(in);
+    }
+
+    /**
+     * Handles the notification of another node sharing zap processing that
+     * it is leaving, e.g. because it is shutting down.
+     *
+     * @param node the base URL of the leaving node
+     */
+    public void clusterNodeLeft(final String node) {
+        if (cluster != null) cluster.nodeLeft(node);
+    }
+
+    /**
+     * Returns a snapshot of the zap processing state, for diagnostic purposes.
+     *
+     * @return the current zap processing state
+     */
+    public ZapStatus getStatus() {
+        final ZapChannelStatus channel;
+        if (channelWriter != null) channel = channelWriter.status();
+        else if (channelReader != null) channel = channelReader.status();
+        else channel = null;
+        if (processor == null) return ZapStatus.notProcessing(channel);
+        return processor.status(cluster == null ? null : cluster.status(), channel);
+    }
+
+    /**
+     * Returns the current viewer counts of the given partner's tv-channels.
+     * The counts are maintained as zaps arrive, so obtaining them costs
+     * only as much as there are tv-channels.
+     *
+     * @param partnerId the ID of the partner whose tv-channels to return
+     * @return the viewer counts, one entry per tv-channel that was zapped to, none if this node doesn't process zaps
+     */
+    public List<LiveChannelViewership> getLiveViewership(final long partnerId) {
+        if (processor == null) return Collections.emptyList();
+        return processor.liveViewership.snapshot(partnerId, processor.clock.currentTimeMillis());
+    }
+
+    /**
+     * Returns the viewer counts of the given partner's tv-channels over a
+     * range of time, from the viewership store.
+     *
+     * @param partnerId the ID of the partner whose tv-channels to return
+     * @param tvChannelId the ID of the tv-channel to return, 0 for all tv-channels
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis the end of the range, exclusive
+     * @param stepMillis the duration of a step, the figures are aggregated per step
+     * @return the series, one per tv-channel and tv-programme, or null if the viewership store is disabled or this node doesn't process zaps
+     * @throws IOException if reading the store fails
+     */
+    public List<ViewershipSeries> getViewershipHistory(final long partnerId, final long tvChannelId, final long fromMillis, final long toMillis, final long stepMillis) throws IOException {
+        if ((processor == null) || (processor.viewershipStore == null)) return null;
+        return processor.viewershipStore.query(partnerId, tvChannelId, fromMillis, toMillis, stepMillis);
     }
 
     /**
@@ -91,15 +272,14 @@ public final class ConsumerEventProcessor implements TimerListener {
      */
     @Override
     public final void onTimerExpired(final long expiryTime) {
-        if (!processor.running) return;
+        if ((processor != null) && !processor.running) return;
         synchronized (this) {
             timerMillis = expiryTime + 10000L; // 10 secs
             Timer.INSTANCE.schedule(timerMillis, this);
         }
-        processor.logStatistics();
-    }
-
-    static String tvProgrammeTitle(final TvProgrammeProduct tvProgramme, final Logger log) {
-        return tvProgramme.title.asString();
+        if (processor != null) processor.logStatistics();
+        if (cluster != null) cluster.logStatistics();
+        if (channelWriter != null) channelWriter.logStatistics();
+        if (channelReader != null) channelReader.logStatistics();
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
+import com.gurucue.recommendations.data.DataLink;
+import com.gurucue.recommendations.data.DataManager;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Zap processing data from the database, through the {@link DataManager}.
+ * <p>
+ * Each processing thread owns a data link that it keeps for as long as it
+ * runs, like the database worker threads do, so looking up a tv-programme
+ * doesn't check out a connection. Consecutive lookups of a thread share a
+ * read transaction, which is committed after {@link #MAX_BATCH_LOOKUPS}
+ * lookups, after {@link #MAX_BATCH_NANOS}, or when the thread runs out of
+ * work, whichever comes first. A lookup that fails discards the link and
+ * is retried once with a new one.
+ */
+final class DatabaseZapData implements ZapData {
+    private static final Logger log = LogManager.getLogger(DatabaseZapData.class);
+    static final DatabaseZapData INSTANCE = new DatabaseZapData();
+    static final int MAX_BATCH_LOOKUPS = 64;
+    static final long MAX_BATCH_NANOS = 50000000L; // 50 ms
+
+    private final ThreadLocal<Session> sessions = ThreadLocal.withInitial(Session::new);
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong transactionCount = new AtomicLong();
+    private final AtomicLong linkCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+
+    private DatabaseZapData() {}
+
+    @Override
+    public DataTypeCodes dataTypeCodes() {
+        return DataManager.getDataTypeCodes();
+    }
+
+    @Override
+    public ConsumerEventTypeCodes consumerEventTypeCodes() {
+        return DataManager.getConsumerEventTypeCodes();
+    }
+
+    @Override
+    public ProductTypeCodes productTypeCodes() {
+        return DataManager.getProductTypeCodes();
+    }
+
+    @Override
+    public void forEachTvChannel(final BiConsumer<Partner, TvChannelProduct> action) {
+        // invoked once at the start, not worth keeping a link for
+        try (final DataLink link = DataManager.getNewLink()) {
+            try (final Transaction transaction = Transaction.newTransaction(link)) {
+                for (final Partner partner : link.getPartnerManager().list()) {
+                    if (partner.getId() <= 0L) continue;
+                    for (final TvChannelProduct tvChannel : link.getProductManager().getTvChannelsForPartner(transaction, partner)) {
+                        action.accept(partner, tvChannel);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public TvProgrammeProduct tvProgrammeAt(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+        return lookup((link, transaction) -> link.getProductManager().tvProgrammeAtTimeForTvChannelAndPartner(transaction, partner, tvChannel, millis));
+    }
+
+    @Override
+    public TvProgrammeProduct firstTvProgrammeAfter(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+        return lookup((link, transaction) -> link.getProductManager().firstTvProgrammeAfterTimeForTvChannelAndPartner(transaction, partner, tvChannel, millis));
+    }
+
+    @Override
+    public List<Partner> partners() {
+        return lookup((link, transaction) -> {
+            final List<Partner> partners = new ArrayList<>();
+            for (final Partner partner : link.getPartnerManager().list()) partners.add(partner);
+            return partners;
+        });
+    }
+
+    @Override
+    public Product product(final Partner partner, final long id) {
+        return lookup((link, transaction) -> link.getProductManager().getById(transaction, partner, id, false));
+    }
+
+    @Override
+    public void emit(final ConsumerEvent event) throws InterruptedException {
+        DataManager.queueConsumerEvent(event);
+    }
+
+    @Override
+    public void checkpoint(final boolean idle) {
+        final Session session = sessions.get();
+        if (session.transaction == null) return;
+        if (idle || ((System.nanoTime() - session.transactionStartNano) >= MAX_BATCH_NANOS)) session.commit();
+    }
+
+    @Override
+    public void release() {
+        final Session session = sessions.get();
+        session.commit();
+        session.discardLink();
+        sessions.remove();
+    }
+
+    @Override
+    public void appendStatistics(final StringBuilder output) {
+        output.append(", tv-programme lookups: ").append(lookupCount.get())
+                .append(" in ").append(transactionCount.get())
+                .append(" transactions over ").append(linkCount.get())
+                .append(" data links, reconnects: ").append(reconnectCount.get());
+    }
+
+    /**
+     * Performs a lookup in the calling thread's current transaction,
+     * retrying once with a new data link if it fails.
+     */
+    private <T> T lookup(final BiFunction<DataLink, Transaction, T> lookup) {
+        final Session session = sessions.get();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final T result = lookup.apply(session.link(), session.transaction());
+                lookupCount.incrementAndGet();
+                if ((++session.lookups >= MAX_BATCH_LOOKUPS) || ((System.nanoTime() - session.transactionStartNano) >= MAX_BATCH_NANOS)) session.commit();
+                return result;
+            }
+            catch (RuntimeException e) {
+                session.rollback();
+                session.discardLink();
+                if (attempt > 0) throw e;
+                reconnectCount.incrementAndGet();
+                log.warn("A tv-programme lookup failed, retrying with a new data link: " + e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * The data link and the current transaction of a processing thread.
+     */
+    private final class Session {
+        private DataLink link = null;
+        Transaction transaction = null;
+        long transactionStartNano = 0L;
+        int lookups = 0;
+
+        DataLink link() {
+            if (link == null) {
+                link = DataManager.getNewLink();
+                linkCount.incrementAndGet();
+            }
+            return link;
+        }
+
+        Transaction transaction() {
+            if (transaction == null) {
+                transaction = Transaction.newTransaction(link());
+                transactionStartNano = System.nanoTime();
+                lookups = 0;
+                transactionCount.incrementAndGet();
+            }
+            return transaction;
+        }
+
+        void commit() {
+            if (transaction == null) return;
+            try {
+                transaction.commit();
+                transaction.close();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to commit a tv-programme lookup transaction, discarding the data link: " + e.toString(), e);
+                discardLink();
+            }
+            transaction = null;
+        }
+
+        void rollback() {
+            if (transaction == null) return;
+            try {
+                transaction.rollback();
+                transaction.close();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to roll back a tv-programme lookup transaction: " + e.toString(), e);
+            }
+            transaction = null;
+        }
+
+        void discardLink() {
+            if (link == null) return;
+            try {
+                link.close();
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to close a data link, forgetting it: " + e.toString(), e);
+            }
+            link = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders items by their deadlines, so that periodic processing handles
+ * only the items whose deadline has passed, instead of examining all the
+ * items. An item may be queued several times, with different deadlines;
+ * recognizing a deadline that is not current anymore is up to the item.
+ *
+ * @param <T> the type of queued items
+ */
+final class DeadlineQueue<T> {
+    private final PriorityQueue<Entry<T>> queue = new PriorityQueue<>(1024, (a, b) -> Long.compare(a.deadlineMillis, b.deadlineMillis));
+
+    /**
+     * Queues the item for processing at the given time.
+     *
+     * @param deadlineMillis when the item is due, in milliseconds
+     * @param item the item to queue
+     */
+    synchronized void schedule(final long deadlineMillis, final T item) {
+        queue.add(new Entry<>(deadlineMillis, item));
+    }
+
+    /**
+     * Removes all items that are due at the given time, in the order of
+     * their deadlines, and adds them to the given list.
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @param output where to add the due items
+     * @return the number of due items
+     */
+    synchronized int drainDue(final long nowMillis, final List<T> output) {
+        int count = 0;
+        Entry<T> entry;
+        while (((entry = queue.peek()) != null) && (entry.deadlineMillis <= nowMillis)) {
+            queue.poll();
+            output.add(entry.item);
+            count++;
+        }
+        return count;
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    private static final class Entry<T> {
+        final long deadlineMillis;
+        final T item;
+
+        Entry(final long deadlineMillis, final T item) {
+            this.deadlineMillis = deadlineMillis;
+            this.item = item;
+        }
+    }
+}
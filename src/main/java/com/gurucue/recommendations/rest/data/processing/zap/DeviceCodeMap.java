@@ -0,0 +1,167 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.procedure.TIntObjectProcedure;
+
+import java.util.function.Supplier;
+
+/**
+ * Maps device codes to per-device values, for state that many processing
+ * threads update at once, such as the zaps collected for a tv-programme.
+ * The map is split into lock-striped primitive maps by the lowest bits of
+ * the code, which {@link DeviceDictionary} spreads evenly, so threads
+ * processing zaps of different devices rarely wait for each other.
+ *
+ * @param <V> the type of the per-device values
+ */
+final class DeviceCodeMap<V> {
+    private static final int STRIPE_COUNT = 16;
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+
+    private final TIntObjectHashMap<V>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    DeviceCodeMap() {
+        stripes = new TIntObjectHashMap[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) stripes[i] = new TIntObjectHashMap<>();
+    }
+
+    private TIntObjectHashMap<V> stripeOf(final int code) {
+        return stripes[code & STRIPE_MASK];
+    }
+
+    /**
+     * Returns the value of the given device.
+     *
+     * @param code the device code
+     * @return the value, or null if there is none
+     */
+    V get(final int code) {
+        final TIntObjectHashMap<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            return stripe.get(code);
+        }
+    }
+
+    /**
+     * Returns the value of the given device, adding the value created by
+     * the given factory if there is none. The factory is invoked while the
+     * stripe is locked, so it must not access the map.
+     *
+     * @param code the device code
+     * @param factory creates the value if there is none
+     * @return the existing or the new value
+     */
+    V getOrAdd(final int code, final Supplier<V> factory) {
+        final TIntObjectHashMap<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            V value = stripe.get(code);
+            if (value == null) {
+                value = factory.get();
+                stripe.put(code, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Sets the value of the given device.
+     *
+     * @param code the device code
+     * @param value the value
+     */
+    void put(final int code, final V value) {
+        final TIntObjectHashMap<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            stripe.put(code, value);
+        }
+    }
+
+    /**
+     * Removes the value of the given device.
+     *
+     * @param code the device code
+     * @return the removed value, or null if there was none
+     */
+    V remove(final int code) {
+        final TIntObjectHashMap<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            return stripe.remove(code);
+        }
+    }
+
+    boolean isEmpty() {
+        for (final TIntObjectHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                if (!stripe.isEmpty()) return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (final TIntObjectHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Invokes the procedure for every device and its value. Each stripe is
+     * copied first, so the procedure runs without holding a lock and may
+     * modify the map; it may miss changes made meanwhile.
+     *
+     * @param procedure invoked with the code and the value, returns false to stop
+     * @return whether all the entries were visited
+     */
+    @SuppressWarnings("unchecked")
+    boolean forEachEntry(final TIntObjectProcedure<? super V> procedure) {
+        for (final TIntObjectHashMap<V> stripe : stripes) {
+            final int[] codes;
+            final Object[] values;
+            synchronized (stripe) {
+                if (stripe.isEmpty()) continue;
+                codes = stripe.keys();
+                values = stripe.values();
+            }
+            for (int i = 0; i < codes.length; i++) {
+                if (!procedure.execute(codes[i], (V) values[i])) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entries for which the procedure returns false. The
+     * procedure is invoked while its stripe is locked, so it must not
+     * access the map.
+     *
+     * @param procedure invoked with the code and the value, returns whether to keep the entry
+     */
+    void retainEntries(final TIntObjectProcedure<? super V> procedure) {
+        for (final TIntObjectHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.retainEntries(procedure);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Assigns int codes to device identifiers, and maps the codes to the
+ * per-device values. The rest of the zap state refers to devices by their
+ * codes only, in primitive maps, so a device identifier string is held,
+ * hashed and compared just here.
+ * <p>
+ * A code is assigned when a value is registered for an identifier, and is
+ * released together with the value, so the dictionary doesn't outgrow the
+ * devices being tracked. Codes aren't reused until the code space of a
+ * stripe wraps around, so a stale reference to a released code doesn't
+ * resolve to another device.
+ * <p>
+ * The dictionary is split into lock-striped parts. A code carries the
+ * index of the stripe of its identifier in its lowest bits, so a lookup by
+ * identifier and a lookup by code end up in the same stripe.
+ *
+ * @param <V> the type of the per-device values
+ */
+final class DeviceDictionary<V> {
+    /** Denotes the absence of a code. */
+    static final int NO_CODE = 0;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+    private static final int MAX_SEQUENCE = Integer.MAX_VALUE >>> STRIPE_BITS;
+
+    private final List<Stripe<V>> stripes = new ArrayList<>(STRIPE_COUNT);
+
+    DeviceDictionary() {
+        for (int i = 0; i < STRIPE_COUNT; i++) stripes.add(new Stripe<>(i));
+    }
+
+    private Stripe<V> stripeOf(final String key) {
+        final int h = key.hashCode();
+        return stripes.get((h ^ (h >>> 16) ^ (h >>> STRIPE_BITS)) & STRIPE_MASK);
+    }
+
+    private Stripe<V> stripeOf(final int code) {
+        return stripes.get(code & STRIPE_MASK);
+    }
+
+    /**
+     * Returns the value registered for the given device identifier.
+     *
+     * @param key the device identifier
+     * @return the value, or null if none is registered
+     */
+    V get(final String key) {
+        final Stripe<V> stripe = stripeOf(key);
+        synchronized (stripe) {
+            final int code = stripe.codes.get(key);
+            return code == NO_CODE ? null : stripe.values.get(code);
+        }
+    }
+
+    /**
+     * Returns the value registered under the given code.
+     *
+     * @param code the device code
+     * @return the value, or null if the code is not assigned
+     */
+    V get(final int code) {
+        final Stripe<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            return stripe.values.get(code);
+        }
+    }
+
+    /**
+     * Returns the code assigned to the given device identifier.
+     *
+     * @param key the device identifier
+     * @return the code, or {@link #NO_CODE} if the identifier is not registered
+     */
+    int code(final String key) {
+        final Stripe<V> stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.codes.get(key);
+        }
+    }
+
+    /**
+     * Returns the device identifier the given code is assigned to.
+     *
+     * @param code the device code
+     * @return the device identifier, or null if the code is not assigned
+     */
+    String key(final int code) {
+        final Stripe<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            return stripe.keys.get(code);
+        }
+    }
+
+    /**
+     * Returns the value registered for the given device identifier, or
+     * assigns a new code to the identifier and registers the value created
+     * for the code by the given factory. The factory is invoked while the
+     * stripe is locked, so it must not access the dictionary.
+     *
+     * @param key the device identifier
+     * @param factory creates the value for the new code
+     * @return the existing or the new value
+     */
+    V putIfAbsent(final String key, final IntFunction<V> factory) {
+        final Stripe<V> stripe = stripeOf(key);
+        synchronized (stripe) {
+            int code = stripe.codes.get(key);
+            if (code != NO_CODE) return stripe.values.get(code);
+            code = stripe.nextCode();
+            final V value = factory.apply(code);
+            stripe.codes.put(key, code);
+            stripe.keys.put(code, key);
+            stripe.values.put(code, value);
+            return value;
+        }
+    }
+
+    /**
+     * Removes the given value and releases its code, if the value is still
+     * registered under the code.
+     *
+     * @param code the device code
+     * @param value the value expected to be registered under the code
+     * @return whether the value was removed
+     */
+    boolean remove(final int code, final V value) {
+        final Stripe<V> stripe = stripeOf(code);
+        synchronized (stripe) {
+            if (stripe.values.get(code) != value) return false;
+            stripe.values.remove(code);
+            final String key = stripe.keys.remove(code);
+            if (key != null) stripe.codes.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of registered devices.
+     *
+     * @return the number of registered devices
+     */
+    int size() {
+        int size = 0;
+        for (final Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.values.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a copy of the registered values, one stripe at a time, so
+     * the dictionary can be modified while the copy is being iterated.
+     *
+     * @return the registered values
+     */
+    List<V> values() {
+        final List<V> result = new ArrayList<>(size() + STRIPE_COUNT);
+        for (final Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                result.addAll(stripe.values.valueCollection());
+            }
+        }
+        return result;
+    }
+
+    private static final class Stripe<V> {
+        final int index;
+        final TObjectIntHashMap<String> codes = new TObjectIntHashMap<>(64, 0.5f, NO_CODE);
+        final TIntObjectHashMap<String> keys = new TIntObjectHashMap<>();
+        final TIntObjectHashMap<V> values = new TIntObjectHashMap<>();
+        private int lastSequence = 0;
+
+        Stripe(final int index) {
+            this.index = index;
+        }
+
+        int nextCode() {
+            for (;;) {
+                lastSequence = lastSequence >= MAX_SEQUENCE ? 1 : lastSequence + 1;
+                final int code = (lastSequence << STRIPE_BITS) | index;
+                if (!keys.containsKey(code)) return code;
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.gurucue.recommendations.Timer;
 import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.data.DataTypeCodes;
 import com.gurucue.recommendations.data.ProductTypeCodes;
@@ -27,6 +26,7 @@ import com.gurucue.recommendations.entity.ConsumerEvent;
 import com.gurucue.recommendations.entity.DataType;
 import com.gurucue.recommendations.entity.ProductType;
 import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
 import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
 import com.gurucue.recommendations.entity.value.AttributeValues;
 import gnu.trove.function.TObjectFunction;
@@ -40,10 +40,13 @@ import gnu.trove.set.hash.TLongHashSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
@@ -97,12 +100,59 @@ final class DeviceState/* implements TimerListener*/ {
      */
     final String deviceId;
 
-    private final ZapProcessor owner;
+    /**
+     * The code assigned to this device's ID, by which the rest of the zap
+     * state refers to this device.
+     */
+    final int code;
+
+    final ZapProcessor owner;
+
+    /**
+     * When the last zap was registered with this device, in wall-clock
+     * milliseconds. Used to find idle devices and the least active devices.
+     */
+    volatile long lastActivityMillis;
+
+    /**
+     * Set when the instance is removed from bookkeeping, after which it
+     * doesn't accept any more zaps.
+     */
+    private boolean evicted = false; // access must be guarded with synchronized(this)
+
+    /**
+     * The tv-channel the device is tuned to according to its latest zap by
+     * event time, for live viewership counting. It is 0 if the device's
+     * latest zap was not a live-tv zap.
+     */
+    private long tunedTvChannelId = 0L; // access must be guarded with synchronized(this)
+    private long tunedZapMillis = Long.MIN_VALUE; // access must be guarded with synchronized(this)
+
+    /**
+     * When the collected catch-up/VoD zaps are to be flushed next, 0 if
+     * there is no flush scheduled. The device may be queued for flushing
+     * under other deadlines too, but only this one is current.
+     */
+    private long flushDeadlineMillis = 0L; // access must be guarded with synchronized(this)
 
-    DeviceState(final Consumer consumer, final String deviceId, final ZapProcessor owner) {
+    /**
+     * What is common to the live-tv zaps of this device, shared between
+     * their records.
+     */
+    private ZapRecord.Source zapSource = null; // access must be guarded with synchronized(this)
+
+    /**
+     * Set when the device was handed off to another node, which took over
+     * its partition, and cleared by the device's next zap on this node.
+     */
+    volatile boolean handedOff = false;
+
+    DeviceState(final Consumer consumer, final String deviceId, final int code, final ZapProcessor owner) {
         this.consumer = consumer;
         this.deviceId = deviceId;
+        this.code = code;
         this.owner = owner;
+        this.lastActivityMillis = owner.clock.currentTimeMillis();
     }
 
     /**
@@ -172,34 +222,153 @@ final class DeviceState/* implements TimerListener*/ {
      *
      * @param event
      * @param product
+     * @return false if the instance has been evicted in the meantime and the zap was not registered, true otherwise
      */
-    void zap(final ConsumerEvent event, final Product product) {
+    boolean zap(final ConsumerEvent event, final Product product) {
         final Long zapTimeMillis = event.getEventTimestamp().getTime();
+        final Product zapProduct;
         if (product == null) {
             // if the product is null, it still may be reconstructible from the event data _err-product-type and _err-product-id
             // under the assumption that the product information was submitted with the event request (i.e. the product
             // data was not missing, only the product was not found in the database)
             Map<DataType, String> data = event.getData();
             if (data == null) data = Collections.emptyMap();
-            final DataTypeCodes codes = DataManager.getDataTypeCodes();
+            final DataTypeCodes codes = owner.data.dataTypeCodes();
             String productCode = data.get(codes._errProductId);
             ProductType productType = null;
             if (productCode != null) {
                 final String productTypeIdentifier = data.get(codes._errProductType);
                 if (productTypeIdentifier != null) {
-                    productType = DataManager.getProductTypeCodes().byIdentifier(productTypeIdentifier);
+                    productType = owner.data.productTypeCodes().byIdentifier(productTypeIdentifier);
                     if (productType == null) productType = new ProductType(null, productTypeIdentifier);
                 }
             }
             if (productType != null) {
-                events.put(zapTimeMillis, Product.create(0L, productType.getId() == null ? 0L : productType.getId(), event.getPartner().getId(), productCode, null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES, DataManager.getProvider()));
+                zapProduct = Product.create(0L, productType.getId() == null ? 0L : productType.getId(), event.getPartner().getId(), productCode, null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES, DataManager.getProvider());
             }
             else {
-                events.put(zapTimeMillis, NULL_PRODUCT);
+                zapProduct = NULL_PRODUCT;
             }
         }
         else {
-            events.put(zapTimeMillis, product);
+            zapProduct = product;
+        }
+        synchronized (this) {
+            if (evicted) return false;
+            lastActivityMillis = owner.clock.currentTimeMillis();
+            handedOff = false;
+            events.put(zapTimeMillis, zapProduct);
+            if (!parkedToExpire.isEmpty()) scheduleFlush(zapTimeMillis + ProductZaps.COMPUTATION_DELAY); // the zap may end a playout
+        }
+        return true;
+    }
+
+    /**
+     * Creates the compact record of a live-tv zap of this device, to be
+     * retained instead of the event until the consumption is generated.
+     *
+     * @param event the zap
+     * @param tvChannelId the ID of the tv-channel that was zapped to
+     * @return the record of the zap
+     */
+    ZapRecord record(final ConsumerEvent event, final long tvChannelId) {
+        final ZapRecord.Source previous;
+        synchronized (this) {
+            previous = zapSource;
+        }
+        final ZapRecord zap = ZapRecord.of(event, tvChannelId, owner.data.dataTypeCodes(), previous);
+        if (zap.source != previous) {
+            synchronized (this) {
+                zapSource = zap.source;
+            }
+        }
+        return zap;
+    }
+
+    /**
+     * Returns what is common to the live-tv zaps of this device.
+     *
+     * @return the source of the device's live-tv zaps, or null if none were recorded
+     */
+    ZapRecord.Source zapSource() {
+        synchronized (this) {
+            return zapSource;
+        }
+    }
+
+    /**
+     * Returns the tv-channel the device is tuned to according to its latest
+     * zap.
+     *
+     * @return the tv-channel, or null if the latest zap was not a live-tv zap
+     */
+    TvChannelProduct tunedTvChannel() {
+        synchronized (this) {
+            if (tunedTvChannelId == 0L) return null;
+            final Map.Entry<Long, Product> lastZap = events.lastEntry();
+            if ((lastZap == null) || !(lastZap.getValue() instanceof TvChannelProduct) || (lastZap.getValue().id != tunedTvChannelId)) return null;
+            return (TvChannelProduct) lastZap.getValue();
+        }
+    }
+
+    /**
+     * Queues the device for flushing its collected catch-up/VoD zaps at the
+     * given time, unless a flush is already scheduled by that time. Must be
+     * invoked while holding the lock on the instance.
+     *
+     * @param deadlineMillis when to flush
+     */
+    private void scheduleFlush(final long deadlineMillis) {
+        if ((flushDeadlineMillis != 0L) && (flushDeadlineMillis <= deadlineMillis)) return;
+        flushDeadlineMillis = deadlineMillis;
+        owner.flushDeadlines.schedule(deadlineMillis, this);
+    }
+
+    /**
+     * Queues the device for flushing at the given time if it has any
+     * collected catch-up/VoD zaps, e.g. after being restored.
+     *
+     * @param deadlineMillis when to flush
+     */
+    void scheduleFlushIfPending(final long deadlineMillis) {
+        synchronized (this) {
+            if (!parkedToExpire.isEmpty()) scheduleFlush(deadlineMillis);
+        }
+    }
+
+    /**
+     * Updates the live viewership with the given zap. A zap that is older
+     * than the latest zap of the device doesn't change what the device is
+     * tuned to.
+     *
+     * @param zapTimeMillis when the zap occurred
+     * @param tvChannel the tv-channel that was zapped to, or null if the zap was not a live-tv zap
+     */
+    void tune(final long zapTimeMillis, final TvChannelProduct tvChannel) {
+        synchronized (this) {
+            if (evicted || (zapTimeMillis < tunedZapMillis)) return;
+            tunedZapMillis = zapTimeMillis;
+            final long tvChannelId = tvChannel == null ? 0L : tvChannel.id;
+            if (tvChannelId == tunedTvChannelId) return;
+            if (tunedTvChannelId != 0L) owner.liveViewership.leave(tunedTvChannelId);
+            if (tvChannel != null) owner.liveViewership.enter(tvChannel, zapTimeMillis);
+            tunedTvChannelId = tvChannelId;
+        }
+    }
+
+    /**
+     * Removes the device from the live viewership of the given tv-channel
+     * when its viewing session there expired for lack of activity, unless
+     * the device zapped since.
+     *
+     * @param tvChannelId the tv-channel whose viewing session expired
+     * @param lastActivityMillis when the device was last active on the tv-channel
+     */
+    void expireTuning(final long tvChannelId, final long lastActivityMillis) {
+        synchronized (this) {
+            if (evicted || (tunedTvChannelId != tvChannelId) || (tunedZapMillis > lastActivityMillis)) return;
+            owner.liveViewership.leave(tunedTvChannelId);
+            tunedTvChannelId = 0L;
         }
     }
 
@@ -225,17 +394,19 @@ final class DeviceState/* implements TimerListener*/ {
      * @param product in case of a playing event the product from the event, null otherwise
      */
     void updatePlayingZap(final ConsumerEvent event, final Product product) {
-        final long now = Timer.currentTimeMillis();
-        if (event.getEventTimestamp().getTime() < (now - owner.currentBufferingDelayMillis)) {
+        final long now = owner.clock.currentTimeMillis();
+        final long bufferingDelayMillis = owner.bufferingDelayMillis(event.getPartner());
+        if (event.getEventTimestamp().getTime() < (now - bufferingDelayMillis)) {
             final StringBuilder errBuilder = new StringBuilder(256);
             errBuilder.append("Ignoring catchup/VOD zap at time ")
                     .append(event.getEventTimestamp().getTime() / 1000L)
-                    .append(": it is more than 5 minutes in the past, for consumer ")
+                    .append(": it is more than ").append(bufferingDelayMillis / 1000L)
+                    .append(" seconds in the past, for consumer ")
                     .append(event.getConsumer().getId().longValue())
                     .append(" (username: ").append(event.getConsumer().getUsername()).append(") ");
             if (product == null) errBuilder.append("and no product");
             else {
-                final ProductType productType = DataManager.getProductTypeCodes().byId(product.productTypeId);
+                final ProductType productType = owner.data.productTypeCodes().byId(product.productTypeId);
                 errBuilder.append("and product ")
                         .append(productType == null ? "(null product type)" : productType.getIdentifier())
                         .append(" ")
@@ -261,7 +432,7 @@ final class DeviceState/* implements TimerListener*/ {
         else {
             // extract the playing state (one of: play, pause, stop), playing speed, watch offset
             newProductId = product.id;
-            final DataTypeCodes codes = DataManager.getDataTypeCodes();
+            final DataTypeCodes codes = owner.data.dataTypeCodes();
             final Map<DataType, String> data = event.getData();
             final String actionString = data.get(codes.action);
             if (actionString != null) {
@@ -340,6 +511,7 @@ final class DeviceState/* implements TimerListener*/ {
 
             if (zaps != null) {
                 zaps.store(event.getEventTimestamp().getTime(), state, speed, watchOffsetMillis, event);
+                scheduleFlush(event.getEventTimestamp().getTime() + ProductZaps.COMPUTATION_DELAY);
             }
         }
 
@@ -351,7 +523,7 @@ final class DeviceState/* implements TimerListener*/ {
                     .append(" (username: ").append(event.getConsumer().getUsername()).append(") ");
             if (product == null) logEntry.append("and no product");
             else {
-                final ProductType productType = DataManager.getProductTypeCodes().byId(product.productTypeId);
+                final ProductType productType = owner.data.productTypeCodes().byId(product.productTypeId);
                 logEntry.append("and product ")
                         .append(productType == null ? "(null product type)" : productType.getIdentifier())
                         .append(" ")
@@ -366,10 +538,31 @@ final class DeviceState/* implements TimerListener*/ {
 
     /**
      * Cleans up the instance: computes consumptions that are ready for
-     * "reaping", removes zaps that are not needed anymore. Must be invoked
-     * in regular intervals.
+     * "reaping", removes zaps that are not needed anymore. Invoked when the
+     * device's flush deadline is reached; a deadline that is not current
+     * anymore is ignored. If any collected zaps remain, the next flush is
+     * scheduled.
+     *
+     * @param nowMillis the current time
+     * @param logBuilder where to log produced consumptions
+     */
+    void flushDue(final long nowMillis, final StringBuilder logBuilder) {
+        synchronized (this) {
+            if ((flushDeadlineMillis == 0L) || (flushDeadlineMillis > nowMillis)) return; // not scheduled anymore, or rescheduled for later
+            flushDeadlineMillis = 0L;
+            flush(nowMillis, logBuilder);
+        }
+    }
+
+    /**
+     * Computes the consumptions that are ready, and removes the zaps that
+     * are not needed anymore, regardless of the flush deadline. If any
+     * collected zaps remain, the next flush is scheduled.
+     *
+     * @param nowMillis the current time
+     * @param logBuilder where to log produced consumptions
      */
-    public void sweep(final StringBuilder logBuilder) {
+    void flush(final long nowMillis, final StringBuilder logBuilder) {
         final ProductZaps[] productZapses;
         final int n;
         synchronized (this) {
@@ -379,7 +572,7 @@ final class DeviceState/* implements TimerListener*/ {
                 boolean parkedToExpireChanged = false;
                 for (int i = n - 1; i >= 0; i--) {
                     final ProductZaps productZaps = productZapses[i];
-                    if (productZaps.flush(logBuilder)) {
+                    if (productZaps.flush(logBuilder, false)) {
                         parkedToExpire.remove(productZaps);
                         parkedToExpireChanged = true;
                         logBuilder.append("\nEvicted consumption collector of ")
@@ -405,7 +598,7 @@ final class DeviceState/* implements TimerListener*/ {
                     final long time;
                     final TvProgrammeProduct[] currentlyWatchedTvProgrammes;
                     final ProductZaps[] currentlyPlayedContent;
-                    time = Timer.currentTimeMillis();
+                    time = owner.clock.currentTimeMillis();
 
                     // take a snapshot of watched tv-programmes and played content, so they can be processed without holding the lock, to avoid deadlocks
                     final Collection<TvProgrammeProduct> watchedTvProgrammesCollection = watchedTvProgrammes.values();
@@ -418,12 +611,148 @@ final class DeviceState/* implements TimerListener*/ {
                     }
                 }
             }
+
+            if (!parkedToExpire.isEmpty()) {
+                final Long lastDeviceZapMillis = events.isEmpty() ? null : events.lastKey();
+                long nextFlushMillis = Long.MAX_VALUE;
+                for (final ProductZaps productZaps : parkedToExpire) {
+                    final long millis = productZaps.nextFlushMillis(nowMillis, lastDeviceZapMillis == null ? Long.MIN_VALUE : lastDeviceZapMillis.longValue());
+                    if (millis < nextFlushMillis) nextFlushMillis = millis;
+                }
+                scheduleFlush(nextFlushMillis);
+            }
         }
     }
 
-    void setOrigin(final StringBuilder logBuilder, final DataTypeCodes typeCodes, final ConsumerEvent firstEvent, final long firstEventTimeMillis, final long productId, final Map<DataType, String> eventData) {
+    // rough heap footprints, for estimating the memory used by zap bookkeeping
+    private static final long DEVICE_STATE_BYTES = 320L; // the instance with its (empty) maps and the mapping entry in ZapProcessor
+    private static final long DEVICE_ZAP_BYTES = 72L; // a skip-list node with its share of the index, and the boxed timestamp
+    private static final long WATCHED_TV_PROGRAMME_BYTES = 56L; // a hash map node with the boxed key
+    private static final long PRODUCT_ZAPS_BYTES = 160L; // a ProductZaps instance with its map and log prefix
+
+    /**
+     * Returns the estimated number of bytes occupied by this device's
+     * bookkeeping, including any collected catch-up/VoD zaps.
+     *
+     * @return the estimated heap footprint in bytes
+     */
+    long estimatedBytes() {
+        long bytes = DEVICE_STATE_BYTES + (events.size() * DEVICE_ZAP_BYTES);
+        synchronized (this) {
+            bytes += watchedTvProgrammes.size() * WATCHED_TV_PROGRAMME_BYTES;
+            for (final ProductZaps productZaps : parkedToExpire) {
+                bytes += PRODUCT_ZAPS_BYTES + productZaps.estimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Evicts the instance if there was no zap since the given time and no
+     * live-tv consumption is pending for the device. Any collected
+     * catch-up/VoD zaps are flushed first, and the eviction is aborted if
+     * they cannot be converted into consumptions yet. After a successful
+     * eviction the instance accepts no more zaps, so the caller must remove
+     * it from bookkeeping.
+     *
+     * @param idleSinceMillis the time of the last permitted activity
+     * @param force whether to convert collected catch-up/VoD zaps without waiting for the computation delay to pass
+     * @param logBuilder where to log any produced consumptions
+     * @return whether the instance was evicted
+     */
+    boolean evict(final long idleSinceMillis, final boolean force, final StringBuilder logBuilder) {
+        synchronized (this) {
+            if (evicted) return true;
+            if (lastActivityMillis > idleSinceMillis) return false;
+            if (!watchedTvProgrammes.isEmpty()) return false; // a tv-programme state will still look for this device's zaps
+            if (!parkedToExpire.isEmpty()) {
+                final ProductZaps[] productZapses = parkedToExpire.toArray(new ProductZaps[parkedToExpire.size()]);
+                for (int i = productZapses.length - 1; i >= 0; i--) {
+                    final ProductZaps productZaps = productZapses[i];
+                    if (productZaps.flush(logBuilder, force)) parkedToExpire.remove(productZaps);
+                }
+                if (!parkedToExpire.isEmpty()) return false;
+            }
+            currentlyPlaying = null;
+            if (tunedTvChannelId != 0L) {
+                owner.liveViewership.leave(tunedTvChannelId); // the viewing session expired
+                tunedTvChannelId = 0L;
+            }
+            evicted = true;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the device's zaps, watched tv-programmes and collected
+     * catch-up/VoD zaps into a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        synchronized (this) {
+            out.writeConsumer(consumer);
+            out.writeString(deviceId);
+            out.writeLong(lastActivityMillis);
+            final List<Map.Entry<Long, Product>> zaps = new ArrayList<>(events.entrySet()); // the count must match the entries written
+            out.writeInt(zaps.size());
+            for (final Map.Entry<Long, Product> zap : zaps) {
+                out.writeLong(zap.getKey());
+                out.writeProduct(zap.getValue());
+            }
+            out.writeInt(watchedTvProgrammes.size());
+            for (final TvProgrammeProduct tvProgramme : watchedTvProgrammes.values()) {
+                out.writeProduct(tvProgramme);
+            }
+            out.writeInt(parkedToExpire.size());
+            for (final ProductZaps productZaps : parkedToExpire) {
+                out.writeBoolean(productZaps == currentlyPlaying);
+                productZaps.writeSnapshot(out);
+            }
+            out.deviceCount++;
+        }
+    }
+
+    /**
+     * Reads a device state from a snapshot, and registers it with the
+     * owner.
+     *
+     * @param in where to read the snapshot from
+     * @param owner the zap processor of the new instance
+     * @return the restored device state
+     * @throws IOException if reading fails
+     */
+    static DeviceState readSnapshot(final ZapSnapshot.Reader in, final ZapProcessor owner) throws IOException {
+        final Consumer consumer = in.readConsumer();
+        final String deviceId = in.readString();
+        final DeviceState state = owner.events.putIfAbsent(deviceId, (final int code) -> new DeviceState(consumer, deviceId, code, owner));
+        state.lastActivityMillis = in.readLong();
+        for (int i = in.readInt(); i > 0; i--) {
+            final long zapTimeMillis = in.readLong();
+            final Product product = in.readProduct();
+            state.events.put(zapTimeMillis, product == null ? NULL_PRODUCT : product); // a product that disappeared in the meantime is an unknown product
+        }
+        final Map.Entry<Long, Product> lastZap = state.events.lastEntry();
+        if (lastZap != null) state.tune(lastZap.getKey(), lastZap.getValue() instanceof TvChannelProduct ? (TvChannelProduct) lastZap.getValue() : null);
+        for (int i = in.readInt(); i > 0; i--) {
+            final Product product = in.readProduct();
+            if (product instanceof TvProgrammeProduct) state.watchedTvProgrammes.put(product.id, (TvProgrammeProduct) product);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            final boolean playing = in.readBoolean();
+            final ProductZaps productZaps = ProductZaps.readSnapshot(in, state);
+            if (productZaps == null) continue;
+            state.parkedToExpire.add(productZaps);
+            if (playing) state.currentlyPlaying = productZaps;
+        }
+        in.deviceCount++;
+        return state;
+    }
+
+    void setOrigin(final StringBuilder logBuilder, final DataTypeCodes typeCodes, final String firstEventOrigin, final long firstEventTimeMillis, final long productId, final Map<DataType, String> eventData) {
         Map.Entry<Long, Product> originEntry = events.lowerEntry(firstEventTimeMillis);
-        final ProductTypeCodes productTypeCodes = DataManager.getProductTypeCodes();
+        final ProductTypeCodes productTypeCodes = owner.data.productTypeCodes();
         String dataOrigin = null;
 
         while (originEntry != null) {
@@ -433,7 +762,7 @@ final class DeviceState/* implements TimerListener*/ {
                 dataOrigin = "other";
                 eventData.put(typeCodes.origin, dataOrigin);
                 eventData.put(typeCodes.originWait, originWait); // in seconds
-                logBuilder.append(", origin other, origin ID unknown, origin wait ").append(originWait).append(" s");
+                if (logBuilder != null) logBuilder.append(", origin other, origin ID unknown, origin wait ").append(originWait).append(" s");
                 break;
             }
             else if ((p.id < 0L) || (p.id != productId)) {
@@ -452,29 +781,28 @@ final class DeviceState/* implements TimerListener*/ {
                 final String originId = p.id < 0L ? null : Long.toString(p.id, 10);
 
                 eventData.put(typeCodes.origin, dataOrigin);
-                logBuilder.append(", origin ").append(dataOrigin);
+                if (logBuilder != null) logBuilder.append(", origin ").append(dataOrigin);
                 if (originId != null) {
                     eventData.put(typeCodes.originId, originId);
-                    logBuilder.append(", origin ID ").append(originId);
+                    if (logBuilder != null) logBuilder.append(", origin ID ").append(originId);
                 }
-                else logBuilder.append(", origin ID missing");
+                else if (logBuilder != null) logBuilder.append(", origin ID missing");
                 if (originCode != null) {
                     eventData.put(typeCodes.originCode, originCode);
-                    logBuilder.append(" (").append(originCode).append(") ");
+                    if (logBuilder != null) logBuilder.append(" (").append(originCode).append(") ");
                 }
                 eventData.put(typeCodes.originWait, originWait); // in seconds
-                logBuilder.append(", origin wait ").append(originWait).append(" s");
+                if (logBuilder != null) logBuilder.append(", origin wait ").append(originWait).append(" s");
                 break;
             }
 
             originEntry = events.lowerEntry(originEntry.getKey());
         }
 
-        // extract origin reported by the first event
-        final String firstEventOrigin = (firstEvent == null) || (firstEvent.getData() == null) ? null : firstEvent.getData().get(typeCodes.origin);
+        // the origin reported by the first event
         final boolean firstEventIsFromRecommender = (firstEventOrigin != null) && ProductZaps.recommenderZapOrigins.containsKey(firstEventOrigin);
         if (firstEventOrigin != null) {
-            logBuilder.append(", first event supplied origin \"").append(firstEventOrigin.replace("\n", "\\n")).append("\"");
+            if (logBuilder != null) logBuilder.append(", first event supplied origin \"").append(firstEventOrigin.replace("\n", "\\n")).append("\"");
         }
 
         if (dataOrigin == null) {
@@ -482,13 +810,13 @@ final class DeviceState/* implements TimerListener*/ {
             if (firstEventOrigin != null) {
                 final String origin = firstEventIsFromRecommender ? "recommendations" : "other";
                 eventData.put(typeCodes.origin, origin);
-                logBuilder.append(", using origin from the first event: ").append(origin);
+                if (logBuilder != null) logBuilder.append(", using origin from the first event: ").append(origin);
             }
         }
         else if ("other".equals(dataOrigin)) {
             if (firstEventIsFromRecommender) {
                 eventData.put(typeCodes.origin, "recommendations");
-                logBuilder.append(", overriding origin from the first zap: recommendations");
+                if (logBuilder != null) logBuilder.append(", overriding origin from the first zap: recommendations");
             }
         }
 
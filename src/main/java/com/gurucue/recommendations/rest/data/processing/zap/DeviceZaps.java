@@ -18,9 +18,6 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.gurucue.recommendations.Transaction;
-import com.gurucue.recommendations.data.DataLink;
-import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.data.DataTypeCodes;
 import com.gurucue.recommendations.data.ProductTypeCodes;
 import com.gurucue.recommendations.entity.ConsumerEvent;
@@ -31,6 +28,7 @@ import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -41,8 +39,9 @@ import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Holds zaps that belong to a specific device and a specific tv-programme,
- * to convert them to a live-tv consumption event upon invocation of the
- * {@link #convert(String, com.gurucue.recommendations.entity.product.TvProgrammeProduct, TvChannelState, long, DeviceState, StringBuilder)}
+ * as compact {@link ZapRecord}s, to convert them to a live-tv consumption
+ * event upon invocation of the
+ * {@link #convert(com.gurucue.recommendations.entity.product.TvProgrammeProduct, TvChannelState, long, DeviceState, StringBuilder)}
  * method.
  *
  * @see com.gurucue.recommendations.rest.data.processing.zap.TvProgrammeState
@@ -50,75 +49,62 @@ import java.util.concurrent.ConcurrentSkipListMap;
  */
 final class DeviceZaps {
     private static final Logger log = LogManager.getLogger(DeviceZaps.class);
-    private final TreeMap<Long, ConsumerEvent> zaps = new TreeMap<>(); // timeMillis -> zap
+    private final TreeMap<Long, ZapRecord> zaps = new TreeMap<>(); // timeMillis -> zap
 
-    final synchronized void store(final ConsumerEvent event) {
-        zaps.put(event.getEventTimestamp().getTime(), event);
+    final synchronized void store(final ZapRecord zap) {
+        zaps.put(zap.timeMillis, zap);
     }
 
-    final synchronized void convert(final String zapKey, final TvProgrammeProduct tvProgramme, final TvChannelState tvChannelState, final long tvChannelId, final DeviceState deviceState, final StringBuilder logBuilder) {
-        final Iterator<Map.Entry<Long, ConsumerEvent>> zapIterator = zaps.entrySet().iterator();
+    /**
+     * Converts the collected zaps into a live-tv consumption event, and
+     * records the decisions taken into the audit journal, if enabled.
+     *
+     * @param tvProgramme the tv-programme that ended
+     * @param tvChannelState the tv-channel of the tv-programme
+     * @param tvChannelId the ID of the tv-channel
+     * @param deviceState the device of the zaps
+     * @param logBuilder where to describe the conversion, null to not describe it
+     */
+    final synchronized void convert(final TvProgrammeProduct tvProgramme, final TvChannelState tvChannelState, final long tvChannelId, final DeviceState deviceState, final StringBuilder logBuilder) {
+        final Iterator<Map.Entry<Long, ZapRecord>> zapIterator = zaps.entrySet().iterator();
         if (!zapIterator.hasNext()) return;
         final ConcurrentSkipListMap<Long, Product> deviceZapTimes = deviceState.events;
         final long beginTime = tvProgramme.beginTimeMillis;
         final long endTime = tvProgramme.endTimeMillis;
-        final ProductTypeCodes productTypeCodes = DataManager.getProductTypeCodes();
+        final ZapProcessor processor = tvChannelState.owner;
+        final String zapKey = deviceState.deviceId;
+        final ProductTypeCodes productTypeCodes = processor.data.productTypeCodes();
         final long idForTvChannel = productTypeCodes.idForTvChannel;
 
-        Map.Entry<Long, ConsumerEvent> zapEntry = zapIterator.next();
-        ConsumerEvent firstZapEvent = zapEntry.getValue();
+        Map.Entry<Long, ZapRecord> zapEntry = zapIterator.next();
+        final ZapRecord firstZap = zapEntry.getValue();
+        final ZapRecord.Source source = firstZap.source;
         // compose info about what we're processing, for logging purposes
-        final String itemInfo = "tv-channel " + tvChannelState.tvChannel.partnerProductCode + ", device " + zapKey + " (consumer " + firstZapEvent.getConsumer().getId() + "), tv-programme " + tvProgramme.id + " (end-time " + (tvProgramme.endTimeMillis / 1000L) + ")";
-        long firstZapTime = firstZapEvent.getEventTimestamp().getTime(); // when a switch on the tv-programme occurred, it could be caused by a long-zap in which case the first zap has the timestamp before beginTime
-        ConsumerEvent lastZapEvent = firstZapEvent;
+        final String itemInfo = "tv-channel " + tvChannelState.tvChannel.partnerProductCode + ", device " + zapKey + " (consumer " + source.consumer.getId() + "), tv-programme " + tvProgramme.id + " (end-time " + (tvProgramme.endTimeMillis / 1000L) + ")";
+        long firstZapTime = firstZap.timeMillis; // when a switch on the tv-programme occurred, it could be caused by a long-zap in which case the first zap has the timestamp before beginTime
+        ZapRecord lastZap = firstZap;
         long lastZapTime = firstZapTime;
         int zapCount = firstZapTime < beginTime ? 0 : 1;
         Long lastZapoutTime = lowestZapoutTime(firstZapTime < beginTime ? beginTime : firstZapTime, tvChannelId, deviceZapTimes, idForTvChannel); // when a switch off the tv-programme occurred
         long watchDuration = ((lastZapoutTime == null) || (lastZapoutTime.longValue() > endTime) ? endTime : lastZapoutTime.longValue()) - (firstZapTime < beginTime ? beginTime : firstZapTime);
 
-        // watch interval accounting for logging
-        logBuilder.append("device ");
-        logBuilder.append(zapKey);
-        logBuilder.append(" (consumer ");
-        logBuilder.append(firstZapEvent.getConsumer().getId());
-        logBuilder.append(" [");
-        logBuilder.append(firstZapEvent.getConsumer().getUsername());
-        logBuilder.append("]) watch intervals: ");
-        if (firstZapTime < beginTime) {
-            logBuilder.append("[LONG ZAP] 0-");
-        }
-        else {
-            logBuilder.append((firstZapTime - beginTime) / 1000L);
-            logBuilder.append("-");
-        }
-        if (lastZapoutTime == null) {
-            logBuilder.append((endTime - beginTime) / 1000L);
-            logBuilder.append(" [NO ZAPOUT]");
-        }
-        else if (lastZapoutTime.longValue() > endTime) {
-            logBuilder.append((endTime - beginTime) / 1000L);
-            logBuilder.append(" [ZAPOUT IN FUTURE]");
-        }
-        else {
-            logBuilder.append((lastZapoutTime.longValue() - beginTime) / 1000L);
-        }
-
-        // if there was no zapout, then we watched the tv-programme to its end, no sense in looping over any leftover zaps
-        while ((lastZapoutTime != null) && zapIterator.hasNext()) {
-            zapEntry = zapIterator.next();
-            final Long currentZapTime = zapEntry.getKey();
-            lastZapTime = currentZapTime.longValue();
-            lastZapEvent = zapEntry.getValue(); // remember the last zap for making a long zap
-            if (lastZapTime < lastZapoutTime.longValue()) continue; // the next lowest zapout is later from this zap, so this zap must be bogus, skip it
-            // the iteration over a SortedMap is ordered, so we are assured that currentZapTime is the last zap up to now
-            lastZapoutTime = lowestZapoutTime(currentZapTime, tvChannelId, deviceZapTimes, idForTvChannel);
+        final ZapAudit audit = processor.audit;
+        if (audit != null) audit.watched(deviceState.code, zapKey, deviceState.consumer, tvProgramme.id, firstZapTime, lastZapoutTime);
 
-            logBuilder.append(", ");
-            if (lastZapTime < beginTime) {
-                logBuilder.append("[ERROR] 0-");
+        // watch interval accounting for logging
+        if (logBuilder != null) {
+            logBuilder.append("device ");
+            logBuilder.append(zapKey);
+            logBuilder.append(" (consumer ");
+            logBuilder.append(source.consumer.getId());
+            logBuilder.append(" [");
+            logBuilder.append(source.consumer.getUsername());
+            logBuilder.append("]) watch intervals: ");
+            if (firstZapTime < beginTime) {
+                logBuilder.append("[LONG ZAP] 0-");
             }
             else {
-                logBuilder.append((lastZapTime - beginTime) / 1000L);
+                logBuilder.append((firstZapTime - beginTime) / 1000L);
                 logBuilder.append("-");
             }
             if (lastZapoutTime == null) {
@@ -127,13 +113,47 @@ final class DeviceZaps {
             }
             else if (lastZapoutTime.longValue() > endTime) {
                 logBuilder.append((endTime - beginTime) / 1000L);
-                logBuilder.append(" [ZAPOUT IN FUTURE: ");
-                logBuilder.append((lastZapoutTime.longValue() - beginTime) / 1000L);
-                logBuilder.append("]");
+                logBuilder.append(" [ZAPOUT IN FUTURE]");
             }
             else {
                 logBuilder.append((lastZapoutTime.longValue() - beginTime) / 1000L);
             }
+        }
+
+        // if there was no zapout, then we watched the tv-programme to its end, no sense in looping over any leftover zaps
+        while ((lastZapoutTime != null) && zapIterator.hasNext()) {
+            zapEntry = zapIterator.next();
+            final Long currentZapTime = zapEntry.getKey();
+            lastZapTime = currentZapTime.longValue();
+            lastZap = zapEntry.getValue(); // remember the last zap for making a long zap
+            if (lastZapTime < lastZapoutTime.longValue()) continue; // the next lowest zapout is later from this zap, so this zap must be bogus, skip it
+            // the iteration over a SortedMap is ordered, so we are assured that currentZapTime is the last zap up to now
+            lastZapoutTime = lowestZapoutTime(currentZapTime, tvChannelId, deviceZapTimes, idForTvChannel);
+            if (audit != null) audit.watched(deviceState.code, zapKey, deviceState.consumer, tvProgramme.id, lastZapTime, lastZapoutTime);
+
+            if (logBuilder != null) {
+                logBuilder.append(", ");
+                if (lastZapTime < beginTime) {
+                    logBuilder.append("[ERROR] 0-");
+                }
+                else {
+                    logBuilder.append((lastZapTime - beginTime) / 1000L);
+                    logBuilder.append("-");
+                }
+                if (lastZapoutTime == null) {
+                    logBuilder.append((endTime - beginTime) / 1000L);
+                    logBuilder.append(" [NO ZAPOUT]");
+                }
+                else if (lastZapoutTime.longValue() > endTime) {
+                    logBuilder.append((endTime - beginTime) / 1000L);
+                    logBuilder.append(" [ZAPOUT IN FUTURE: ");
+                    logBuilder.append((lastZapoutTime.longValue() - beginTime) / 1000L);
+                    logBuilder.append("]");
+                }
+                else {
+                    logBuilder.append((lastZapoutTime.longValue() - beginTime) / 1000L);
+                }
+            }
 
             zapCount++;
             watchDuration += ((lastZapoutTime == null) || (lastZapoutTime.longValue() > endTime) ? endTime : lastZapoutTime.longValue()) - (lastZapTime < beginTime ? beginTime : lastZapTime);
@@ -141,20 +161,26 @@ final class DeviceZaps {
 
         final long lastActivity = lastZapoutTime == null ? lastZapTime : lastZapoutTime.longValue();
         if ((endTime - lastActivity) >= 21600000L) {
-            logBuilder.append(" [IGNORED: last activity more than 6 hours ago: ");
-            logBuilder.append((endTime - lastActivity) / 1000L);
-            logBuilder.append(" secs before end-time]");
+            if (audit != null) audit.liveTv(deviceState.code, zapKey, deviceState.consumer, tvChannelId, tvProgramme, firstZapTime, zapCount, watchDuration, ZapAudit.IGNORED, lastActivity);
+            if (logBuilder != null) {
+                logBuilder.append(" [IGNORED: last activity more than 6 hours ago: ");
+                logBuilder.append((endTime - lastActivity) / 1000L);
+                logBuilder.append(" secs before end-time]");
+            }
+            if (lastZapoutTime == null) deviceState.expireTuning(tvChannelId, lastActivity); // the session is not carried into the next tv-programme
             return;
         }
 
         long consumptionTimeMillis = endTime;
+        boolean isLongZap = false;
         try {
             if ((lastZapoutTime == null) || (lastZapoutTime.longValue() >= endTime)) {
                 // user is still watching the same tv-channel after this tv-programme ended
                 consumptionTimeMillis = endTime;
-                logBuilder.append(" [LONGZAP]");
+                isLongZap = true;
+                if (logBuilder != null) logBuilder.append(" [LONGZAP]");
                 try {
-                    tvChannelState.processLongZap(lastZapEvent, endTime, zapKey, deviceState);
+                    tvChannelState.processLongZap(lastZap, endTime, deviceState);
                 } catch (Exception e) {
                     log.error("Failed to process a long zap, " + itemInfo + ": " + e.toString(), e);
                 }
@@ -164,67 +190,51 @@ final class DeviceZaps {
             log.error("Failed to compute the event timestamp, " + itemInfo + ": " + e.toString(), e);
         }
 
-        final DataTypeCodes dataTypeCodes = DataManager.getDataTypeCodes();
+        final DataTypeCodes dataTypeCodes = processor.data.dataTypeCodes();
         final Map<DataType, String> data = new HashMap<>();
-        final ConsumerEvent consumption = new ConsumerEvent(null, new Timestamp(consumptionTimeMillis), firstZapEvent.getPartner(), tvProgramme, firstZapEvent.getConsumer(), DataManager.getConsumerEventTypeCodes().liveTvConsumption, data, firstZapEvent.getUserProfileId());
-        consumption.setRequestTimestamp(new Timestamp(System.currentTimeMillis()));
-        final Map<DataType, String> existingData = lastZapEvent.getData();
-        if (existingData != null) {
-            final String deviceId = existingData.get(dataTypeCodes.deviceId);
-            final String deviceType = existingData.get(dataTypeCodes.deviceType);
-            if (deviceId != null) data.put(dataTypeCodes.deviceId, deviceId);
-            if (deviceType != null) data.put(dataTypeCodes.deviceType, deviceType);
-        }
-        logBuilder.append("; ZAPCNT=");
+        final ConsumerEvent consumption = new ConsumerEvent(null, new Timestamp(consumptionTimeMillis), source.partner, tvProgramme, source.consumer, processor.data.consumerEventTypeCodes().liveTvConsumption, data, source.userProfileId);
+        consumption.setRequestTimestamp(new Timestamp(processor.clock.currentTimeMillis()));
+        final ZapRecord.Source lastSource = lastZap.source;
+        if (lastSource.deviceId != null) data.put(dataTypeCodes.deviceId, lastSource.deviceId);
+        if (lastSource.deviceType != null) data.put(dataTypeCodes.deviceType, lastSource.deviceType);
+        if (audit != null) audit.liveTv(deviceState.code, zapKey, deviceState.consumer, tvChannelId, tvProgramme, firstZapTime, zapCount, watchDuration, isLongZap ? ZapAudit.CONSUMPTION_LONG_ZAP : ZapAudit.CONSUMPTION, consumptionTimeMillis);
         String s = Integer.toString(zapCount, 10);
-        logBuilder.append(s);
         data.put(dataTypeCodes.zapCount, s);
+        if (logBuilder != null) logBuilder.append("; ZAPCNT=").append(s);
         if (firstZapTime < beginTime) {
             s = Long.toString((beginTime - firstZapTime) / 1000L, 10);
-            logBuilder.append(", ZAPOFF=");
-            logBuilder.append(s);
             data.put(dataTypeCodes.zapOffset, s); // in seconds
-            logBuilder.append(", WCHOFF=0");
             data.put(dataTypeCodes.watchOffset, "0");
+            if (logBuilder != null) logBuilder.append(", ZAPOFF=").append(s).append(", WCHOFF=0");
         }
         else {
-            logBuilder.append(", ZAPOFF=0");
             data.put(dataTypeCodes.zapOffset, "0");
             s = Long.toString((firstZapTime - beginTime) / 1000L, 10);
-            logBuilder.append(", WCHOFF=");
-            logBuilder.append(s);
             data.put(dataTypeCodes.watchOffset, s); // in seconds
+            if (logBuilder != null) logBuilder.append(", ZAPOFF=0, WCHOFF=").append(s);
         }
         s = Long.toString(watchDuration / 1000L, 10);
-        logBuilder.append(", WCHDUR=");
-        logBuilder.append(s);
         data.put(dataTypeCodes.watchDuration, s); // in seconds
+        if (logBuilder != null) logBuilder.append(", WCHDUR=").append(s);
         s = endTime > beginTime ? Long.toString((watchDuration * 100L) / (endTime - beginTime)) : "0";
-        logBuilder.append(", WCHPRC=");
-        logBuilder.append(s);
         data.put(dataTypeCodes.watchPercentage, s);
+        if (logBuilder != null) logBuilder.append(", WCHPRC=").append(s);
         // set origin
         if (firstZapTime < beginTime) {
             // user didn't switch on to the tv-channel while the tv-programme was playing, but was watching it from the very start, therefore the origin is the previous tv-programme
-            final TvProgrammeProduct previousTvProgramme;
-            try (final DataLink link = DataManager.getNewLink()) {
-                try (final Transaction transaction = Transaction.newTransaction(link)) {
-                    previousTvProgramme = link.getProductManager().tvProgrammeAtTimeForTvChannelAndPartner(transaction, firstZapEvent.getPartner(), tvChannelState.tvChannel, beginTime - 50000L); // 50 seconds before
-                    transaction.commit();
-                }
-            }
+            final TvProgrammeProduct previousTvProgramme = processor.data.tvProgrammeAt(source.partner, tvChannelState.tvChannel, beginTime - 50000L); // 50 seconds before
             data.put(dataTypeCodes.origin, "other");
-            logBuilder.append(", origin other");
+            if (logBuilder != null) logBuilder.append(", origin other");
             if (previousTvProgramme == null) {
-                logBuilder.append(", origin ID unknown");
+                if (logBuilder != null) logBuilder.append(", origin ID unknown");
             }
             else {
                 if (previousTvProgramme.id >= 0L) {
                     final String originId = Long.toString(previousTvProgramme.id, 10);
                     data.put(dataTypeCodes.originId, originId);
-                    logBuilder.append(", origin ID ").append(originId);
+                    if (logBuilder != null) logBuilder.append(", origin ID ").append(originId);
                 }
-                else logBuilder.append(", origin ID missing");
+                else if (logBuilder != null) logBuilder.append(", origin ID missing");
 
                 final String originCode;
                 final ProductType productType = productTypeCodes.byId(previousTvProgramme.productTypeId);
@@ -236,19 +246,19 @@ final class DeviceZaps {
                 else originCode = productType.getIdentifier() + " " + previousTvProgramme.partnerProductCode;
                 if (originCode != null) {
                     data.put(dataTypeCodes.originCode, originCode);
-                    logBuilder.append(" (").append(originCode).append(") ");
+                    if (logBuilder != null) logBuilder.append(" (").append(originCode).append(") ");
                 }
             }
             data.put(dataTypeCodes.originWait, "0"); // in seconds
-            logBuilder.append(", origin wait 0 s (consumer stayed on the tv-channel)");
+            if (logBuilder != null) logBuilder.append(", origin wait 0 s (consumer stayed on the tv-channel)");
         }
         else {
             // discover the origin "normally": find the first previous zap
-            deviceState.setOrigin(logBuilder, dataTypeCodes, firstZapEvent, firstZapTime, tvChannelId, data);
+            deviceState.setOrigin(logBuilder, dataTypeCodes, firstZap.origin, firstZapTime, tvChannelId, data);
         }
 
         try {
-            DataManager.queueConsumerEvent(consumption);
+            processor.data.emit(consumption);
         } catch (InterruptedException e) {
             log.error("Interrupted while waiting to queue a livetv-consumption event: " + e.toString(), e);
         }
@@ -258,6 +268,36 @@ final class DeviceZaps {
         zaps.clear();
     }
 
+    /**
+     * Moves the zaps collected by the given instance into this one, for a
+     * device whose zaps ended up in two instances.
+     *
+     * @param other the instance to take the zaps from
+     */
+    final void adopt(final DeviceZaps other) {
+        final ZapRecord[] otherZaps;
+        synchronized (other) {
+            otherZaps = other.zaps.values().toArray(new ZapRecord[other.zaps.size()]);
+            other.zaps.clear();
+        }
+        synchronized (this) {
+            for (final ZapRecord zap : otherZaps) zaps.put(zap.timeMillis, zap);
+        }
+    }
+
+    /**
+     * Returns the identifier of the device whose zaps these are, as
+     * {@link ZapProcessor#zapKey(ConsumerEvent, DataType)} derives it.
+     *
+     * @return the device identifier, or null if there are no zaps
+     */
+    final synchronized String deviceKey() {
+        if (zaps.isEmpty()) return null;
+        final ZapRecord.Source source = zaps.firstEntry().getValue().source;
+        if (source.deviceId != null) return source.deviceId;
+        return source.consumer == null ? null : source.consumer.getUsername();
+    }
+
     /**
      * Returns the lowest zap-out timestamp from the given zapTime on
      * TV-channel with the given tvChannelId, going through the timestamp
@@ -285,11 +325,12 @@ final class DeviceZaps {
 
     final void currentViewership(final Viewership viewership, final long tvChannelId, final DeviceState deviceState, final long productTypeIdForTvChannel) {
         final Long timestampMillis = viewership.timestampMillis;
-        final Map.Entry<Long, ConsumerEvent> floorZap;
+        final Map.Entry<Long, ZapRecord> floorZap;
         synchronized (this) {
             floorZap = zaps.floorEntry(timestampMillis);
         }
         if (floorZap == null) return;
+        if (deviceState == null) return; // the device was evicted as idle, so it isn't watching anything
         final Long zapoutTime = lowestZapoutTime(floorZap.getKey(), tvChannelId, deviceState.events, productTypeIdForTvChannel);
         if ((zapoutTime != null) && (zapoutTime < timestampMillis)) return;
         viewership.addZap(floorZap.getValue());
@@ -301,11 +342,38 @@ final class DeviceZaps {
      * @param timestampMillis the timestamp below which to remove all the zaps
      */
     final synchronized void cutOffZaps(final Long timestampMillis) {
-        final NavigableMap<Long, ConsumerEvent> submap = zaps.headMap(timestampMillis, false);
+        final NavigableMap<Long, ZapRecord> submap = zaps.headMap(timestampMillis, false);
         if (submap != null) submap.clear();
     }
 
     final synchronized boolean isEmpty() {
         return zaps.isEmpty();
     }
+
+    /**
+     * Writes the collected zaps into a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    final synchronized void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        out.writeInt(zaps.size());
+        for (final ZapRecord zap : zaps.values()) out.writeZap(zap);
+    }
+
+    /**
+     * Reads collected zaps from a snapshot.
+     *
+     * @param in where to read the snapshot from
+     * @return the restored instance
+     * @throws IOException if reading fails
+     */
+    static DeviceZaps readSnapshot(final ZapSnapshot.Reader in) throws IOException {
+        final DeviceZaps deviceZaps = new DeviceZaps();
+        for (int i = in.readInt(); i > 0; i--) {
+            final ZapRecord zap = in.readZap();
+            if (zap != null) deviceZaps.store(zap);
+        }
+        return deviceZaps;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A histogram of recent event delivery delays, with buckets of a fixed
+ * width. The last bucket also counts all the longer delays.
+ */
+public final class EventDelayDistribution implements TranslatorAware {
+    public final long resolutionMillis;
+    public final long[] counts;
+    public final long totalCount;
+    public final long sumMillis;
+    public final long maxMillis;
+
+    EventDelayDistribution(final long resolutionMillis, final long[] counts, final long sumMillis, final long maxMillis) {
+        this.resolutionMillis = resolutionMillis;
+        this.counts = counts;
+        long total = 0L;
+        for (int i = counts.length - 1; i >= 0; i--) total += counts[i];
+        this.totalCount = total;
+        this.sumMillis = sumMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Returns the index of the first bucket where the cumulative count
+     * reaches the given percentage of all counts.
+     *
+     * @param percent the percentage, between 0 and 100
+     * @return the bucket index, 0 if there are no counts
+     */
+    public int percentileBucket(final int percent) {
+        final long cutoffCount = (totalCount * percent) / 100L;
+        long cumulativeCount = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= cutoffCount) return i;
+        }
+        return counts.length - 1;
+    }
+
+    /**
+     * Returns the upper bound of the delay at the given percentile: the
+     * end of the bucket containing it, or the maximum delay if it is
+     * lower.
+     *
+     * @param percent the percentage, between 0 and 100
+     * @return the delay in milliseconds
+     */
+    public long percentileMillis(final int percent) {
+        if (totalCount == 0L) return 0L;
+        final long bucketEndMillis = (percentileBucket(percent) + 1) * resolutionMillis;
+        return bucketEndMillis < maxMillis ? bucketEndMillis : maxMillis;
+    }
+
+    public long meanMillis() {
+        return totalCount == 0L ? 0L : sumMillis / totalCount;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("eventDelays");
+        translator.addKeyValue("count", totalCount);
+        translator.addKeyValue("meanMillis", meanMillis());
+        translator.addKeyValue("p50Millis", percentileMillis(50));
+        translator.addKeyValue("p90Millis", percentileMillis(90));
+        translator.addKeyValue("p99Millis", percentileMillis(99));
+        translator.addKeyValue("maxMillis", maxMillis);
+        final List<TranslatorAware> buckets = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0L) buckets.add(new Bucket(i * resolutionMillis, counts[i]));
+        }
+        translator.addKeyValue("histogram", buckets);
+        translator.endObject();
+    }
+
+    private static final class Bucket implements TranslatorAware {
+        final long fromMillis;
+        final long count;
+
+        Bucket(final long fromMillis, final long count) {
+            this.fromMillis = fromMillis;
+            this.count = count;
+        }
+
+        @Override
+        public void translate(final DataTranslator translator) throws IOException {
+            translator.beginObject("bucket");
+            translator.addKeyValue("fromMillis", fromMillis);
+            translator.addKeyValue("count", count);
+            translator.endObject();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records event delivery delays into a histogram of fixed-width buckets
+ * over a sliding window of recent time intervals. Recording threads don't
+ * coordinate: each thread updates a stripe of atomic counters, and the
+ * stripes and intervals are merged only when the distribution is read,
+ * which is rare compared to recording.
+ * <p>
+ * Like in {@link java.util.concurrent.atomic.LongAdder}, a thread picks its
+ * stripe with a random probe, and moves to another stripe when an update
+ * collides with another thread's, so the many servlet threads that record
+ * spread over the stripes evenly instead of by their thread IDs.
+ * <p>
+ * When time moves into a new interval, the first thread to notice resets
+ * the interval's counters. Records made by other threads during the
+ * reset may be lost, which is acceptable for statistics.
+ */
+final class EventDelayRecorder {
+    /** Per thread: the probe that picks its stripe, never 0. */
+    private static final ThreadLocal<int[]> probes = ThreadLocal.withInitial(() -> new int[] { ThreadLocalRandom.current().nextInt() | 1 });
+
+    private final long resolutionMillis;
+    private final int bucketCount;
+    private final int windowCount;
+    private final int stripeMask;
+    private final int stride; // number of cells per stripe, including padding against false sharing
+    /** Per interval: per stripe the bucket counters, followed by the delay sum and maximum. */
+    private final AtomicLongArray[] windows;
+    /** Per interval: the ordinal of the time interval that its counters belong to. */
+    private final AtomicLongArray windowEpochs;
+
+    /**
+     * @param resolutionMillis the width of a bucket, and the length of an interval, in milliseconds
+     * @param bucketCount the number of buckets, the last one also counts all longer delays
+     * @param windowCount the number of most recent intervals that make up the distribution
+     */
+    EventDelayRecorder(final long resolutionMillis, final int bucketCount, final int windowCount) {
+        this(resolutionMillis, bucketCount, windowCount, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param resolutionMillis the width of a bucket, and the length of an interval, in milliseconds
+     * @param bucketCount the number of buckets, the last one also counts all longer delays
+     * @param windowCount the number of most recent intervals that make up the distribution
+     * @param maxStripeCount the upper limit of stripes, for recorders that see only a fraction of events
+     */
+    EventDelayRecorder(final long resolutionMillis, final int bucketCount, final int windowCount, final int maxStripeCount) {
+        this.resolutionMillis = resolutionMillis;
+        this.bucketCount = bucketCount;
+        this.windowCount = windowCount;
+        int stripeCount = 1;
+        while ((stripeCount < 2 * Runtime.getRuntime().availableProcessors()) && (stripeCount < maxStripeCount)) stripeCount <<= 1;
+        this.stripeMask = stripeCount - 1;
+        this.stride = (((bucketCount + 2) + 7) & ~7) + 8; // whole cache lines, plus one to separate the stripes
+        this.windows = new AtomicLongArray[windowCount];
+        for (int i = 0; i < windowCount; i++) windows[i] = new AtomicLongArray(stripeCount * stride);
+        this.windowEpochs = new AtomicLongArray(windowCount);
+    }
+
+    /**
+     * Records the delay of an event.
+     *
+     * @param deliveryMillis when the event was delivered
+     * @param eventMillis when the event happened
+     */
+    void record(final long deliveryMillis, final long eventMillis) {
+        final long epoch = deliveryMillis / resolutionMillis;
+        final int windowIndex = (int) (epoch % windowCount);
+        final long windowEpoch = windowEpochs.get(windowIndex);
+        final AtomicLongArray cells = windows[windowIndex];
+        if ((windowEpoch < epoch) && windowEpochs.compareAndSet(windowIndex, windowEpoch, epoch)) {
+            for (int i = cells.length() - 1; i >= 0; i--) cells.set(i, 0L); // start the new interval
+        }
+        // a late record of an older interval is counted in the newer interval that took its place, like any other
+
+        long delayMillis = deliveryMillis - eventMillis;
+        if (delayMillis < 0L) delayMillis = 0L;
+        long bucket = delayMillis / resolutionMillis;
+        if (bucket >= bucketCount) bucket = bucketCount - 1;
+        final int[] probe = probes.get();
+        final int base = (probe[0] & stripeMask) * stride;
+        final int bucketIndex = base + (int) bucket;
+        final long count = cells.get(bucketIndex);
+        if (!cells.compareAndSet(bucketIndex, count, count + 1L)) {
+            // contended: count it anyway, and move the thread to another stripe for its next records
+            cells.incrementAndGet(bucketIndex);
+            int h = probe[0];
+            h ^= h << 13; // xorshift, as in ThreadLocalRandom.advanceProbe()
+            h ^= h >>> 17;
+            h ^= h << 5;
+            probe[0] = h;
+        }
+        cells.addAndGet(base + bucketCount, delayMillis);
+        final int maxIndex = base + bucketCount + 1;
+        long max;
+        while (((max = cells.get(maxIndex)) < delayMillis) && !cells.compareAndSet(maxIndex, max, delayMillis)) {
+            // lost to a concurrent update, retry
+        }
+    }
+
+    /**
+     * Merges the counters of the recent intervals into a distribution.
+     *
+     * @param nowMillis the current time; intervals older than the window are ignored
+     * @return the delay distribution
+     */
+    EventDelayDistribution distribution(final long nowMillis) {
+        final long oldestEpoch = (nowMillis / resolutionMillis) - windowCount + 1;
+        final long[] counts = new long[bucketCount];
+        long sumMillis = 0L;
+        long maxMillis = 0L;
+        for (int w = 0; w < windowCount; w++) {
+            if (windowEpochs.get(w) < oldestEpoch) continue;
+            final AtomicLongArray cells = windows[w];
+            for (int base = cells.length() - stride; base >= 0; base -= stride) {
+                for (int i = 0; i < bucketCount; i++) counts[i] += cells.get(base + i);
+                sumMillis += cells.get(base + bucketCount);
+                final long max = cells.get(base + bucketCount + 1);
+                if (max > maxMillis) maxMillis = max;
+            }
+        }
+        return new EventDelayDistribution(resolutionMillis, counts, sumMillis, maxMillis);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+/**
+ * A set of closed intervals of longs, kept sorted and merged in a single
+ * primitive array: adding an interval that overlaps or touches existing
+ * intervals merges them into one, the same as adding a closed range to
+ * Guava's TreeRangeSet. Intervals of a playback mostly arrive in
+ * ascending order, so appending to or extending the last interval takes
+ * constant time; other additions take a binary search and an array copy.
+ */
+final class IntervalAccumulator {
+    private long[] bounds; // lower and upper bound of each interval, in ascending order
+    private int count = 0; // the number of intervals
+
+    IntervalAccumulator() {
+        this(4);
+    }
+
+    IntervalAccumulator(final int initialCapacity) {
+        bounds = new long[2 * (initialCapacity < 1 ? 1 : initialCapacity)];
+    }
+
+    /**
+     * Adds the closed interval [lower, upper].
+     *
+     * @param lower the lower bound, inclusive
+     * @param upper the upper bound, inclusive
+     * @throws IllegalArgumentException if lower is greater than upper
+     */
+    void add(final long lower, final long upper) {
+        if (lower > upper) throw new IllegalArgumentException("Invalid interval: [" + lower + ", " + upper + "]");
+        final long[] b = bounds;
+        final int n = count;
+        if (n > 0) {
+            final int last = 2 * (n - 1);
+            if (lower > b[last + 1]) {
+                append(lower, upper); // after all the intervals
+                return;
+            }
+            if (lower >= b[last]) {
+                if (upper > b[last + 1]) b[last + 1] = upper; // connected only with the last interval
+                return;
+            }
+        }
+        else {
+            append(lower, upper);
+            return;
+        }
+
+        // the first interval whose upper bound reaches the new interval, and the first one that begins after it
+        final int first = firstUpperAtLeast(lower);
+        final int end = firstLowerAbove(upper);
+        if (first == end) {
+            // connected with no interval: insert
+            ensureCapacity(n + 1);
+            final long[] c = bounds;
+            System.arraycopy(c, 2 * first, c, 2 * first + 2, 2 * (n - first));
+            c[2 * first] = lower;
+            c[2 * first + 1] = upper;
+            count = n + 1;
+            return;
+        }
+        // merge the intervals first..end-1 with the new interval
+        final long mergedLower = b[2 * first] < lower ? b[2 * first] : lower;
+        final long mergedUpper = b[2 * end - 1] > upper ? b[2 * end - 1] : upper;
+        b[2 * first] = mergedLower;
+        b[2 * first + 1] = mergedUpper;
+        final int removed = end - first - 1;
+        if (removed > 0) {
+            System.arraycopy(b, 2 * end, b, 2 * first + 2, 2 * (n - end));
+            count = n - removed;
+        }
+    }
+
+    private void append(final long lower, final long upper) {
+        ensureCapacity(count + 1);
+        bounds[2 * count] = lower;
+        bounds[2 * count + 1] = upper;
+        count++;
+    }
+
+    private void ensureCapacity(final int intervals) {
+        if ((2 * intervals) > bounds.length) {
+            final long[] newBounds = new long[Math.max(2 * intervals, 2 * bounds.length)];
+            System.arraycopy(bounds, 0, newBounds, 0, 2 * count);
+            bounds = newBounds;
+        }
+    }
+
+    private int firstUpperAtLeast(final long value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (bounds[2 * mid + 1] < value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int firstLowerAbove(final long value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (bounds[2 * mid] <= value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    long lower(final int index) {
+        return bounds[2 * index];
+    }
+
+    long upper(final int index) {
+        return bounds[2 * index + 1];
+    }
+
+    /**
+     * Returns the total length of the intervals.
+     *
+     * @return the sum of upper minus lower bound over all intervals
+     */
+    long coverage() {
+        long sum = 0L;
+        for (int i = 2 * count - 2; i >= 0; i -= 2) sum += bounds[i + 1] - bounds[i];
+        return sum;
+    }
+
+    long estimatedBytes() {
+        return 32L + 16L + (8L * bounds.length); // the instance, and the array with its header
+    }
+}
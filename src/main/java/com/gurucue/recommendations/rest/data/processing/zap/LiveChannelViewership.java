@@ -0,0 +1,70 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * The live viewer counts of a tv-channel and of its currently airing
+ * tv-programme, at a point in time.
+ */
+public final class LiveChannelViewership implements TranslatorAware {
+    public final long tvChannelId;
+    public final String tvChannelCode;
+    public final int viewers;
+    /** The ID of the airing tv-programme, or null if not known. */
+    public final Long tvProgrammeId;
+    /** How many devices tuned in while the tv-programme was airing. */
+    public final int tvProgrammeTuneIns;
+    /** The highest number of viewers while the tv-programme was airing. */
+    public final int tvProgrammePeakViewers;
+
+    LiveChannelViewership(
+            final long tvChannelId,
+            final String tvChannelCode,
+            final int viewers,
+            final Long tvProgrammeId,
+            final int tvProgrammeTuneIns,
+            final int tvProgrammePeakViewers
+    ) {
+        this.tvChannelId = tvChannelId;
+        this.tvChannelCode = tvChannelCode;
+        this.viewers = viewers;
+        this.tvProgrammeId = tvProgrammeId;
+        this.tvProgrammeTuneIns = tvProgrammeTuneIns;
+        this.tvProgrammePeakViewers = tvProgrammePeakViewers;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("tvChannel");
+        translator.addKeyValue("id", tvChannelId);
+        translator.addKeyValue("code", tvChannelCode);
+        translator.addKeyValue("viewers", viewers);
+        if (tvProgrammeId != null) {
+            translator.addKeyValue("tvProgrammeId", tvProgrammeId.longValue());
+            translator.addKeyValue("tvProgrammeTuneIns", tvProgrammeTuneIns);
+            translator.addKeyValue("tvProgrammePeakViewers", tvProgrammePeakViewers);
+        }
+        translator.endObject();
+    }
+}
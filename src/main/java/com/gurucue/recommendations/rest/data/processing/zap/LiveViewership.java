@@ -0,0 +1,147 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maintains live viewer counts per tv-channel and per tv-programme. The
+ * counts are updated as zaps arrive and as devices are evicted, so they can
+ * be obtained at any moment without walking through the zap state.
+ * A device counts as a viewer of the tv-channel it zapped to last, by event
+ * time, until it zaps away, its viewing session expires the same way as in
+ * the generated viewership, or it is evicted.
+ */
+final class LiveViewership {
+    private final ConcurrentHashMap<Long, ChannelViewers> channels = new ConcurrentHashMap<>(); // indexed by tv-channel ID
+
+    private ChannelViewers channelViewers(final TvChannelProduct tvChannel) {
+        final ChannelViewers existing = channels.get(tvChannel.id);
+        if (existing != null) return existing;
+        final ChannelViewers newViewers = new ChannelViewers(tvChannel);
+        final ChannelViewers previous = channels.putIfAbsent(tvChannel.id, newViewers);
+        return previous == null ? newViewers : previous;
+    }
+
+    /**
+     * Registers a device that tuned in to the given tv-channel.
+     *
+     * @param tvChannel the tv-channel the device zapped to
+     * @param zapTimeMillis when the zap occurred
+     */
+    void enter(final TvChannelProduct tvChannel, final long zapTimeMillis) {
+        channelViewers(tvChannel).enter(zapTimeMillis);
+    }
+
+    /**
+     * Registers a device that left the tv-channel with the given ID, either
+     * by zapping away, by its viewing session expiring, or by being evicted.
+     *
+     * @param tvChannelId the ID of the tv-channel the device was tuned to
+     */
+    void leave(final long tvChannelId) {
+        final ChannelViewers viewers = channels.get(tvChannelId);
+        if (viewers != null) viewers.viewers.decrementAndGet();
+    }
+
+    /**
+     * Registers a tv-programme as airing on its tv-channel, if it's newer
+     * than the tv-programme already registered. The tv-programme's figures
+     * start with the current viewers of the tv-channel.
+     *
+     * @param tvChannel the tv-channel of the tv-programme
+     * @param tvProgramme the tv-programme found for a zap
+     */
+    void airing(final TvChannelProduct tvChannel, final TvProgrammeProduct tvProgramme) {
+        channelViewers(tvChannel).airing(tvProgramme);
+    }
+
+    /**
+     * Returns the current viewer counts of all tv-channels of the given
+     * partner that were zapped to since the start.
+     *
+     * @param partnerId the ID of the partner whose tv-channels to include
+     * @param nowMillis the current time, to determine the airing tv-programmes
+     * @return the viewer counts, one entry per tv-channel
+     */
+    List<LiveChannelViewership> snapshot(final long partnerId, final long nowMillis) {
+        final List<LiveChannelViewership> result = new ArrayList<>(channels.size());
+        for (final ChannelViewers viewers : channels.values()) {
+            if (viewers.tvChannel.partnerId != partnerId) continue;
+            result.add(viewers.snapshot(nowMillis));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of viewers over all tv-channels.
+     *
+     * @return the number of devices currently tuned to any tv-channel
+     */
+    int totalViewers() {
+        int total = 0;
+        for (final ChannelViewers viewers : channels.values()) total += viewers.viewers.get();
+        return total;
+    }
+
+    private static final class ChannelViewers {
+        final TvChannelProduct tvChannel;
+        final AtomicInteger viewers = new AtomicInteger(0);
+        // figures of the latest tv-programme seen airing, access must be guarded with synchronized(this)
+        private TvProgrammeProduct tvProgramme = null;
+        private int tuneIns = 0;
+        private int peakViewers = 0;
+
+        ChannelViewers(final TvChannelProduct tvChannel) {
+            this.tvChannel = tvChannel;
+        }
+
+        void enter(final long zapTimeMillis) {
+            final int n = viewers.incrementAndGet();
+            synchronized (this) {
+                if ((tvProgramme == null) || (zapTimeMillis < tvProgramme.beginTimeMillis) || (zapTimeMillis >= tvProgramme.endTimeMillis)) return;
+                tuneIns++;
+                if (n > peakViewers) peakViewers = n;
+            }
+        }
+
+        synchronized void airing(final TvProgrammeProduct newTvProgramme) {
+            if ((tvProgramme != null) && (tvProgramme.beginTimeMillis >= newTvProgramme.beginTimeMillis)) return;
+            tvProgramme = newTvProgramme;
+            tuneIns = 0;
+            peakViewers = viewers.get();
+        }
+
+        LiveChannelViewership snapshot(final long nowMillis) {
+            final int n = viewers.get();
+            synchronized (this) {
+                if ((tvProgramme == null) || (nowMillis < tvProgramme.beginTimeMillis) || (nowMillis >= tvProgramme.endTimeMillis)) {
+                    return new LiveChannelViewership(tvChannel.id, tvChannel.partnerProductCode, n, null, 0, 0);
+                }
+                return new LiveChannelViewership(tvChannel.id, tvChannel.partnerProductCode, n, tvProgramme.id, tuneIns, n > peakViewers ? n : peakViewers);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * The zap buffering delay currently in effect for a partner.
+ */
+public final class PartnerBufferingStatus implements TranslatorAware {
+    public final long partnerId;
+    public final String partnerUsername;
+    public final long delayMillis;
+    /** Whether the delay is tuned from the partner's own events, or is the delay of all partners. */
+    public final boolean adaptive;
+    public final long eventCount;
+    public final long percentileMillis;
+
+    PartnerBufferingStatus(final long partnerId, final String partnerUsername, final long delayMillis, final boolean adaptive, final long eventCount, final long percentileMillis) {
+        this.partnerId = partnerId;
+        this.partnerUsername = partnerUsername;
+        this.delayMillis = delayMillis;
+        this.adaptive = adaptive;
+        this.eventCount = eventCount;
+        this.percentileMillis = percentileMillis;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("partnerBuffering");
+        translator.addKeyValue("partnerId", partnerId);
+        translator.addKeyValue("partner", partnerUsername);
+        translator.addKeyValue("delayMillis", delayMillis);
+        translator.addKeyValue("adaptive", adaptive);
+        translator.addKeyValue("eventCount", eventCount);
+        translator.addKeyValue("percentileMillis", percentileMillis);
+        translator.endObject();
+    }
+}
@@ -18,12 +18,7 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import com.gurucue.recommendations.DatabaseException;
-import com.gurucue.recommendations.Timer;
-import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.data.DataTypeCodes;
 import com.gurucue.recommendations.data.ProductTypeCodes;
 import com.gurucue.recommendations.entity.ConsumerEvent;
@@ -35,6 +30,7 @@ import com.gurucue.recommendations.entity.product.VideoProduct;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -50,7 +46,7 @@ import java.util.concurrent.ConcurrentSkipListMap;
  */
 final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
     /** How much time to wait from the last (consumption ending) zap, before composing the consumption event, in ms. */
-    private final static long COMPUTATION_DELAY = 5L * 60L * 1000L; // 5 minutes
+    final static long COMPUTATION_DELAY = 5L * 60L * 1000L; // 5 minutes
     /** Ultimate deadline, after which this instance is re-examined. */
     private final static Logger log = LogManager.getLogger(ProductZaps.class);
 
@@ -83,7 +79,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
         logBuilder.append("Now collecting ");
         if (product instanceof TvProgrammeProduct) {
             final TvProgrammeProduct tvProgramme = (TvProgrammeProduct)product;
-            title = ConsumerEventProcessor.tvProgrammeTitle(tvProgramme, log);
+            title = tvProgramme.title.asString();
             logBuilder.append("catchup");
             contentDurationMillis = tvProgramme.endTimeMillis - tvProgramme.beginTimeMillis;
         }
@@ -134,7 +130,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
     }
 
     // must be guarded with synchronized(this)
-    private void convert(final StringBuilder logBuilder) {
+    private void convert(final StringBuilder logBuilder, final boolean force) {
         if (inactive) {
             log.error(new StringBuilder(256)
                             .append("Using an inactive ProductZaps instance to construct a consumption event! device=")
@@ -151,7 +147,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
         if (!zapIterator.hasNext()) return; // no zaps to process
         final ConcurrentSkipListMap<Long, Product> deviceZapTimes = owner.events;
 
-        final long cutoffTimestamp = Timer.currentTimeMillis() - COMPUTATION_DELAY;
+        final long cutoffTimestamp = force ? Long.MAX_VALUE / 2L : owner.owner.clock.currentTimeMillis() - COMPUTATION_DELAY; // when forced, every zap is in range
 
         // find the first playing/winding zap
         Long previousTime = null;
@@ -187,7 +183,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
                     // something was going on - stop it
                     generator.addEvent(new EventData(PlayingState.INTERNAL_STOP, zapTime, 1.0, 0L, null));
                 }
-                storeEvent(generator.constructConsumption(deviceZapTimes, product, title, logBuilder));
+                storeEvent(generator.constructConsumption(owner.owner, deviceZapTimes, product, title, logBuilder));
                 ceilingTimestamp = entry.getKey();
                 generator = new ConsumptionGenerator(data);
             } else {
@@ -204,7 +200,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
             if (!zapIterator.hasNext() && ((previousData.timeMillis <= (cutoffTimestamp - contentDurationMillis)) || ((previousData.state == PlayingState.STOP) && (previousData.timeMillis <= cutoffTimestamp)))) {
                 final int historySize = zaps.size();
                 zaps.clear(); // all zaps "spent", so clear all of them
-                storeEvent(generator.constructConsumption(deviceZapTimes, product, title, logBuilder));
+                storeEvent(generator.constructConsumption(owner.owner, deviceZapTimes, product, title, logBuilder));
                 logHistory(historySize, 0, 2);
                 return;
             }
@@ -220,7 +216,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
                         // something was going on - stop it
                         generator.addEvent(new EventData(PlayingState.INTERNAL_STOP, nextZapEntry.getKey(), 1.0, 0L, null));
                     }
-                    storeEvent(generator.constructConsumption(deviceZapTimes, product, title, logBuilder));
+                    storeEvent(generator.constructConsumption(owner.owner, deviceZapTimes, product, title, logBuilder));
                     logHistory(historySize, 0, 3);
                     return;
                 }
@@ -235,6 +231,10 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
     }
 
     private void logHistory(final int historyRemoved, final int historyRemained, final int codepath) {
+        final ZapAudit audit = owner.owner.audit;
+        if (audit != null) audit.productHistory(owner.code, owner.deviceId, owner.consumer, product.id, codepath, historyRemoved, historyRemained);
+        final boolean isWarning = (historyRemoved == 0) && (historyRemained > 0);
+        if (!isWarning && !log.isDebugEnabled()) return;
         final StringBuilder logBuilder = new StringBuilder(256);
         logBuilder.append("(path #").append(codepath);
         if (historyRemoved == 0) {
@@ -259,7 +259,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
                 .append(", \"")
                 .append(title)
                 .append("\")");
-        if ((historyRemoved == 0) && (historyRemained > 0)) {
+        if (isWarning) {
             log.warn(logBuilder.toString());
         }
         else {
@@ -269,8 +269,10 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
 
     private void storeEvent(final ConsumerEvent consumption) {
         if (consumption != null) {
+            final ZapAudit audit = owner.owner.audit;
+            if (audit != null) audit.productConsumption(owner.code, owner.deviceId, owner.consumer, product.id, consumption.getEventTimestamp().getTime());
             try {
-                DataManager.queueConsumerEvent(consumption);//DataManager.queueConsumerEvent(null, consumption);
+                owner.owner.data.emit(consumption);
             } catch (InterruptedException e) {
                 log.error(logPrefixId + "Interrupted while waiting to queue a consumption event: " + e.toString(), e);
             }
@@ -287,10 +289,52 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
         }
     }
 
-    public boolean flush(final StringBuilder logBuilder) {
+    /**
+     * Returns the earliest time when a flush may convert any of the
+     * collected zaps, given that no zaps arrive in the meantime: either
+     * when the latest zap gets old enough, or when the content would have
+     * ended playing after the latest zap.
+     *
+     * @param nowMillis the current time
+     * @param lastDeviceZapMillis the time of the latest zap of the device, which may end the playout
+     * @return when to flush next
+     */
+    long nextFlushMillis(final long nowMillis, final long lastDeviceZapMillis) {
+        synchronized (this) {
+            if (zaps.isEmpty()) return nowMillis;
+            final long lastZapMillis = zaps.lastKey();
+            final long settledMillis = (lastZapMillis > lastDeviceZapMillis ? lastZapMillis : lastDeviceZapMillis) + COMPUTATION_DELAY;
+            if (settledMillis > nowMillis) return settledMillis;
+            final long playedOutMillis = lastZapMillis + contentDurationMillis + COMPUTATION_DELAY;
+            if (playedOutMillis > nowMillis) return playedOutMillis;
+            return nowMillis + ZapProcessor.CONSUMPTION_FLUSH_INTERVAL; // shouldn't happen, retry at the next flush cycle
+        }
+    }
+
+    private static final long EVENT_DATA_BYTES = 128L; // a tree map entry with the boxed timestamp and the EventData instance, not counting the shared event
+
+    /**
+     * Returns the estimated number of bytes occupied by collected zaps.
+     *
+     * @return the estimated heap footprint of collected zaps in bytes
+     */
+    long estimatedBytes() {
+        synchronized (this) {
+            return zaps.size() * EVENT_DATA_BYTES;
+        }
+    }
+
+    /**
+     * Converts collected zaps into consumptions.
+     *
+     * @param logBuilder where to log produced consumptions
+     * @param force whether to convert the zaps immediately, without waiting for the computation delay to pass, e.g. when the device is being evicted
+     * @return whether all zaps were spent, so the instance can be discarded
+     */
+    public boolean flush(final StringBuilder logBuilder, final boolean force) {
         synchronized (this) {
             try {
-                convert(logBuilder);
+                convert(logBuilder, force);
             }
             catch (Exception e) {
                 log.error(logPrefixId + "Exception while assembling catchup/VoD consumption: " + e.toString(), e);
@@ -301,6 +345,49 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
         }
     }
 
+    /**
+     * Writes the collected zaps into a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        synchronized (this) {
+            out.writeProduct(product);
+            out.writeInt(zaps.size());
+            for (final EventData data : zaps.values()) {
+                out.writeByte(data.state.ordinal());
+                out.writeLong(data.timeMillis);
+                out.writeDouble(data.speed);
+                out.writeLong(data.watchOffsetMillis);
+                out.writeEvent(data.event);
+            }
+        }
+    }
+
+    /**
+     * Reads collected zaps from a snapshot.
+     *
+     * @param in where to read the snapshot from
+     * @param owner the device state of the new instance
+     * @return the restored instance, or null if its product doesn't exist anymore
+     * @throws IOException if reading fails
+     */
+    static ProductZaps readSnapshot(final ZapSnapshot.Reader in, final DeviceState owner) throws IOException {
+        final Product product = in.readProduct();
+        final ProductZaps productZaps = (product instanceof TvProgrammeProduct) || (product instanceof VideoProduct) ? new ProductZaps(owner, product) : null;
+        final PlayingState[] states = PlayingState.values();
+        for (int i = in.readInt(); i > 0; i--) {
+            final PlayingState state = states[in.readByte()];
+            final long timeMillis = in.readLong();
+            final double speed = in.readDouble();
+            final long watchOffsetMillis = in.readLong();
+            final ConsumerEvent event = in.readEvent();
+            if (productZaps != null) productZaps.zaps.put(timeMillis, new EventData(state, timeMillis, speed, watchOffsetMillis, event));
+        }
+        return productZaps;
+    }
+
     static final class EventData {
         final PlayingState state;
         final long timeMillis;
@@ -319,11 +406,11 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
 
     static class ConsumptionGenerator {
         final EventData firstEvent;
-        final RangeSet<Long> consumedIntervals = TreeRangeSet.create();
+        final IntervalAccumulator consumedIntervals = new IntervalAccumulator();
         long played = 0L;
-        final RangeSet<Long> rewoundIntervals = TreeRangeSet.create();
+        final IntervalAccumulator rewoundIntervals = new IntervalAccumulator();
         long rewound = 0L;
-        final RangeSet<Long> fastForwardIntervals = TreeRangeSet.create();
+        final IntervalAccumulator fastForwardIntervals = new IntervalAccumulator();
         long fastForwarded = 0L;
         int playCount = 0;
         int fastForwardCount = 0;
@@ -361,17 +448,17 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
                 final long offset = previousData.watchOffsetMillis;
                 if (previousData.speed == 1) {
                     // play
-                    consumedIntervals.add(Range.closed(offset, offset + timeDelta));
+                    consumedIntervals.add(offset, offset + timeDelta);
                     played += timeDelta;
                 }
                 else if (previousData.speed < 0) {
                     // rewind
-                    rewoundIntervals.add(Range.closed(offset + (long)(timeDelta * previousData.speed), offset));
+                    rewoundIntervals.add(offset + (long)(timeDelta * previousData.speed), offset);
                     rewound += timeDelta;
                 }
                 else {
                     // fast forward (in theory also possible: slow motion)
-                    fastForwardIntervals.add(Range.closed(offset, offset + (long)(timeDelta * previousData.speed)));
+                    fastForwardIntervals.add(offset, offset + (long)(timeDelta * previousData.speed));
                     fastForwarded += timeDelta;
                 }
             }
@@ -379,13 +466,13 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
             previousData = data; // remember for the next time
         }
 
-        ConsumerEvent constructConsumption(final ConcurrentSkipListMap<Long, Product> deviceZapTimes, final Product product, final String title, final StringBuilder logBuilder) {
+        ConsumerEvent constructConsumption(final ZapProcessor processor, final ConcurrentSkipListMap<Long, Product> deviceZapTimes, final Product product, final String title, final StringBuilder logBuilder) {
 
-            final DataTypeCodes typeCodes = DataManager.getDataTypeCodes();
+            final DataTypeCodes typeCodes = processor.data.dataTypeCodes();
             final ConsumerEvent template = firstEvent.event;
             final Map<DataType, String> eventData = new HashMap<>();
-            final ConsumerEvent consumption = new ConsumerEvent(null, new Timestamp(previousData.timeMillis), template.getPartner(), template.getProduct(), template.getConsumer(), DataManager.getConsumerEventTypeCodes().consumption, eventData, template.getUserProfileId());
-            consumption.setRequestTimestamp(new Timestamp(System.currentTimeMillis()));
+            final ConsumerEvent consumption = new ConsumerEvent(null, new Timestamp(previousData.timeMillis), template.getPartner(), template.getProduct(), template.getConsumer(), processor.data.consumerEventTypeCodes().consumption, eventData, template.getUserProfileId());
+            consumption.setRequestTimestamp(new Timestamp(processor.clock.currentTimeMillis()));
 
             if (product instanceof TvProgrammeProduct) {
                 logBuilder.append("\nCatch-up consumption of tv-programme ");
@@ -433,7 +520,7 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
             // set origin
             Map.Entry<Long, Product> originEntry = deviceZapTimes.lowerEntry(firstEvent.timeMillis);
             final long productId = product.id;
-            final ProductTypeCodes productTypeCodes = DataManager.getProductTypeCodes();
+            final ProductTypeCodes productTypeCodes = processor.data.productTypeCodes();
             String dataOrigin = null;
 
             while (originEntry != null) {
@@ -570,31 +657,26 @@ final class ProductZaps /*implements TimerListener*/ { // TODO: remove old code
         }
 
         /**
-         * Computes the sum of intervals in the given set of intervals
-         * (provided as a RangeSet), and returns it, converted into
-         * seconds.
+         * Computes the sum of intervals in the given set of intervals,
+         * and returns it, converted into seconds.
          *
          * @param intervals
          * @param logBuilder
          * @return
          */
-        private static long intervalSum(final RangeSet<Long> intervals, final StringBuilder logBuilder) {
-            final Iterator<Range<Long>> intervalIterator = intervals.asRanges().iterator();
-            if (!intervalIterator.hasNext()) {
+        static long intervalSum(final IntervalAccumulator intervals, final StringBuilder logBuilder) {
+            final int n = intervals.size();
+            if (n == 0) {
                 logBuilder.append("none");
                 return 0L;
             }
-            final Range<Long> firstInterval = intervalIterator.next();
-            final long firstLower = firstInterval.lowerEndpoint() / 1000L;
-            final long firstUpper = firstInterval.upperEndpoint() / 1000L;
-            long intervalSum = firstUpper - firstLower;
-            logBuilder.append("[").append(firstLower).append(", ").append(firstUpper).append("]");
-            while (intervalIterator.hasNext()) {
-                final Range<Long> interval = intervalIterator.next();
-                final long lower = interval.lowerEndpoint() / 1000L;
-                final long upper = interval.upperEndpoint() / 1000L;
+            long intervalSum = 0L;
+            for (int i = 0; i < n; i++) {
+                final long lower = intervals.lower(i) / 1000L;
+                final long upper = intervals.upper(i) / 1000L;
                 intervalSum += upper - lower;
-                logBuilder.append(", [").append(lower).append(", ").append(upper).append("]");
+                if (i > 0) logBuilder.append(", ");
+                logBuilder.append("[").append(lower).append(", ").append(upper).append("]");
             }
             return intervalSum;
         }
@@ -0,0 +1,225 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+
+import java.util.List;
+
+/**
+ * A hierarchical hashed timing wheel with two levels. Timers due within
+ * one revolution of the inner wheel are hashed by their expiry tick into
+ * its slots; timers further ahead are hashed by their revolution into the
+ * slots of the outer wheel, and are moved into the inner wheel when their
+ * revolution begins. Each slot holds a doubly-linked list of timers, so
+ * scheduling and cancelling a timer is O(1), and advancing by one tick
+ * visits only the timers that expire in it, plus the timers that are moved
+ * inward once per revolution.
+ * <p>
+ * Timers expire at the first tick boundary at or after their time, so they
+ * are late by at most one tick plus however late the wheel is advanced.
+ * The wheel does not invoke the listeners, it only hands out the expired
+ * timers; that is up to the caller.
+ */
+final class TimingWheel {
+    private final long tickMillis;
+    private final int bits;
+    private final int mask;
+    private final Timeout[] slots; // the inner wheel, followed by the outer wheel
+    private long currentTick; // the last tick that was processed
+    private int size = 0;
+
+    /**
+     * Creates an empty timing wheel.
+     *
+     * @param tickMillis the duration of a tick in milliseconds, the resolution of timers
+     * @param slotCount the number of slots of each level, a power of 2
+     * @param startMillis the current time, ticks up to and including this time are considered processed
+     */
+    TimingWheel(final long tickMillis, final int slotCount, final long startMillis) {
+        if (tickMillis <= 0L) throw new IllegalArgumentException("The tick duration must be positive: " + tickMillis);
+        if ((slotCount <= 1) || ((slotCount & (slotCount - 1)) != 0)) throw new IllegalArgumentException("The number of slots must be a power of 2 greater than 1: " + slotCount);
+        this.tickMillis = tickMillis;
+        this.bits = Integer.numberOfTrailingZeros(slotCount);
+        this.mask = slotCount - 1;
+        this.slots = new Timeout[2 * slotCount];
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules the listener at the given time. A time that already passed
+     * expires at the next tick.
+     *
+     * @param millis when the listener is due, in milliseconds
+     * @param listener the listener
+     * @return the scheduled timer, which can be used to cancel it
+     */
+    synchronized Timeout schedule(final long millis, final TimerListener listener) {
+        final Timeout timeout = new Timeout(millis, listener);
+        timeout.tick = Math.max(expiryTick(millis), currentTick + 1L);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Cancels the given timer, if it did not expire yet.
+     *
+     * @param timeout the timer to cancel
+     * @return whether the timer was cancelled
+     */
+    synchronized boolean cancel(final Timeout timeout) {
+        if (timeout.slot < 0) return false;
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Cancels the timer for the given listener at the given time. The
+     * timer is looked for in the slots the time hashes to, which is where
+     * it is unless it was scheduled for a time that already passed; only
+     * then are all the slots searched.
+     *
+     * @param millis the time that the listener was scheduled for
+     * @param listener the scheduled listener
+     * @return whether a timer was cancelled
+     */
+    synchronized boolean cancel(final long millis, final TimerListener listener) {
+        final long tick = expiryTick(millis);
+        Timeout timeout = find(slots[(int) (tick & mask)], millis, listener);
+        if (timeout == null) timeout = find(slots[mask + 1 + (int) ((tick >>> bits) & mask)], millis, listener);
+        for (int i = slots.length - 1; (timeout == null) && (i >= 0); i--) {
+            timeout = find(slots[i], millis, listener);
+        }
+        if (timeout == null) return false;
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Advances the wheel up to and including the tick containing the given
+     * time, removing the expired timers and adding them to the given list.
+     * Within a tick the timers are not ordered.
+     *
+     * @param nowMillis the current time
+     * @param output where to add the expired timers
+     * @return the number of expired timers
+     */
+    synchronized int advance(final long nowMillis, final List<Timeout> output) {
+        final long targetTick = nowMillis / tickMillis;
+        int count = 0;
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                // nothing to expire, jump directly to the target
+                currentTick = targetTick;
+                break;
+            }
+            currentTick++;
+            if ((currentTick & mask) == 0L) {
+                // a new revolution: move its timers from the outer wheel inward
+                final int outer = mask + 1 + (int) ((currentTick >>> bits) & mask);
+                Timeout timeout = slots[outer];
+                while (timeout != null) {
+                    final Timeout next = timeout.next;
+                    unlink(timeout);
+                    link(timeout); // a timer more than a whole outer revolution ahead goes back to the outer wheel
+                    timeout = next;
+                }
+            }
+            final int inner = (int) (currentTick & mask);
+            Timeout timeout = slots[inner];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                unlink(timeout);
+                output.add(timeout);
+                count++;
+                timeout = next;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time when the next tick is due.
+     *
+     * @return the start of the first unprocessed tick, in milliseconds
+     */
+    synchronized long nextTickMillis() {
+        return (currentTick + 1L) * tickMillis;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private long expiryTick(final long millis) {
+        // the first tick boundary at or after the given time
+        final long tick = millis / tickMillis;
+        return (tick * tickMillis) < millis ? tick + 1L : tick;
+    }
+
+    private static Timeout find(Timeout timeout, final long millis, final TimerListener listener) {
+        while ((timeout != null) && ((timeout.millis != millis) || (timeout.listener != listener))) timeout = timeout.next;
+        return timeout;
+    }
+
+    /**
+     * Links the timer into the inner wheel if it expires before the
+     * current revolution of the inner wheel ends, otherwise into the outer
+     * wheel. The timer must not expire before the current tick.
+     */
+    private void link(final Timeout timeout) {
+        final int slot;
+        if ((timeout.tick >>> bits) == (currentTick >>> bits)) slot = (int) (timeout.tick & mask);
+        else slot = mask + 1 + (int) ((timeout.tick >>> bits) & mask);
+        final Timeout head = slots[slot];
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) head.prev = timeout;
+        slots[slot] = timeout;
+        size++;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.prev == null) slots[timeout.slot] = timeout.next;
+        else timeout.prev.next = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    /**
+     * A scheduled timer. Its links are guarded by the wheel.
+     */
+    static final class Timeout {
+        final long millis;
+        final TimerListener listener;
+        long tick; // the tick at which it expires
+        int slot = -1;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(final long millis, final TimerListener listener) {
+            this.millis = millis;
+            this.listener = listener;
+        }
+    }
+}
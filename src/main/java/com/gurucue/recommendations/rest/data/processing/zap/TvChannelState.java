@@ -18,21 +18,18 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.gurucue.recommendations.Timer;
-import com.gurucue.recommendations.Transaction;
-import com.gurucue.recommendations.data.DataLink;
-import com.gurucue.recommendations.data.DataManager;
-import com.gurucue.recommendations.entity.ConsumerEvent;
 import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
 import com.gurucue.recommendations.entity.product.TvChannelProduct;
 import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -50,7 +47,7 @@ final class TvChannelState {
     final TvChannelProduct tvChannel;
     final Partner partner;
     private volatile boolean hasEPG = true; // log missing EPG only if it's a new happenstance, i.e. log it only once for those tv-channels that don't have EPG at all
-    private final Map<String, DeviceZaps> noEPGViewership = new HashMap<>(); // zapKey -> timestamp -> ConsumerEvent, for tv-channels without EPG
+    private final DeviceCodeMap<DeviceZaps> noEPGViewership = new DeviceCodeMap<>(); // device code -> timestamp -> zap, for tv-channels without EPG
 
     TvChannelState(final ZapProcessor owner, final TvChannelProduct tvChannel, final Partner partner) {
         this.owner = owner;
@@ -58,49 +55,39 @@ final class TvChannelState {
         this.partner = partner;
     }
 
-    final void process(final ConsumerEvent zap, final String zapKey, final DeviceState deviceState) {
+    final void process(final ZapRecord zap, final DeviceState deviceState) {
         final TvProgrammeProduct tvProgramme;
 
         final long tvSearchStart = System.nanoTime();
-        try (final DataLink link = DataManager.getNewLink()) {
-            try (final Transaction transaction = Transaction.newTransaction(link)) {
-                tvProgramme = link.getProductManager().tvProgrammeAtTimeForTvChannelAndPartner(transaction, zap.getPartner(), tvChannel, zap.getEventTimestamp().getTime());
-                transaction.commit();
-            }
-        }
+        tvProgramme = owner.data.tvProgrammeAt(zap.source.partner, tvChannel, zap.timeMillis);
         final long tvSearchStop = System.nanoTime();
         final long tvSearchTime = tvSearchStop - tvSearchStart;
         if (tvSearchTime > 5000000L) { // 5 milliseconds
             log.error("Finding the currently playing tv-programme took too long: " + tvSearchTime + " ns");
         }
         if (tvProgramme == null) {
-            synchronized (noEPGViewership) {
-                DeviceZaps deviceZaps = noEPGViewership.get(zapKey);
-                if (deviceZaps == null) {
-                    deviceZaps = new DeviceZaps();
-                    noEPGViewership.put(zapKey, deviceZaps);
-                }
-                deviceZaps.store(zap);
-            }
+            noEPGViewership.getOrAdd(deviceState.code, DeviceZaps::new).store(zap);
             if (hasEPG) {
                 hasEPG = false;
-                log.error("Cannot process zap: cannot find a TV-programme running on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.getEventTimestamp().getTime() / 1000L));
+                log.error("Cannot process zap: cannot find a TV-programme running on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.timeMillis / 1000L));
             }
             return;
         }
         else hasEPG = true;
+        owner.liveViewership.airing(tvChannel, tvProgramme);
 
         final TvProgrammeState state = getState(zap, tvProgramme);
-        if (state != null) state.process(zap, zapKey, deviceState);
+        if (state != null) state.process(zap, deviceState);
     }
 
-    private TvProgrammeState getState(final ConsumerEvent zap, final TvProgrammeProduct tvProgramme) {
+    private TvProgrammeState getState(final ZapRecord zap, final TvProgrammeProduct tvProgramme) {
         final TvProgrammeState state;
         final TvProgrammeState existingState = tvProgrammes.get(tvProgramme.id);
         if (existingState == null) {
-            final long now = Timer.currentTimeMillis();
-            if (tvProgramme.endTimeMillis < (now - owner.currentBufferingDelayMillis)) {
-                log.warn("Ignoring zap on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.getEventTimestamp().getTime() / 1000L) + ": TV-programme running at the time ended more than 5 minutes ago (ID: " + tvProgramme.id + ")");
+            final long now = owner.clock.currentTimeMillis();
+            final long bufferingDelayMillis = owner.bufferingDelayMillis(partner);
+            if (tvProgramme.endTimeMillis < (now - bufferingDelayMillis)) {
+                log.warn("Ignoring zap on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.timeMillis / 1000L) + ": TV-programme running at the time ended more than " + (bufferingDelayMillis / 1000L) + " seconds ago (ID: " + tvProgramme.id + ")");
                 return null;
             }
             final TvProgrammeState newState = new TvProgrammeState(this, tvProgramme);
@@ -109,7 +96,7 @@ final class TvChannelState {
             else state = previousState;
         }
         else if (existingState.isGone) {
-            log.warn("Ignoring zap on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.getEventTimestamp().getTime() / 1000L) + ": TV-programme running at the time ended more than 5 minutes ago (ID: " + tvProgramme.id + ")");
+            log.warn("Ignoring zap on TV-channel " + tvChannel.partnerProductCode + " at time " + (zap.timeMillis / 1000L) + ": TV-programme running at the time ended more than " + (owner.bufferingDelayMillis(partner) / 1000L) + " seconds ago (ID: " + tvProgramme.id + ")");
             return null;
         }
         else state = existingState;
@@ -117,23 +104,19 @@ final class TvChannelState {
         return state;
     }
 
-    final void processLongZap(final ConsumerEvent zap, final long previousTvProgrammeEndTime, final String zapKey, final DeviceState deviceState) {
+    final void processLongZap(final ZapRecord zap, final long previousTvProgrammeEndTime, final DeviceState deviceState) {
         final TvProgrammeProduct tvProgramme;
-        try (final DataLink link = DataManager.getNewLink()) {
-            try (final Transaction transaction = Transaction.newTransaction(link)) {
-                tvProgramme = link.getProductManager().firstTvProgrammeAfterTimeForTvChannelAndPartner(transaction, zap.getPartner(), tvChannel, previousTvProgrammeEndTime - 1L);
-                transaction.commit();
-            }
-        }
+        tvProgramme = owner.data.firstTvProgrammeAfter(zap.source.partner, tvChannel, previousTvProgrammeEndTime - 1L);
         if (tvProgramme == null) {
             log.error("Cannot process long zap: cannot find a TV-programme running on TV-channel " + tvChannel.partnerProductCode + " at or after time " + (previousTvProgrammeEndTime / 1000L));
             return;
         }
+        owner.liveViewership.airing(tvChannel, tvProgramme);
 
         // TODO: what if the tvProgramme begin-time is in the future? Do a timer with re-checking if no zap occured up to then.
         final TvProgrammeState programmeState = getState(zap, tvProgramme);
         if (programmeState != null) {
-            final DeviceZaps deviceZaps = programmeState.process(zap, zapKey, deviceState);
+            programmeState.process(zap, deviceState);
         }
     }
 
@@ -152,31 +135,94 @@ final class TvChannelState {
             break; // only one tv-programme possible at once
         }
         states.clear();
-        final List<Map.Entry<String, DeviceZaps>> deviceZapses;
-        synchronized (noEPGViewership) {
-            if (noEPGViewership.isEmpty()) return result;
-            deviceZapses = new LinkedList<>(noEPGViewership.entrySet());
-        }
-        final ConcurrentHashMap<String, DeviceState> events = owner.events;
+        final DeviceDictionary<DeviceState> events = owner.events;
         final long tvChannelId = tvChannel.id;
-        for (final Map.Entry<String, DeviceZaps> deviceZaps : deviceZapses) {
-            deviceZaps.getValue().currentViewership(result, tvChannelId, events.get(deviceZaps.getKey()), productTypeIdForTvChannel);
-        }
-        deviceZapses.clear();
+        noEPGViewership.forEachEntry((code, deviceZaps) -> {
+            deviceZaps.currentViewership(result, tvChannelId, events.get(code), productTypeIdForTvChannel);
+            return true;
+        });
         return result;
     }
 
-    final void pruneNoEPGViewership(final Long timestampMillis) {
-        final List<Map.Entry<String, DeviceZaps>> deviceZapses;
-        synchronized (noEPGViewership) {
-            deviceZapses = new LinkedList<>(noEPGViewership.entrySet());
+    /**
+     * Writes the zaps collected for tv-programmes of this tv-channel that
+     * are still being processed, and any zaps collected without EPG, into
+     * a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    final void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        final List<String> keys = new ArrayList<>();
+        final List<DeviceZaps> keyedZapses = new ArrayList<>();
+        final DeviceDictionary<DeviceState> events = owner.events;
+        noEPGViewership.forEachEntry((code, deviceZaps) -> {
+            final String key = events.key(code);
+            if (key == null) return true; // the device was evicted, its zaps don't count anymore
+            keys.add(key);
+            keyedZapses.add(deviceZaps);
+            return true;
+        });
+        final List<TvProgrammeState> states = new ArrayList<>(tvProgrammes.size());
+        for (final TvProgrammeState state : tvProgrammes.values()) {
+            if (!state.isGone) states.add(state); // consumptions were already generated for the rest
         }
-        for (final Map.Entry<String, DeviceZaps> deviceZaps : deviceZapses) deviceZaps.getValue().cutOffZaps(timestampMillis);
-        synchronized (noEPGViewership) {
-            for (final Map.Entry<String, DeviceZaps> deviceZaps : deviceZapses) {
-                if (deviceZaps.getValue().isEmpty()) noEPGViewership.remove(deviceZaps.getKey());
+        out.writeProduct(tvChannel);
+        out.writePartner(partner);
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            out.writeString(keys.get(i));
+            keyedZapses.get(i).writeSnapshot(out);
+        }
+        out.writeInt(states.size());
+        for (final TvProgrammeState state : states) state.writeSnapshot(out);
+    }
+
+    /**
+     * Reads the zaps of a tv-channel from a snapshot, and adds them to the
+     * given tv-channel state. For every restored tv-programme its timer is
+     * set up anew.
+     *
+     * @param in where to read the snapshot from
+     * @param target the tv-channel state to restore into, or null to skip the tv-channel
+     * @throws IOException if reading fails
+     */
+    static void readSnapshot(final ZapSnapshot.Reader in, final TvChannelState target) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            final String zapKey = in.readString();
+            final DeviceZaps deviceZaps = DeviceZaps.readSnapshot(in);
+            if ((target == null) || deviceZaps.isEmpty()) continue;
+            final int code = target.owner.events.code(zapKey);
+            if (code == DeviceDictionary.NO_CODE) continue; // the device wasn't restored
+            target.noEPGViewership.put(code, deviceZaps);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            final Product product = in.readProduct();
+            final TIntObjectHashMap<DeviceZaps> devices = new TIntObjectHashMap<>();
+            for (int j = in.readInt(); j > 0; j--) {
+                final String zapKey = in.readString();
+                final DeviceZaps deviceZaps = DeviceZaps.readSnapshot(in);
+                final int code = target == null ? DeviceDictionary.NO_CODE : target.owner.events.code(zapKey);
+                if (code != DeviceDictionary.NO_CODE) devices.put(code, deviceZaps); // skip devices that weren't restored
             }
+            if ((target == null) || !(product instanceof TvProgrammeProduct)) continue; // the tv-programme doesn't exist anymore
+            final TvProgrammeProduct tvProgramme = (TvProgrammeProduct) product;
+            final TvProgrammeState state = new TvProgrammeState(target, tvProgramme);
+            devices.forEachEntry((code, deviceZaps) -> {
+                state.devices.put(code, deviceZaps);
+                return true;
+            });
+            target.tvProgrammes.put(tvProgramme.id, state);
+            in.tvProgrammeCount++;
         }
-        deviceZapses.clear();
+    }
+
+    final void pruneNoEPGViewership(final Long timestampMillis) {
+        noEPGViewership.forEachEntry((code, deviceZaps) -> {
+            deviceZaps.cutOffZaps(timestampMillis);
+            return true;
+        });
+        final DeviceDictionary<DeviceState> events = owner.events;
+        noEPGViewership.retainEntries((code, deviceZaps) -> !deviceZaps.isEmpty() && (events.get(code) != null)); // also drop zaps of evicted devices
     }
 }
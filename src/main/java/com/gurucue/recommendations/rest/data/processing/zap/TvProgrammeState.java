@@ -18,31 +18,30 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.gurucue.recommendations.Timer;
 import com.gurucue.recommendations.TimerListener;
-import com.gurucue.recommendations.entity.ConsumerEvent;
 import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import gnu.trove.list.array.TIntArrayList;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Processes live-tv zaps by collecting zaps for each device separately,
  * for a specific tv-programme.
  * Holds a list of device zap handlers to achieve per-device zap collection.
- * Installs a timer to fire 5 minutes after the tv-programme ends, to trigger
- * each device zap handler's consumption generation. After that the instance
+ * Installs a timer to fire the partner's buffering delay after the
+ * tv-programme ends, to trigger each device zap handler's consumption
+ * generation. After that the instance
  * is no longer processing any zaps that may arrive.
  *
  * @see com.gurucue.recommendations.rest.data.processing.zap.DeviceZaps
  */
 final class TvProgrammeState implements TimerListener {
     private static final Logger log = LogManager.getLogger(TvProgrammeState.class);
-    final ConcurrentHashMap<String, DeviceZaps> devices = new ConcurrentHashMap<>(); // indexed by zap key
+    final DeviceCodeMap<DeviceZaps> devices = new DeviceCodeMap<>(); // indexed by device code
     volatile boolean isGone = false;
 
     final TvChannelState owner;
@@ -51,7 +50,7 @@ final class TvProgrammeState implements TimerListener {
     TvProgrammeState(final TvChannelState owner, final TvProgrammeProduct tvProgramme) {
         this.owner = owner;
         this.tvProgramme = tvProgramme;
-        Timer.INSTANCE.schedule(tvProgramme.endTimeMillis + TvChannelState.PROCESSING_DELAY, this); // when to generate, flush and evict consumptions for this tv-programme
+        owner.owner.clock.schedule(tvProgramme.endTimeMillis + TvChannelState.PROCESSING_DELAY, this); // when to generate, flush and evict consumptions for this tv-programme
         final StringBuilder logBuilder = new StringBuilder(256);
         logBuilder.append("Now collecting zaps for tv-programme ");
         logBuilder.append(tvProgramme.id);
@@ -70,28 +69,14 @@ final class TvProgrammeState implements TimerListener {
         log.info(logBuilder.toString());
     }
 
-    final DeviceZaps process(final ConsumerEvent zap, final String zapKey, final DeviceState deviceState) {
+    final DeviceZaps process(final ZapRecord zap, final DeviceState deviceState) {
         if (isGone) {
             return null;
         }
         deviceState.addTvProgramme(tvProgramme);
-        final DeviceZaps existingStatus = devices.get(zapKey);
-        if (existingStatus == null) {
-            final DeviceZaps newStatus = new DeviceZaps();
-            final DeviceZaps previousStatus = devices.putIfAbsent(zapKey, newStatus);
-            if (previousStatus != null) {
-                previousStatus.store(zap);
-                return previousStatus;
-            }
-            else {
-                newStatus.store(zap);
-                return newStatus;
-            }
-        }
-        else {
-            existingStatus.store(zap);
-            return existingStatus;
-        }
+        final DeviceZaps status = devices.getOrAdd(deviceState.code, DeviceZaps::new);
+        status.store(zap);
+        return status;
     }
 
     @Override
@@ -105,17 +90,17 @@ final class TvProgrammeState implements TimerListener {
         }
 
         // verify that we can generate consumption
-        final long generationMillis = tvProgramme.endTimeMillis + owner.owner.currentBufferingDelayMillis;
+        final long generationMillis = tvProgramme.endTimeMillis + owner.owner.bufferingDelayMillis(owner.partner);
         if (expiryTime < generationMillis) {
             // reschedule
-            Timer.INSTANCE.schedule(generationMillis, this);
+            owner.owner.clock.schedule(generationMillis, this);
             return;
         }
 
         // generate consumption
         isGone = true; // mark for eviction
         // cache the oft-used heap variables locally
-        final ConcurrentHashMap<String, DeviceState> events = owner.owner.events;
+        final DeviceDictionary<DeviceState> events = owner.owner.events;
         final TvChannelState owner = this.owner;
         final TvProgrammeProduct tvProgramme = this.tvProgramme;
         // Evict with a delay, so anything parallel to this processing won't store something for nothing,
@@ -123,56 +108,109 @@ final class TvProgrammeState implements TimerListener {
         // because we're using lock-free algorithms.
         // And not to interfere with viewership computations!
         final long evictionMillis = tvProgramme.endTimeMillis + owner.owner.currentStatDelayMillis + ZapProcessor.CONSUMPTION_FLUSH_INTERVAL + 30000L;
-        Timer.INSTANCE.schedule(evictionMillis, this); // give it 30 seconds, which should be more than plenty
+        owner.owner.clock.schedule(evictionMillis, this); // give it 30 seconds, which should be more than plenty
         final long tvChannelId = owner.tvChannel.id;
-        // consumption generation phase
-        final StringBuilder logBuilder = new StringBuilder(131072);
-        logBuilder.append("Generating livetv-consumptions for tv-programme ");
-        logBuilder.append(tvProgramme.id);
-        logBuilder.append(" [");
-        logBuilder.append(tvProgramme.partnerProductCode);
-        logBuilder.append("] \"");
-        logBuilder.append(tvProgramme.title.asString());
-        logBuilder.append("\" on tv-channel ");
-        logBuilder.append(owner.tvChannel.id);
-        logBuilder.append(" [");
-        logBuilder.append(owner.tvChannel.partnerProductCode);
-        logBuilder.append("], begin=");
-        logBuilder.append(tvProgramme.beginTimeMillis / 1000L);
-        logBuilder.append(", end=");
-        logBuilder.append(tvProgramme.endTimeMillis / 1000L);
-        logBuilder.append(", devices=");
-        logBuilder.append(devices.size());
+        // consumption generation phase, described in text only for debugging, the decisions are in the audit journal
+        final StringBuilder logBuilder = log.isDebugEnabled() ? new StringBuilder(131072) : null;
+        if (logBuilder != null) {
+            logBuilder.append("Generating livetv-consumptions for tv-programme ");
+            logBuilder.append(tvProgramme.id);
+            logBuilder.append(" [");
+            logBuilder.append(tvProgramme.partnerProductCode);
+            logBuilder.append("] \"");
+            logBuilder.append(tvProgramme.title.asString());
+            logBuilder.append("\" on tv-channel ");
+            logBuilder.append(owner.tvChannel.id);
+            logBuilder.append(" [");
+            logBuilder.append(owner.tvChannel.partnerProductCode);
+            logBuilder.append("], begin=");
+            logBuilder.append(tvProgramme.beginTimeMillis / 1000L);
+            logBuilder.append(", end=");
+            logBuilder.append(tvProgramme.endTimeMillis / 1000L);
+        }
+        adoptOrphanedZaps(events);
+        final TIntArrayList codes = new TIntArrayList();
+        final List<DeviceZaps> deviceZapses = new ArrayList<>();
+        devices.forEachEntry((code, deviceZaps) -> {
+            codes.add(code);
+            deviceZapses.add(deviceZaps);
+            return true;
+        });
+        if (logBuilder != null) logBuilder.append(", devices=").append(codes.size());
         try {
-            for (final Map.Entry<String, DeviceZaps> stateEntry : devices.entrySet()) {
-                final String zapKey = stateEntry.getKey();
-                final DeviceState deviceState = events.get(zapKey);
+            for (int i = 0; i < codes.size(); i++) {
+                final DeviceState deviceState = events.get(codes.get(i));
                 if (deviceState == null) {
-                    // at least the zap that generated this device state must be present, otherwise something is terribly wrong
-                    log.error("Cannot generate livetv-consumption: there are no zaps for device key " + zapKey);
+                    // evicted, and not zapping since, so there is nothing to tell when its zaps ended
+                    log.warn("Cannot generate livetv-consumption: the device with code " + codes.get(i) + " was evicted");
                     continue;
                 }
-                final DeviceZaps deviceZaps = stateEntry.getValue();
+                final DeviceZaps deviceZaps = deviceZapses.get(i);
                 try {
-                    logBuilder.append("\n    ");
-                    deviceZaps.convert(zapKey, tvProgramme, owner, tvChannelId, deviceState, logBuilder);
+                    if (logBuilder != null) logBuilder.append("\n    ");
+                    deviceZaps.convert(tvProgramme, owner, tvChannelId, deviceState, logBuilder);
                 } catch (Throwable e) {
                     log.error("Failed while attempting livetv-consumption conversion: " + e.toString(), e);
-                    logBuilder.append(e.toString());
+                    if (logBuilder != null) logBuilder.append(e.toString());
                 }
                 deviceZaps.clear(); // expunge events, so GC has easier work
                 deviceState.evictTvProgramme(tvProgramme);
             }
         }
         finally {
-            log.debug(logBuilder.toString());
+            if (logBuilder != null) log.debug(logBuilder.toString());
         }
     }
 
-    final void currentViewership(final Viewership viewership, final long tvChannelId, final ConcurrentHashMap<String, DeviceState> events, final long idForTvChannel) {
-        final List<Map.Entry<String, DeviceZaps>> deviceZapses = new LinkedList<>(devices.entrySet()); // cache for iteration
-        for (final Map.Entry<String, DeviceZaps> entry : deviceZapses) {
-            entry.getValue().currentViewership(viewership, tvChannelId, events.get(entry.getKey()), idForTvChannel);
+    /**
+     * Moves the zaps stored under the code of an evicted device to the
+     * code of the device's new state, if it zapped again since: a device
+     * that is registered again gets a new code.
+     *
+     * @param events the device states
+     */
+    private void adoptOrphanedZaps(final DeviceDictionary<DeviceState> events) {
+        devices.forEachEntry((code, deviceZaps) -> {
+            if (events.get(code) != null) return true;
+            final String key = deviceZaps.deviceKey();
+            final int newCode = key == null ? DeviceDictionary.NO_CODE : events.code(key);
+            if (newCode == DeviceDictionary.NO_CODE) return true; // not registered again
+            devices.getOrAdd(newCode, DeviceZaps::new).adopt(deviceZaps);
+            devices.remove(code);
+            return true;
+        });
+    }
+
+    /**
+     * Writes the tv-programme and the zaps collected for it into a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    final void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        final List<String> keys = new ArrayList<>(); // the count must match the entries written
+        final List<DeviceZaps> keyedZapses = new ArrayList<>();
+        final DeviceDictionary<DeviceState> events = owner.owner.events;
+        devices.forEachEntry((code, deviceZaps) -> {
+            final String key = events.key(code);
+            if (key == null) return true; // the device is gone, there is nothing to convert its zaps with
+            keys.add(key);
+            keyedZapses.add(deviceZaps);
+            return true;
+        });
+        out.writeProduct(tvProgramme);
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            out.writeString(keys.get(i));
+            keyedZapses.get(i).writeSnapshot(out);
         }
+        out.tvProgrammeCount++;
+    }
+
+    final void currentViewership(final Viewership viewership, final long tvChannelId, final DeviceDictionary<DeviceState> events, final long idForTvChannel) {
+        devices.forEachEntry((code, deviceZaps) -> {
+            deviceZaps.currentViewership(viewership, tvChannelId, events.get(code), idForTvChannel);
+            return true;
+        });
     }
 }
@@ -19,6 +19,7 @@
 package com.gurucue.recommendations.rest.data.processing.zap;
 
 import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
 import com.gurucue.recommendations.entity.ConsumerEvent;
 import com.gurucue.recommendations.entity.ConsumerEventType;
 import com.gurucue.recommendations.entity.DataType;
@@ -27,21 +28,26 @@ import com.gurucue.recommendations.entity.product.TvChannelProduct;
 import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 /**
  * Contains data about a TV-channel viewership at a specific timestamp.
+ * Only the consumer and zap IDs of the viewers' zaps are retained, in
+ * primitive arrays, and they are emitted in the compact form of
+ * {@link ViewershipIdCodec}.
  */
 public final class Viewership {
     public final Long timestampMillis;
     public final TvChannelProduct tvChannel;
     public final Partner partner;
-    public final List<ConsumerEvent> zaps = new LinkedList<>();
     public TvProgrammeProduct tvProgramme = null;
+    private int viewerCount = 0;
+    private long[] consumerIds = new long[16];
+    private int consumerIdCount = 0;
+    private long[] zapIds = new long[16];
+    private int zapIdCount = 0;
 
     public Viewership(final Long timestampMillis, final TvChannelProduct tvChannel, final Partner partner) {
         this.timestampMillis = timestampMillis;
@@ -49,30 +55,29 @@ public final class Viewership {
         this.partner = partner;
     }
 
-    public void addZap(final ConsumerEvent zap) {
-        zaps.add(zap);
+    void addZap(final ZapRecord zap) {
+        viewerCount++;
+        final Consumer consumer = zap.source.consumer;
+        if ((consumer != null) && (consumer.getId() != null)) {
+            if (consumerIdCount == consumerIds.length) consumerIds = Arrays.copyOf(consumerIds, consumerIdCount * 2);
+            consumerIds[consumerIdCount++] = consumer.getId().longValue();
+        }
+        if (zap.id != ZapRecord.NO_ID) {
+            if (zapIdCount == zapIds.length) zapIds = Arrays.copyOf(zapIds, zapIdCount * 2);
+            zapIds[zapIdCount++] = zap.id;
+        }
+    }
+
+    public int viewerCount() {
+        return viewerCount;
     }
 
     public ConsumerEvent toEvent(final ConsumerEventType viewership, final DataTypeCodes dataTypeCodes) {
         final Map<DataType, String> data = new HashMap<>();
-        final int n = zaps.size();
-        data.put(dataTypeCodes.viewerCount, Integer.toString(n));
+        data.put(dataTypeCodes.viewerCount, Integer.toString(viewerCount));
         if (tvProgramme != null) data.put(dataTypeCodes.tvProgrammeId, Long.toString(tvProgramme.id));
-        final StringBuilder consumerIdBuilder = new StringBuilder(n * 124);
-        final StringBuilder zapIdBuilder = new StringBuilder(n * 14);
-        final Iterator<ConsumerEvent> zapIterator = zaps.iterator();
-        for (final ConsumerEvent event : zaps) {
-            if ((event.getConsumer() != null) && (event.getConsumer().getId() != null)) {
-                if (consumerIdBuilder.length() > 0) consumerIdBuilder.append(",");
-                consumerIdBuilder.append(event.getConsumer().getId().longValue());
-            }
-            if (event.getId() != null) {
-                if (zapIdBuilder.length() > 0) zapIdBuilder.append(",");
-                zapIdBuilder.append(event.getId().longValue());
-            }
-        }
-        if (consumerIdBuilder.length() > 0) data.put(dataTypeCodes.consumerIdList, consumerIdBuilder.toString());
-        if (zapIdBuilder.length() > 0) data.put(dataTypeCodes.zapIdList, zapIdBuilder.toString());
+        if (consumerIdCount > 0) data.put(dataTypeCodes.consumerIdList, ViewershipIdCodec.encode(consumerIds, consumerIdCount));
+        if (zapIdCount > 0) data.put(dataTypeCodes.zapIdList, ViewershipIdCodec.encode(zapIds, zapIdCount));
         final Timestamp ts = new Timestamp(timestampMillis);
         final ConsumerEvent result = new ConsumerEvent(null, ts, partner, tvChannel, null, viewership, data, null);
         result.setRequestTimestamp(ts);
@@ -80,6 +85,6 @@ public final class Viewership {
     }
 
     public void log(final StringBuilder output) {
-        output.append("\n  ").append(tvChannel.title.asString()).append(": ").append(zaps.size()).append(" viewers");
+        output.append("\n  ").append(tvChannel.title.asString()).append(": ").append(viewerCount).append(" viewers");
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encodes and decodes the consumer and zap ID lists of viewership events.
+ * The IDs are sorted, delta-encoded, packed into variable-length integers
+ * with 7 bits per byte, and stored as Base64 text with the {@link #PREFIX}.
+ * The gaps between the sorted IDs of a large audience are small, so most
+ * IDs take one to three bytes instead of their 7 to 14 digits and a comma
+ * in the comma-separated form.
+ * <p>
+ * The decoder also reads the comma-separated form written before, so
+ * readers of viewership events can use it on old and new events alike.
+ */
+public final class ViewershipIdCodec {
+    /** Distinguishes the compact form from a comma-separated list, which never contains a colon. */
+    public static final String PREFIX = "v1:";
+
+    private static final int RADIX_SORT_THRESHOLD = 4096;
+    private static final int RADIX_BITS = 11;
+    private static final long RADIX_MASK = (1L << RADIX_BITS) - 1L;
+
+    private ViewershipIdCodec() {} // not instantiable
+
+    /**
+     * Encodes the given IDs. The array is sorted in place.
+     *
+     * @param ids the IDs, which must not be negative
+     * @param count the number of IDs at the start of the array to encode
+     * @return the encoded IDs
+     */
+    public static String encode(final long[] ids, final int count) {
+        sort(ids, count);
+        int size = varLongSize(count);
+        long previous = 0L;
+        for (int i = 0; i < count; i++) {
+            size += varLongSize(ids[i] - previous);
+            previous = ids[i];
+        }
+        final byte[] buffer = new byte[size];
+        int pos = writeVarLong(buffer, 0, count);
+        previous = 0L;
+        for (int i = 0; i < count; i++) {
+            pos = writeVarLong(buffer, pos, ids[i] - previous);
+            previous = ids[i];
+        }
+        return PREFIX + Base64.getEncoder().encodeToString(buffer);
+    }
+
+    /**
+     * Decodes a list of IDs, in the compact or the comma-separated form.
+     * Compact lists are decoded in ascending order, comma-separated lists
+     * in their original order.
+     *
+     * @param encoded the encoded IDs, may be null
+     * @return the IDs, an empty array if there are none
+     * @throws IllegalArgumentException if the input is malformed
+     */
+    public static long[] decode(final String encoded) {
+        if ((encoded == null) || encoded.isEmpty()) return new long[0];
+        if (!encoded.startsWith(PREFIX)) return decodeCommaSeparated(encoded);
+        final byte[] buffer = Base64.getDecoder().decode(encoded.substring(PREFIX.length()));
+        final long[] position = new long[1]; // the read position, updated by readVarLong()
+        final long count = readVarLong(buffer, position);
+        if ((count < 0L) || (count > buffer.length)) throw new IllegalArgumentException("Invalid ID count: " + count);
+        final long[] ids = new long[(int) count];
+        long previous = 0L;
+        for (int i = 0; i < ids.length; i++) {
+            previous += readVarLong(buffer, position);
+            ids[i] = previous;
+        }
+        if (position[0] != buffer.length) throw new IllegalArgumentException("Trailing data after " + count + " IDs");
+        return ids;
+    }
+
+    private static long[] decodeCommaSeparated(final String encoded) {
+        final String[] parts = encoded.split(",");
+        final long[] ids = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                ids[i] = Long.parseLong(parts[i].trim(), 10);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not an ID at position " + i + ": " + parts[i], e);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Sorts the IDs in ascending order. Large lists are radix-sorted on
+     * their offsets from the smallest ID, in 11-bit digits, which takes
+     * three passes for IDs that lie within 8 billion of each other.
+     */
+    private static void sort(final long[] ids, final int count) {
+        long min = Long.MAX_VALUE;
+        long max = 0L;
+        for (int i = 0; i < count; i++) {
+            final long id = ids[i];
+            if (id < 0L) throw new IllegalArgumentException("Cannot encode a negative ID: " + id);
+            if (id < min) min = id;
+            if (id > max) max = id;
+        }
+        if (count < RADIX_SORT_THRESHOLD) {
+            Arrays.sort(ids, 0, count);
+            return;
+        }
+        final int bits = 64 - Long.numberOfLeadingZeros(max - min);
+        long[] source = ids;
+        long[] target = new long[count];
+        final int[] offsets = new int[1 << RADIX_BITS];
+        for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < count; i++) offsets[(int) (((source[i] - min) >>> shift) & RADIX_MASK)]++;
+            int offset = 0;
+            for (int d = 0; d < offsets.length; d++) {
+                final int n = offsets[d];
+                offsets[d] = offset;
+                offset += n;
+            }
+            for (int i = 0; i < count; i++) {
+                final long id = source[i];
+                target[offsets[(int) (((id - min) >>> shift) & RADIX_MASK)]++] = id;
+            }
+            final long[] t = source;
+            source = target;
+            target = t;
+        }
+        if (source != ids) System.arraycopy(source, 0, ids, 0, count);
+    }
+
+    private static int varLongSize(final long value) {
+        return value == 0L ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    private static int writeVarLong(final byte[] buffer, int pos, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer[pos++] = (byte) ((value & 0x7FL) | 0x80L);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long readVarLong(final byte[] buffer, final long[] position) {
+        int pos = (int) position[0];
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= buffer.length) throw new IllegalArgumentException("Truncated ID list");
+            final int b = buffer[pos++];
+            value |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                position[0] = pos;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable-length integer at position " + position[0]);
+    }
+}
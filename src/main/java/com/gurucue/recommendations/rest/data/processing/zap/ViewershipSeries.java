@@ -0,0 +1,84 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The viewer counts of a tv-channel, or of a tv-programme on it, over a
+ * range of time: one point per step that has samples.
+ */
+public final class ViewershipSeries implements TranslatorAware {
+    public final long tvChannelId;
+    /** The ID of the tv-programme, 0 if the samples were taken without a known tv-programme. */
+    public final long tvProgrammeId;
+    /** The start of each point's step, in milliseconds. */
+    public final long[] timestampsMillis;
+    /** The average viewers in each point's step. */
+    public final int[] viewers;
+    /** The highest number of viewers sampled in each point's step. */
+    public final int[] peakViewers;
+
+    ViewershipSeries(final long tvChannelId, final long tvProgrammeId, final long[] timestampsMillis, final int[] viewers, final int[] peakViewers) {
+        this.tvChannelId = tvChannelId;
+        this.tvProgrammeId = tvProgrammeId;
+        this.timestampsMillis = timestampsMillis;
+        this.viewers = viewers;
+        this.peakViewers = peakViewers;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("series");
+        translator.addKeyValue("tvChannelId", tvChannelId);
+        if (tvProgrammeId != 0L) translator.addKeyValue("tvProgrammeId", tvProgrammeId);
+        final List<TranslatorAware> points = new ArrayList<>(timestampsMillis.length);
+        for (int i = 0; i < timestampsMillis.length; i++) {
+            points.add(new Point(timestampsMillis[i], viewers[i], peakViewers[i]));
+        }
+        translator.addKeyValue("points", points);
+        translator.endObject();
+    }
+
+    private static final class Point implements TranslatorAware {
+        final long timestampMillis;
+        final int viewers;
+        final int peakViewers;
+
+        Point(final long timestampMillis, final int viewers, final int peakViewers) {
+            this.timestampMillis = timestampMillis;
+            this.viewers = viewers;
+            this.peakViewers = peakViewers;
+        }
+
+        @Override
+        public void translate(final DataTranslator translator) throws IOException {
+            translator.beginObject("point");
+            translator.addKeyValue("timestamp", timestampMillis / 1000L);
+            translator.addKeyValue("viewers", viewers);
+            translator.addKeyValue("peakViewers", peakViewers);
+            translator.endObject();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only store of viewer counts per tv-channel and tv-programme
+ * over time, in local files, one file per UTC day.
+ * <p>
+ * Each file is a sequence of blocks, one per sample. A block has a header
+ * with its time, the duration it covers and its row count, followed by
+ * its rows column by column: partner IDs, tv-channel IDs, tv-programme IDs
+ * (0 if none), average viewers and peak viewers. A query skips blocks
+ * outside its range by their header and reads the remaining columns only
+ * for the rows of the requested partner.
+ * <p>
+ * The samples are written as they are generated, every
+ * {@link ZapProcessor#VIEWERSHIP_INTERVAL}. Days older than the raw
+ * retention are downsampled into hourly blocks with the average and peak
+ * viewers of each hour, and days older than the total retention are
+ * deleted.
+ */
+final class ViewershipStore {
+    private static final Logger log = LogManager.getLogger(ViewershipStore.class);
+    static final long DAY_MILLIS = 86400000L;
+    static final long HOUR_MILLIS = 3600000L;
+    private static final int BLOCK_MAGIC = 0x56574253; // "VWBS"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int ROW_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final String RAW_PREFIX = "viewership-raw-";
+    private static final String HOURLY_PREFIX = "viewership-hourly-";
+    private static final String SUFFIX = ".col";
+
+    private final File directory;
+    private final int rawRetentionDays;
+    private final int retentionDays;
+    // the file being appended to, guarded by synchronized(this)
+    private long currentDay = Long.MIN_VALUE;
+    private DataOutputStream currentOutput = null;
+
+    /**
+     * Creates a store in the given directory, creating the directory if
+     * needed.
+     *
+     * @param directory where to keep the files
+     * @param rawRetentionDays for how many days to keep the samples before downsampling them
+     * @param retentionDays for how many days to keep the data at all
+     */
+    ViewershipStore(final File directory, final int rawRetentionDays, final int retentionDays) {
+        this.directory = directory;
+        this.rawRetentionDays = rawRetentionDays;
+        this.retentionDays = Math.max(retentionDays, rawRetentionDays);
+        if (!directory.isDirectory() && !directory.mkdirs()) log.error("Cannot create the viewership store directory " + directory.getPath());
+    }
+
+    /**
+     * Appends a sample of viewer counts.
+     *
+     * @param timestampMillis the time of the sample
+     * @param viewerships the viewerships of the sample
+     * @throws IOException if writing fails
+     */
+    synchronized void append(final long timestampMillis, final List<Viewership> viewerships) throws IOException {
+        final int n = viewerships.size();
+        final Rows rows = new Rows(n);
+        for (int i = 0; i < n; i++) {
+            final Viewership v = viewerships.get(i);
+            final long partnerId = (v.partner == null) || (v.partner.getId() == null) ? 0L : v.partner.getId().longValue();
+            rows.add(partnerId, v.tvChannel.id, v.tvProgramme == null ? 0L : v.tvProgramme.id, v.viewerCount(), v.viewerCount());
+        }
+        append(timestampMillis, rows);
+    }
+
+    /**
+     * Appends a sample of viewer counts given as rows.
+     *
+     * @param timestampMillis the time of the sample
+     * @param rows the viewer counts of the sample
+     * @throws IOException if writing fails
+     */
+    synchronized void append(final long timestampMillis, final Rows rows) throws IOException {
+        final long day = Math.floorDiv(timestampMillis, DAY_MILLIS);
+        if (day != currentDay) {
+            close();
+            final File file = file(RAW_PREFIX, day);
+            truncateTornBlock(file); // appended blocks must follow complete ones, or they can't be read
+            currentOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+            currentDay = day;
+            maintain(day);
+        }
+        writeBlock(currentOutput, timestampMillis, (int) (ZapProcessor.VIEWERSHIP_INTERVAL / 1000L), rows);
+        currentOutput.flush(); // a query must see whole blocks
+    }
+
+    /**
+     * Closes the file being appended to. Appending reopens it.
+     */
+    synchronized void close() {
+        if (currentOutput == null) return;
+        try {
+            currentOutput.close();
+        }
+        catch (IOException e) {
+            log.error("Failed to close the viewership store file: " + e.toString(), e);
+        }
+        currentOutput = null;
+        currentDay = Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the viewer counts of the partner's tv-channels in the given
+     * time range, aggregated into steps of the given duration: the average
+     * viewers over each step, weighted by the duration of the samples, and
+     * the peak viewers within each step. There is one series per
+     * tv-channel and tv-programme pair, ordered by tv-channel ID and then
+     * by tv-programme ID; steps without samples have no point.
+     *
+     * @param partnerId the ID of the partner
+     * @param tvChannelId the ID of the tv-channel to return, 0 for all tv-channels
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis the end of the range, exclusive
+     * @param stepMillis the duration of a step
+     * @return the series
+     * @throws IOException if reading fails
+     */
+    List<ViewershipSeries> query(final long partnerId, final long tvChannelId, final long fromMillis, final long toMillis, final long stepMillis) throws IOException {
+        if (stepMillis <= 0L) throw new IllegalArgumentException("The step must be positive: " + stepMillis);
+        if (toMillis <= fromMillis) return Collections.emptyList();
+        final long stepCount = ((toMillis - fromMillis) + stepMillis - 1L) / stepMillis;
+        if (stepCount > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many steps: " + stepCount);
+        final Map<SeriesKey, SeriesBuilder> builders = new HashMap<>();
+        final long lastDay = Math.floorDiv(toMillis - 1L, DAY_MILLIS);
+        for (long day = Math.floorDiv(fromMillis, DAY_MILLIS); day <= lastDay; day++) {
+            final ByteBuffer buffer = map(day);
+            if (buffer == null) continue;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final int position = buffer.position();
+                if (buffer.getInt() != BLOCK_MAGIC) {
+                    log.error("Corrupt viewership block at position " + position + " of the day " + day + ", ignoring the rest of the day");
+                    break;
+                }
+                final long timestampMillis = buffer.getLong();
+                final int durationSeconds = buffer.getInt();
+                final int rowCount = buffer.getInt();
+                final int end = position + HEADER_SIZE + (rowCount * ROW_SIZE);
+                if ((rowCount < 0) || (end > buffer.limit())) break; // a block still being written
+                if ((timestampMillis >= fromMillis) && (timestampMillis < toMillis)) {
+                    final int step = (int) ((timestampMillis - fromMillis) / stepMillis);
+                    final int partners = position + HEADER_SIZE;
+                    final int tvChannels = partners + (rowCount * 8);
+                    final int tvProgrammes = tvChannels + (rowCount * 8);
+                    final int viewers = tvProgrammes + (rowCount * 8);
+                    final int peaks = viewers + (rowCount * 4);
+                    for (int row = 0; row < rowCount; row++) {
+                        if (buffer.getLong(partners + (row * 8)) != partnerId) continue;
+                        final long channelId = buffer.getLong(tvChannels + (row * 8));
+                        if ((tvChannelId != 0L) && (channelId != tvChannelId)) continue;
+                        final SeriesKey key = new SeriesKey(channelId, buffer.getLong(tvProgrammes + (row * 8)));
+                        SeriesBuilder builder = builders.get(key);
+                        if (builder == null) {
+                            builder = new SeriesBuilder((int) stepCount);
+                            builders.put(key, builder);
+                        }
+                        builder.add(step, buffer.getInt(viewers + (row * 4)), buffer.getInt(peaks + (row * 4)), durationSeconds);
+                    }
+                }
+                buffer.position(end);
+            }
+        }
+        final List<SeriesKey> keys = new ArrayList<>(builders.keySet());
+        keys.sort((a, b) -> {
+            final int c = Long.compare(a.tvChannelId, b.tvChannelId);
+            return c != 0 ? c : Long.compare(a.tvProgrammeId, b.tvProgrammeId);
+        });
+        final List<ViewershipSeries> result = new ArrayList<>(keys.size());
+        for (final SeriesKey key : keys) {
+            result.add(builders.get(key).build(key, fromMillis, stepMillis));
+        }
+        return result;
+    }
+
+    /**
+     * Downsamples the days that passed the raw retention, and deletes the
+     * days that passed the total retention.
+     *
+     * @param today the current day, in days since the epoch
+     */
+    synchronized void maintain(final long today) {
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+        for (final File file : files) {
+            final String name = file.getName();
+            final boolean raw = name.startsWith(RAW_PREFIX);
+            if (!name.endsWith(SUFFIX) || (!raw && !name.startsWith(HOURLY_PREFIX))) continue;
+            final long day;
+            try {
+                day = LocalDate.parse(name.substring((raw ? RAW_PREFIX : HOURLY_PREFIX).length(), name.length() - SUFFIX.length()), DateTimeFormatter.BASIC_ISO_DATE).toEpochDay();
+            }
+            catch (RuntimeException e) {
+                continue; // not ours
+            }
+            if (day < today - retentionDays) {
+                if (file.delete()) log.info("Deleted the expired viewership file " + name);
+                else log.error("Failed to delete the expired viewership file " + file.getPath());
+            }
+            else if (raw && (day < today - rawRetentionDays)) {
+                try {
+                    final long startNano = System.nanoTime();
+                    downsample(day);
+                    if (!file.delete()) log.error("Failed to delete the downsampled viewership file " + file.getPath());
+                    log.info("Downsampled the viewership file " + name + " in " + (System.nanoTime() - startNano) + " ns");
+                }
+                catch (IOException | RuntimeException e) {
+                    log.error("Failed to downsample the viewership file " + file.getPath() + ": " + e.toString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the hourly file of the given day from its raw file.
+     */
+    private void downsample(final long day) throws IOException {
+        final long dayMillis = day * DAY_MILLIS;
+        final File hourly = file(HOURLY_PREFIX, day);
+        final File temporary = new File(directory, hourly.getName() + ".tmp");
+        final Rows[] hours = new Rows[(int) (DAY_MILLIS / HOUR_MILLIS)];
+        for (final long partnerId : partnerIds(day)) {
+            for (final ViewershipSeries series : query(partnerId, 0L, dayMillis, dayMillis + DAY_MILLIS, HOUR_MILLIS)) {
+                for (int i = 0; i < series.timestampsMillis.length; i++) {
+                    final int hour = (int) ((series.timestampsMillis[i] - dayMillis) / HOUR_MILLIS);
+                    if (hours[hour] == null) hours[hour] = new Rows(64);
+                    hours[hour].add(partnerId, series.tvChannelId, series.tvProgrammeId, series.viewers[i], series.peakViewers[i]);
+                }
+            }
+        }
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536))) {
+            for (int hour = 0; hour < hours.length; hour++) {
+                if (hours[hour] != null) writeBlock(out, dayMillis + (hour * HOUR_MILLIS), (int) (HOUR_MILLIS / 1000L), hours[hour]);
+            }
+        }
+        if (!temporary.renameTo(hourly)) throw new IOException("Failed to rename " + temporary.getPath() + " to " + hourly.getPath());
+    }
+
+    /**
+     * Returns the distinct partner IDs in the given day.
+     */
+    private long[] partnerIds(final long day) throws IOException {
+        final ByteBuffer buffer = map(day);
+        if (buffer == null) return new long[0];
+        long[] ids = new long[4];
+        int count = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int position = buffer.position();
+            if (buffer.getInt() != BLOCK_MAGIC) break;
+            buffer.getLong();
+            buffer.getInt();
+            final int rowCount = buffer.getInt();
+            final int end = position + HEADER_SIZE + (rowCount * ROW_SIZE);
+            if ((rowCount < 0) || (end > buffer.limit())) break;
+            rows:
+            for (int row = 0; row < rowCount; row++) {
+                final long id = buffer.getLong(position + HEADER_SIZE + (row * 8));
+                for (int i = 0; i < count; i++) {
+                    if (ids[i] == id) continue rows;
+                }
+                if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+                ids[count++] = id;
+            }
+            buffer.position(end);
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Maps the file of the given day into memory: the raw file if there is
+     * one, otherwise the hourly file.
+     *
+     * @return the mapped file, or null if there is no file for the day
+     */
+    private ByteBuffer map(final long day) throws IOException {
+        for (final String prefix : new String[] { RAW_PREFIX, HOURLY_PREFIX }) {
+            final File file = file(prefix, day);
+            if (!file.isFile()) continue;
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            }
+            catch (NoSuchFileException e) {
+                // deleted by downsampling in the meantime, try the next tier
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Truncates the file to the end of its last complete block, removing a
+     * block that was cut short by a crash while it was being written.
+     */
+    private static void truncateTornBlock(final File file) throws IOException {
+        if (!file.isFile()) return;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long end = 0L;
+            while ((size - end) >= HEADER_SIZE) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, end + header.position()) < 0) throw new IOException("The viewership file " + file.getPath() + " shrank while being read");
+                }
+                header.flip();
+                if (header.getInt() != BLOCK_MAGIC) break;
+                header.getLong();
+                header.getInt();
+                final int rowCount = header.getInt();
+                final long blockEnd = end + HEADER_SIZE + ((long) rowCount * ROW_SIZE);
+                if ((rowCount < 0) || (blockEnd > size)) break;
+                end = blockEnd;
+            }
+            if (end < size) {
+                log.warn("Truncating the viewership file " + file.getPath() + " from " + size + " to " + end + " bytes, the end of its last complete block");
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private File file(final String prefix, final long day) {
+        return new File(directory, prefix + LocalDate.ofEpochDay(day).format(DateTimeFormatter.BASIC_ISO_DATE) + SUFFIX);
+    }
+
+    private static void writeBlock(final DataOutputStream out, final long timestampMillis, final int durationSeconds, final Rows rows) throws IOException {
+        final int n = rows.size;
+        out.writeInt(BLOCK_MAGIC);
+        out.writeLong(timestampMillis);
+        out.writeInt(durationSeconds);
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) out.writeLong(rows.partnerIds[i]);
+        for (int i = 0; i < n; i++) out.writeLong(rows.tvChannelIds[i]);
+        for (int i = 0; i < n; i++) out.writeLong(rows.tvProgrammeIds[i]);
+        for (int i = 0; i < n; i++) out.writeInt(rows.viewers[i]);
+        for (int i = 0; i < n; i++) out.writeInt(rows.peakViewers[i]);
+    }
+
+    /**
+     * The rows of a block, column by column.
+     */
+    static final class Rows {
+        long[] partnerIds;
+        long[] tvChannelIds;
+        long[] tvProgrammeIds;
+        int[] viewers;
+        int[] peakViewers;
+        int size = 0;
+
+        Rows(final int capacity) {
+            final int c = Math.max(capacity, 1);
+            partnerIds = new long[c];
+            tvChannelIds = new long[c];
+            tvProgrammeIds = new long[c];
+            viewers = new int[c];
+            peakViewers = new int[c];
+        }
+
+        void add(final long partnerId, final long tvChannelId, final long tvProgrammeId, final int viewerCount, final int peakViewerCount) {
+            if (size == partnerIds.length) {
+                final int c = size * 2;
+                partnerIds = Arrays.copyOf(partnerIds, c);
+                tvChannelIds = Arrays.copyOf(tvChannelIds, c);
+                tvProgrammeIds = Arrays.copyOf(tvProgrammeIds, c);
+                viewers = Arrays.copyOf(viewers, c);
+                peakViewers = Arrays.copyOf(peakViewers, c);
+            }
+            partnerIds[size] = partnerId;
+            tvChannelIds[size] = tvChannelId;
+            tvProgrammeIds[size] = tvProgrammeId;
+            viewers[size] = viewerCount;
+            peakViewers[size] = peakViewerCount;
+            size++;
+        }
+    }
+
+    private static final class SeriesKey {
+        final long tvChannelId;
+        final long tvProgrammeId;
+
+        SeriesKey(final long tvChannelId, final long tvProgrammeId) {
+            this.tvChannelId = tvChannelId;
+            this.tvProgrammeId = tvProgrammeId;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof SeriesKey)) return false;
+            final SeriesKey other = (SeriesKey) obj;
+            return (tvChannelId == other.tvChannelId) && (tvProgrammeId == other.tvProgrammeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(tvChannelId) * 31 + Long.hashCode(tvProgrammeId);
+        }
+    }
+
+    /**
+     * Accumulates the samples of a series, per step.
+     */
+    private static final class SeriesBuilder {
+        final long[] weightedViewers; // viewers times seconds
+        final long[] seconds;
+        final int[] peaks;
+        int pointCount = 0;
+
+        SeriesBuilder(final int stepCount) {
+            weightedViewers = new long[stepCount];
+            seconds = new long[stepCount];
+            peaks = new int[stepCount];
+        }
+
+        void add(final int step, final int viewers, final int peakViewers, final int durationSeconds) {
+            if (seconds[step] == 0L) pointCount++;
+            weightedViewers[step] += (long) viewers * durationSeconds;
+            seconds[step] += durationSeconds;
+            if (peakViewers > peaks[step]) peaks[step] = peakViewers;
+        }
+
+        ViewershipSeries build(final SeriesKey key, final long fromMillis, final long stepMillis) {
+            final long[] timestamps = new long[pointCount];
+            final int[] viewers = new int[pointCount];
+            final int[] peakViewers = new int[pointCount];
+            int p = 0;
+            for (int step = 0; step < seconds.length; step++) {
+                if (seconds[step] == 0L) continue;
+                timestamps[p] = fromMillis + (step * stepMillis);
+                viewers[p] = (int) ((weightedViewers[step] + (seconds[step] / 2L)) / seconds[step]);
+                peakViewers[p] = peaks[step];
+                p++;
+            }
+            return new ViewershipSeries(key.tvChannelId, key.tvProgrammeId, timestamps, viewers, peakViewers);
+        }
+    }
+}
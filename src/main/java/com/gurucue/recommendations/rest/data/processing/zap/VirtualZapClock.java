@@ -0,0 +1,122 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A clock whose time moves only when told to. Timers that become due while
+ * advancing the time are invoked in the order of their times, on the
+ * thread that advances the time, with the clock set to each timer's time
+ * while it is invoked; timers scheduled by an invoked timer are invoked in
+ * the same advance if they are due by its end.
+ */
+final class VirtualZapClock implements ZapClock {
+    private final PriorityQueue<Entry> timers = new PriorityQueue<>(64, (a, b) -> {
+        final int c = Long.compare(a.millis, b.millis);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence); // same time: in the order of scheduling
+    });
+    private long nowMillis;
+    private long nextSequence = 0L;
+    private long firedCount = 0L;
+
+    VirtualZapClock(final long startMillis) {
+        this.nowMillis = startMillis;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return nowMillis;
+    }
+
+    @Override
+    public synchronized void schedule(final long millis, final TimerListener listener) {
+        timers.add(new Entry(millis, nextSequence++, listener));
+    }
+
+    @Override
+    public synchronized void unschedule(final long millis, final TimerListener listener) {
+        for (final Entry entry : timers) {
+            if ((entry.millis == millis) && (entry.listener == listener)) {
+                timers.remove(entry);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void start(final Executor executor, final Runnable release) {
+        // timers fire only when advancing the time
+    }
+
+    @Override
+    public void stop() {
+        // timers fire only when advancing the time
+    }
+
+    @Override
+    public synchronized ZapTimerStatus timerStatus(final boolean resetMaximum) {
+        return new ZapTimerStatus(timers.size(), firedCount, 0L, 0L); // timers always fire exactly on time
+    }
+
+    /**
+     * Moves the time forward to the given time, invoking all the timers
+     * that become due. The time never moves backward.
+     *
+     * @param millis the new time
+     * @return the number of invoked timers
+     */
+    int advanceTo(final long millis) {
+        int count = 0;
+        for (;;) {
+            final Entry entry;
+            synchronized (this) {
+                entry = timers.peek();
+                if ((entry == null) || (entry.millis > millis)) {
+                    if (millis > nowMillis) nowMillis = millis;
+                    return count;
+                }
+                timers.poll();
+                if (entry.millis > nowMillis) nowMillis = entry.millis;
+                firedCount++;
+            }
+            entry.listener.onTimerExpired(entry.millis);
+            count++;
+        }
+    }
+
+    synchronized int pendingTimers() {
+        return timers.size();
+    }
+
+    private static final class Entry {
+        final long millis;
+        final long sequence;
+        final TimerListener listener;
+
+        Entry(final long millis, final long sequence, final TimerListener listener) {
+            this.millis = millis;
+            this.sequence = sequence;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.Timer;
+import com.gurucue.recommendations.TimerListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The wall clock, with zap timers kept in a {@link TimingWheel}. A
+ * dedicated thread only advances the wheel once per tick; the timers that
+ * expired in a tick are handed over as a single batch to the executor
+ * given at start, which runs them on the zap processing threads, so a slow
+ * timer doesn't hold back the wheel or the timers of other batches.
+ */
+final class WheelZapClock implements ZapClock, Runnable {
+    private static final Logger log = LogManager.getLogger(WheelZapClock.class);
+    static final long TICK_MILLIS = 100L;
+    static final int SLOT_COUNT = 4096; // a revolution takes a bit less than 7 minutes
+
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, SLOT_COUNT, Timer.currentTimeMillis());
+    private final AtomicLong firedCount = new AtomicLong();
+    private final AtomicLong lagSumMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private volatile Executor executor;
+    private volatile Runnable release;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    @Override
+    public long currentTimeMillis() {
+        return Timer.currentTimeMillis();
+    }
+
+    @Override
+    public void schedule(final long millis, final TimerListener listener) {
+        wheel.schedule(millis, listener);
+    }
+
+    @Override
+    public void unschedule(final long millis, final TimerListener listener) {
+        wheel.cancel(millis, listener);
+    }
+
+    @Override
+    public synchronized void start(final Executor executor, final Runnable release) {
+        if (running) throw new IllegalStateException("The zap timer wheel is already running");
+        this.executor = executor;
+        this.release = release;
+        running = true;
+        thread = new Thread(this, "Zap timer wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            log.warn("Interrupted while waiting to join the zap timer wheel thread: " + e.toString(), e);
+        }
+        thread = null;
+    }
+
+    @Override
+    public ZapTimerStatus timerStatus(final boolean resetMaximum) {
+        final long fired = firedCount.get();
+        final long lagSum = lagSumMillis.get();
+        final long maxLag = resetMaximum ? maxLagMillis.getAndSet(0L) : maxLagMillis.get();
+        return new ZapTimerStatus(wheel.size(), fired, fired == 0L ? 0L : lagSum / fired, maxLag);
+    }
+
+    /**
+     * The body of the wheel thread: waits for the next tick, and hands the
+     * timers that expired over to the executor.
+     */
+    @Override
+    public void run() {
+        log.info("Zap timer wheel started with " + TICK_MILLIS + " ms ticks");
+        try {
+            while (running) {
+                final long waitMillis = wheel.nextTickMillis() - Timer.currentTimeMillis();
+                if (waitMillis > 0L) {
+                    try {
+                        Thread.sleep(waitMillis);
+                    }
+                    catch (InterruptedException e) {
+                        continue; // stopping
+                    }
+                }
+                final List<TimingWheel.Timeout> expired = new ArrayList<>();
+                if (wheel.advance(Timer.currentTimeMillis(), expired) == 0) continue;
+                try {
+                    executor.execute(() -> fire(expired));
+                }
+                catch (RuntimeException e) {
+                    log.error("Failed to hand over " + expired.size() + " expired zap timers, running them on the wheel thread: " + e.toString(), e);
+                    try {
+                        fire(expired);
+                    }
+                    finally {
+                        release.run(); // the wheel thread doesn't run timers often enough to keep what they acquired
+                    }
+                }
+            }
+        }
+        finally {
+            log.info("Zap timer wheel exiting");
+        }
+    }
+
+    /**
+     * Invokes a batch of expired timers and records how late they were.
+     *
+     * @param expired the expired timers
+     */
+    void fire(final List<TimingWheel.Timeout> expired) {
+        for (final TimingWheel.Timeout timeout : expired) {
+            final long lag = Timer.currentTimeMillis() - timeout.millis;
+            firedCount.incrementAndGet();
+            lagSumMillis.addAndGet(lag);
+            long max;
+            while ((lag > (max = maxLagMillis.get())) && !maxLagMillis.compareAndSet(max, lag)) {
+                // retry, another thread recorded a lag in the meantime
+            }
+            try {
+                timeout.listener.onTimerExpired(timeout.millis);
+            }
+            catch (Throwable e) {
+                log.error("A zap timer failed: " + e.toString(), e);
+            }
+        }
+    }
+}
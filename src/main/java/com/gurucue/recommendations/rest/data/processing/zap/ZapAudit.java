@@ -0,0 +1,573 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entity.product.VideoProduct;
+import com.gurucue.recommendations.rest.Configuration;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * A binary journal of the decisions the zap processing makes: how each zap
+ * was classified, which watch intervals were found on a tv-programme, and
+ * which consumption was emitted or why none was. It replaces reading the
+ * text logs when consumption figures look wrong, and costs a few dozen
+ * bytes per decision instead of formatted text. Decode it from the command
+ * line:
+ * <pre>
+ * java -cp &lt;the service's classpath&gt; com.gurucue.recommendations.rest.data.processing.zap.ZapAudit &lt;directory or segment&gt; [&lt;device ID&gt;]
+ * </pre>
+ * which prints the decisions in the order they were made, optionally only
+ * those of the given device.
+ * <p>
+ * The journal is a sequence of segment files in RECSRV_ZAP_AUDIT_DIR. A
+ * segment starts with a magic number and a version, followed by records,
+ * each with its type, the time it was recorded, and the code of its device.
+ * A device's ID and consumer are recorded once per segment, before the
+ * first record of the device, so records refer to devices by their code.
+ * A new segment is started when the current one grows over
+ * RECSRV_ZAP_AUDIT_SEGMENT_MB, and the oldest segments are deleted to keep
+ * at most RECSRV_ZAP_AUDIT_SEGMENTS of them.
+ * <p>
+ * Records are collected in a buffer, which is written out when full and
+ * with every consumption flush cycle, so a crash loses at most the
+ * decisions of the last minute. A failure to write is logged and counted,
+ * and the journal continues in a new segment with the next flush.
+ */
+public final class ZapAudit {
+    private static final Logger log = LogManager.getLogger(ZapAudit.class);
+    private static final String SEGMENT_PREFIX = "zap-audit-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final int MAGIC = 0x5A415544; // "ZAUD"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 1 + 8 + 4; // type, time and device code
+    private static final int MAX_STRING_BYTES = 1024; // longer strings are truncated
+    private static final int BUFFER_SIZE = 262144;
+
+    // record types
+    static final byte DEVICE = 1;
+    static final byte ZAP = 2;
+    static final byte WATCHED = 3;
+    static final byte LIVE_TV = 4;
+    static final byte PRODUCT_HISTORY = 5;
+    static final byte PRODUCT_CONSUMPTION = 6;
+
+    // what a zap was to
+    static final byte ZAP_TO_NOTHING = 0; // a box status change, or an unknown product
+    static final byte ZAP_TO_TV_CHANNEL = 1;
+    static final byte ZAP_TO_CATCHUP = 2;
+    static final byte ZAP_TO_VIDEO = 3;
+    static final byte ZAP_TO_OTHER = 4;
+
+    // the outcome of a live-tv consumption conversion
+    static final byte CONSUMPTION = 0;
+    static final byte CONSUMPTION_LONG_ZAP = 1; // the device stayed on the tv-channel after the tv-programme ended
+    static final byte IGNORED = 2; // no activity for too long before the tv-programme ended
+
+    private final File directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    // all of the following must be accessed while holding the monitor
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final TIntObjectHashMap<String> segmentDevices = new TIntObjectHashMap<>(); // code -> device ID recorded in the current segment
+    private FileChannel channel = null; // the current segment, null when not open
+    private boolean open = false;
+    private long sequence = 0L;
+    private long size = 0L; // the size of the current segment
+    private long recordCount = 0L;
+    private long droppedCount = 0L;
+
+    ZapAudit(final File directory, final long segmentSize, final int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Creates the journal configured with the RECSRV_ZAP_AUDIT_DIR,
+     * RECSRV_ZAP_AUDIT_SEGMENT_MB and RECSRV_ZAP_AUDIT_SEGMENTS settings.
+     * The journal is disabled unless RECSRV_ZAP_AUDIT_DIR is set.
+     *
+     * @return the journal, or null if it is disabled
+     */
+    static ZapAudit fromConfiguration() {
+        final String path = Configuration.getString("RECSRV_ZAP_AUDIT_DIR", "none");
+        if ("none".equalsIgnoreCase(path)) {
+            log.info("The zap audit journal is disabled");
+            return null;
+        }
+        final long segmentMegabytes = Math.max(Configuration.getLong("RECSRV_ZAP_AUDIT_SEGMENT_MB", 64L), 1L);
+        final int maxSegments = (int) Math.max(Configuration.getLong("RECSRV_ZAP_AUDIT_SEGMENTS", 16L), 1L);
+        log.info("Zap audit journal directory: " + path + ", keeping " + maxSegments + " segments of " + segmentMegabytes + " MB");
+        return new ZapAudit(new File(path), segmentMegabytes * 1048576L, maxSegments);
+    }
+
+    static File segmentFile(final File directory, final long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the sequence numbers of the segments in the given directory,
+     * in ascending order.
+     */
+    static long[] segments(final File directory) {
+        final String[] names = directory.list();
+        if (names == null) return new long[0];
+        final long[] sequences = new long[names.length];
+        int count = 0;
+        for (final String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                sequences[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 10);
+                count++;
+            }
+            catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        final long[] result = Arrays.copyOf(sequences, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Starts a new segment after the existing ones.
+     */
+    synchronized void open() {
+        if (open) return;
+        if (!directory.isDirectory() && !directory.mkdirs()) log.error("Cannot create the zap audit directory " + directory.getPath());
+        final long[] sequences = segments(directory);
+        sequence = sequences.length == 0 ? 0L : sequences[sequences.length - 1];
+        open = true;
+        newSegment();
+    }
+
+    /**
+     * Writes out the buffered records, and closes the journal.
+     */
+    synchronized void close() {
+        if (!open) return;
+        drain();
+        closeSegment();
+        open = false;
+        log.info("Closed the zap audit journal in " + directory.getPath() + " after recording " + recordCount + " decisions, " + droppedCount + " dropped");
+    }
+
+    /**
+     * Writes out the buffered records. If the journal could not be written
+     * to before, a new segment is attempted.
+     */
+    synchronized void flush() {
+        if (!open) return;
+        if (channel == null) newSegment();
+        else drain();
+    }
+
+    synchronized long recordCount() {
+        return recordCount;
+    }
+
+    synchronized long droppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Records a zap and what it was classified as.
+     *
+     * @param code the code of the device
+     * @param deviceId the ID of the device
+     * @param consumer the consumer owning the device
+     * @param eventMillis the time of the zap
+     * @param product what was zapped to, null for a box status change or an unknown product
+     */
+    synchronized void zap(final int code, final String deviceId, final Consumer consumer, final long eventMillis, final Product product) {
+        if (!begin(ZAP, 8 + 1 + 8, code, deviceId, consumer)) return;
+        final byte kind;
+        if ((product == null) || (product.id < 0L)) kind = ZAP_TO_NOTHING;
+        else if (product instanceof TvChannelProduct) kind = ZAP_TO_TV_CHANNEL;
+        else if (product instanceof TvProgrammeProduct) kind = ZAP_TO_CATCHUP;
+        else if (product instanceof VideoProduct) kind = ZAP_TO_VIDEO;
+        else kind = ZAP_TO_OTHER;
+        buffer.putLong(eventMillis);
+        buffer.put(kind);
+        buffer.putLong(product == null ? -1L : product.id);
+    }
+
+    /**
+     * Records an interval during which a tv-programme was watched.
+     *
+     * @param code the code of the device
+     * @param deviceId the ID of the device
+     * @param consumer the consumer owning the device
+     * @param tvProgrammeId the tv-programme
+     * @param fromMillis when the device zapped to the tv-programme's tv-channel
+     * @param zapoutMillis when the device zapped away, null if it didn't
+     */
+    synchronized void watched(final int code, final String deviceId, final Consumer consumer, final long tvProgrammeId, final long fromMillis, final Long zapoutMillis) {
+        if (!begin(WATCHED, 8 + 8 + 8, code, deviceId, consumer)) return;
+        buffer.putLong(tvProgrammeId);
+        buffer.putLong(fromMillis);
+        buffer.putLong(zapoutMillis == null ? -1L : zapoutMillis.longValue());
+    }
+
+    /**
+     * Records the conversion of the zaps on a tv-programme into a live-tv
+     * consumption.
+     *
+     * @param code the code of the device
+     * @param deviceId the ID of the device
+     * @param consumer the consumer owning the device
+     * @param tvChannelId the tv-channel of the tv-programme
+     * @param tvProgramme the tv-programme
+     * @param firstZapMillis when the device first zapped to the tv-programme, may be before it began
+     * @param zapCount the number of zaps to the tv-programme while it was playing
+     * @param watchDurationMillis for how long the tv-programme was watched
+     * @param outcome one of {@link #CONSUMPTION}, {@link #CONSUMPTION_LONG_ZAP} or {@link #IGNORED}
+     * @param timeMillis the time of the consumption, or the time of the last activity if ignored
+     */
+    synchronized void liveTv(final int code, final String deviceId, final Consumer consumer, final long tvChannelId, final TvProgrammeProduct tvProgramme, final long firstZapMillis, final int zapCount, final long watchDurationMillis, final byte outcome, final long timeMillis) {
+        if (!begin(LIVE_TV, 8 + 8 + 8 + 8 + 8 + 4 + 8 + 1 + 8, code, deviceId, consumer)) return;
+        buffer.putLong(tvChannelId);
+        buffer.putLong(tvProgramme.id);
+        buffer.putLong(tvProgramme.beginTimeMillis);
+        buffer.putLong(tvProgramme.endTimeMillis);
+        buffer.putLong(firstZapMillis);
+        buffer.putInt(zapCount);
+        buffer.putLong(watchDurationMillis);
+        buffer.put(outcome);
+        buffer.putLong(timeMillis);
+    }
+
+    /**
+     * Records which catch-up/VoD zaps were spent on a flush.
+     *
+     * @param code the code of the device
+     * @param deviceId the ID of the device
+     * @param consumer the consumer owning the device
+     * @param productId the played product
+     * @param codePath the decision taken, as numbered in {@link ProductZaps}
+     * @param removedCount how many zaps were spent
+     * @param remainedCount how many zaps remain for later
+     */
+    synchronized void productHistory(final int code, final String deviceId, final Consumer consumer, final long productId, final int codePath, final int removedCount, final int remainedCount) {
+        if (!begin(PRODUCT_HISTORY, 8 + 1 + 4 + 4, code, deviceId, consumer)) return;
+        buffer.putLong(productId);
+        buffer.put((byte) codePath);
+        buffer.putInt(removedCount);
+        buffer.putInt(remainedCount);
+    }
+
+    /**
+     * Records an emitted catch-up/VoD consumption.
+     *
+     * @param code the code of the device
+     * @param deviceId the ID of the device
+     * @param consumer the consumer owning the device
+     * @param productId the consumed product
+     * @param timeMillis the time of the consumption
+     */
+    synchronized void productConsumption(final int code, final String deviceId, final Consumer consumer, final long productId, final long timeMillis) {
+        if (!begin(PRODUCT_CONSUMPTION, 8 + 8, code, deviceId, consumer)) return;
+        buffer.putLong(productId);
+        buffer.putLong(timeMillis);
+    }
+
+    /**
+     * Makes room for a record and writes its header, preceded by the
+     * device's record if it wasn't recorded in the current segment yet.
+     * Must be invoked while holding the monitor.
+     *
+     * @return whether the record can be written, false if it is dropped
+     */
+    private boolean begin(final byte type, final int length, final int code, final String deviceId, final Consumer consumer) {
+        if (channel == null) {
+            if (open) droppedCount++;
+            return false;
+        }
+        if (!reserve(HEADER_SIZE + length)) return false;
+        if (segmentDevices.get(code) != deviceId) {
+            // the device is not in this segment yet, or its code was reused after an eviction
+            final byte[] id = truncated(deviceId);
+            final byte[] username = truncated(consumer == null ? null : consumer.getUsername());
+            final Long consumerId = consumer == null ? null : consumer.getId();
+            if (!reserve(HEADER_SIZE + 8 + 2 + id.length + 2 + username.length + HEADER_SIZE + length)) return false; // may start a new segment, which needs the device too
+            buffer.put(DEVICE);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putInt(code);
+            buffer.putLong(consumerId == null ? -1L : consumerId.longValue());
+            buffer.putShort((short) id.length);
+            buffer.put(id);
+            buffer.putShort((short) username.length);
+            buffer.put(username);
+            segmentDevices.put(code, deviceId);
+        }
+        buffer.put(type);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putInt(code);
+        recordCount++;
+        return true;
+    }
+
+    // must be invoked while holding the monitor
+    private boolean reserve(final int length) {
+        if (buffer.remaining() >= length) return true;
+        drain();
+        if (channel != null) return true;
+        droppedCount++;
+        return false;
+    }
+
+    private static byte[] truncated(final String s) {
+        if (s == null) return new byte[0];
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= MAX_STRING_BYTES ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    /**
+     * Writes out the buffer, and starts a new segment if the current one
+     * has grown over its size. Must be invoked while holding the monitor,
+     * between records, so a segment always ends with a whole record.
+     */
+    private void drain() {
+        if (channel == null) {
+            buffer.clear();
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) size += channel.write(buffer);
+        }
+        catch (IOException e) {
+            log.error("Failed to write to the zap audit segment " + sequence + " in " + directory.getPath() + ", continuing in a new segment with the next flush: " + e.toString(), e);
+            closeSegment();
+            return;
+        }
+        finally {
+            buffer.clear();
+        }
+        if (size >= segmentSize) newSegment();
+    }
+
+    // must be invoked while holding the monitor
+    private void newSegment() {
+        closeSegment();
+        sequence++;
+        try {
+            channel = FileChannel.open(segmentFile(directory, sequence).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            log.error("Failed to create the zap audit segment " + sequence + " in " + directory.getPath() + ", retrying with the next flush: " + e.toString(), e);
+            return;
+        }
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        size = 0L;
+        deleteOldSegments();
+    }
+
+    // must be invoked while holding the monitor
+    private void closeSegment() {
+        segmentDevices.clear();
+        buffer.clear();
+        if (channel == null) return;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.error("Failed to close the zap audit segment " + sequence + " in " + directory.getPath() + ": " + e.toString(), e);
+        }
+        channel = null;
+    }
+
+    private void deleteOldSegments() {
+        final long[] sequences = segments(directory);
+        for (int i = sequences.length - maxSegments - 1; i >= 0; i--) {
+            final File file = segmentFile(directory, sequences[i]);
+            if (!file.delete()) log.error("Failed to delete the old zap audit segment " + file.getPath());
+        }
+    }
+
+    public static void main(final String[] args) {
+        if ((args.length < 1) || (args.length > 2)) {
+            System.err.println("Usage: ZapAudit <directory or segment> [<device ID>]");
+            System.exit(2);
+        }
+        final File path = new File(args[0]);
+        final String deviceId = args.length > 1 ? args[1] : null;
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            if (path.isDirectory()) {
+                for (final long sequence : segments(path)) decode(segmentFile(path, sequence), deviceId, out);
+            }
+            else decode(path, deviceId, out);
+        }
+        catch (IOException e) {
+            out.flush();
+            System.err.println("Failed to read the zap audit journal: " + e.toString());
+            System.exit(1);
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the decisions recorded in a segment, one per line.
+     *
+     * @param segment the segment file
+     * @param deviceId print only the decisions concerning this device, null to print all of them
+     * @param out where to print to
+     * @return the number of decisions printed
+     * @throws IOException if reading the segment fails
+     */
+    static int decode(final File segment, final String deviceId, final PrintWriter out) throws IOException {
+        final TIntObjectHashMap<String> devices = new TIntObjectHashMap<>();
+        int count = 0;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 65536))) {
+            if ((in.readInt() != MAGIC) || (in.readByte() != VERSION)) {
+                out.println(segment.getPath() + ": not a zap audit segment, or of an unsupported version");
+                return 0;
+            }
+            final StringBuilder line = new StringBuilder(256);
+            for (;;) {
+                final int type = in.read();
+                if (type < 0) break;
+                line.setLength(0);
+                try {
+                    final long recordedMillis = in.readLong();
+                    final int code = in.readInt();
+                    if (type == DEVICE) {
+                        final long consumerId = in.readLong();
+                        final String id = readString(in);
+                        final String username = readString(in);
+                        devices.put(code, id);
+                        if ((deviceId != null) && !deviceId.equals(id)) continue;
+                        line.append("device ").append(id).append(" of consumer ").append(consumerId).append(" [").append(username).append("] has code ").append(code);
+                    }
+                    else {
+                        final String id = devices.get(code);
+                        final boolean skip = (deviceId != null) && !deviceId.equals(id);
+                        line.append(id).append(": ");
+                        switch (type) {
+                            case ZAP: {
+                                final long eventMillis = in.readLong();
+                                final byte kind = in.readByte();
+                                final long productId = in.readLong();
+                                line.append("zap at ").append(Instant.ofEpochMilli(eventMillis));
+                                switch (kind) {
+                                    case ZAP_TO_TV_CHANNEL: line.append(" to tv-channel "); break;
+                                    case ZAP_TO_CATCHUP: line.append(" to catch-up tv-programme "); break;
+                                    case ZAP_TO_VIDEO: line.append(" to VoD "); break;
+                                    case ZAP_TO_OTHER: line.append(" to product "); break;
+                                    default: line.append(" to nothing, a status change or an unknown product "); break;
+                                }
+                                line.append(productId);
+                                break;
+                            }
+                            case WATCHED: {
+                                final long tvProgrammeId = in.readLong();
+                                final long fromMillis = in.readLong();
+                                final long zapoutMillis = in.readLong();
+                                line.append("tv-programme ").append(tvProgrammeId).append(" watched from ").append(Instant.ofEpochMilli(fromMillis));
+                                if (zapoutMillis < 0L) line.append(" with no zapout");
+                                else line.append(" to ").append(Instant.ofEpochMilli(zapoutMillis));
+                                break;
+                            }
+                            case LIVE_TV: {
+                                final long tvChannelId = in.readLong();
+                                final long tvProgrammeId = in.readLong();
+                                final long beginMillis = in.readLong();
+                                final long endMillis = in.readLong();
+                                final long firstZapMillis = in.readLong();
+                                final int zapCount = in.readInt();
+                                final long watchDurationMillis = in.readLong();
+                                final byte outcome = in.readByte();
+                                final long timeMillis = in.readLong();
+                                line.append("tv-programme ").append(tvProgrammeId).append(" on tv-channel ").append(tvChannelId)
+                                        .append(" (").append(Instant.ofEpochMilli(beginMillis)).append(" - ").append(Instant.ofEpochMilli(endMillis))
+                                        .append("), first zap at ").append(Instant.ofEpochMilli(firstZapMillis));
+                                if (outcome == IGNORED) {
+                                    line.append(": IGNORED, last activity ").append((endMillis - timeMillis) / 1000L).append(" s before the end");
+                                    break;
+                                }
+                                line.append(": ZAPCNT=").append(zapCount).append(", WCHDUR=").append(watchDurationMillis / 1000L)
+                                        .append(", WCHPRC=").append(endMillis > beginMillis ? (watchDurationMillis * 100L) / (endMillis - beginMillis) : 0L)
+                                        .append(", livetv-consumption at ").append(Instant.ofEpochMilli(timeMillis));
+                                if (outcome == CONSUMPTION_LONG_ZAP) line.append(" [LONGZAP]");
+                                break;
+                            }
+                            case PRODUCT_HISTORY: {
+                                final long productId = in.readLong();
+                                final byte codePath = in.readByte();
+                                final int removedCount = in.readInt();
+                                final int remainedCount = in.readInt();
+                                line.append("product ").append(productId).append(" (path #").append(codePath).append("): ")
+                                        .append(removedCount).append(" zaps spent, ").append(remainedCount).append(" remaining");
+                                break;
+                            }
+                            case PRODUCT_CONSUMPTION: {
+                                final long productId = in.readLong();
+                                final long timeMillis = in.readLong();
+                                line.append("consumption of product ").append(productId).append(" at ").append(Instant.ofEpochMilli(timeMillis));
+                                break;
+                            }
+                            default:
+                                out.println(segment.getPath() + ": unknown record type " + type + ", skipping the rest of the segment");
+                                return count;
+                        }
+                        if (skip) continue;
+                    }
+                    out.print(Instant.ofEpochMilli(recordedMillis));
+                    out.print(' ');
+                    out.println(line);
+                    count++;
+                }
+                catch (EOFException e) {
+                    out.println(segment.getPath() + ": ends with an incomplete record");
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
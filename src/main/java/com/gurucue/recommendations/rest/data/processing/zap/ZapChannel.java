@@ -0,0 +1,647 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.rest.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A durable channel in a local directory, through which a serving node hands
+ * zaps to a zap worker on the same host, see
+ * {@link com.gurucue.recommendations.rest.ServiceRole}. The serving node
+ * appends zaps to segment files, and the zap worker reads them in the order
+ * they were appended, so no zaps are lost when either of them restarts.
+ * <p>
+ * A record consists of the length and the CRC-32 of the zap, followed by the
+ * zap itself encoded as in a {@link ZapSnapshot}. The writer forces appended
+ * zaps to the disk every RECSRV_ZAP_CHANNEL_SYNC_MILLIS, and starts a new
+ * segment when the current one grows over RECSRV_ZAP_CHANNEL_SEGMENT_MB,
+ * and at every start, so a record torn by a crash is always at the end of
+ * a segment that was superseded. The reader records its position in a
+ * checkpoint file and deletes the segments it has read. After a crash of
+ * the zap worker the zaps read since the last checkpoint are read again,
+ * which does no harm: a repeated zap of a device at the same time replaces
+ * the zap already there.
+ * <p>
+ * Only one writer and one reader may use a directory at a time, which is
+ * enforced with file locks.
+ */
+final class ZapChannel {
+    private static final Logger log = LogManager.getLogger(ZapChannel.class);
+    private static final String SEGMENT_PREFIX = "zaps-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "zaps.checkpoint";
+    private static final int RECORD_HEADER_SIZE = 8; // the length and the CRC-32 of a record
+    private static final int MAX_RECORD_SIZE = 1048576; // a larger length denotes a damaged record
+    private static final int BUFFER_SIZE = 65536;
+    private static final int BATCH_SIZE = 1000; // at most this many zaps are decoded within one transaction
+    private static final long POLL_MILLIS = 100L; // how long the reader waits for more zaps when it has read all of them
+    private static final long CHECKPOINT_MILLIS = 1000L;
+
+    private ZapChannel() {} // not instantiable
+
+    /**
+     * Returns the directory of the channel from the RECSRV_ZAP_CHANNEL_DIR
+     * setting, or null if the channel is disabled with "none". The setting
+     * is required: the segments hold zaps not yet processed, so they must
+     * not end up in a temporary directory by accident.
+     */
+    static File directoryFromConfiguration() {
+        final String path = Configuration.getString("RECSRV_ZAP_CHANNEL_DIR", null);
+        if (path == null) throw new IllegalStateException("The setting RECSRV_ZAP_CHANNEL_DIR is required when a node doesn't do everything itself, set it to a directory shared by the serving node and the zap worker on the host, or to \"none\"");
+        if ("none".equalsIgnoreCase(path)) return null;
+        return new File(path);
+    }
+
+    static File segmentFile(final File directory, final long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the sequence numbers of the segments in the given directory,
+     * in ascending order.
+     */
+    static long[] segments(final File directory) {
+        final String[] names = directory.list();
+        if (names == null) return new long[0];
+        final long[] sequences = new long[names.length];
+        int count = 0;
+        for (final String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                sequences[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 10);
+                count++;
+            }
+            catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        final long[] result = Arrays.copyOf(sequences, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static FileLock lock(final File directory, final String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create the zap channel directory " + directory.getPath());
+        final FileChannel channel = FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            lock = null; // held by another user within this process
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("The zap channel in " + directory.getPath() + " is already in use by another " + name.substring(0, name.indexOf('.')));
+        }
+        return lock;
+    }
+
+    private static void logStatistics(final ZapChannelStatus status) {
+        final StringBuilder logBuilder = new StringBuilder(200);
+        logBuilder.append("Zap channel ").append(status.end)
+                .append(" zaps: ").append(status.zapCount)
+                .append(", failures: ").append(status.failureCount)
+                .append(", segments: ").append(status.segmentCount)
+                .append(", backlog: ").append(status.backlogBytes).append(" bytes");
+        log.info(logBuilder.toString());
+    }
+
+    private static void unlock(final FileLock lock) {
+        if (lock == null) return;
+        try {
+            lock.release();
+            lock.channel().close();
+        }
+        catch (IOException e) {
+            log.error("Failed to release the zap channel lock: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Appends zaps to the channel, on a serving node. Appending never
+     * throws, a failure is logged and counted, and the writer tries to
+     * continue in a new segment.
+     */
+    static final class Writer implements Runnable {
+        private final File directory;
+        private final long segmentSize;
+        private final long syncMillis;
+        private final RecordBuffer recordBuffer = new RecordBuffer();
+        private final ZapSnapshot.Writer recordOut = new ZapSnapshot.Writer(new DataOutputStream(recordBuffer));
+        private final CRC32 crc = new CRC32();
+        private FileLock lock;
+        private FileOutputStream file = null; // the current segment, null when it couldn't be created
+        private DataOutputStream out = null;
+        private long sequence = 0L;
+        private long size = 0L; // the size of the current segment
+        private boolean dirty = false; // whether anything was appended since the last sync
+        private boolean running = false;
+        private Thread thread;
+        private long appendedCount = 0L;
+        private long failedCount = 0L;
+
+        Writer(final File directory, final long segmentSize, final long syncMillis) {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.syncMillis = syncMillis;
+        }
+
+        /**
+         * Creates the writer configured with the RECSRV_ZAP_CHANNEL_SEGMENT_MB
+         * and RECSRV_ZAP_CHANNEL_SYNC_MILLIS settings.
+         */
+        static Writer fromConfiguration(final File directory) {
+            final long segmentMegabytes = Configuration.getLong("RECSRV_ZAP_CHANNEL_SEGMENT_MB", 64L);
+            final long syncMillis = Configuration.getLong("RECSRV_ZAP_CHANNEL_SYNC_MILLIS", 1000L);
+            return new Writer(directory, (segmentMegabytes < 1L ? 1L : segmentMegabytes) * 1048576L, syncMillis < 10L ? 10L : syncMillis);
+        }
+
+        synchronized void open() throws IOException {
+            if (running) throw new IllegalStateException("The zap channel writer is already open");
+            lock = lock(directory, "writer.lock");
+            final long[] sequences = segments(directory);
+            sequence = sequences.length == 0 ? 0L : sequences[sequences.length - 1];
+            try {
+                newSegment();
+            }
+            catch (IOException e) {
+                unlock(lock);
+                lock = null;
+                throw e;
+            }
+            running = true;
+            thread = new Thread(this, "Zap channel sync");
+            thread.setDaemon(true);
+            thread.start();
+            log.info("Handing zaps to a zap worker through " + directory.getPath() + ", starting with segment " + sequence);
+        }
+
+        // invoke while holding the monitor
+        private void newSegment() throws IOException {
+            if (out != null) {
+                final DataOutputStream previous = out;
+                out = null;
+                try {
+                    previous.flush();
+                    file.getChannel().force(false);
+                }
+                finally {
+                    previous.close();
+                }
+            }
+            sequence++;
+            file = new FileOutputStream(segmentFile(directory, sequence));
+            out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+            size = 0L;
+            dirty = false;
+        }
+
+        synchronized void append(final ConsumerEvent event) {
+            if (out == null) {
+                failedCount++;
+                return;
+            }
+            try {
+                recordBuffer.reset();
+                recordOut.writeEvent(event);
+                final int length = recordBuffer.size();
+                crc.reset();
+                crc.update(recordBuffer.bytes(), 0, length);
+                out.writeInt(length);
+                out.writeInt((int) crc.getValue());
+                out.write(recordBuffer.bytes(), 0, length);
+                size += RECORD_HEADER_SIZE + length;
+                dirty = true;
+                appendedCount++;
+                if (size >= segmentSize) newSegment();
+            }
+            catch (IOException e) {
+                failedCount++;
+                log.error("Failed to append a zap to the zap channel segment " + sequence + " in " + directory.getPath() + ": " + e.toString(), e);
+                // the segment may end with a torn record now, continue in a new one
+                try {
+                    if (out != null) out.close();
+                }
+                catch (IOException ignored) {}
+                out = null;
+                try {
+                    newSegment();
+                }
+                catch (IOException e2) {
+                    log.error("Failed to start a new zap channel segment in " + directory.getPath() + ", retrying on the next sync: " + e2.toString(), e2);
+                    out = null;
+                }
+            }
+        }
+
+        /**
+         * Forces the appended zaps to the disk, and stops the writer.
+         */
+        void close() {
+            synchronized (this) {
+                if (!running) return;
+                running = false;
+                notifyAll();
+                if (out != null) {
+                    try {
+                        out.flush();
+                        file.getChannel().force(false);
+                        out.close();
+                    }
+                    catch (IOException e) {
+                        log.error("Failed to close the zap channel segment " + sequence + " in " + directory.getPath() + ": " + e.toString(), e);
+                    }
+                    out = null;
+                }
+                unlock(lock);
+                lock = null;
+            }
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            log.info("Closed the zap channel in " + directory.getPath() + " after appending " + appendedCount + " zaps");
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                final FileChannel channel;
+                synchronized (this) {
+                    try {
+                        wait(syncMillis);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!running) return;
+                    try {
+                        if (out == null) {
+                            newSegment();
+                            continue;
+                        }
+                        if (!dirty) continue;
+                        out.flush();
+                        dirty = false;
+                    }
+                    catch (IOException e) {
+                        log.error("Failed to flush the zap channel segment " + sequence + " in " + directory.getPath() + ": " + e.toString(), e);
+                        continue;
+                    }
+                    channel = file.getChannel();
+                }
+                // appending may go on while the segment is being forced to the disk
+                try {
+                    channel.force(false);
+                }
+                catch (ClosedChannelException e) {
+                    // superseded by a new segment meanwhile, and forced before it was closed
+                }
+                catch (IOException e) {
+                    log.error("Failed to sync the zap channel in " + directory.getPath() + ": " + e.toString(), e);
+                }
+            }
+        }
+
+        ZapChannelStatus status() {
+            final long appended;
+            final long failed;
+            synchronized (this) {
+                appended = appendedCount;
+                failed = failedCount;
+            }
+            final long[] sequences = segments(directory);
+            long backlogBytes = 0L;
+            for (final long s : sequences) backlogBytes += segmentFile(directory, s).length();
+            // the reader's position within its segment is not known here, so the backlog includes it entirely
+            return new ZapChannelStatus("writer", directory.getPath(), appended, failed, sequences.length, backlogBytes);
+        }
+
+        void logStatistics() {
+            ZapChannel.logStatistics(status());
+        }
+    }
+
+    /**
+     * Reads zaps from the channel on its own thread, on a zap worker, and
+     * hands them over to the given consumer in the order they were appended.
+     */
+    static final class Reader implements Runnable {
+        private final File directory;
+        private final ZapData data;
+        private final Consumer<ConsumerEvent> target;
+        private final RecordInput recordInput = new RecordInput();
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private FileLock lock;
+        private volatile boolean running = false;
+        private Thread thread;
+        private volatile long sequence; // the segment being read
+        private volatile long position; // the position of the next record in the segment
+        private volatile long readCount = 0L;
+        private volatile long skippedCount = 0L;
+        private long damagedSequence = -1L; // the last segment reported as damaged, to report it only once
+        private long checkpointMillis = 0L;
+
+        Reader(final File directory, final ZapData data, final Consumer<ConsumerEvent> target) {
+            this.directory = directory;
+            this.data = data;
+            this.target = target;
+        }
+
+        void start() throws IOException {
+            if (running) throw new IllegalStateException("The zap channel reader is already running");
+            lock = lock(directory, "reader.lock");
+            final File checkpoint = new File(directory, CHECKPOINT_FILE);
+            if (checkpoint.isFile()) {
+                try (final DataInputStream in = new DataInputStream(new FileInputStream(checkpoint))) {
+                    sequence = in.readLong();
+                    position = in.readLong();
+                }
+                catch (IOException e) {
+                    unlock(lock);
+                    lock = null;
+                    throw new IOException("Cannot read the zap channel checkpoint " + checkpoint.getPath() + ": " + e.toString(), e);
+                }
+            }
+            else {
+                final long[] sequences = segments(directory);
+                sequence = sequences.length == 0 ? 1L : sequences[0];
+                position = 0L;
+            }
+            running = true;
+            thread = new Thread(this, "Zap channel reader");
+            thread.setDaemon(true);
+            thread.start();
+            log.info("Reading zaps handed over through " + directory.getPath() + ", from segment " + sequence + " at " + position);
+        }
+
+        void stop() {
+            if (!running) return;
+            running = false; // the reader finishes the batch at hand, not to lose it
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            unlock(lock);
+            lock = null;
+            log.info("Stopped reading the zap channel in " + directory.getPath() + " after reading " + readCount + " zaps");
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    final int count = readBatch();
+                    final long now = System.currentTimeMillis();
+                    if (now - checkpointMillis >= CHECKPOINT_MILLIS) {
+                        writeCheckpoint();
+                        checkpointMillis = now;
+                    }
+                    if (count == 0) Thread.sleep(POLL_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                catch (IOException | RuntimeException e) {
+                    log.error("Failed to read the zap channel segment " + sequence + " in " + directory.getPath() + ": " + e.toString(), e);
+                    try {
+                        Thread.sleep(CHECKPOINT_MILLIS);
+                    }
+                    catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+            try {
+                writeCheckpoint();
+            }
+            catch (IOException e) {
+                log.error("Failed to write the zap channel checkpoint in " + directory.getPath() + ": " + e.toString(), e);
+            }
+        }
+
+        /**
+         * Reads and hands over the next batch of zaps, and returns how many
+         * were read. Moves on to the next segment when the current one is
+         * read entirely and superseded, or when it is damaged.
+         */
+        private int readBatch() throws IOException {
+            final File segment = segmentFile(directory, sequence);
+            if (!segment.isFile()) {
+                final long next = nextSegment();
+                if (next > 0L) {
+                    log.warn("The zap channel segment " + sequence + " in " + directory.getPath() + " is missing, continuing with segment " + next);
+                    moveTo(next, false);
+                }
+                return 0;
+            }
+            final List<ConsumerEvent> events = new ArrayList<>();
+            long offset = position;
+            boolean damaged = false;
+            // the writer completes a segment before it starts the next one, so when a later segment
+            // exists before reading, this one is read up to its real end, and what is left is torn
+            final long next = nextSegment();
+            try (final FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() - offset >= RECORD_HEADER_SIZE) {
+                    try {
+                        final ZapSnapshot.Reader in = new ZapSnapshot.Reader(new DataInputStream(recordInput), data);
+                        while (events.size() < BATCH_SIZE) {
+                            final long size = channel.size();
+                            if (size - offset < RECORD_HEADER_SIZE) break;
+                            header.clear();
+                            readFully(channel, header, offset);
+                            final int length = header.getInt(0);
+                            final int checksum = header.getInt(4);
+                            if ((length < 0) || (length > MAX_RECORD_SIZE)) {
+                                damaged = true;
+                                break;
+                            }
+                            if (size - offset - RECORD_HEADER_SIZE < length) break; // not entirely written yet
+                            final byte[] record = new byte[length];
+                            readFully(channel, ByteBuffer.wrap(record), offset + RECORD_HEADER_SIZE);
+                            crc.reset();
+                            crc.update(record, 0, length);
+                            if ((int) crc.getValue() != checksum) {
+                                damaged = true;
+                                break;
+                            }
+                            recordInput.set(record);
+                            final ConsumerEvent event = in.readEvent();
+                            if (event != null) events.add(event);
+                            offset += RECORD_HEADER_SIZE + length;
+                        }
+                    }
+                    finally {
+                        data.release(); // the products were looked up on this thread
+                    }
+                }
+                final long remaining = channel.size() - offset;
+                // the zaps are handed over before the position moves past them, so they are not lost when stopping
+                for (final ConsumerEvent event : events) target.accept(event);
+                position = offset;
+                readCount += events.size();
+                if (!events.isEmpty() && !damaged) return events.size();
+                // at the end of the segment, or at a damaged record: move on if there was a later segment
+                if (next > 0L) {
+                    if (damaged || (remaining > 0L)) {
+                        skippedCount++;
+                        log.error("Skipping " + remaining + " bytes of " + (damaged ? "a damaged" : "a torn") + " record at " + offset + " in the zap channel segment " + sequence + " in " + directory.getPath());
+                    }
+                    moveTo(next, true);
+                }
+                else if (damaged && (damagedSequence != sequence)) {
+                    damagedSequence = sequence;
+                    log.error("The zap channel segment " + sequence + " in " + directory.getPath() + " is damaged at " + offset + ", waiting for the next segment");
+                }
+                return events.size();
+            }
+        }
+
+        private long nextSegment() {
+            for (final long s : segments(directory)) {
+                if (s > sequence) return s;
+            }
+            return 0L;
+        }
+
+        private void moveTo(final long next, final boolean deleteCurrent) throws IOException {
+            final long previous = sequence;
+            sequence = next;
+            position = 0L;
+            writeCheckpoint();
+            if (deleteCurrent && !segmentFile(directory, previous).delete()) {
+                log.warn("Failed to delete the read zap channel segment " + previous + " in " + directory.getPath());
+            }
+        }
+
+        private void writeCheckpoint() throws IOException {
+            final File checkpoint = new File(directory, CHECKPOINT_FILE);
+            final File tempFile = new File(checkpoint.getPath() + ".tmp");
+            try (final FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+                final DataOutputStream out = new DataOutputStream(fileOut);
+                out.writeLong(sequence);
+                out.writeLong(position);
+                out.flush();
+                fileOut.getChannel().force(false);
+            }
+            Files.move(tempFile.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long offset) throws IOException {
+            long at = offset;
+            while (buffer.hasRemaining()) {
+                final int n = channel.read(buffer, at);
+                if (n < 0) throw new IOException("Unexpected end of the zap channel segment at " + at);
+                at += n;
+            }
+        }
+
+        ZapChannelStatus status() {
+            final long current = sequence;
+            final long[] sequences = segments(directory);
+            long backlogBytes = 0L;
+            for (final long s : sequences) {
+                if (s >= current) backlogBytes += segmentFile(directory, s).length();
+            }
+            backlogBytes -= position;
+            return new ZapChannelStatus("reader", directory.getPath(), readCount, skippedCount, sequences.length, backlogBytes < 0L ? 0L : backlogBytes);
+        }
+
+        void logStatistics() {
+            ZapChannel.logStatistics(status());
+        }
+    }
+
+    /**
+     * Exposes the buffer of the encoded record, to avoid copying it.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(1024);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * An input stream over one record at a time, so a single snapshot
+     * reader decodes all records of a batch.
+     */
+    private static final class RecordInput extends InputStream {
+        private byte[] bytes = new byte[0];
+        private int offset = 0;
+
+        void set(final byte[] bytes) {
+            this.bytes = bytes;
+            this.offset = 0;
+        }
+
+        @Override
+        public int read() {
+            return offset < bytes.length ? bytes[offset++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (offset >= bytes.length) return -1;
+            final int n = Math.min(len, bytes.length - offset);
+            System.arraycopy(bytes, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * The state of this node's end of the channel handing zaps from a serving
+ * node to a zap worker.
+ */
+public final class ZapChannelStatus implements TranslatorAware {
+    /** Either "writer", on a serving node, or "reader", on a zap worker. */
+    public final String end;
+    public final String directory;
+    /** The number of zaps appended or read since the start. */
+    public final long zapCount;
+    /** The number of zaps that could not be appended, or of damaged records skipped. */
+    public final long failureCount;
+    public final int segmentCount;
+    /** How many bytes of appended zaps are yet to be read. */
+    public final long backlogBytes;
+
+    ZapChannelStatus(final String end, final String directory, final long zapCount, final long failureCount, final int segmentCount, final long backlogBytes) {
+        this.end = end;
+        this.directory = directory;
+        this.zapCount = zapCount;
+        this.failureCount = failureCount;
+        this.segmentCount = segmentCount;
+        this.backlogBytes = backlogBytes;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("zapChannel");
+        translator.addKeyValue("end", end);
+        translator.addKeyValue("directory", directory);
+        translator.addKeyValue("zaps", zapCount);
+        translator.addKeyValue("failures", failureCount);
+        translator.addKeyValue("segments", segmentCount);
+        translator.addKeyValue("backlogBytes", backlogBytes);
+        translator.endObject();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The source of time and timers for zap processing. In production this is
+ * the wall clock with a timing wheel whose expired timers are run by the
+ * zap processing threads; a replay uses a virtual clock, so timers fire
+ * according to the replayed events instead of the wall clock.
+ *
+ * @see WheelZapClock
+ * @see VirtualZapClock
+ */
+interface ZapClock {
+    /**
+     * Returns the current time.
+     *
+     * @return the current time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * Schedules the listener to be invoked at the given time.
+     *
+     * @param millis when to invoke the listener
+     * @param listener the listener to invoke
+     */
+    void schedule(long millis, TimerListener listener);
+
+    /**
+     * Cancels a schedule made with {@link #schedule(long, TimerListener)}.
+     *
+     * @param millis the time that the listener was scheduled for
+     * @param listener the scheduled listener
+     */
+    void unschedule(long millis, TimerListener listener);
+
+    /**
+     * Starts firing timers. Timers may be scheduled before the clock is
+     * started; a clock that fires timers on its own fires them only after
+     * it is started.
+     *
+     * @param executor runs batches of expired timers, if the clock fires timers on its own
+     * @param release releases what the timers held for the calling thread, after the clock had to run a batch on its own thread because the executor failed to take it
+     */
+    void start(Executor executor, Runnable release);
+
+    /**
+     * Stops firing timers. Pending timers are kept.
+     */
+    void stop();
+
+    /**
+     * Returns the timer statistics.
+     *
+     * @param resetMaximum whether to restart measuring the maximum lag
+     * @return the timer statistics
+     */
+    ZapTimerStatus timerStatus(boolean resetMaximum);
+}
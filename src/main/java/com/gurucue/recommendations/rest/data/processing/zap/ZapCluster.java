@@ -0,0 +1,715 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.rest.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares zap processing among several nodes. Devices are assigned to the
+ * nodes with a {@link ZapPartitioner}, and a zap accepted by any node is
+ * forwarded to the node owning its device, so all zaps of a device are
+ * processed on the same node without the load balancer having to pin
+ * devices to nodes.
+ * <p>
+ * The nodes are listed in RECSRV_ZAP_CLUSTER_NODES as a comma-separated
+ * list of their base URLs, e.g.
+ * <code>http://10.0.0.1:8080/rest-api,http://10.0.0.2:8080/rest-api</code>,
+ * and RECSRV_ZAP_CLUSTER_SELF names this node with one of the listed URLs.
+ * The list and RECSRV_ZAP_CLUSTER_PARTITIONS must be equal on all nodes.
+ * Every node sends heartbeats to the other nodes, and the nodes answering
+ * them make up the membership. When the membership changes the partitions
+ * are reassigned, and the devices of partitions that moved to other nodes
+ * are handed off to their new owners, see
+ * {@link ZapProcessor#handOff(ZapPartitioner, String, java.util.function.BiConsumer)}.
+ * A node shutting down notifies the other nodes and hands off all of its
+ * devices before it stops.
+ * <p>
+ * Zaps are forwarded in batches to the <code>/rest/zap-cluster/zaps</code>
+ * interface of the owning node, in the format of zap state snapshots, so
+ * entities are resolved by their IDs on the receiving node. The nodes
+ * accept only requests carrying the shared secret configured with
+ * RECSRV_ZAP_CLUSTER_SECRET, as the interface is reachable by anyone who
+ * can reach the REST API; without a secret a node doesn't share zap
+ * processing and processes all zaps locally. A zap is forwarded at most {@link #MAX_HOPS}
+ * times, so nodes with momentarily different memberships don't pass it
+ * around in a loop.
+ * <p>
+ * Each node generates viewership from the devices it owns, so the figures
+ * of all nodes add up to the total figures. Several nodes can run on the
+ * same host, each on its own port and with its own
+ * RECSRV_ZAP_SNAPSHOT_FILE and RECSRV_VIEWERSHIP_STORE_DIR.
+ */
+final class ZapCluster implements Runnable {
+    private static final Logger log = LogManager.getLogger(ZapCluster.class);
+    /** The HTTP header carrying the shared secret. */
+    static final String SECRET_HEADER = "X-Zap-Cluster-Secret";
+    /** How many times a zap may be forwarded, after that it is processed by the node that has it. */
+    static final int MAX_HOPS = 2;
+    private static final int BATCH_MAGIC = 0x5A415046; // "ZAPF"
+    private static final int BATCH_VERSION = 1;
+    private static final int BATCH_LIMIT = 1000; // zaps per forwarded batch
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int FAILED_HEARTBEATS = 3; // a node is gone after this many unanswered heartbeats in a row
+    private static final int REJOIN_HEARTBEATS = 2; // a gone node rejoins after answering this many heartbeats in a row
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000L; // how long to wait at shutdown for the hand-off and the forwarded zaps
+
+    /** The base URL of this node. */
+    final String self;
+    private final ZapProcessor processor;
+    private final int partitionCount;
+    private final long heartbeatMillis;
+    private final int queueLimit;
+    private final String secret;
+    private final DataType deviceId;
+    /** All other configured nodes, by their base URLs. */
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final Object membershipLock = new Object();
+    /** The current assignment of devices to nodes, null while not running, when all zaps are processed locally. */
+    private volatile ZapPartitioner partitioner = null;
+    private volatile boolean running = false;
+    private volatile boolean leaving = false;
+    private Thread heartbeatThread;
+    private volatile long membershipChangeCount = 0L; // written only while holding membershipLock
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong handedOffCount = new AtomicLong();
+
+    ZapCluster(final ZapProcessor processor, final String self, final List<String> nodes, final int partitionCount, final long heartbeatMillis, final int queueLimit, final String secret) throws MalformedURLException {
+        this.processor = processor;
+        this.self = self;
+        this.partitionCount = partitionCount;
+        this.heartbeatMillis = heartbeatMillis;
+        this.queueLimit = queueLimit;
+        this.secret = secret;
+        this.deviceId = processor.data.dataTypeCodes().deviceId;
+        for (final String node : nodes) {
+            if (!node.equals(self)) peers.put(node, new Peer(node));
+        }
+    }
+
+    /**
+     * Creates the sharing of zap processing configured with the
+     * environment, if there are other nodes configured.
+     *
+     * @param processor the local zap processor
+     * @return the sharing of zap processing, or null if this node processes all zaps alone
+     */
+    static ZapCluster fromConfiguration(final ZapProcessor processor) {
+        final String nodeList = Configuration.getString("RECSRV_ZAP_CLUSTER_NODES", "none");
+        if ("none".equalsIgnoreCase(nodeList)) return null;
+        final List<String> nodes = new ArrayList<>();
+        for (final String node : nodeList.split(",")) {
+            final String url = baseUrl(node);
+            if ((url.length() > 0) && !nodes.contains(url)) nodes.add(url);
+        }
+        final String self = baseUrl(Configuration.getString("RECSRV_ZAP_CLUSTER_SELF", ""));
+        if (!nodes.contains(self)) {
+            log.error("Processing all zaps locally: RECSRV_ZAP_CLUSTER_SELF (\"" + self + "\") is not one of the nodes in RECSRV_ZAP_CLUSTER_NODES");
+            return null;
+        }
+        if (nodes.size() < 2) {
+            log.info("Processing all zaps locally: there are no other nodes in RECSRV_ZAP_CLUSTER_NODES");
+            return null;
+        }
+        final int partitionCount = (int) Math.min(Math.max(Configuration.getLong("RECSRV_ZAP_CLUSTER_PARTITIONS", 1024L), 1L), 1048576L);
+        final long heartbeatMillis = Math.max(Configuration.getLong("RECSRV_ZAP_CLUSTER_HEARTBEAT_SECONDS", 5L), 1L) * 1000L;
+        final int queueLimit = (int) Math.min(Math.max(Configuration.getLong("RECSRV_ZAP_CLUSTER_QUEUE_LIMIT", 100000L), BATCH_LIMIT), Integer.MAX_VALUE);
+        final String secret = Configuration.getString("RECSRV_ZAP_CLUSTER_SECRET", "");
+        if (secret.isEmpty()) {
+            log.error("Processing all zaps locally: RECSRV_ZAP_CLUSTER_SECRET is not set, without it anyone could forward zaps to this node and change its membership");
+            return null;
+        }
+        try {
+            final ZapCluster cluster = new ZapCluster(processor, self, nodes, partitionCount, heartbeatMillis, queueLimit, secret);
+            log.info("Sharing zap processing as " + self + " with " + (nodes.size() - 1) + " other nodes in " + partitionCount + " partitions, heartbeat every " + (heartbeatMillis / 1000L) + " s, at most " + queueLimit + " zaps queued per node");
+            return cluster;
+        }
+        catch (MalformedURLException e) {
+            log.error("Processing all zaps locally: invalid node URL in RECSRV_ZAP_CLUSTER_NODES: " + e.toString(), e);
+            return null;
+        }
+    }
+
+    private static String baseUrl(final String url) {
+        String result = url.trim();
+        while (result.endsWith("/")) result = result.substring(0, result.length() - 1);
+        return result;
+    }
+
+    /**
+     * Finds out which nodes are up, assigns the partitions and starts the
+     * heartbeats. Devices restored from a snapshot that now belong to other
+     * nodes are handed off to them. Must be invoked after the local zap
+     * processor is started.
+     */
+    void start() {
+        synchronized (membershipLock) {
+            if (running) throw new IllegalStateException("Zap processing is already shared");
+            running = true;
+            leaving = false;
+        }
+        for (final Peer peer : peers.values()) {
+            peer.alive = ping(peer);
+            peer.thread = new Thread(peer, "Zap forwarding to " + peer.node);
+            peer.thread.start();
+        }
+        if (updateMembership("startup")) handOff();
+        heartbeatThread = new Thread(this, "Zap cluster heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    /**
+     * Leaves zap processing before a shutdown: notifies the other nodes,
+     * hands off all devices, and waits for the zaps queued for forwarding
+     * to be delivered. Zaps accepted afterwards are forwarded too.
+     */
+    void leave() {
+        if (!running) return;
+        leaving = true;
+        for (final Peer peer : peers.values()) {
+            if (peer.alive) notifyLeaving(peer); // so it stops forwarding zaps here
+        }
+        final long deadlineMillis = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        if (updateMembership("leaving")) {
+            try {
+                if (!handOff().await(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) log.warn("Timed out waiting for the hand-off of devices to other nodes");
+            }
+            catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for the hand-off of devices to other nodes");
+            }
+        }
+        for (final Peer peer : peers.values()) peer.awaitDelivery(deadlineMillis);
+    }
+
+    /**
+     * Stops the heartbeats and the forwarding. Any zaps accepted afterwards
+     * are processed locally.
+     */
+    void stop() {
+        synchronized (membershipLock) {
+            if (!running) return;
+            running = false;
+            partitioner = null;
+        }
+        heartbeatThread.interrupt();
+        try {
+            heartbeatThread.join();
+        }
+        catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the zap cluster heartbeat thread to exit");
+        }
+        for (final Peer peer : peers.values()) {
+            synchronized (peer.queue) {
+                peer.queue.notifyAll();
+            }
+            try {
+                peer.thread.join();
+            }
+            catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for the zap forwarding thread of " + peer.node + " to exit");
+            }
+        }
+    }
+
+    /**
+     * Whether this node currently takes part in zap processing and accepts
+     * forwarded zaps.
+     *
+     * @return whether this node is a member
+     */
+    boolean isMember() {
+        return running && !leaving && processor.running;
+    }
+
+    /**
+     * Checks the shared secret presented with a request from another node.
+     *
+     * @param presentedSecret the secret from the request, may be null
+     * @return whether the request may be served
+     */
+    boolean authorizes(final String presentedSecret) {
+        if (presentedSecret == null) return false;
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), presentedSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Submits a zap accepted by this node to the node owning its device.
+     *
+     * @param event the zap
+     */
+    void submit(final ConsumerEvent event) {
+        route(event, 0);
+    }
+
+    /**
+     * Processes the zap locally if this node owns its device, or if it was
+     * forwarded too many times already, otherwise forwards it to the owner.
+     *
+     * @param event the zap
+     * @param hops how many times the zap was forwarded already
+     */
+    private void route(final ConsumerEvent event, final int hops) {
+        final ZapPartitioner partitioner = this.partitioner;
+        if ((partitioner != null) && (hops < MAX_HOPS)) {
+            final String zapKey = ZapProcessor.zapKey(event, deviceId);
+            if (zapKey != null) {
+                final String node = partitioner.ownerOf(zapKey);
+                if ((node != null) && !node.equals(self)) {
+                    forward(node, event, hops);
+                    return;
+                }
+            }
+        }
+        processor.submit(event);
+    }
+
+    /**
+     * Queues a zap for forwarding to the given node. Blocks while the queue
+     * of the node is full. If the node is gone, the zap is routed anew.
+     *
+     * @param node the node to forward the zap to
+     * @param event the zap
+     * @param hops how many times the zap was forwarded already
+     */
+    private void forward(final String node, final ConsumerEvent event, final int hops) {
+        final Peer peer = peers.get(node);
+        if (peer != null) {
+            synchronized (peer.queue) {
+                while (peer.alive && running && (peer.queue.size() >= queueLimit)) {
+                    try {
+                        peer.queue.wait(1000L);
+                    }
+                    catch (InterruptedException e) {
+                        log.warn("Interrupted while waiting to queue a zap for forwarding to " + node);
+                    }
+                }
+                if (peer.alive && running) {
+                    peer.queue.add(new Forward(event, hops));
+                    peer.queue.notifyAll();
+                    return;
+                }
+            }
+        }
+        route(event, hops + 1); // the node went away in the meantime
+    }
+
+    /**
+     * Reads a batch of zaps forwarded by another node, and routes them.
+     *
+     * @param input the batch
+     * @return the number of zaps in the batch
+     * @throws IOException if the batch cannot be read
+     */
+    int receive(final InputStream input) throws IOException {
+        final ConsumerEvent[] events;
+        final int[] hops;
+        try {
+            final ZapSnapshot.Reader in = new ZapSnapshot.Reader(new DataInputStream(new BufferedInputStream(input, 65536)), processor.data);
+            if (in.readInt() != BATCH_MAGIC) throw new IOException("Not a batch of forwarded zaps");
+            final int version = in.readInt();
+            if (version != BATCH_VERSION) throw new IOException("Unsupported version of forwarded zaps: " + version);
+            in.readString(); // the sender
+            final int count = in.readInt();
+            if ((count < 0) || (count > BATCH_LIMIT)) throw new IOException("Invalid number of forwarded zaps: " + count);
+            events = new ConsumerEvent[count];
+            hops = new int[count];
+            for (int i = 0; i < count; i++) {
+                hops[i] = in.readByte();
+                events[i] = in.readEvent();
+            }
+        }
+        finally {
+            processor.data.release(); // a servlet thread, don't keep the lookups' resources
+        }
+        receivedCount.addAndGet(events.length);
+        for (int i = 0; i < events.length; i++) {
+            if (events[i] != null) route(events[i], hops[i] + 1);
+        }
+        return events.length;
+    }
+
+    /**
+     * Handles the notification of another node that it is leaving.
+     *
+     * @param node the leaving node
+     */
+    void nodeLeft(final String node) {
+        final Peer peer = peers.get(baseUrl(node));
+        if (peer == null) {
+            log.warn("An unknown node is leaving zap processing: " + node);
+            return;
+        }
+        log.info("Node " + peer.node + " is leaving zap processing");
+        peer.alive = false;
+        if (updateMembership("node " + peer.node + " left")) handOff();
+    }
+
+    /**
+     * The body of the heartbeat thread. Checks the other nodes
+     * periodically, and updates the membership with nodes that went away
+     * or came back.
+     */
+    @Override
+    public void run() {
+        log.info("Zap cluster heartbeat started");
+        while (running) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            }
+            catch (InterruptedException e) {
+                continue; // stopping
+            }
+            boolean changed = false;
+            for (final Peer peer : peers.values()) {
+                if (ping(peer)) {
+                    peer.failures = 0;
+                    if (peer.alive) peer.successes = 0;
+                    else if (++peer.successes >= REJOIN_HEARTBEATS) {
+                        log.info("Node " + peer.node + " joined zap processing");
+                        peer.alive = true;
+                        changed = true;
+                    }
+                }
+                else {
+                    peer.successes = 0;
+                    if (peer.alive && (++peer.failures >= FAILED_HEARTBEATS)) {
+                        log.warn("Node " + peer.node + " did not answer " + FAILED_HEARTBEATS + " heartbeats, it is gone from zap processing");
+                        peer.alive = false;
+                        changed = true;
+                    }
+                }
+            }
+            if (changed && updateMembership("heartbeat")) handOff();
+        }
+        log.info("Zap cluster heartbeat exiting");
+    }
+
+    /**
+     * Reassigns the partitions, if the membership changed.
+     *
+     * @param reason what caused the update, for the log
+     * @return whether this node has devices to hand off
+     */
+    private boolean updateMembership(final String reason) {
+        synchronized (membershipLock) {
+            if (!running) return false;
+            final List<String> members = new ArrayList<>(peers.size() + 1);
+            if (!leaving) members.add(self);
+            for (final Peer peer : peers.values()) {
+                if (peer.alive) members.add(peer.node);
+            }
+            final ZapPartitioner previous = partitioner;
+            final ZapPartitioner next = new ZapPartitioner(members, partitionCount);
+            if ((previous != null) && previous.nodes().equals(next.nodes())) return false;
+            partitioner = next;
+            membershipChangeCount++;
+            final int lostCount = previous == null ? 0 : previous.lostCount(self, next);
+            final StringBuilder logBuilder = new StringBuilder(256);
+            logBuilder.append("Zap processing membership changed (").append(reason).append("): ")
+                    .append(next.nodes().size()).append(" nodes ").append(next.nodes())
+                    .append(", this node owns ").append(next.ownedCount(self)).append(" of ").append(partitionCount)
+                    .append(" partitions");
+            if (lostCount > 0) logBuilder.append(", handing off ").append(lostCount).append(" partitions");
+            log.info(logBuilder.toString());
+            return (previous == null) || (lostCount > 0); // at startup, restored devices may belong to other nodes
+        }
+    }
+
+    /**
+     * Hands off the devices that belong to other nodes under the current
+     * assignment, on a processing thread.
+     *
+     * @return signalled when the hand-off is done
+     */
+    private CountDownLatch handOff() {
+        final CountDownLatch done = new CountDownLatch(1);
+        processor.runOnProcessingThread(() -> {
+            try {
+                final ZapPartitioner partitioner = this.partitioner; // the latest assignment, also when superseded since
+                if (partitioner == null) return;
+                final long startNano = System.nanoTime();
+                final int count = processor.handOff(partitioner, self, (final String node, final ConsumerEvent event) -> forward(node, event, 0));
+                handedOffCount.addAndGet(count);
+                log.info("Handed off " + count + " devices to other nodes in " + (System.nanoTime() - startNano) + " ns");
+            }
+            catch (RuntimeException e) {
+                log.error("Failed to hand off devices to other nodes: " + e.toString(), e);
+            }
+            finally {
+                done.countDown();
+            }
+        });
+        return done;
+    }
+
+    ZapClusterStatus status() {
+        final ZapPartitioner partitioner = this.partitioner;
+        int pendingForwards = 0;
+        for (final Peer peer : peers.values()) {
+            synchronized (peer.queue) {
+                pendingForwards += peer.queue.size();
+            }
+        }
+        return new ZapClusterStatus(self, partitioner == null ? "" : String.join(",", partitioner.nodes()), leaving, partitionCount,
+                partitioner == null ? 0 : partitioner.ownedCount(self), membershipChangeCount, forwardedCount.get(),
+                receivedCount.get(), pendingForwards, handedOffCount.get());
+    }
+
+    void logStatistics() {
+        final ZapClusterStatus status = status();
+        final StringBuilder logBuilder = new StringBuilder(200);
+        logBuilder.append("Zap cluster members: ").append(status.members)
+                .append(", owned partitions: ").append(status.ownedPartitions)
+                .append(", forwarded zaps: ").append(status.forwardedZaps)
+                .append(", received zaps: ").append(status.receivedZaps)
+                .append(", pending forwards: ").append(status.pendingForwards)
+                .append(", handed off devices: ").append(status.handedOffDevices);
+        log.info(logBuilder.toString());
+    }
+
+    private HttpURLConnection open(final URL url, final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(SECRET_HEADER, secret);
+        return connection;
+    }
+
+    /**
+     * Reads the rest of the response, so the connection can be reused.
+     */
+    private static void consume(final HttpURLConnection connection, final int status) {
+        try {
+            final InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null) return;
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {}
+            in.close();
+        }
+        catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    private boolean ping(final Peer peer) {
+        try {
+            final HttpURLConnection connection = open(peer.pingUrl, "GET");
+            final int status = connection.getResponseCode();
+            consume(connection, status);
+            return status == HttpURLConnection.HTTP_OK;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void notifyLeaving(final Peer peer) {
+        try {
+            final byte[] body = self.getBytes(StandardCharsets.UTF_8);
+            final HttpURLConnection connection = open(peer.leaveUrl, "POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (final OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            final int status = connection.getResponseCode();
+            consume(connection, status);
+            if (status >= 300) log.warn("Node " + peer.node + " refused the notification of leaving zap processing: HTTP status " + status);
+        }
+        catch (IOException e) {
+            log.warn("Failed to notify node " + peer.node + " of leaving zap processing: " + e.toString());
+        }
+    }
+
+    /**
+     * Sends a batch of zaps to the given node.
+     *
+     * @param peer the node
+     * @param batch the zaps
+     * @throws IOException if the node could not be reached or refused the zaps
+     */
+    private void send(final Peer peer, final List<Forward> batch) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 256);
+        writeBatch(batch, bytes);
+        final HttpURLConnection connection = open(peer.zapsUrl, "POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setFixedLengthStreamingMode(bytes.size());
+        try (final OutputStream os = connection.getOutputStream()) {
+            bytes.writeTo(os);
+        }
+        final int status = connection.getResponseCode();
+        consume(connection, status);
+        if (status >= 300) throw new IOException("HTTP status " + status);
+    }
+
+    /**
+     * Encodes a batch of zaps, as read by {@link #receive(InputStream)}.
+     *
+     * @param batch the zaps
+     * @param output where to write the batch to, closed afterwards
+     * @throws IOException if writing fails
+     */
+    void writeBatch(final List<Forward> batch, final OutputStream output) throws IOException {
+        final ZapSnapshot.Writer out = new ZapSnapshot.Writer(new DataOutputStream(output));
+        out.writeInt(BATCH_MAGIC);
+        out.writeInt(BATCH_VERSION);
+        out.writeString(self);
+        out.writeInt(batch.size());
+        for (final Forward forward : batch) {
+            out.writeByte(forward.hops);
+            out.writeEvent(forward.event);
+        }
+        out.close();
+    }
+
+    /**
+     * A zap queued for forwarding.
+     */
+    static final class Forward {
+        final ConsumerEvent event;
+        final int hops;
+
+        Forward(final ConsumerEvent event, final int hops) {
+            this.event = event;
+            this.hops = hops;
+        }
+    }
+
+    /**
+     * Another node: its membership state and the queue of zaps to forward
+     * to it, with the thread sending them.
+     */
+    private final class Peer implements Runnable {
+        final String node;
+        final URL pingUrl;
+        final URL zapsUrl;
+        final URL leaveUrl;
+        final ArrayDeque<Forward> queue = new ArrayDeque<>(); // access must be guarded with synchronized(queue)
+        private boolean sending = false; // access must be guarded with synchronized(queue)
+        volatile boolean alive = false;
+        int successes = 0; // accessed only by the heartbeat thread
+        int failures = 0; // accessed only by the heartbeat thread
+        Thread thread;
+
+        Peer(final String node) throws MalformedURLException {
+            this.node = node;
+            this.pingUrl = new URL(node + "/rest/zap-cluster");
+            this.zapsUrl = new URL(node + "/rest/zap-cluster/zaps");
+            this.leaveUrl = new URL(node + "/rest/zap-cluster/leave");
+        }
+
+        /**
+         * The body of the forwarding thread. Sends the queued zaps in
+         * batches. When the node cannot be reached, it is considered gone,
+         * and the zaps are routed anew.
+         */
+        @Override
+        public void run() {
+            final List<Forward> batch = new ArrayList<>(BATCH_LIMIT);
+            for (;;) {
+                synchronized (queue) {
+                    sending = false;
+                    queue.notifyAll();
+                    while (queue.isEmpty()) {
+                        if (!running) return;
+                        try {
+                            queue.wait();
+                        }
+                        catch (InterruptedException e) {
+                            log.warn("Interrupted while waiting for zaps to forward to " + node);
+                        }
+                    }
+                    for (int i = BATCH_LIMIT; (i > 0) && !queue.isEmpty(); i--) batch.add(queue.poll());
+                    sending = true;
+                    queue.notifyAll(); // there is room in the queue
+                }
+                try {
+                    send(this, batch);
+                    forwardedCount.addAndGet(batch.size());
+                }
+                catch (IOException | RuntimeException e) {
+                    log.warn("Failed to forward " + batch.size() + " zaps to " + node + ", it is gone from zap processing: " + e.toString());
+                    alive = false;
+                    updateMembership("forwarding to " + node + " failed"); // can't lose partitions, so there's nothing to hand off
+                    synchronized (queue) {
+                        batch.addAll(queue);
+                        queue.clear();
+                    }
+                    for (final Forward forward : batch) route(forward.event, forward.hops + 1);
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Waits until the queued zaps are sent, or the given time.
+         *
+         * @param deadlineMillis until when to wait at most
+         */
+        void awaitDelivery(final long deadlineMillis) {
+            synchronized (queue) {
+                while (sending || !queue.isEmpty()) {
+                    final long waitMillis = deadlineMillis - System.currentTimeMillis();
+                    if (waitMillis <= 0L) {
+                        log.warn("Timed out waiting to forward " + queue.size() + " zaps to " + node);
+                        return;
+                    }
+                    try {
+                        queue.wait(waitMillis);
+                    }
+                    catch (InterruptedException e) {
+                        log.warn("Interrupted while waiting to forward zaps to " + node);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * The state of zap processing shared with other nodes, as seen by this
+ * node.
+ */
+public final class ZapClusterStatus implements TranslatorAware {
+    public final String node;
+    /** The nodes currently sharing zap processing, separated by commas. */
+    public final String members;
+    public final boolean leaving;
+    public final int partitionCount;
+    public final int ownedPartitions;
+    public final long membershipChanges;
+    public final long forwardedZaps;
+    public final long receivedZaps;
+    public final int pendingForwards;
+    public final long handedOffDevices;
+
+    ZapClusterStatus(final String node, final String members, final boolean leaving, final int partitionCount, final int ownedPartitions, final long membershipChanges, final long forwardedZaps, final long receivedZaps, final int pendingForwards, final long handedOffDevices) {
+        this.node = node;
+        this.members = members;
+        this.leaving = leaving;
+        this.partitionCount = partitionCount;
+        this.ownedPartitions = ownedPartitions;
+        this.membershipChanges = membershipChanges;
+        this.forwardedZaps = forwardedZaps;
+        this.receivedZaps = receivedZaps;
+        this.pendingForwards = pendingForwards;
+        this.handedOffDevices = handedOffDevices;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("zapCluster");
+        translator.addKeyValue("node", node);
+        translator.addKeyValue("members", members);
+        translator.addKeyValue("leaving", leaving);
+        translator.addKeyValue("partitions", partitionCount);
+        translator.addKeyValue("ownedPartitions", ownedPartitions);
+        translator.addKeyValue("membershipChanges", membershipChanges);
+        translator.addKeyValue("forwardedZaps", forwardedZaps);
+        translator.addKeyValue("receivedZaps", receivedZaps);
+        translator.addKeyValue("pendingForwards", pendingForwards);
+        translator.addKeyValue("handedOffDevices", handedOffDevices);
+        translator.endObject();
+    }
+}
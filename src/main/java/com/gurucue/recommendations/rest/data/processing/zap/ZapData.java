@@ -0,0 +1,118 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The data that zap processing reads and the events that it produces. In
+ * production these go through the {@link com.gurucue.recommendations.data.DataManager};
+ * a replay may use an in-memory implementation instead.
+ *
+ * @see DatabaseZapData
+ */
+interface ZapData {
+    DataTypeCodes dataTypeCodes();
+
+    ConsumerEventTypeCodes consumerEventTypeCodes();
+
+    ProductTypeCodes productTypeCodes();
+
+    /**
+     * Invokes the action for every tv-channel of every partner.
+     *
+     * @param action what to do with each tv-channel and its partner
+     */
+    void forEachTvChannel(BiConsumer<Partner, TvChannelProduct> action);
+
+    /**
+     * Returns the tv-programme airing on the given tv-channel at the given time.
+     *
+     * @param partner the partner of the tv-channel
+     * @param tvChannel the tv-channel
+     * @param millis the time
+     * @return the tv-programme, or null if there is none
+     */
+    TvProgrammeProduct tvProgrammeAt(Partner partner, TvChannelProduct tvChannel, long millis);
+
+    /**
+     * Returns the first tv-programme that begins on the given tv-channel after the given time.
+     *
+     * @param partner the partner of the tv-channel
+     * @param tvChannel the tv-channel
+     * @param millis the time
+     * @return the tv-programme, or null if there is none
+     */
+    TvProgrammeProduct firstTvProgrammeAfter(Partner partner, TvChannelProduct tvChannel, long millis);
+
+    /**
+     * Returns all the partners, to resolve the partner references of a snapshot.
+     *
+     * @return the partners
+     */
+    List<Partner> partners();
+
+    /**
+     * Returns the product with the given ID, to resolve the product references of a snapshot.
+     *
+     * @param partner the partner of the product
+     * @param id the ID of the product
+     * @return the product, or null if it doesn't exist
+     */
+    Product product(Partner partner, long id);
+
+    /**
+     * Stores an event produced by zap processing: a consumption or viewership.
+     *
+     * @param event the event to store
+     * @throws InterruptedException if interrupted while waiting to store it
+     */
+    void emit(ConsumerEvent event) throws InterruptedException;
+
+    /**
+     * Called by a processing thread between two units of work, so that
+     * lookups of consecutive units can share resources, but not for long.
+     *
+     * @param idle whether the thread is about to wait for more work
+     */
+    void checkpoint(boolean idle);
+
+    /**
+     * Releases the resources held for the calling thread. Called by a
+     * processing thread when it exits.
+     */
+    void release();
+
+    /**
+     * Appends usage statistics to the periodic statistics log line.
+     *
+     * @param output where to append the statistics
+     */
+    void appendStatistics(StringBuilder output);
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns devices to the nodes sharing zap processing, by consistent
+ * hashing. A device belongs to one of a fixed number of partitions by the
+ * hash of its zap key, and a partition belongs to the node owning the
+ * first point on the hash ring at or after the partition's position. Each
+ * node has many points on the ring, so the partitions are spread evenly,
+ * and a node joining or leaving moves only the partitions it takes over or
+ * gives up. Nodes computing the assignment from the same nodes and the
+ * same partition count arrive at the same assignment.
+ */
+final class ZapPartitioner {
+    static final int POINTS_PER_NODE = 64;
+
+    final int partitionCount;
+    private final List<String> nodes;
+    private final String[] owners; // indexed by partition
+
+    /**
+     * Assigns the given number of partitions to the given nodes.
+     *
+     * @param nodes the nodes to assign the partitions to, may be empty
+     * @param partitionCount the number of partitions
+     */
+    ZapPartitioner(final Collection<String> nodes, final int partitionCount) {
+        if (partitionCount <= 0) throw new IllegalArgumentException("The partition count must be positive: " + partitionCount);
+        this.partitionCount = partitionCount;
+        final List<String> sortedNodes = new ArrayList<>(nodes);
+        Collections.sort(sortedNodes); // so a point claimed by two nodes goes to the same node everywhere
+        this.nodes = Collections.unmodifiableList(sortedNodes);
+        final TreeMap<Long, String> ring = new TreeMap<>();
+        for (final String node : sortedNodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                final long point = hash(node + "#" + i);
+                if (!ring.containsKey(point)) ring.put(point, node);
+            }
+        }
+        owners = new String[partitionCount];
+        if (ring.isEmpty()) return;
+        for (int partition = 0; partition < partitionCount; partition++) {
+            Map.Entry<Long, String> entry = ring.ceilingEntry(mix((partition + 1L) * 0x9E3779B97F4A7C15L));
+            if (entry == null) entry = ring.firstEntry(); // wrap around the ring
+            owners[partition] = entry.getValue();
+        }
+    }
+
+    /**
+     * Returns the partition of the device with the given zap key.
+     *
+     * @param zapKey the device ID, or the consumer's username for devices without an ID
+     * @return the partition of the device
+     */
+    int partitionOf(final String zapKey) {
+        return (int) ((hash(zapKey) >>> 1) % partitionCount);
+    }
+
+    /**
+     * Returns the node owning the given partition.
+     *
+     * @param partition the partition
+     * @return the owning node, or null if there are no nodes
+     */
+    String ownerOf(final int partition) {
+        return owners[partition];
+    }
+
+    /**
+     * Returns the node owning the device with the given zap key.
+     *
+     * @param zapKey the device ID, or the consumer's username for devices without an ID
+     * @return the owning node, or null if there are no nodes
+     */
+    String ownerOf(final String zapKey) {
+        return owners[partitionOf(zapKey)];
+    }
+
+    /**
+     * Returns the number of partitions owned by the given node.
+     *
+     * @param node the node
+     * @return the number of partitions owned
+     */
+    int ownedCount(final String node) {
+        int count = 0;
+        for (int partition = partitionCount - 1; partition >= 0; partition--) {
+            if (node.equals(owners[partition])) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of partitions owned by the given node here, but
+     * by another node in the given assignment.
+     *
+     * @param node the node
+     * @param next the next assignment, with the same number of partitions
+     * @return the number of partitions the node gives up
+     */
+    int lostCount(final String node, final ZapPartitioner next) {
+        int count = 0;
+        for (int partition = partitionCount - 1; partition >= 0; partition--) {
+            if (node.equals(owners[partition]) && !node.equals(next.owners[partition])) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the nodes taking part in the assignment, in their natural
+     * order.
+     *
+     * @return the nodes
+     */
+    List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Hashes the given string into 64 bits: FNV-1a of its characters,
+     * followed by a finalizing mix, so similar strings spread over the
+     * whole range.
+     *
+     * @param s the string to hash
+     * @return the hash
+     */
+    static long hash(final CharSequence s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -18,14 +18,11 @@
  */
 package com.gurucue.recommendations.rest.data.processing.zap;
 
-import com.gurucue.recommendations.Timer;
 import com.gurucue.recommendations.TimerListener;
-import com.gurucue.recommendations.Transaction;
 import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
-import com.gurucue.recommendations.data.DataLink;
-import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.data.DataTypeCodes;
 import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
 import com.gurucue.recommendations.entity.ConsumerEvent;
 import com.gurucue.recommendations.entity.ConsumerEventType;
 import com.gurucue.recommendations.entity.DataType;
@@ -34,28 +31,46 @@ import com.gurucue.recommendations.entity.product.Product;
 import com.gurucue.recommendations.entity.product.TvChannelProduct;
 import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
 import com.gurucue.recommendations.entity.product.VideoProduct;
+import com.gurucue.recommendations.rest.Configuration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 /**
  * The zap event processing threads. Maintains a single queue instance and
- * N threads that process the queued zap events.
+ * a pool of threads that process the queued zap events. The pool grows up
+ * to RECSRV_ZAP_THREADS_MAX threads when the queued zaps would take longer
+ * than RECSRV_ZAP_TARGET_DRAIN_MILLIS to process at the recent processing
+ * time per zap, and shrinks down to RECSRV_ZAP_THREADS_MIN threads when
+ * threads find no work for RECSRV_ZAP_THREAD_IDLE_SECONDS. Zaps of a device
+ * are never processed concurrently: a zap of a device whose zap is being
+ * processed waits for it, and is processed next by the same thread.
  */
 final class ZapProcessor implements Runnable, TimerListener {
     private static final Logger log = LogManager.getLogger(ZapProcessor.class);
     public static final long CONSUMPTION_FLUSH_INTERVAL = 60000L; // 1 minute
     public static final long ZAP_PURGE_INTERVAL = 1800000L; // 30 minutes, must be a multiple of CONSUMPTION_FLUSH_INTERVAL because there is only one timer
+    public static final long MEMORY_CHECK_INTERVAL = 300000L; // 5 minutes, must be a multiple of CONSUMPTION_FLUSH_INTERVAL because there is only one timer
     public static final long VIEWERSHIP_INTERVAL = 300000L; // 5 minutes
     public static final int STAT_MINUTES_COUNT = 60; // for how many STAT_RESOLUTION_MILLIS in the past to do the statistics
     public static final int STAT_MINUTES_WINDOW = 10; // the window, in STAT_RESOLUTION_MILLIS
@@ -63,11 +78,15 @@ final class ZapProcessor implements Runnable, TimerListener {
 
     // queueing stuff
     private static final int QUEUE_LIMIT = 100000;
+    private static final long GROWTH_INTERVAL_NANOS = 100000000L; // 100 ms, the pool grows by at most a thread this often
     private final Lock lock = new ReentrantLock();
     private final Condition elementAdded = lock.newCondition();
     private final Condition elementRemoved = lock.newCondition();
+    private final Condition deviceReleased = lock.newCondition();
     private final LinkedList<ConsumerEvent> queue = new LinkedList<>();
-    private int queueSize;
+    /** Batches of expired timers, run by the processing threads before any queued zaps. */
+    private final LinkedList<Runnable> timerBatches = new LinkedList<>();
+    private volatile int queueSize; // zaps not yet being processed, including those waiting for their device; read without the lock by admits()
     private int submitted;
     private int consumed;
     boolean running = false;
@@ -75,80 +94,275 @@ final class ZapProcessor implements Runnable, TimerListener {
 
     // processing stuff
     private final ConsumerEventProcessor owner;
+    /** The source of time and timers, the wall clock except in a replay. */
+    final ZapClock clock;
+    /** Where tv-programmes are looked up and produced events are stored. */
+    final ZapData data;
     /**
      * Maps tv-channel IDs to tv-channel state instances, for live-tv zap processing.
      */
-    private final ConcurrentHashMap<Long, TvChannelState> tvChannelStates = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Long, TvChannelState> tvChannelStates = new ConcurrentHashMap<>();
     /**
-     * Maps device IDs to device states.
+     * Maps device IDs to device states, and assigns the device codes that
+     * the rest of the zap state uses to refer to devices.
      */
-    final ConcurrentHashMap<String, DeviceState> events = new ConcurrentHashMap<>(); // device-id/consumer-id -> deviceState
+    final DeviceDictionary<DeviceState> events = new DeviceDictionary<>(); // device-id/consumer-id -> device code -> deviceState
+    /**
+     * Live viewer counts per tv-channel and tv-programme.
+     */
+    final LiveViewership liveViewership = new LiveViewership();
     private final long idForZap;
     private final long idForDeviceId;
     private final long idForStatus;
     private final long idForTvChannel;
     private final DataType deviceId;
+    private final DataType deviceType;
 
     private long timerMillis;
-    private final Thread[] threads = new Thread[10];
 
-    // delay statistics stuff, use synchronized(this) to access
-    int[][] delayStatistics = new int[STAT_MINUTES_WINDOW][STAT_MINUTES_COUNT];
-    int currentWindowIndex;
-    long nextWindowTimestamp;
+    // the elastic pool of processing threads, guarded by the lock
+    private final int minThreadCount;
+    private final int maxThreadCount;
+    private final List<Thread> threads = new ArrayList<>();
+    private int idleThreadCount = 0; // threads waiting for work
+    private int threadSequence = 0; // numbers the threads, for their names
+    private long lastGrowthNano = 0L;
+    private int grownCount = 0; // since the last statistics
+    private int shrunkCount = 0; // since the last statistics
+    /** A thread above the minimum exits after waiting for work for this long. */
+    private final long threadIdleNanos;
+    /** A thread is added when the queued zaps would take the threads longer than this to process. */
+    private final long targetDrainNanos;
+    /** The moving average of the time to process a zap; updated by the threads without synchronization, losing an update now and then doesn't matter. */
+    private volatile long serviceNanos = 100000L;
+    /** Devices with a zap being processed, mapped to their zaps that wait for it, or to null if there are none. */
+    private final HashMap<String, ArrayDeque<ConsumerEvent>> busyDevices = new HashMap<>();
+    /** Above this many queued zaps, producers that can retry later are turned away, see {@link #admits()}. */
+    private final int queueSoftLimit;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    /** Serializes hand-offs, each holds the devices it hands off until it is done. */
+    private final Object handOffLock = new Object();
+    /** Timer batches run concurrently, but a flush cycle must not overlap with the previous one. */
+    private final AtomicBoolean flushCycleRunning = new AtomicBoolean(false);
+
+    // delay statistics, updated by the processing threads without locking, and the buffering delays tuned from them
+    private final BufferingDelays bufferingDelays;
+
+    // device state bookkeeping
+    /** For how long a device must not zap before it is evicted, in milliseconds. */
+    final long deviceIdleMillis;
+    /** When the estimated memory used by device states exceeds this, the least active devices are evicted. */
+    private final long memoryBudgetBytes;
+    private volatile int deviceCount = 0;
+    private volatile long estimatedDeviceBytes = 0L;
+    private volatile long idleEvictionCount = 0L; // written only by the timer
+    private volatile long pressureEvictionCount = 0L; // written only by the timer
+    private long lastMemoryCheckTimestamp = 0L; // must be accessed while holding the lock
+    /** Devices with collected catch-up/VoD zaps, ordered by when they are to be flushed. */
+    final DeadlineQueue<DeviceState> flushDeadlines = new DeadlineQueue<>();
+    /** Devices ordered by when they become idle for long enough to be evicted. */
+    private final DeadlineQueue<DeviceState> idleDeadlines = new DeadlineQueue<>();
+
+    // zap state snapshots
+    /** Where to save the zap state to and restore it from, null if disabled. */
+    private final File snapshotFile;
+    /** How often to save the zap state while running, in milliseconds, 0 to save it only at shutdown. */
+    private final long snapshotIntervalMillis;
+    /** Snapshots older than this are not restored, in milliseconds. */
+    private final long snapshotMaxAgeMillis;
+    private long lastSnapshotTimestamp = 0L; // must be accessed while holding the lock
+    private final Object snapshotLock = new Object(); // serializes saving, a periodic save may coincide with the shutdown
 
-    volatile long currentBufferingDelayMillis = 5L * 60L * 1000L; // initial buffering delay: 5 minutes
-    volatile long currentStatDelayMillis = currentBufferingDelayMillis; // multiple of VIEWERSHIP_INTERVAL, exact or first next value from currentBufferingDelayMillis
+    /** Where the generated viewership figures are kept for range queries, null if disabled. */
+    final ViewershipStore viewershipStore;
+
+    /** Where the decisions of zap processing are recorded, null if disabled. */
+    final ZapAudit audit;
+
+    volatile long currentStatDelayMillis; // multiple of VIEWERSHIP_INTERVAL, exact or first next value from the longest buffering delay of any partner
 
     ZapProcessor(final ConsumerEventProcessor owner) {
+        this(owner, new WheelZapClock(), DatabaseZapData.INSTANCE, (int) Math.max(Configuration.getLong("RECSRV_ZAP_THREADS_MAX", 10L), 1L), Configuration.getString("RECSRV_ZAP_SNAPSHOT_FILE", "none"), createViewershipStore(), ZapAudit.fromConfiguration());
+    }
+
+    /**
+     * How the pool of processing threads grows and shrinks, and when zaps are
+     * turned away.
+     */
+    static final class PoolSettings {
+        final int minThreadCount;
+        final long threadIdleNanos;
+        final long targetDrainNanos;
+        final int queueSoftLimit;
+
+        /**
+         * @param minThreadCount the number of processing threads kept without work, at least 1
+         * @param threadIdleNanos a thread above the minimum exits after waiting for work for this long
+         * @param targetDrainNanos a thread is added when the queued zaps would take the threads longer than this to process
+         * @param queueSoftLimit above this many queued zaps, producers that can retry later are turned away, at most the hard limit of the queue
+         */
+        PoolSettings(final int minThreadCount, final long threadIdleNanos, final long targetDrainNanos, final int queueSoftLimit) {
+            this.minThreadCount = minThreadCount;
+            this.threadIdleNanos = threadIdleNanos;
+            this.targetDrainNanos = targetDrainNanos;
+            this.queueSoftLimit = queueSoftLimit;
+        }
+
+        /**
+         * Returns the settings configured with the environment.
+         *
+         * @return the settings
+         */
+        static PoolSettings fromConfiguration() {
+            return new PoolSettings(
+                    (int) Math.min(Math.max(Configuration.getLong("RECSRV_ZAP_THREADS_MIN", 2L), 1L), QUEUE_LIMIT),
+                    Math.max(Configuration.getLong("RECSRV_ZAP_THREAD_IDLE_SECONDS", 60L), 1L) * 1000000000L,
+                    Math.max(Configuration.getLong("RECSRV_ZAP_TARGET_DRAIN_MILLIS", 1000L), 1L) * 1000000L,
+                    (int) Math.min(Math.max(Configuration.getLong("RECSRV_ZAP_QUEUE_SOFT_LIMIT", (QUEUE_LIMIT * 3L) / 4L), 1L), QUEUE_LIMIT)
+            );
+        }
+    }
+
+    /**
+     * Creates the viewership store configured with the environment. The store
+     * is disabled unless RECSRV_VIEWERSHIP_STORE_DIR is set.
+     *
+     * @return the viewership store, or null if disabled
+     */
+    private static ViewershipStore createViewershipStore() {
+        final String path = Configuration.getString("RECSRV_VIEWERSHIP_STORE_DIR", "none");
+        if ("none".equalsIgnoreCase(path)) {
+            log.info("The viewership store is disabled");
+            return null;
+        }
+        final int rawDays = (int) Configuration.getLong("RECSRV_VIEWERSHIP_RAW_DAYS", 7L);
+        final int retentionDays = (int) Configuration.getLong("RECSRV_VIEWERSHIP_RETENTION_DAYS", 400L);
+        log.info("Viewership store directory: " + path + ", samples kept for " + rawDays + " days, hourly figures for " + retentionDays + " days");
+        return new ViewershipStore(new File(path), rawDays, retentionDays);
+    }
+
+    /**
+     * Creates a zap processor with the given environment.
+     *
+     * @param owner the owner, may be null in a replay
+     * @param clock the source of time and timers
+     * @param data where to look up tv-programmes and store produced events
+     * @param maxThreadCount the maximum number of processing threads, 0 if events are processed with {@link #replay(ConsumerEvent)} instead
+     * @param snapshotPath the file to save the zap state to and restore it from, "none" to disable snapshots
+     * @param viewershipStore where to keep the generated viewership figures, null to not keep them
+     * @param audit where to record the decisions of zap processing, null to not record them
+     */
+    ZapProcessor(final ConsumerEventProcessor owner, final ZapClock clock, final ZapData data, final int maxThreadCount, final String snapshotPath, final ViewershipStore viewershipStore, final ZapAudit audit) {
+        this(owner, clock, data, maxThreadCount, PoolSettings.fromConfiguration(), snapshotPath, viewershipStore, audit);
+    }
+
+    /**
+     * Creates a zap processor with the given environment and sizing of the
+     * pool of processing threads.
+     *
+     * @param owner the owner, may be null in a replay
+     * @param clock the source of time and timers
+     * @param data where to look up tv-programmes and store produced events
+     * @param maxThreadCount the maximum number of processing threads, 0 if events are processed with {@link #replay(ConsumerEvent)} instead
+     * @param pool how the pool of processing threads grows and shrinks
+     * @param snapshotPath the file to save the zap state to and restore it from, "none" to disable snapshots
+     * @param viewershipStore where to keep the generated viewership figures, null to not keep them
+     * @param audit where to record the decisions of zap processing, null to not record them
+     */
+    ZapProcessor(final ConsumerEventProcessor owner, final ZapClock clock, final ZapData data, final int maxThreadCount, final PoolSettings pool, final String snapshotPath, final ViewershipStore viewershipStore, final ZapAudit audit) {
         this.owner = owner;
-        final DataTypeCodes dataTypeCodes = DataManager.getDataTypeCodes();
+        this.clock = clock;
+        this.data = data;
+        this.maxThreadCount = maxThreadCount;
+        this.minThreadCount = Math.min(pool.minThreadCount, maxThreadCount);
+        threadIdleNanos = pool.threadIdleNanos;
+        targetDrainNanos = pool.targetDrainNanos;
+        queueSoftLimit = pool.queueSoftLimit;
+        this.viewershipStore = viewershipStore;
+        this.audit = audit;
+        final DataTypeCodes dataTypeCodes = data.dataTypeCodes();
         idForDeviceId = dataTypeCodes.idForDeviceId;
         idForStatus = dataTypeCodes.idForStatus;
         deviceId = dataTypeCodes.deviceId;
-        final ConsumerEventTypeCodes consumerEventTypeCodes = DataManager.getConsumerEventTypeCodes();
+        deviceType = dataTypeCodes.deviceType;
+        final ConsumerEventTypeCodes consumerEventTypeCodes = data.consumerEventTypeCodes();
         idForZap = consumerEventTypeCodes.idForZap;
-        final ProductTypeCodes productTypeCodes = DataManager.getProductTypeCodes();
+        final ProductTypeCodes productTypeCodes = data.productTypeCodes();
         idForTvChannel = productTypeCodes.idForTvChannel;
+        // never evict a device that may still have zaps needed by purging or by tv-programmes that haven't ended yet
+        deviceIdleMillis = Math.max(Configuration.getLong("RECSRV_ZAP_DEVICE_IDLE_MINUTES", 360L) * 60000L, 2L * ZAP_PURGE_INTERVAL);
+        final long budgetMegabytes = Configuration.getLong("RECSRV_ZAP_MEMORY_BUDGET_MB", 0L);
+        memoryBudgetBytes = budgetMegabytes > 0L ? budgetMegabytes * 1048576L : Runtime.getRuntime().maxMemory() / 4L; // by default a quarter of the heap
+        if (maxThreadCount > 0) log.info("Zap processing threads: between " + minThreadCount + " and " + maxThreadCount + ", growing when the queue takes longer than " + (targetDrainNanos / 1000000L) + " ms to process, shrinking after " + (threadIdleNanos / 1000000000L) + " s without work; zaps are rejected above " + queueSoftLimit + " queued");
+        log.info("Evicting devices idle for " + (deviceIdleMillis / 60000L) + " minutes, device state memory budget: " + (memoryBudgetBytes / 1048576L) + " MB");
+        snapshotFile = "none".equalsIgnoreCase(snapshotPath) ? null : new File(snapshotPath);
+        snapshotIntervalMillis = Math.max(Configuration.getLong("RECSRV_ZAP_SNAPSHOT_MINUTES", 5L), 0L) * 60000L;
+        snapshotMaxAgeMillis = Configuration.getLong("RECSRV_ZAP_SNAPSHOT_MAX_AGE_MINUTES", 60L) * 60000L;
+        final int bufferingPercentile = (int) Math.min(Math.max(Configuration.getLong("RECSRV_ZAP_BUFFERING_PERCENTILE", 90L), 1L), 100L);
+        final long bufferingMarginMillis = Math.max(Configuration.getLong("RECSRV_ZAP_BUFFERING_MARGIN_SECONDS", 60L), 0L) * 1000L;
+        final long bufferingMinMillis = Math.max(Configuration.getLong("RECSRV_ZAP_BUFFERING_MIN_MINUTES", 5L), 1L) * 60000L;
+        final long bufferingMaxMillis = Math.min(Configuration.getLong("RECSRV_ZAP_BUFFERING_MAX_MINUTES", 30L) * 60000L, STAT_MINUTES_COUNT * STAT_RESOLUTION_MILLIS); // can't measure longer delays
+        final long bufferingMinEvents = Configuration.getLong("RECSRV_ZAP_BUFFERING_MIN_EVENTS", 100L);
+        bufferingDelays = new BufferingDelays(STAT_RESOLUTION_MILLIS, STAT_MINUTES_COUNT, STAT_MINUTES_WINDOW, bufferingPercentile, bufferingMarginMillis, bufferingMinMillis, bufferingMaxMillis, bufferingMinEvents);
+        currentStatDelayMillis = statDelayMillis(bufferingDelays.maxDelayMillis());
+        log.info("Zap buffering delay per partner: p" + bufferingPercentile + " of delivery delays plus " + (bufferingMarginMillis / 1000L) + " s, between " + (bufferingMinMillis / 60000L) + " and " + (bufferingMaxMillis / 60000L) + " minutes, tuned from at least " + bufferingMinEvents + " events in " + STAT_MINUTES_WINDOW + " minutes");
+        if (snapshotFile == null) log.info("Zap state snapshots are disabled");
+        else log.info("Zap state snapshot file: " + snapshotFile.getPath() + ", saved every " + (snapshotIntervalMillis / 60000L) + " minutes and at shutdown, restored if not older than " + (snapshotMaxAgeMillis / 60000L) + " minutes");
     }
 
     /**
-     * Creates and starts N processing threads.
+     * Starts the minimum number of processing threads.
      */
     final void start() {
         lock.lock();
         try {
             if (running) throw new IllegalStateException("Zap conversion thread is already running");
             queue.clear();
+            timerBatches.clear();
+            busyDevices.clear();
             queueSize = 0;
             submitted = 0;
             consumed = 0;
             running = true;
 
             // initialize the tv-channel mapping for live-tv (needed for computing viewership for all TV-channels from the start)
-            try (final DataLink link = DataManager.getNewLink()) {
-                try (final Transaction transaction = Transaction.newTransaction(link)) {
-                    for (final Partner partner : link.getPartnerManager().list()) {
-                        if (partner.getId() <= 0L) continue;
-                        for (TvChannelProduct tvChannel : link.getProductManager().getTvChannelsForPartner(transaction, partner)) {
-                            tvChannelStates.put(tvChannel.id, new TvChannelState(this, tvChannel, partner));
-                        }
-                    }
-                }
-            }
+            data.forEachTvChannel((partner, tvChannel) -> tvChannelStates.put(tvChannel.id, new TvChannelState(this, tvChannel, partner)));
+
+            final long now = clock.currentTimeMillis();
 
-            final long now = Timer.currentTimeMillis();
+            lastViewershipCreation = (now / VIEWERSHIP_INTERVAL) * VIEWERSHIP_INTERVAL; // round down to an offset from a whole hour, which is a multiple of 5 minutes
+            lastSnapshotTimestamp = now;
 
-            // initialize event delay statistics
-            currentWindowIndex = 0;
-            nextWindowTimestamp = ((now + STAT_RESOLUTION_MILLIS) / STAT_RESOLUTION_MILLIS) * STAT_RESOLUTION_MILLIS; // 1 minute resolution
+            // restore the state saved at the last shutdown, before any zaps are accepted
+            if (snapshotFile != null) ZapSnapshot.restore(this, snapshotFile, snapshotMaxAgeMillis);
+            if (audit != null) audit.open();
 
-            for (int i = threads.length - 1; i >= 0; i--) threads[i] = new Thread(this, "Consumption accounting #" + i);
-            for (int i = threads.length - 1; i >= 0; i--) threads[i].start();
+            for (int i = minThreadCount; i > 0; i--) startThread();
 
             timerMillis = now + CONSUMPTION_FLUSH_INTERVAL;
-            lastViewershipCreation = (now / VIEWERSHIP_INTERVAL) * VIEWERSHIP_INTERVAL; // round down to an offset from a whole hour, which is a multiple of 5 minutes
-            Timer.INSTANCE.schedule(timerMillis, this);
+            clock.schedule(timerMillis, this);
+        }
+        finally {
+            lock.unlock();
+        }
+        clock.start(this::runOnProcessingThread, data::release);
+    }
+
+    /**
+     * Queues a batch of expired timers to be run by a processing thread.
+     * Without processing threads the batch is run immediately.
+     *
+     * @param timerBatch the batch of expired timers
+     */
+    void runOnProcessingThread(final Runnable timerBatch) {
+        if (maxThreadCount == 0) {
+            timerBatch.run();
+            return;
+        }
+        lock.lock();
+        try {
+            timerBatches.add(timerBatch);
+            elementAdded.signal();
         }
         finally {
             lock.unlock();
@@ -159,28 +373,135 @@ final class ZapProcessor implements Runnable, TimerListener {
      * Stops all processing threads.
      */
     final void stop() {
+        clock.stop(); // outside the lock, the clock may be handing over expired timers
+        final List<Thread> runningThreads;
         lock.lock();
         try {
-            Timer.INSTANCE.unschedule(timerMillis, this);
+            clock.unschedule(timerMillis, this);
             if (!running) return;
             running = false;
             elementAdded.signalAll();
             elementRemoved.signalAll();
+            deviceReleased.signalAll();
+            runningThreads = new ArrayList<>(threads);
         }
         finally {
             lock.unlock();
         }
 
-        for (int i = threads.length - 1; i >= 0; i--) {
+        for (final Thread thread : runningThreads) {
             try {
-                threads[i].join();
-                threads[i] = null;
+                thread.join();
             } catch (InterruptedException e) {
                 log.warn("Interrupted while waiting to join the zap conversion thread: " + e.toString(), e);
             } catch (RuntimeException e) {
                 log.error("Error while stopping a thread: " + e.toString(), e);
             }
         }
+
+        // all queued zaps have been processed, save the remaining state for the next start
+        saveSnapshot();
+        if (viewershipStore != null) viewershipStore.close();
+        if (audit != null) audit.close();
+    }
+
+    /**
+     * Saves the zap state into the snapshot file, if snapshots are enabled.
+     */
+    private void saveSnapshot() {
+        if (snapshotFile == null) return;
+        synchronized (snapshotLock) {
+            try {
+                ZapSnapshot.save(this, snapshotFile);
+            }
+            catch (IOException | RuntimeException e) {
+                log.error("Failed to save the zap state to " + snapshotFile.getPath() + ": " + e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes the whole zap state into a snapshot.
+     *
+     * @param out where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    void writeSnapshot(final ZapSnapshot.Writer out) throws IOException {
+        out.writeLong(bufferingDelays.globalDelayMillis());
+        out.writeLong(currentStatDelayMillis);
+        out.writeLong(lastViewershipCreation);
+        // devices first, restored tv-programmes need them to generate consumptions
+        for (final DeviceState state : events.values()) {
+            out.writeBoolean(true);
+            state.writeSnapshot(out);
+        }
+        out.writeBoolean(false);
+        for (final TvChannelState tvChannelState : tvChannelStates.values()) {
+            out.writeBoolean(true);
+            tvChannelState.writeSnapshot(out);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Restores the zap state from a snapshot. Must be invoked before the
+     * processing threads are started.
+     *
+     * @param in where to read the snapshot from
+     * @throws IOException if reading fails
+     */
+    void readSnapshot(final ZapSnapshot.Reader in) throws IOException {
+        bufferingDelays.restoreGlobalDelayMillis(in.readLong());
+        currentStatDelayMillis = in.readLong();
+        final long snapshotViewershipCreation = in.readLong();
+        if (snapshotViewershipCreation < lastViewershipCreation) lastViewershipCreation = snapshotViewershipCreation; // fill the gap in viewership since the snapshot
+        while (in.readBoolean()) {
+            final DeviceState state = DeviceState.readSnapshot(in, this);
+            state.scheduleFlushIfPending(clock.currentTimeMillis()); // flush at the first opportunity, the restore may have taken a while
+            idleDeadlines.schedule(state.lastActivityMillis + deviceIdleMillis, state);
+        }
+        while (in.readBoolean()) {
+            final Product product = in.readProduct();
+            final Partner partner = in.readPartner();
+            TvChannelState tvChannelState = null;
+            if ((product instanceof TvChannelProduct) && (partner != null)) {
+                tvChannelState = tvChannelStates.get(product.id);
+                if (tvChannelState == null) {
+                    tvChannelState = new TvChannelState(this, (TvChannelProduct) product, partner);
+                    tvChannelStates.put(product.id, tvChannelState);
+                }
+            }
+            TvChannelState.readSnapshot(in, tvChannelState);
+        }
+    }
+
+    /**
+     * Performs basic sanity checks of an event and records its delay.
+     *
+     * @param event the event to check
+     * @return whether the event is a zap that should be processed
+     */
+    private boolean accept(final ConsumerEvent event) {
+        if (event.getEventTimestamp() == null) return false;
+        if (event.getRequestTimestamp() == null) return false;
+        bufferingDelays.record(event.getPartner(), event.getRequestTimestamp().getTime(), event.getEventTimestamp().getTime()); // compute event delay stats
+        if (event.getEventType().getId().longValue() != idForZap) return false;
+        if (event.getConsumer() == null) return false;
+        if (event.getPartner() == null) return false;
+        return true;
+    }
+
+    /**
+     * Processes the event on the calling thread instead of queueing it, for
+     * a replay with no processing threads.
+     *
+     * @param event the event to process
+     * @return whether the event was a zap and was processed
+     */
+    final boolean replay(final ConsumerEvent event) {
+        if (!accept(event)) return false;
+        process(event, "[replay] ");
+        return true;
     }
 
     /**
@@ -190,13 +511,7 @@ final class ZapProcessor implements Runnable, TimerListener {
      * @param event the event to queue
      */
     final void submit(final ConsumerEvent event){
-        // basic sanity checks
-        if (event.getEventTimestamp() == null) return;
-        if (event.getRequestTimestamp() == null) return;
-        statEventDelay(event.getRequestTimestamp().getTime(), event.getEventTimestamp().getTime()); // compute event delay stats
-        if (event.getEventType().getId().longValue() != idForZap) return;
-        if (event.getConsumer() == null) return;
-        if (event.getPartner() == null) return;
+        if (!accept(event)) return;
 
         lock.lock();
         try {
@@ -214,112 +529,430 @@ final class ZapProcessor implements Runnable, TimerListener {
             queueSize++;
             submitted++;
             elementAdded.signal();
+            growIfBacklogged();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether there is room for another zap below the soft limit of the
+     * queue. Producers that can ask for the zap to be sent again later check
+     * this first, instead of blocking in {@link #submit(ConsumerEvent)} when
+     * the queue is full.
+     *
+     * @return whether the zap may be submitted
+     */
+    final boolean admits() {
+        if (queueSize < queueSoftLimit) return true;
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adds a processing thread if the queued zaps would take the current
+     * threads too long to process, and none of them is idle. Must be
+     * invoked while holding the lock.
+     */
+    private void growIfBacklogged() {
+        final int threadCount = threads.size();
+        if ((threadCount >= maxThreadCount) || (idleThreadCount > 0)) return;
+        if (((long) queueSize * serviceNanos) <= (targetDrainNanos * threadCount)) return;
+        final long now = System.nanoTime();
+        if ((now - lastGrowthNano) < GROWTH_INTERVAL_NANOS) return;
+        lastGrowthNano = now;
+        grownCount++;
+        startThread();
+    }
+
+    // must be invoked while holding the lock
+    private void startThread() {
+        final Thread thread = new Thread(this, "Consumption accounting #" + threadSequence++);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Dequeues the next zap that may be processed, and marks its device as
+     * busy. Zaps of devices that are busy are set aside to wait for their
+     * device. Must be invoked while holding the lock.
+     *
+     * @return the zap to process, or null if there is none
+     */
+    private ConsumerEvent pollReady() {
+        for (;;) {
+            final ConsumerEvent event = queue.poll();
+            if (event == null) return null;
+            final String key = zapKey(event, deviceId);
+            if (key != null) {
+                if (busyDevices.containsKey(key)) {
+                    ArrayDeque<ConsumerEvent> waiting = busyDevices.get(key);
+                    if (waiting == null) {
+                        waiting = new ArrayDeque<>();
+                        busyDevices.put(key, waiting);
+                    }
+                    waiting.add(event);
+                    continue;
+                }
+                busyDevices.put(key, null);
+            }
+            dequeued();
+            return event;
+        }
+    }
+
+    /**
+     * Returns the next zap waiting for the given device, or marks the
+     * device as not busy anymore if there is none.
+     *
+     * @param key the device whose zap has been processed, may be null
+     * @return the next zap of the device, or null
+     */
+    private ConsumerEvent nextOfDevice(final String key) {
+        if (key == null) return null;
+        lock.lock();
+        try {
+            final ArrayDeque<ConsumerEvent> waiting = busyDevices.get(key);
+            final ConsumerEvent next = waiting == null ? null : waiting.poll();
+            if (next == null) {
+                busyDevices.remove(key);
+                deviceReleased.signalAll();
+            }
+            else dequeued();
+            return next;
         }
         finally {
             lock.unlock();
         }
     }
 
+    // must be invoked while holding the lock
+    private void dequeued() {
+        queueSize--;
+        consumed++;
+        elementRemoved.signal();
+    }
+
     /**
      * The body of a processing thread. Dequeues and processes events in a
-     * loop.
+     * loop, until the processor stops or the thread is not needed anymore.
      */
     @Override
     public final void run() {
         final long threadId = Thread.currentThread().getId();
         final String logPrefix = "[" + threadId + "] ";
         log.info(logPrefix + "Zap conversion thread started");
+        boolean mayHoldResources = false; // whether the lookups of the last work may still hold database resources
         try {
             loop:
             for (; ; ) {
-                final ConsumerEvent event;
+                Runnable timerBatch = null;
+                ConsumerEvent event = null;
                 try {
-                    // dequeue an entry
+                    // dequeue an entry, expired timers first
                     lock.lock();
                     try {
-                        while (queueSize == 0) {
+                        for (;;) {
+                            timerBatch = timerBatches.poll();
+                            if (timerBatch != null) break;
+                            event = pollReady();
+                            if (event != null) break;
                             if (!running) break loop;
+                            if (mayHoldResources) {
+                                // don't keep database resources while waiting for work, but don't hold the lock while releasing them
+                                mayHoldResources = false;
+                                lock.unlock();
+                                try {
+                                    data.checkpoint(true);
+                                }
+                                finally {
+                                    lock.lock();
+                                }
+                                continue; // work may have been queued meanwhile
+                            }
+                            long remainingNanos = 1L;
+                            idleThreadCount++;
                             try {
-                                elementAdded.await();
+                                remainingNanos = elementAdded.awaitNanos(threadIdleNanos);
                             } catch (InterruptedException e) {
                                 log.warn(logPrefix + "Interrupted while waiting for an element in queue: " + e.toString(), e);
                             }
+                            finally {
+                                idleThreadCount--;
+                            }
+                            if ((remainingNanos <= 0L) && (threads.size() > minThreadCount) && queue.isEmpty() && timerBatches.isEmpty()) {
+                                shrunkCount++;
+                                break loop; // not needed anymore
+                            }
                         }
-                        event = queue.poll();
-                        queueSize--;
-                        consumed++;
-                        elementRemoved.signal();
                     } finally {
                         lock.unlock();
                     }
 
-                    final Product product = event.getProduct();
+                    try {
+                        if (timerBatch != null) timerBatch.run();
+                        else {
+                            // the zap, and the zaps of the same device that were queued meanwhile
+                            final String key = zapKey(event, deviceId);
+                            while (event != null) {
+                                final long startNano = System.nanoTime();
+                                try {
+                                    process(event, logPrefix);
+                                }
+                                catch (Throwable e) {
+                                    log.error(logPrefix + "Failed to process an event: " + e.toString(), e);
+                                }
+                                final long nanos = System.nanoTime() - startNano;
+                                serviceNanos += (nanos - serviceNanos) >> 4;
+                                event = nextOfDevice(key);
+                            }
+                        }
+                    }
+                    finally {
+                        mayHoldResources = true;
+                        data.checkpoint(false); // commits only if the transaction has been open for too long
+                    }
+                } catch (Throwable e) {
+                    log.error(logPrefix + "Failed to process an event: " + e.toString(), e);
+                }
+            }
+        }
+        finally {
+            lock.lock();
+            try {
+                threads.remove(Thread.currentThread());
+            }
+            finally {
+                lock.unlock();
+            }
+            data.release();
+            log.info(logPrefix + "Zap conversion thread exiting");
+        }
+    }
 
-                    // first register the zap regardless of whether it happened on a tv-channel or not
+    /**
+     * Processes a zap: registers it with its device, and dispatches it to
+     * live-tv or catch-up/VoD processing, depending on the zapped product.
+     *
+     * @param event the zap
+     * @param logPrefix the prefix of log lines
+     */
+    final void process(final ConsumerEvent event, final String logPrefix) {
+        final Product product = event.getProduct();
 
-                    // extract the zap key, this is a unique key describing an entity that generates events
-                    String zapKey = null;
-                    // if the event contains device-id, then this is the zap key, otherwise zap key is the consumer's username
-                    Map<DataType, String> eventData = event.getData();
-                    if (eventData == null) eventData = Collections.emptyMap();
-                    zapKey = eventData.get(deviceId);
-                    if (zapKey == null) {
-                        zapKey = event.getConsumer().getUsername();
-                    }
+        // first register the zap regardless of whether it happened on a tv-channel or not
 
-                    final long registerZapStart = System.nanoTime();
-                    final DeviceState deviceState = registerZap(event, zapKey, product); // store to the zap registry
-                    final long registerZapStop = System.nanoTime();
-                    final long registerZapTime = registerZapStop - registerZapStart;
-                    Product playingZapProduct = null; // by default: if a content was playing, then it should stop now
+        // extract the zap key, this is a unique key describing an entity that generates events
+        final String zapKey = zapKey(event, deviceId);
 
-                    long tvChannelProcessingTime = 0L;
+        final long registerZapStart = System.nanoTime();
+        final DeviceState deviceState = registerZap(event, zapKey, product); // store to the zap registry
+        if (audit != null) audit.zap(deviceState.code, zapKey, deviceState.consumer, event.getEventTimestamp().getTime(), product);
+        final long registerZapStop = System.nanoTime();
+        final long registerZapTime = registerZapStop - registerZapStart;
+        Product playingZapProduct = null; // by default: if a content was playing, then it should stop now
 
-                    // decide on what processing to perform
-                    if (product == null) {
-                        // box status changes, and invalid events (having an unknown product)
-                    }
-                    else if (product instanceof TvChannelProduct) {
-                        // live-tv zap
-                        final TvChannelProduct tvChannel = (TvChannelProduct)product;
-
-                        TvChannelState tvChannelState = tvChannelStates.get(tvChannel.id);
-                        if (tvChannelState == null) {
-                            tvChannelState = new TvChannelState(this, tvChannel, event.getPartner());
-                            TvChannelState previousTvChannelState = tvChannelStates.putIfAbsent(tvChannel.id, tvChannelState);
-                            if (previousTvChannelState != null) tvChannelState = previousTvChannelState;
-                        }
-                        final long tvChannelProcessingStart = System.nanoTime();
-                        tvChannelState.process(event, zapKey, deviceState);
-                        final long tvChannelProcessingStop = System.nanoTime();
-                        tvChannelProcessingTime = tvChannelProcessingStop - tvChannelProcessingStart;
-                    }
-                    else if (product instanceof TvProgrammeProduct) {
-                        // catch-up zap
-                        playingZapProduct = product;
-                    }
-                    else if (product instanceof VideoProduct) {
-                        // VOD zap
-                        playingZapProduct = product;
-                    }
+        long tvChannelProcessingTime = 0L;
 
-                    final long deviceStateProcessingStart = System.nanoTime();
-                    deviceState.updatePlayingZap(event, playingZapProduct);
-                    final long deviceStateProcessingStop = System.nanoTime();
-                    final long deviceStateProcessingTime = deviceStateProcessingStop - deviceStateProcessingStart;
+        // decide on what processing to perform
+        if (product == null) {
+            // box status changes, and invalid events (having an unknown product)
+        }
+        else if (product instanceof TvChannelProduct) {
+            // live-tv zap
+            final TvChannelProduct tvChannel = (TvChannelProduct)product;
 
-                    if ((tvChannelProcessingTime + deviceStateProcessingTime + registerZapTime) > 5000000L) { // 5 milliseconds
-                        log.warn(logPrefix + "Processing took too long: registering zap: " + registerZapTime + " ns, tv-channel processing: " + tvChannelProcessingTime + " ns, device state processing: " + deviceStateProcessingTime + " ns, product: " + (product == null ? "(null)" : product.id));
-                    }
+            TvChannelState tvChannelState = tvChannelStates.get(tvChannel.id);
+            if (tvChannelState == null) {
+                tvChannelState = new TvChannelState(this, tvChannel, event.getPartner());
+                TvChannelState previousTvChannelState = tvChannelStates.putIfAbsent(tvChannel.id, tvChannelState);
+                if (previousTvChannelState != null) tvChannelState = previousTvChannelState;
+            }
+            final long tvChannelProcessingStart = System.nanoTime();
+            tvChannelState.process(deviceState.record(event, tvChannel.id), deviceState); // only the compact record of the zap is retained
+            final long tvChannelProcessingStop = System.nanoTime();
+            tvChannelProcessingTime = tvChannelProcessingStop - tvChannelProcessingStart;
+        }
+        else if (product instanceof TvProgrammeProduct) {
+            // catch-up zap
+            playingZapProduct = product;
+        }
+        else if (product instanceof VideoProduct) {
+            // VOD zap
+            playingZapProduct = product;
+        }
 
-                } catch (Throwable e) {
-                    log.error(logPrefix + "Failed to process an event: " + e.toString(), e);
+        final long deviceStateProcessingStart = System.nanoTime();
+        deviceState.tune(event.getEventTimestamp().getTime(), product instanceof TvChannelProduct ? (TvChannelProduct) product : null);
+        deviceState.updatePlayingZap(event, playingZapProduct);
+        final long deviceStateProcessingStop = System.nanoTime();
+        final long deviceStateProcessingTime = deviceStateProcessingStop - deviceStateProcessingStart;
+
+        if ((tvChannelProcessingTime + deviceStateProcessingTime + registerZapTime) > 5000000L) { // 5 milliseconds
+            log.warn(logPrefix + "Processing took too long: registering zap: " + registerZapTime + " ns, tv-channel processing: " + tvChannelProcessingTime + " ns, device state processing: " + deviceStateProcessingTime + " ns, product: " + (product == null ? "(null)" : product.id));
+        }
+    }
+
+    /**
+     * Returns the key of the device on which the given zap happened: the
+     * device ID from the event data, or the consumer's username if the
+     * event has no device ID.
+     *
+     * @param event the zap
+     * @param deviceId the data type of the device ID
+     * @return the zap key, or null if the event has neither a device ID nor a consumer
+     */
+    static String zapKey(final ConsumerEvent event, final DataType deviceId) {
+        final Map<DataType, String> eventData = event.getData();
+        final String zapKey = eventData == null ? null : eventData.get(deviceId);
+        if (zapKey != null) return zapKey;
+        final Consumer consumer = event.getConsumer();
+        return consumer == null ? null : consumer.getUsername();
+    }
+
+    /**
+     * Hands off the devices that the given assignment gives to other nodes.
+     * Whatever a handed off device is watching ends here at the time of the
+     * hand-off, with a zap to no product, and its live-tv session continues
+     * on the new owner with a zap to the same tv-channel, which is passed on
+     * for forwarding. The zaps of handed off devices that are still queued
+     * here are passed on for forwarding after it, instead of being
+     * processed. The device state remains until the device becomes idle, so
+     * consumptions of tv-programmes watched before the hand-off are still
+     * generated here. Should be run on a processing thread.
+     * <p>
+     * A device is handed off in the order of its zaps: the hand-off waits
+     * for a zap of the device being processed, and the zaps of the device
+     * that are dequeued meanwhile wait for the hand-off.
+     *
+     * @param partitioner the new assignment of devices to nodes
+     * @param self this node
+     * @param forward receives the continuing zaps and the queued zaps, together with the node to forward each to
+     * @return the number of devices handed off
+     */
+    final int handOff(final ZapPartitioner partitioner, final String self, final BiConsumer<String, ConsumerEvent> forward) {
+        synchronized (handOffLock) {
+            final Timestamp handOffTimestamp = new Timestamp(clock.currentTimeMillis());
+            final ConsumerEventType zapType = data.consumerEventTypeCodes().zap;
+            final Map<String, String> handedOff = new HashMap<>(); // device key -> new owner, the devices are held until their queued zaps are taken
+            try {
+                for (final DeviceState state : events.values()) {
+                    if (state.handedOff || (events.get(state.code) != state)) continue; // handed off already, or evicted
+                    final String node = partitioner.ownerOf(state.deviceId);
+                    if ((node == null) || node.equals(self)) continue;
+                    if (!acquireDevice(state.deviceId)) break; // stopping, the rest stay here
+                    handedOff.put(state.deviceId, node);
+                    if (state.handedOff || (events.get(state.code) != state)) continue; // while waiting for the device
+                    final TvChannelProduct tvChannel = state.tunedTvChannel();
+                    final ZapRecord.Source source = state.zapSource();
+                    process(handOffZap(state, source, null, zapType, handOffTimestamp), "[hand-off] ");
+                    state.handedOff = true; // after the ending zap, which counts as a zap too
+                    if (tvChannel != null) forward.accept(node, handOffZap(state, source, tvChannel, zapType, handOffTimestamp));
+                }
+            }
+            finally {
+                final List<ConsumerEvent> queued = releaseHandedOff(handedOff.keySet());
+                for (final ConsumerEvent event : queued) {
+                    forward.accept(handedOff.get(zapKey(event, deviceId)), event);
+                }
+            }
+            return handedOff.size();
+        }
+    }
+
+    /**
+     * Waits until no zap of the given device is being processed, and marks
+     * the device as busy, so its zaps dequeued meanwhile wait.
+     *
+     * @param key the device
+     * @return whether the device was acquired, false if the processor stopped
+     */
+    private boolean acquireDevice(final String key) {
+        lock.lock();
+        try {
+            while (busyDevices.containsKey(key)) {
+                if (!running) return false;
+                try {
+                    deviceReleased.await();
+                }
+                catch (InterruptedException e) {
+                    log.warn("Interrupted while waiting for a device to hand off");
                 }
             }
+            busyDevices.put(key, null);
+            return true;
         }
         finally {
-            log.info(logPrefix + "Zap conversion thread exiting");
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the zaps of the given devices out of the queue, and marks the
+     * devices as not busy anymore.
+     *
+     * @param keys the devices held by a hand-off
+     * @return the zaps of the devices, in the order they were queued for each device
+     */
+    private List<ConsumerEvent> releaseHandedOff(final Set<String> keys) {
+        final List<ConsumerEvent> result = new ArrayList<>();
+        if (keys.isEmpty()) return result;
+        lock.lock();
+        try {
+            for (final String key : keys) {
+                final ArrayDeque<ConsumerEvent> waiting = busyDevices.remove(key);
+                if (waiting == null) continue;
+                for (final ConsumerEvent event : waiting) {
+                    result.add(event); // dequeued before the zaps still in the queue
+                    dequeued();
+                }
+            }
+            final Iterator<ConsumerEvent> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                final ConsumerEvent event = iterator.next();
+                final String key = zapKey(event, deviceId);
+                if ((key == null) || !keys.contains(key)) continue;
+                iterator.remove();
+                result.add(event);
+                dequeued();
+            }
+            deviceReleased.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Creates a zap of the given device for a hand-off.
+     *
+     * @param state the device
+     * @param source what is common to the device's live-tv zaps, or null if none were recorded
+     * @param product the product of the zap, null to end whatever is playing
+     * @param zapType the event type of zaps
+     * @param timestamp the time of the hand-off
+     * @return the zap
+     */
+    private ConsumerEvent handOffZap(final DeviceState state, final ZapRecord.Source source, final Product product, final ConsumerEventType zapType, final Timestamp timestamp) {
+        final Map<DataType, String> eventData = new HashMap<>();
+        final Partner partner;
+        final Long userProfileId;
+        if (source == null) {
+            partner = state.consumer.getPartner();
+            userProfileId = null;
+            if (!state.deviceId.equals(state.consumer.getUsername())) eventData.put(deviceId, state.deviceId);
         }
+        else {
+            partner = source.partner;
+            userProfileId = source.userProfileId;
+            if (source.deviceId != null) eventData.put(deviceId, source.deviceId);
+            if (source.deviceType != null) eventData.put(deviceType, source.deviceType);
+        }
+        final ConsumerEvent event = new ConsumerEvent(null, timestamp, partner, product, state.consumer, zapType, eventData, userProfileId);
+        event.setRequestTimestamp(timestamp);
+        return event;
     }
 
     /**
@@ -331,43 +964,108 @@ final class ZapProcessor implements Runnable, TimerListener {
      * @return the DeviceState referenced by zapKey
      */
     private final DeviceState registerZap(final ConsumerEvent event, final String zapKey, final Product product) {
-        final DeviceState existingDeviceState = events.get(zapKey);
-        if (existingDeviceState == null) {
-            final DeviceState newDeviceState = new DeviceState(event.getConsumer(), zapKey, this);
-            final DeviceState previousDeviceState = events.putIfAbsent(zapKey, newDeviceState);
-            if (previousDeviceState == null) {
-                newDeviceState.zap(event, product);
-                return newDeviceState;
+        for (;;) {
+            DeviceState deviceState = events.get(zapKey);
+            if (deviceState == null) {
+                deviceState = events.putIfAbsent(zapKey, (final int code) -> {
+                    final DeviceState newDeviceState = new DeviceState(event.getConsumer(), zapKey, code, this);
+                    idleDeadlines.schedule(newDeviceState.lastActivityMillis + deviceIdleMillis, newDeviceState);
+                    return newDeviceState;
+                });
             }
-            previousDeviceState.zap(event, product);
-            return previousDeviceState;
+            if (deviceState.zap(event, product)) return deviceState;
+            // the device state was evicted in the meantime, replace it with a new one
+            events.remove(deviceState.code, deviceState);
         }
-        existingDeviceState.zap(event, product);
-        return existingDeviceState;
     }
 
     void logStatistics() {
         final int size;
         final int c;
         final int s;
+        final int threadCount;
+        final int grown;
+        final int shrunk;
         lock.lock();
         try {
             size = queueSize;
             c = consumed;
             s = submitted;
+            threadCount = threads.size();
+            grown = grownCount;
+            shrunk = shrunkCount;
             consumed = 0;
             submitted = 0;
+            grownCount = 0;
+            shrunkCount = 0;
         }
         finally {
             lock.unlock();
         }
-        final StringBuilder logBuilder = new StringBuilder(80);
+        final StringBuilder logBuilder = new StringBuilder(160);
         logBuilder.append("Zap queue size: ");
         logBuilder.append(size);
         logBuilder.append(", submitted since last time: ");
         logBuilder.append(s);
         logBuilder.append(", processed: ");
         logBuilder.append(c);
+        logBuilder.append(", threads: ");
+        logBuilder.append(threadCount);
+        logBuilder.append(" (started ");
+        logBuilder.append(grown);
+        logBuilder.append(", stopped ");
+        logBuilder.append(shrunk);
+        logBuilder.append("), rejected in total: ");
+        logBuilder.append(rejectedCount.get());
+        logBuilder.append(", service time: ");
+        logBuilder.append(serviceNanos);
+        logBuilder.append(" ns");
+        if (audit != null) {
+            logBuilder.append(", audited decisions: ");
+            logBuilder.append(audit.recordCount());
+            logBuilder.append(", dropped: ");
+            logBuilder.append(audit.droppedCount());
+        }
+        logBuilder.append(", devices: ");
+        logBuilder.append(deviceCount);
+        logBuilder.append(", estimated device state size: ");
+        logBuilder.append(estimatedDeviceBytes / 1024L);
+        logBuilder.append(" kB");
+        final EventDelayDistribution distribution = bufferingDelays.distribution(clock.currentTimeMillis());
+        logBuilder.append(", event delays: ");
+        logBuilder.append(distribution.totalCount);
+        logBuilder.append(" events, mean ");
+        logBuilder.append(distribution.meanMillis());
+        logBuilder.append(" ms, p50 ");
+        logBuilder.append(distribution.percentileMillis(50));
+        logBuilder.append(" ms, p90 ");
+        logBuilder.append(distribution.percentileMillis(90));
+        logBuilder.append(" ms, p99 ");
+        logBuilder.append(distribution.percentileMillis(99));
+        logBuilder.append(" ms, max ");
+        logBuilder.append(distribution.maxMillis);
+        logBuilder.append(" ms, buffering delay ");
+        logBuilder.append(bufferingDelays.globalDelayMillis() / 1000L);
+        logBuilder.append(" s");
+        for (final PartnerBufferingStatus partnerBuffering : bufferingDelays.status()) {
+            if (!partnerBuffering.adaptive) continue;
+            logBuilder.append(", partner ");
+            logBuilder.append(partnerBuffering.partnerId);
+            logBuilder.append(": ");
+            logBuilder.append(partnerBuffering.delayMillis / 1000L);
+            logBuilder.append(" s");
+        }
+        final ZapTimerStatus timerStatus = clock.timerStatus(true);
+        logBuilder.append(", timers pending: ");
+        logBuilder.append(timerStatus.pendingTimers);
+        logBuilder.append(", fired: ");
+        logBuilder.append(timerStatus.firedTimers);
+        logBuilder.append(", lag mean ");
+        logBuilder.append(timerStatus.meanLagMillis);
+        logBuilder.append(" ms, max ");
+        logBuilder.append(timerStatus.maxLagMillis);
+        logBuilder.append(" ms");
+        data.appendStatistics(logBuilder);
         log.info(logBuilder.toString());
     }
 
@@ -375,7 +1073,86 @@ final class ZapProcessor implements Runnable, TimerListener {
 
     @Override
     public final void onTimerExpired(long expiryTime) {
+        if (!flushCycleRunning.compareAndSet(false, true)) {
+            // the previous cycle is still running on another processing thread: skip this one, the next one catches up
+            lock.lock();
+            try {
+                if (!running) return;
+                timerMillis = expiryTime + CONSUMPTION_FLUSH_INTERVAL;
+                clock.schedule(timerMillis, this);
+            }
+            finally {
+                lock.unlock();
+            }
+            log.warn("The previous consumption flush cycle is still running, skipping the cycle at " + new Date(expiryTime).toString());
+            return;
+        }
+        try {
+            flushCycle(expiryTime);
+        }
+        finally {
+            flushCycleRunning.set(false);
+        }
+    }
+
+    /**
+     * Flushes the consumptions of the devices whose flush deadline passed,
+     * and evicts the devices that became idle. Only the devices with a due
+     * deadline are visited.
+     *
+     * @param expiryTime the time of the flush cycle
+     * @param flushLog where to describe the flushed consumptions and the evictions
+     */
+    final void flushDueDevices(final long expiryTime, final StringBuilder flushLog) {
+        final long flushStartNano = System.nanoTime();
+        final int startLen = flushLog.length();
+        final List<DeviceState> dueStates = new ArrayList<>();
+        final int flushCount = flushDeadlines.drainDue(expiryTime, dueStates);
+        for (int i = 0; i < flushCount; i++) {
+            dueStates.get(i).flushDue(expiryTime, flushLog);
+        }
+        if (startLen == flushLog.length()) {
+            flushLog.append("  No consumptions to flush");
+        }
+        dueStates.clear();
+        final int idleCount = idleDeadlines.drainDue(expiryTime, dueStates);
+        final long idleSinceMillis = expiryTime - deviceIdleMillis;
+        int idleEvictions = 0;
+        for (int i = 0; i < idleCount; i++) {
+            final DeviceState state = dueStates.get(i);
+            if (events.get(state.code) != state) continue; // already evicted
+            final long lastActivityMillis = state.lastActivityMillis;
+            if (lastActivityMillis > idleSinceMillis) {
+                idleDeadlines.schedule(lastActivityMillis + deviceIdleMillis, state); // zapped in the meantime
+            }
+            else if (state.evict(idleSinceMillis, false, flushLog)) {
+                events.remove(state.code, state);
+                idleEvictions++;
+            }
+            else {
+                idleDeadlines.schedule(expiryTime + ZAP_PURGE_INTERVAL, state); // still has pending consumptions, retry later
+            }
+        }
+        if (idleEvictions > 0) {
+            idleEvictionCount += idleEvictions;
+            flushLog.append("\nEvicted ").append(idleEvictions).append(" devices idle for more than ").append(deviceIdleMillis / 60000L).append(" minutes");
+        }
+        flushLog.append("\nProcessed ").append(flushCount).append(" flush and ").append(idleCount).append(" idle deadlines in ")
+                .append(System.nanoTime() - flushStartNano).append(" ns, pending: ").append(flushDeadlines.size())
+                .append(" flush and ").append(idleDeadlines.size()).append(" idle deadlines");
+    }
+
+    /**
+     * Performs a consumption flush cycle: flushes due consumptions, evicts
+     * idle devices, generates viewership, adapts the buffering delay to the
+     * event delays, and purges old zaps.
+     *
+     * @param expiryTime the time of the cycle
+     */
+    private void flushCycle(final long expiryTime) {
         final boolean purgeZaps;
+        final boolean takeSnapshot;
+        final boolean checkMemory;
         final boolean generateViewership;
         final long targetViewershipMillis;
         final long startViewershipMillis;
@@ -384,9 +1161,13 @@ final class ZapProcessor implements Runnable, TimerListener {
             if (!running) return;
             // rearm the timer
             timerMillis = expiryTime + CONSUMPTION_FLUSH_INTERVAL;
-            Timer.INSTANCE.schedule(timerMillis, this);
+            clock.schedule(timerMillis, this);
             purgeZaps = (expiryTime - ZAP_PURGE_INTERVAL) >= lastPurgeTimestamp;
             if (purgeZaps) lastPurgeTimestamp = expiryTime;
+            takeSnapshot = (snapshotIntervalMillis > 0L) && ((expiryTime - snapshotIntervalMillis) >= lastSnapshotTimestamp);
+            if (takeSnapshot) lastSnapshotTimestamp = expiryTime;
+            checkMemory = (expiryTime - MEMORY_CHECK_INTERVAL) >= lastMemoryCheckTimestamp;
+            if (checkMemory) lastMemoryCheckTimestamp = expiryTime;
             final long nextViewershipMillis = ((expiryTime / VIEWERSHIP_INTERVAL) * VIEWERSHIP_INTERVAL) - currentStatDelayMillis;
             generateViewership = nextViewershipMillis > lastViewershipCreation;
             if (generateViewership) {
@@ -402,44 +1183,60 @@ final class ZapProcessor implements Runnable, TimerListener {
             lock.unlock();
         }
 
-        // flush consumptions per every DeviceState
         final StringBuilder flushLog = new StringBuilder(32768);
         flushLog.append("Performing a consumption flush cycle:");
-        final int startLen = flushLog.length();
-        for (final DeviceState state : events.values()) {
-            state.sweep(flushLog);
-        }
-        if (startLen == flushLog.length()) {
-            flushLog.append("  No consumptions to flush");
+        flushDueDevices(expiryTime, flushLog);
+
+        // estimating the memory requires visiting every device, so it is done less often
+        if (checkMemory) {
+            long estimatedBytes = 0L;
+            for (final DeviceState state : events.values()) {
+                estimatedBytes += state.estimatedBytes();
+            }
+            if (estimatedBytes > memoryBudgetBytes) {
+                final long freedBytes = evictLeastActive(estimatedBytes - memoryBudgetBytes, flushLog);
+                estimatedBytes -= freedBytes;
+            }
+            this.estimatedDeviceBytes = estimatedBytes;
         }
+        this.deviceCount = events.size();
         log.info(flushLog.toString());
+        if (audit != null) audit.flush();
 
         // generate viewership
         try {
             if (generateViewership) {
                 final long startNano = System.nanoTime();
-                final ConsumerEventType viewershipType = DataManager.getConsumerEventTypeCodes().viewership;
-                final long productTypeIdForTvChannel = DataManager.getProductTypeCodes().idForTvChannel;
+                final ConsumerEventType viewershipType = data.consumerEventTypeCodes().viewership;
+                final long productTypeIdForTvChannel = data.productTypeCodes().idForTvChannel;
                 final List<TvChannelState> tvChannelStates = new ArrayList<>(this.tvChannelStates.values());
                 final List<Viewership> viewerships = new ArrayList<>(tvChannelStates.size());
                 final StringBuilder logBuilder = new StringBuilder(16384);
                 for (long millis = startViewershipMillis; millis <= targetViewershipMillis; millis += VIEWERSHIP_INTERVAL) {
                     int totalCount = 0;
                     for (final TvChannelState tvChannelState : tvChannelStates) {
-                        final Viewership v = tvChannelState.viewership(targetViewershipMillis, productTypeIdForTvChannel);
+                        final Viewership v = tvChannelState.viewership(millis, productTypeIdForTvChannel);
                         viewerships.add(v);
-                        totalCount += v.zaps.size();
+                        totalCount += v.viewerCount();
                     }
-                    final DataTypeCodes dataTypeCodes = DataManager.getDataTypeCodes();
+                    final DataTypeCodes dataTypeCodes = data.dataTypeCodes();
                     if (millis > startViewershipMillis) logBuilder.append("\n");
                     logBuilder.append("Generated viewerships for ")
                             .append(viewerships.size()).append(" TV-channels and ")
                             .append(totalCount).append(" viewers at ")
                             .append(new Date(millis).toString());
                     for (final Viewership v : viewerships) {
-                        DataManager.queueConsumerEvent(v.toEvent(viewershipType, dataTypeCodes));
+                        data.emit(v.toEvent(viewershipType, dataTypeCodes));
                         v.log(logBuilder);
                     }
+                    if (viewershipStore != null) {
+                        try {
+                            viewershipStore.append(millis, viewerships);
+                        }
+                        catch (IOException e) {
+                            log.error("Failed to store the viewerships at " + new Date(millis).toString() + ": " + e.toString(), e);
+                        }
+                    }
                     viewerships.clear();
                 }
                 tvChannelStates.clear();
@@ -456,33 +1253,26 @@ final class ZapProcessor implements Runnable, TimerListener {
         final StringBuilder logBuilder = new StringBuilder(STAT_MINUTES_COUNT * 50);
         logBuilder.append("Current zap delivery delay distribution, rounded down to minutes of delay:");
         final long startDelayNano = System.nanoTime();
-        final int[] delays = currentDelays(); // one counter per each interval of STAT_RESOLUTION_MILLIS width
+        final EventDelayDistribution distribution = bufferingDelays.distribution(expiryTime); // one counter per each interval of STAT_RESOLUTION_MILLIS width
         final long processDelayNano = System.nanoTime();
-        final int delayIntervals = delays.length;
-        final int[] cumulativeCounts = new int[delayIntervals];
-        int totalCount = 0;
-        for (int i = 0; i < delayIntervals; i++) {
-            final int n = delays[i];
-            totalCount += n;
-            cumulativeCounts[i] = totalCount;
-            logBuilder.append("\n  ").append(i).append(": ").append(n);
-        }
-        final int cutoffCount = (totalCount * 90) / 100; // find the first bracket (interval) in cumulativeCounts containing 90% of totalCount
-        int i = 0;
-        while (i < delayIntervals) {
-            if (cumulativeCounts[i] >= cutoffCount) break;
-            i++;
-        }
-        if (i < 3) i = 4; // minimum: 5 minutes of buffering
-        else if (i > 28) i = 29; // maximum: 30 minutes of buffering
-        else i++; // correct for the fact that i is zero-based
-        i++; // add a minute, just in case
-        final long newDelay = i * STAT_RESOLUTION_MILLIS; // set the new buffering delay
-        if (newDelay != currentBufferingDelayMillis) {
-            currentBufferingDelayMillis = newDelay;
-            logBuilder.append("\nUsing the new buffering delay: ").append(i).append(" minutes");
-            long newStatDelay = (newDelay / VIEWERSHIP_INTERVAL) * VIEWERSHIP_INTERVAL;
-            if (newStatDelay < newDelay) newStatDelay += VIEWERSHIP_INTERVAL;
+        final long[] delays = distribution.counts;
+        for (int i = 0; i < delays.length; i++) {
+            logBuilder.append("\n  ").append(i).append(": ").append(delays[i]);
+        }
+        final long previousDelay = bufferingDelays.globalDelayMillis();
+        final long previousMaxDelay = bufferingDelays.maxDelayMillis();
+        bufferingDelays.tune(expiryTime, distribution, logBuilder); // a percentile of the delays plus a margin, per partner and for all partners
+        final long newDelay = bufferingDelays.globalDelayMillis();
+        if (newDelay != previousDelay) {
+            logBuilder.append("\nUsing the new common buffering delay: ").append(newDelay / 1000L).append(" s");
+        }
+        else {
+            logBuilder.append("\nThe common buffering delay remains at ").append(newDelay / 1000L).append(" s");
+        }
+        final long newMaxDelay = bufferingDelays.maxDelayMillis();
+        if (newMaxDelay != previousMaxDelay) {
+            logBuilder.append("\nThe longest buffering delay of any partner is now ").append(newMaxDelay / 1000L).append(" s");
+            final long newStatDelay = statDelayMillis(newMaxDelay);
             if (newStatDelay != currentStatDelayMillis) {
                 currentStatDelayMillis = newStatDelay;
                 logBuilder.append(", viewership statistics delay changed to ");
@@ -494,9 +1284,6 @@ final class ZapProcessor implements Runnable, TimerListener {
                     .append(" integral interval(s) (")
                     .append(VIEWERSHIP_INTERVAL).append(" ns)");
         }
-        else {
-            logBuilder.append("\nThe buffering delay remains at ").append(i).append(" minutes");
-        }
         final long startPurgeNano = System.nanoTime();
         logBuilder.append("\nTimings: retrieving cumulative statistics of the current window: ")
                 .append(processDelayNano - startDelayNano)
@@ -508,9 +1295,7 @@ final class ZapProcessor implements Runnable, TimerListener {
         if (purgeZaps) {
             final Long limitMillis = expiryTime - 86400000L; // length of one day
             int count = 0;
-            for (final Map.Entry<String, DeviceState> entry : events.entrySet()) {
-                final DeviceState state = entry.getValue();
-                if (state == null) continue;
+            for (final DeviceState state : events.values()) {
                 count += state.clearAncientZaps(limitMillis);
             }
             log.debug(count + " zaps removed with timestamps less than " + (limitMillis / 1000L)/* + ", " + idleCount + " idle device entries removed"*/);
@@ -521,46 +1306,88 @@ final class ZapProcessor implements Runnable, TimerListener {
             }
             tvChannelStates.clear();
         }
-    }
 
-    // counters
+        if (takeSnapshot) saveSnapshot();
+    }
 
-    synchronized void statEventDelay(final long deliveryTimestamp, final long eventTimestamp) {
-        final long nextWindowOffset = nextWindowTimestamp - deliveryTimestamp;
-        final long windowIndexOffset = nextWindowOffset / STAT_RESOLUTION_MILLIS; // relative to currentWindowIndex
-        final int[] statWindow;
-        if (nextWindowOffset < 0L) {
-            // move the window
-            nextWindowTimestamp = nextWindowTimestamp + ((-windowIndexOffset+1) * STAT_RESOLUTION_MILLIS);
-            final int nextWindowIndex = currentWindowIndex + (int)(-windowIndexOffset+1);
-            for (int i = currentWindowIndex + 1; i <= nextWindowIndex; i++) {
-                final int[] midStatWindow = delayStatistics[i % STAT_MINUTES_WINDOW];
-                for (int j = midStatWindow.length - 1; j >= 0; j--) midStatWindow[j] = 0; // initialize the new window
+    /**
+     * Evicts the least recently active devices until the estimated memory
+     * used by device states drops by the given amount of bytes. Any
+     * collected catch-up/VoD zaps of an evicted device are converted into
+     * consumptions immediately. Devices with pending live-tv consumptions
+     * are skipped.
+     *
+     * @param bytesToFree the estimated number of bytes to free
+     * @param logBuilder where to log the evictions and any produced consumptions
+     * @return the estimated number of bytes freed
+     */
+    private long evictLeastActive(final long bytesToFree, final StringBuilder logBuilder) {
+        final long startNano = System.nanoTime();
+        final List<DeviceState> states = events.values();
+        final int n = states.size();
+        final long[] activities = new long[n];
+        final Integer[] order = new Integer[n];
+        for (int i = n - 1; i >= 0; i--) {
+            activities[i] = states.get(i).lastActivityMillis; // take a snapshot, so the ordering is stable while sorting
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(activities[a], activities[b]));
+        long freedBytes = 0L;
+        int evictions = 0;
+        for (int i = 0; (i < n) && (freedBytes < bytesToFree); i++) {
+            final int index = order[i];
+            final DeviceState state = states.get(index);
+            final long bytes = state.estimatedBytes();
+            if (state.evict(activities[index], true, logBuilder)) { // abort if the device zapped after the snapshot
+                events.remove(state.code, state);
+                freedBytes += bytes;
+                evictions++;
             }
-            currentWindowIndex = nextWindowIndex % STAT_MINUTES_WINDOW;
-            statWindow = delayStatistics[currentWindowIndex];
         }
-        else {
-            final int statWindowIndex;
-            // shouldn't account for this window (using the windowIndexOffset), it is way too old, but account for it anyway
-            if (windowIndexOffset >= STAT_MINUTES_WINDOW) statWindowIndex = currentWindowIndex - (int)(STAT_MINUTES_WINDOW - 1);
-            else statWindowIndex = currentWindowIndex - (int)windowIndexOffset;
-            statWindow = delayStatistics[statWindowIndex < 0 ? STAT_MINUTES_WINDOW + statWindowIndex : statWindowIndex];
+        pressureEvictionCount += evictions;
+        logBuilder.append("\nMemory budget of ").append(memoryBudgetBytes / 1048576L).append(" MB exceeded: evicted ")
+                .append(evictions).append(" least active devices, freeing an estimated ").append(freedBytes / 1024L)
+                .append(" kB in ").append(System.nanoTime() - startNano).append(" ns");
+        if (freedBytes < bytesToFree) {
+            log.warn("Could not get device states within the memory budget of " + (memoryBudgetBytes / 1048576L) + " MB: " + ((bytesToFree - freedBytes) / 1024L) + " kB over the budget after evicting " + evictions + " devices");
         }
-        int delayMillis = (int)((deliveryTimestamp - eventTimestamp) / STAT_RESOLUTION_MILLIS);
-        if (delayMillis < 0) delayMillis = 0;
-        else if (delayMillis >= STAT_MINUTES_COUNT) delayMillis = STAT_MINUTES_COUNT - 1;
-        statWindow[delayMillis]++;
+        return freedBytes;
     }
 
-    synchronized int[] currentDelays() {
-        final int[] result = new int[STAT_MINUTES_COUNT];
-        for (int i = delayStatistics.length - 1; i >= 0; i--) {
-            final int[] statWindow = delayStatistics[i];
-            for (int j = STAT_MINUTES_COUNT - 1; j >= 0; j--) {
-                result[j] += statWindow[j];
-            }
+    /**
+     * Returns the delay of viewership statistics for the given buffering
+     * delay: the buffering delay rounded up to whole viewership intervals.
+     *
+     * @param bufferingDelayMillis the buffering delay
+     * @return the viewership statistics delay
+     */
+    private static long statDelayMillis(final long bufferingDelayMillis) {
+        final long statDelay = (bufferingDelayMillis / VIEWERSHIP_INTERVAL) * VIEWERSHIP_INTERVAL;
+        return statDelay < bufferingDelayMillis ? statDelay + VIEWERSHIP_INTERVAL : statDelay;
+    }
+
+    /**
+     * Returns how long to buffer zaps of the given partner, before they are
+     * converted into consumptions.
+     *
+     * @param partner the partner of the zaps
+     * @return the buffering delay in milliseconds
+     */
+    final long bufferingDelayMillis(final Partner partner) {
+        return bufferingDelays.delayMillis(partner);
+    }
+
+    ZapStatus status(final ZapClusterStatus cluster, final ZapChannelStatus channel) {
+        final int size;
+        final int threadCount;
+        lock.lock();
+        try {
+            size = queueSize;
+            threadCount = threads.size();
         }
-        return result;
+        finally {
+            lock.unlock();
+        }
+        return new ZapStatus(running, size, queueSoftLimit, rejectedCount.get(), threadCount, minThreadCount, maxThreadCount, serviceNanos, deviceCount, estimatedDeviceBytes, memoryBudgetBytes, idleEvictionCount, pressureEvictionCount, bufferingDelays.globalDelayMillis(), bufferingDelays.status(), liveViewership.totalViewers(), bufferingDelays.distribution(clock.currentTimeMillis()), clock.timerStatus(false), cluster, channel);
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.Partner;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A live-tv zap as it is retained until the consumption of its tv-programme
+ * is generated. Only the event ID, the event time, the tv-channel ID and
+ * the origin reported with the zap are kept with each zap. What is the
+ * same for all zaps of a device (partner, consumer, user profile, device
+ * ID and type) is kept in a {@link Source} instance, shared between the
+ * zaps of the device. Everything else in the original
+ * {@link ConsumerEvent} is not needed after the zap is classified, and is
+ * released as soon as the zap is processed.
+ */
+final class ZapRecord {
+    /** Denotes a zap without an event ID. */
+    static final long NO_ID = -1L;
+    /** The estimated heap footprint of an instance, not counting the shared source. */
+    static final long BYTES = 48L;
+    private static final int ORIGIN_CACHE_LIMIT = 256; // origins are from a small set of values, don't let bogus ones pile up
+    private static final ConcurrentHashMap<String, String> origins = new ConcurrentHashMap<>();
+
+    final long id;
+    final long timeMillis;
+    final long tvChannelId;
+    final Source source;
+    final String origin;
+
+    ZapRecord(final long id, final long timeMillis, final long tvChannelId, final Source source, final String origin) {
+        this.id = id;
+        this.timeMillis = timeMillis;
+        this.tvChannelId = tvChannelId;
+        this.source = source;
+        this.origin = origin;
+    }
+
+    /**
+     * Creates the record of the given zap. The given source is reused if
+     * it matches the zap, so zaps from the same device share it.
+     *
+     * @param event the zap
+     * @param tvChannelId the ID of the tv-channel that was zapped to
+     * @param dataTypeCodes the data types to extract from the event data
+     * @param previous the source of the previous zap of the device, or null
+     * @return the record of the zap
+     */
+    static ZapRecord of(final ConsumerEvent event, final long tvChannelId, final DataTypeCodes dataTypeCodes, final Source previous) {
+        final Map<DataType, String> data = event.getData();
+        final String deviceId;
+        final String deviceType;
+        final String origin;
+        if (data == null) {
+            deviceId = null;
+            deviceType = null;
+            origin = null;
+        }
+        else {
+            deviceId = data.get(dataTypeCodes.deviceId);
+            deviceType = data.get(dataTypeCodes.deviceType);
+            origin = canonicalOrigin(data.get(dataTypeCodes.origin));
+        }
+        final Source source;
+        if ((previous != null) && previous.matches(event.getPartner(), event.getConsumer(), event.getUserProfileId(), deviceId, deviceType)) source = previous;
+        else source = new Source(event.getPartner(), event.getConsumer(), event.getUserProfileId(), deviceId, deviceType);
+        final Long id = event.getId();
+        return new ZapRecord(id == null ? NO_ID : id.longValue(), event.getEventTimestamp().getTime(), tvChannelId, source, origin);
+    }
+
+    /**
+     * Returns the event ID of the zap, or null if it had none.
+     *
+     * @return the event ID, or null
+     */
+    Long eventId() {
+        return id == NO_ID ? null : id;
+    }
+
+    /**
+     * Returns the shared instance of the given origin string, so the same
+     * origin reported with many zaps is held only once.
+     *
+     * @param origin the origin reported with a zap
+     * @return the equal shared string, or the given string if there are too many distinct origins
+     */
+    static String canonicalOrigin(final String origin) {
+        if (origin == null) return null;
+        final String existing = origins.get(origin);
+        if (existing != null) return existing;
+        if (origins.size() >= ORIGIN_CACHE_LIMIT) return origin;
+        final String previous = origins.putIfAbsent(origin, origin);
+        return previous == null ? origin : previous;
+    }
+
+    /**
+     * What is common to all zaps of a device.
+     */
+    static final class Source {
+        final Partner partner;
+        final Consumer consumer;
+        final Long userProfileId;
+        final String deviceId;
+        final String deviceType;
+
+        Source(final Partner partner, final Consumer consumer, final Long userProfileId, final String deviceId, final String deviceType) {
+            this.partner = partner;
+            this.consumer = consumer;
+            this.userProfileId = userProfileId;
+            this.deviceId = deviceId;
+            this.deviceType = deviceType;
+        }
+
+        boolean matches(final Partner partner, final Consumer consumer, final Long userProfileId, final String deviceId, final String deviceType) {
+            if (this.partner != partner) {
+                if ((this.partner == null) || (partner == null) || !Objects.equals(this.partner.getId(), partner.getId())) return false;
+            }
+            if (this.consumer != consumer) {
+                if ((this.consumer == null) || (consumer == null) || !Objects.equals(this.consumer.getId(), consumer.getId()) || !Objects.equals(this.consumer.getUsername(), consumer.getUsername())) return false;
+            }
+            return Objects.equals(this.userProfileId, userProfileId) && Objects.equals(this.deviceId, deviceId) && Objects.equals(this.deviceType, deviceType);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Replays a stream of events through a separate zap processor, driven by a
+ * virtual clock: before each event is processed, the clock is advanced to
+ * the event's delivery time, firing all the timers that became due, so the
+ * outcome depends only on the events and the data, not on the wall clock
+ * or thread scheduling. Events are processed on the calling thread, which
+ * makes the measured throughput a per-core figure.
+ */
+final class ZapReplay {
+    private static final Logger log = LogManager.getLogger(ZapReplay.class);
+
+    final VirtualZapClock clock;
+    final ZapProcessor processor;
+    private long eventCount = 0L;
+    private long zapCount = 0L;
+    private long processingNanos = 0L;
+    private long timerNanos = 0L;
+    private int timerCount = 0;
+
+    /**
+     * @param data the data to look up tv-programmes in and to store the produced events to
+     * @param startMillis the initial time of the virtual clock
+     */
+    ZapReplay(final ZapData data, final long startMillis) {
+        this(data, startMillis, "none");
+    }
+
+    /**
+     * @param data the data to look up tv-programmes in and to store the produced events to
+     * @param startMillis the initial time of the virtual clock
+     * @param snapshotPath the snapshot to restore the zap state from at the start and save it to, "none" to start empty
+     */
+    ZapReplay(final ZapData data, final long startMillis, final String snapshotPath) {
+        this.clock = new VirtualZapClock(startMillis);
+        this.processor = new ZapProcessor(null, clock, data, 0, snapshotPath, null, null);
+    }
+
+    void start() {
+        processor.start();
+    }
+
+    /**
+     * Replays an event. Events must be replayed in the order of their
+     * delivery (request) timestamps; the clock never moves backward.
+     *
+     * @param event the event to replay
+     */
+    void replay(final ConsumerEvent event) {
+        if (event.getRequestTimestamp() != null) advanceTo(event.getRequestTimestamp().getTime());
+        process(event);
+    }
+
+    /**
+     * Replays an event at the time it happened, instead of the time it was
+     * delivered. All events of the devices involved must be replayed in the
+     * order of their event timestamps, so a zap is never late: the events
+     * that arrived late in production are replayed in their place.
+     *
+     * @param event the event to replay
+     */
+    void replayAtEventTime(final ConsumerEvent event) {
+        if (event.getEventTimestamp() != null) advanceTo(event.getEventTimestamp().getTime());
+        process(event);
+    }
+
+    private void process(final ConsumerEvent event) {
+        final long startNano = System.nanoTime();
+        final boolean isZap = processor.replay(event);
+        processingNanos += System.nanoTime() - startNano;
+        eventCount++;
+        if (isZap) zapCount++;
+    }
+
+    /**
+     * Replays the events, in the order given.
+     *
+     * @param events the events to replay
+     */
+    void replay(final Iterable<ConsumerEvent> events) {
+        for (final ConsumerEvent event : events) replay(event);
+    }
+
+    /**
+     * Moves the virtual time forward, firing the timers that become due.
+     *
+     * @param millis the new time
+     */
+    void advanceTo(final long millis) {
+        final long startNano = System.nanoTime();
+        timerCount += clock.advanceTo(millis);
+        timerNanos += System.nanoTime() - startNano;
+    }
+
+    /**
+     * Advances the time, so pending consumptions and viewership get
+     * produced, then stops the processor and logs the throughput.
+     *
+     * @param untilMillis the time to advance to before stopping
+     */
+    void finish(final long untilMillis) {
+        advanceTo(untilMillis);
+        processor.stop();
+        final StringBuilder logBuilder = new StringBuilder(256);
+        logBuilder.append("Replayed ").append(eventCount).append(" events, of those ").append(zapCount)
+                .append(" zaps, in ").append(processingNanos).append(" ns, and ").append(timerCount)
+                .append(" timers in ").append(timerNanos).append(" ns: ").append(zapsPerSecond())
+                .append(" zaps per second");
+        log.info(logBuilder.toString());
+    }
+
+    long eventCount() {
+        return eventCount;
+    }
+
+    long zapCount() {
+        return zapCount;
+    }
+
+    /**
+     * Returns the replay throughput on a single thread, counting both the
+     * processing of zaps and the timers fired in between.
+     *
+     * @return zaps per second
+     */
+    long zapsPerSecond() {
+        final long nanos = processingNanos + timerNanos;
+        return nanos == 0L ? 0L : (zapCount * 1000000000L) / nanos;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.Transaction;
+import com.gurucue.recommendations.caching.CachedJdbcDataProvider;
+import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
+import com.gurucue.recommendations.data.DataManager;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
+import com.gurucue.recommendations.data.postgresql.PostgreSqlDataProvider;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.ConsumerEventType;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.rest.Configuration;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Recomputes the consumptions and viewership of a past range of time from
+ * the zaps stored in the database, e.g. after a bug in zap processing has
+ * been fixed. Run it from the command line, with the same environment as
+ * the service:
+ * <pre>
+ * java -cp &lt;the service's classpath&gt; com.gurucue.recommendations.rest.data.processing.zap.ZapReprocessing &lt;from&gt; &lt;to&gt; [&lt;partitions&gt; [dry-run]]
+ * </pre>
+ * with times in seconds since the epoch, like in <code>/rest/viewership</code>.
+ * <p>
+ * The zaps are replayed through separate zap processors, one per partition
+ * of consumers, each on its own thread. A processor is driven by the time
+ * of the zaps rather than by the wall clock: it sees the zaps in the order
+ * they happened, so late zaps are no longer late. Zaps are replayed from
+ * RECSRV_REPROCESS_MARGIN_MINUTES before the range, so viewing sessions
+ * ongoing at its start are known, until as long after it, so sessions
+ * ongoing at its end are concluded; only the events that fall within the
+ * range are written.
+ * <p>
+ * Writing replaces what was produced before. Only the event types that
+ * nothing but zap processing produces are replaced, the live-tv
+ * consumptions and the viewership; consumptions of catch-up and video
+ * content cannot be told apart from those submitted by clients, so they are
+ * left as they are. All partitions are recomputed first, and only then the
+ * events of the range are deleted, in a single transaction, and the
+ * recomputed ones queued for writing, so a run that fails while recomputing
+ * leaves the range untouched. Running it again for the same range produces
+ * the same result, which is also how to complete a run that was
+ * interrupted while writing. Each partition produces the viewership of its
+ * own consumers, and they are summed up before being written. A dry run
+ * only reports what would be written.
+ */
+public final class ZapReprocessing {
+    private static final Logger log = LogManager.getLogger(ZapReprocessing.class);
+    private static final int FETCH_SIZE = 10000;
+
+    private static final String ZAPS_QUERY = "select e.id, e.event_timestamp, e.request_timestamp, e.partner_id, e.product_id, e.consumer_id, c.username, e.user_profile_id, t.identifier, d.event_data"
+            + " from consumer_event e left join consumer c on c.id = e.consumer_id"
+            + " left join consumer_event_data d on d.consumer_event_id = e.id left join data_type t on t.id = d.data_type_id"
+            + " where e.event_type_id = %d and e.event_timestamp >= to_timestamp(%d / 1000.0) and e.event_timestamp < to_timestamp(%d / 1000.0) and mod(e.consumer_id, %d) = %d"
+            + " order by e.event_timestamp, e.id"; // the rows of an event are consecutive
+    private static final String PRODUCED_EVENTS = "select id from consumer_event where event_type_id in (%s) and event_timestamp >= to_timestamp(%d / 1000.0) and event_timestamp < to_timestamp(%d / 1000.0)";
+
+    private final long fromMillis;
+    private final long toMillis;
+    private final long marginMillis;
+    private final int partitionCount;
+    private final boolean dryRun;
+    private final Output output;
+
+    ZapReprocessing(final long fromMillis, final long toMillis, final long marginMillis, final int partitionCount, final boolean dryRun) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.marginMillis = marginMillis;
+        this.partitionCount = partitionCount;
+        this.dryRun = dryRun;
+        this.output = new Output(DatabaseZapData.INSTANCE, fromMillis, toMillis);
+    }
+
+    public static void main(final String[] args) {
+        if ((args.length < 2) || (args.length > 4) || ((args.length == 4) && !"dry-run".equals(args[3]))) {
+            System.err.println("Usage: ZapReprocessing <from> <to> [<partitions> [dry-run]], with times in seconds since the epoch");
+            System.exit(2);
+        }
+        final long fromMillis;
+        final long toMillis;
+        final int partitionCount;
+        try {
+            fromMillis = Long.parseLong(args[0], 10) * 1000L;
+            toMillis = Long.parseLong(args[1], 10) * 1000L;
+            partitionCount = args.length > 2 ? Integer.parseInt(args[2], 10) : Runtime.getRuntime().availableProcessors();
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Not an integer: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if ((toMillis <= fromMillis) || (partitionCount < 1)) {
+            System.err.println("The time range must not be empty and there must be at least one partition");
+            System.exit(2);
+        }
+        final long marginMillis = Math.max(Configuration.getLong("RECSRV_REPROCESS_MARGIN_MINUTES", 360L), 0L) * 60000L;
+
+        DataManager.setProvider(CachedJdbcDataProvider.create(PostgreSqlDataProvider.create()));
+        boolean success = false;
+        try {
+            new ZapReprocessing(fromMillis, toMillis, marginMillis, partitionCount, args.length == 4).run();
+            success = true;
+        }
+        catch (Exception e) {
+            log.error("Reprocessing failed: " + e.toString(), e);
+        }
+        finally {
+            DataManager.closeProvider(); // writes out the queued events
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Reprocesses the zaps of all partitions in parallel, and writes the
+     * results.
+     *
+     * @throws Exception if reading zaps or writing the results fails
+     */
+    void run() throws Exception {
+        final long startNano = System.nanoTime();
+        log.info("Reprocessing zaps from " + new Timestamp(fromMillis) + " until " + new Timestamp(toMillis) + " in " + partitionCount + " partitions, with a margin of " + (marginMillis / 60000L) + " minutes" + (dryRun ? ", dry run" : ""));
+        final ExecutorService executor = Executors.newFixedThreadPool(partitionCount);
+        final List<Future<ZapReplay>> partitions = new ArrayList<>(partitionCount);
+        try {
+            for (int i = 0; i < partitionCount; i++) {
+                final int partition = i;
+                partitions.add(executor.submit(() -> reprocess(partition)));
+            }
+            long zapCount = 0L;
+            final StringBuilder partitionThroughput = new StringBuilder(partitionCount * 8);
+            for (final Future<ZapReplay> partition : partitions) {
+                final ZapReplay replay;
+                try {
+                    replay = partition.get();
+                }
+                catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+                zapCount += replay.zapCount();
+                if (partitionThroughput.length() > 0) partitionThroughput.append(", ");
+                partitionThroughput.append(replay.zapsPerSecond());
+            }
+            final List<ConsumerEvent> consumptions = output.consumptions();
+            final List<ConsumerEvent> viewership = output.viewership();
+            final int deletedCount = dryRun ? 0 : deleteProducedEvents();
+            if (!dryRun) {
+                for (final ConsumerEvent event : consumptions) DataManager.queueConsumerEvent(event);
+                for (final ConsumerEvent event : viewership) DataManager.queueConsumerEvent(event);
+            }
+            final long nanos = System.nanoTime() - startNano;
+            final StringBuilder logBuilder = new StringBuilder(512);
+            logBuilder.append("Reprocessed ").append(zapCount).append(" zaps in ").append(nanos).append(" ns: ")
+                    .append(nanos == 0L ? 0L : (zapCount * 1000000000L) / nanos).append(" zaps per second, per partition: ")
+                    .append(partitionThroughput).append("; ").append(dryRun ? "would write " : "wrote ")
+                    .append(consumptions.size()).append(" live-tv consumptions and ").append(viewership.size())
+                    .append(" viewership figures, replacing ").append(deletedCount).append(" events; skipped ")
+                    .append(output.skippedCount.get()).append(" other consumptions");
+            log.info(logBuilder.toString());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes the events of the range that only zap processing produces,
+     * and returns how many were deleted.
+     */
+    private int deleteProducedEvents() throws SQLException {
+        final ConsumerEventTypeCodes codes = DataManager.getConsumerEventTypeCodes();
+        final String types = codes.liveTvConsumption.getId() + ", " + codes.viewership.getId();
+        final String producedEvents = String.format(PRODUCED_EVENTS, types, fromMillis, toMillis);
+        final JdbcDataLink link = (JdbcDataLink) DataManager.getNewLink();
+        try {
+            final int count;
+            try (final Statement statement = link.createStatement()) {
+                statement.executeUpdate("delete from consumer_event_data where consumer_event_id in (" + producedEvents + ")");
+                count = statement.executeUpdate("delete from consumer_event where id in (" + producedEvents + ")");
+            }
+            link.commit();
+            log.info("Deleted " + count + " live-tv consumption and viewership events of the range");
+            return count;
+        }
+        catch (SQLException | RuntimeException e) {
+            link.rollback();
+            throw e;
+        }
+        finally {
+            link.close();
+        }
+    }
+
+    /**
+     * Replays the zaps of a partition, on the calling thread.
+     */
+    private ZapReplay reprocess(final int partition) throws SQLException {
+        final ZapReplay replay = new ZapReplay(output, fromMillis - marginMillis);
+        replay.start();
+        final JdbcDataLink link = (JdbcDataLink) DataManager.getNewLink();
+        try (final Transaction transaction = Transaction.newTransaction(link)) { // the query results are streamed within a transaction
+            try (final Statement statement = link.createStatement()) {
+                statement.setFetchSize(FETCH_SIZE);
+                final String query = String.format(ZAPS_QUERY, DataManager.getConsumerEventTypeCodes().idForZap, fromMillis - marginMillis, toMillis + marginMillis, partitionCount, partition);
+                try (final ResultSet rs = statement.executeQuery(query)) {
+                    final ZapRows rows = new ZapRows(link, transaction, rs);
+                    for (ConsumerEvent zap = rows.next(); zap != null; zap = rows.next()) {
+                        replay.replayAtEventTime(zap);
+                    }
+                }
+            }
+            transaction.commit();
+            replay.finish(toMillis + marginMillis);
+        }
+        finally {
+            link.close();
+            output.release(); // the tv-programme lookups of this thread
+        }
+        return replay;
+    }
+
+    /**
+     * Turns the rows of the zap query into events. Referenced entities are
+     * looked up once per partition.
+     */
+    private static final class ZapRows {
+        private final JdbcDataLink link;
+        private final Transaction transaction;
+        private final ResultSet rs;
+        private final TLongObjectHashMap<Partner> partners = new TLongObjectHashMap<>();
+        private final TLongObjectHashMap<Product> products = new TLongObjectHashMap<>(); // a null value denotes a product that wasn't found
+        private final TLongObjectHashMap<Consumer> consumers = new TLongObjectHashMap<>();
+        private final DataTypeCodes dataTypeCodes = DataManager.getDataTypeCodes();
+        private final ConsumerEventType zapType = DataManager.getConsumerEventTypeCodes().zap;
+        private boolean hasRow;
+
+        ZapRows(final JdbcDataLink link, final Transaction transaction, final ResultSet rs) throws SQLException {
+            this.link = link;
+            this.transaction = transaction;
+            this.rs = rs;
+            for (final Partner partner : link.getPartnerManager().list()) partners.put(partner.getId(), partner);
+            hasRow = rs.next();
+        }
+
+        /**
+         * Returns the next zap, or null when there are no more.
+         */
+        ConsumerEvent next() throws SQLException {
+            if (!hasRow) return null;
+            final long id = rs.getLong(1);
+            final Timestamp eventTimestamp = rs.getTimestamp(2);
+            final Timestamp requestTimestamp = rs.getTimestamp(3);
+            final Partner partner = partners.get(rs.getLong(4));
+            final long productId = rs.getLong(5);
+            final Product product = rs.wasNull() ? null : product(partner, productId);
+            final Consumer consumer = consumer(rs.getLong(6), rs.getString(7), partner);
+            final long userProfileId = rs.getLong(8);
+            final Long userProfile = rs.wasNull() ? null : userProfileId;
+            final Map<DataType, String> data = new HashMap<>();
+            do {
+                final String identifier = rs.getString(9);
+                if (identifier != null) {
+                    final DataType dataType = dataTypeCodes.byIdentifier(identifier);
+                    if (dataType != null) data.put(dataType, rs.getString(10));
+                }
+                hasRow = rs.next();
+            } while (hasRow && (rs.getLong(1) == id));
+            final ConsumerEvent event = new ConsumerEvent(id, eventTimestamp, partner, product, consumer, zapType, data, userProfile);
+            event.setRequestTimestamp(requestTimestamp);
+            return event;
+        }
+
+        private Product product(final Partner partner, final long id) {
+            if (products.containsKey(id)) return products.get(id);
+            Product product = null;
+            if (partner != null) {
+                try {
+                    product = link.getProductManager().getById(transaction, partner, id, false);
+                }
+                catch (RuntimeException e) {
+                    log.error("Failed to retrieve product " + id + " of partner " + partner.getId() + ": " + e.toString(), e);
+                }
+            }
+            products.put(id, product);
+            return product;
+        }
+
+        private Consumer consumer(final long id, final String username, final Partner partner) {
+            Consumer consumer = consumers.get(id);
+            if (consumer == null) {
+                consumer = new Consumer(id, username, partner, null); // the activation time is not used in zap processing
+                consumers.put(id, consumer);
+            }
+            return consumer;
+        }
+    }
+
+    /**
+     * Looks up tv-programmes through the given zap data, and collects the
+     * events produced by the partitions' zap processors within the range:
+     * live-tv consumptions as they are, while viewership figures are summed
+     * up over the partitions. Other consumptions are only counted.
+     */
+    static final class Output implements ZapData {
+        private final ZapData database;
+        private final long fromMillis;
+        private final long toMillis;
+        private final List<ConsumerEvent> consumptions = new ArrayList<>();
+        private final Map<String, ViewershipSum> viewership = new LinkedHashMap<>(); // partner, tv-channel and time -> the summed up figure
+        final AtomicLong skippedCount = new AtomicLong();
+
+        Output(final ZapData database, final long fromMillis, final long toMillis) {
+            this.database = database;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+
+        @Override
+        public DataTypeCodes dataTypeCodes() {
+            return database.dataTypeCodes();
+        }
+
+        @Override
+        public ConsumerEventTypeCodes consumerEventTypeCodes() {
+            return database.consumerEventTypeCodes();
+        }
+
+        @Override
+        public ProductTypeCodes productTypeCodes() {
+            return database.productTypeCodes();
+        }
+
+        @Override
+        public void forEachTvChannel(final BiConsumer<Partner, TvChannelProduct> action) {
+            database.forEachTvChannel(action);
+        }
+
+        @Override
+        public TvProgrammeProduct tvProgrammeAt(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+            return database.tvProgrammeAt(partner, tvChannel, millis);
+        }
+
+        @Override
+        public TvProgrammeProduct firstTvProgrammeAfter(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+            return database.firstTvProgrammeAfter(partner, tvChannel, millis);
+        }
+
+        @Override
+        public List<Partner> partners() {
+            return database.partners();
+        }
+
+        @Override
+        public Product product(final Partner partner, final long id) {
+            return database.product(partner, id);
+        }
+
+        @Override
+        public void emit(final ConsumerEvent event) {
+            final long millis = event.getEventTimestamp().getTime();
+            if ((millis < fromMillis) || (millis >= toMillis)) return;
+            final ConsumerEventType type = event.getEventType();
+            if (type == consumerEventTypeCodes().viewership) add(event);
+            else if (type == consumerEventTypeCodes().liveTvConsumption) {
+                synchronized (this) {
+                    consumptions.add(event);
+                }
+            }
+            else skippedCount.incrementAndGet();
+        }
+
+        @Override
+        public void checkpoint(final boolean idle) {
+            database.checkpoint(idle);
+        }
+
+        @Override
+        public void release() {
+            database.release();
+        }
+
+        @Override
+        public void appendStatistics(final StringBuilder output) {
+            database.appendStatistics(output);
+        }
+
+        private synchronized void add(final ConsumerEvent event) {
+            final DataTypeCodes codes = dataTypeCodes();
+            final Map<DataType, String> data = event.getData();
+            final String key = event.getPartner().getId() + ":" + event.getProduct().id + ":" + event.getEventTimestamp().getTime();
+            final ViewershipSum sum = viewership.get(key);
+            if (sum == null) viewership.put(key, new ViewershipSum(event, codes));
+            else sum.add(data, codes);
+        }
+
+        /**
+         * Returns the collected live-tv consumptions.
+         */
+        synchronized List<ConsumerEvent> consumptions() {
+            return new ArrayList<>(consumptions);
+        }
+
+        /**
+         * Returns the summed up viewership figures.
+         */
+        synchronized List<ConsumerEvent> viewership() {
+            final DataTypeCodes codes = dataTypeCodes();
+            final List<ConsumerEvent> result = new ArrayList<>(viewership.size());
+            for (final ViewershipSum sum : viewership.values()) result.add(sum.toEvent(codes));
+            return result;
+        }
+    }
+
+    /**
+     * The viewership figure of a tv-programme at a time, summed up over the
+     * partitions. A partition without viewers of the tv-channel does not
+     * know the tv-programme, so it is taken from the partitions that do.
+     * The ID lists are decoded once per partition and encoded once at the
+     * end.
+     */
+    private static final class ViewershipSum {
+        private final ConsumerEvent event;
+        private String tvProgrammeId;
+        private long viewerCount;
+        private TLongArrayList consumerIds;
+        private TLongArrayList zapIds;
+
+        ViewershipSum(final ConsumerEvent event, final DataTypeCodes codes) {
+            this.event = event;
+            add(event.getData(), codes);
+        }
+
+        void add(final Map<DataType, String> data, final DataTypeCodes codes) {
+            if (tvProgrammeId == null) tvProgrammeId = data.get(codes.tvProgrammeId);
+            viewerCount += Long.parseLong(data.get(codes.viewerCount), 10);
+            consumerIds = addIds(consumerIds, data.get(codes.consumerIdList));
+            zapIds = addIds(zapIds, data.get(codes.zapIdList));
+        }
+
+        private static TLongArrayList addIds(final TLongArrayList ids, final String encoded) {
+            if (encoded == null) return ids;
+            final long[] added = ViewershipIdCodec.decode(encoded);
+            if (ids == null) return new TLongArrayList(added);
+            ids.add(added);
+            return ids;
+        }
+
+        ConsumerEvent toEvent(final DataTypeCodes codes) {
+            final Map<DataType, String> data = event.getData();
+            if (tvProgrammeId != null) data.put(codes.tvProgrammeId, tvProgrammeId);
+            data.put(codes.viewerCount, Long.toString(viewerCount, 10));
+            if (consumerIds != null) data.put(codes.consumerIdList, ViewershipIdCodec.encode(consumerIds.toArray(), consumerIds.size()));
+            if (zapIds != null) data.put(codes.zapIdList, ViewershipIdCodec.encode(zapIds.toArray(), zapIds.size()));
+            return event;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.DataManager;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.ConsumerEventType;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.value.AttributeValues;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Saves the zap processing state into a local binary file, and restores it
+ * from there, so ongoing viewing sessions survive a restart of the service.
+ * <p>
+ * Entities are written as references: products and partners by their IDs,
+ * event and data types by their identifiers. They are resolved through the
+ * processor's {@link ZapData} when the snapshot is restored, and zaps
+ * referring to products that don't exist anymore are dropped. A snapshot
+ * is first written into a temporary file, which then replaces the previous
+ * snapshot, so a crash while saving leaves the previous snapshot intact.
+ */
+final class ZapSnapshot {
+    private static final Logger log = LogManager.getLogger(ZapSnapshot.class);
+    private static final int MAGIC = 0x5A415053; // "ZAPS"
+    private static final int VERSION = 2; // version 2: live-tv zaps as zap records
+    private static final int VERSION_EVENTS = 1; // version 1: live-tv zaps as full events, still restorable
+    private static final int BUFFER_SIZE = 65536;
+
+    // kinds of product references
+    private static final int PRODUCT_NONE = 0; // a null reference
+    private static final int PRODUCT_NULL = 1; // DeviceState.NULL_PRODUCT
+    private static final int PRODUCT_STORED = 2; // a product from the database
+    private static final int PRODUCT_AD_HOC = 3; // a product reconstructed from event data, see DeviceState.zap()
+
+    private ZapSnapshot() {} // not instantiable
+
+    /**
+     * Writes the state of the given zap processor into the given file.
+     * The processor may be running while its state is being saved.
+     *
+     * @param processor the zap processor whose state to save
+     * @param file the snapshot file to write
+     * @throws IOException if writing the file fails
+     */
+    static void save(final ZapProcessor processor, final File file) throws IOException {
+        final long startNano = System.nanoTime();
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final Writer out = new Writer(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(processor.clock.currentTimeMillis());
+            processor.writeSnapshot(out);
+            out.writeInt(MAGIC); // the end marker, to detect a truncated file
+        }
+        finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final long endNano = System.nanoTime();
+        final StringBuilder logBuilder = new StringBuilder(200);
+        logBuilder.append("Saved zap state of ").append(out.deviceCount)
+                .append(" devices, ").append(out.tvProgrammeCount)
+                .append(" tv-programmes and ").append(out.eventCount)
+                .append(" zaps to ").append(file.getPath())
+                .append(" (").append(file.length() / 1024L)
+                .append(" kB) in ").append(endNano - startNano).append(" ns");
+        log.info(logBuilder.toString());
+    }
+
+    /**
+     * Restores the state of the given zap processor from the given file,
+     * if it exists and is not older than the given age. Must be invoked
+     * before the processor starts accepting zaps. If the file turns out to
+     * be truncated or corrupt, the state that was read up to the point of
+     * failure remains restored.
+     *
+     * @param processor the zap processor whose state to restore
+     * @param file the snapshot file to read
+     * @param maxAgeMillis the maximum age of the snapshot, older snapshots are ignored
+     */
+    static void restore(final ZapProcessor processor, final File file, final long maxAgeMillis) {
+        if (!file.isFile()) {
+            log.info("No zap state snapshot to restore at " + file.getPath());
+            return;
+        }
+        final long startNano = System.nanoTime();
+        try (final Reader in = new Reader(new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)), processor.data)) {
+            if (in.readInt() != MAGIC) {
+                log.error("Not restoring zap state: " + file.getPath() + " is not a zap state snapshot");
+                return;
+            }
+            final int version = in.readInt();
+            in.version = version;
+            if ((version != VERSION) && (version != VERSION_EVENTS)) {
+                log.error("Not restoring zap state: unsupported snapshot version " + version + " in " + file.getPath());
+                return;
+            }
+            final long snapshotMillis = in.readLong();
+            final long ageMillis = processor.clock.currentTimeMillis() - snapshotMillis;
+            if (ageMillis > maxAgeMillis) {
+                log.warn("Not restoring zap state: the snapshot in " + file.getPath() + " is " + (ageMillis / 60000L) + " minutes old");
+                return;
+            }
+            try {
+                processor.readSnapshot(in);
+                if (in.readInt() != MAGIC) throw new IOException("invalid end marker");
+            }
+            catch (IOException e) {
+                log.error("The zap state snapshot " + file.getPath() + " is damaged, restored only " + in.deviceCount + " devices and " + in.tvProgrammeCount + " tv-programmes: " + e.toString(), e);
+                return;
+            }
+            final long endNano = System.nanoTime();
+            final StringBuilder logBuilder = new StringBuilder(256);
+            logBuilder.append("Restored zap state of ").append(in.deviceCount)
+                    .append(" devices, ").append(in.tvProgrammeCount)
+                    .append(" tv-programmes and ").append(in.eventCount)
+                    .append(" zaps from a snapshot taken ").append(ageMillis / 1000L)
+                    .append(" s ago, ").append(in.missingProductCount)
+                    .append(" referenced products not found; timing: ").append(endNano - startNano).append(" ns");
+            log.info(logBuilder.toString());
+        }
+        catch (IOException | RuntimeException e) {
+            log.error("Failed to restore zap state from " + file.getPath() + ": " + e.toString(), e);
+        }
+        finally {
+            processor.data.release(); // the lookups were made on the starting thread
+        }
+    }
+
+    /**
+     * Serializes zap state entities into a snapshot.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        int deviceCount = 0;
+        int tvProgrammeCount = 0;
+        int eventCount = 0;
+
+        Writer(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(final int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeLong(final long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        void writeDouble(final double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        void writeBoolean(final boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        void writeByte(final int value) throws IOException {
+            out.writeByte(value);
+        }
+
+        void writeString(final String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeNullableLong(final Long value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeLong(value.longValue());
+        }
+
+        void writePartner(final Partner partner) throws IOException {
+            writeNullableLong(partner == null ? null : partner.getId());
+        }
+
+        void writeProduct(final Product product) throws IOException {
+            if (product == null) out.writeByte(PRODUCT_NONE);
+            else if (product == DeviceState.NULL_PRODUCT) out.writeByte(PRODUCT_NULL);
+            else if (product.id > 0L) {
+                out.writeByte(PRODUCT_STORED);
+                out.writeLong(product.partnerId);
+                out.writeLong(product.id);
+            }
+            else {
+                out.writeByte(PRODUCT_AD_HOC);
+                out.writeLong(product.id);
+                out.writeLong(product.productTypeId);
+                out.writeLong(product.partnerId);
+                writeString(product.partnerProductCode);
+            }
+        }
+
+        void writeConsumer(final Consumer consumer) throws IOException {
+            out.writeBoolean(consumer != null);
+            if (consumer == null) return;
+            writeNullableLong(consumer.getId());
+            writeString(consumer.getUsername());
+            writePartner(consumer.getPartner());
+        }
+
+        void writeEvent(final ConsumerEvent event) throws IOException {
+            out.writeBoolean(event != null);
+            if (event == null) return;
+            writeNullableLong(event.getId());
+            writeNullableLong(event.getEventTimestamp() == null ? null : event.getEventTimestamp().getTime());
+            writeNullableLong(event.getRequestTimestamp() == null ? null : event.getRequestTimestamp().getTime());
+            writePartner(event.getPartner());
+            writeProduct(event.getProduct());
+            writeConsumer(event.getConsumer());
+            writeString(event.getEventType() == null ? null : event.getEventType().getIdentifier());
+            final Map<DataType, String> data = event.getData();
+            if (data == null) out.writeInt(-1);
+            else {
+                out.writeInt(data.size());
+                for (final Map.Entry<DataType, String> entry : data.entrySet()) {
+                    writeString(entry.getKey().getIdentifier());
+                    writeString(entry.getValue());
+                }
+            }
+            writeNullableLong(event.getUserProfileId());
+            eventCount++;
+        }
+
+        void writeZap(final ZapRecord zap) throws IOException {
+            out.writeBoolean(zap != null);
+            if (zap == null) return;
+            out.writeLong(zap.id);
+            out.writeLong(zap.timeMillis);
+            out.writeLong(zap.tvChannelId);
+            writeString(zap.origin);
+            final ZapRecord.Source source = zap.source;
+            writePartner(source.partner);
+            writeConsumer(source.consumer);
+            writeNullableLong(source.userProfileId);
+            writeString(source.deviceId);
+            writeString(source.deviceType);
+            eventCount++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Deserializes zap state entities from a snapshot, resolving the
+     * referenced entities through the zap processing data. Products are
+     * looked up only once per product.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final ZapData data;
+        private final TLongObjectHashMap<Partner> partners = new TLongObjectHashMap<>();
+        private final TLongObjectHashMap<Product> products = new TLongObjectHashMap<>(); // a null value denotes a product that wasn't found
+        private final TLongObjectHashMap<Consumer> consumers = new TLongObjectHashMap<>();
+        private final Map<String, ConsumerEventType> eventTypes = new HashMap<>();
+        private final DataTypeCodes dataTypeCodes;
+        private ZapRecord.Source lastZapSource = null; // zaps of a device are consecutive, so they can share the source
+        int version = VERSION;
+        int deviceCount = 0;
+        int tvProgrammeCount = 0;
+        int eventCount = 0;
+        int missingProductCount = 0;
+
+        Reader(final DataInputStream in, final ZapData data) {
+            this.in = in;
+            this.data = data;
+            this.dataTypeCodes = data.dataTypeCodes();
+            for (final Partner partner : data.partners()) partners.put(partner.getId(), partner);
+        }
+
+        int readInt() throws IOException {
+            return in.readInt();
+        }
+
+        long readLong() throws IOException {
+            return in.readLong();
+        }
+
+        double readDouble() throws IOException {
+            return in.readDouble();
+        }
+
+        boolean readBoolean() throws IOException {
+            return in.readBoolean();
+        }
+
+        int readByte() throws IOException {
+            return in.readUnsignedByte();
+        }
+
+        String readString() throws IOException {
+            final int length = in.readInt();
+            if (length < 0) return null;
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Long readNullableLong() throws IOException {
+            return in.readBoolean() ? in.readLong() : null;
+        }
+
+        Partner readPartner() throws IOException {
+            final Long id = readNullableLong();
+            return id == null ? null : partners.get(id);
+        }
+
+        /**
+         * Reads a product reference. Returns null also when the referenced
+         * product doesn't exist anymore.
+         *
+         * @return the referenced product, or null
+         * @throws IOException if reading fails
+         */
+        Product readProduct() throws IOException {
+            final int kind = in.readUnsignedByte();
+            switch (kind) {
+                case PRODUCT_NONE:
+                    return null;
+                case PRODUCT_NULL:
+                    return DeviceState.NULL_PRODUCT;
+                case PRODUCT_STORED: {
+                    final long partnerId = in.readLong();
+                    final long id = in.readLong();
+                    if (products.containsKey(id)) return products.get(id);
+                    final Partner partner = partners.get(partnerId);
+                    Product product = null;
+                    if (partner != null) {
+                        try {
+                            product = data.product(partner, id);
+                        }
+                        catch (RuntimeException e) {
+                            log.error("Failed to retrieve product " + id + " of partner " + partnerId + ": " + e.toString(), e);
+                        }
+                    }
+                    if (product == null) missingProductCount++;
+                    products.put(id, product);
+                    return product;
+                }
+                case PRODUCT_AD_HOC: {
+                    final long id = in.readLong();
+                    final long productTypeId = in.readLong();
+                    final long partnerId = in.readLong();
+                    final String partnerProductCode = readString();
+                    return Product.create(id, productTypeId, partnerId, partnerProductCode, null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES, DataManager.getProvider());
+                }
+                default:
+                    throw new IOException("Invalid product reference kind: " + kind);
+            }
+        }
+
+        Consumer readConsumer() throws IOException {
+            if (!in.readBoolean()) return null;
+            final Long id = readNullableLong();
+            final String username = readString();
+            final Partner partner = readPartner();
+            if (id == null) return new Consumer(null, username, partner, null);
+            Consumer consumer = consumers.get(id);
+            if (consumer == null) {
+                consumer = new Consumer(id, username, partner, null); // the activation time is not used in zap processing
+                consumers.put(id, consumer);
+            }
+            return consumer;
+        }
+
+        ConsumerEvent readEvent() throws IOException {
+            if (!in.readBoolean()) return null;
+            final Long id = readNullableLong();
+            final Long eventMillis = readNullableLong();
+            final Long requestMillis = readNullableLong();
+            final Partner partner = readPartner();
+            final Product product = readProduct();
+            final Consumer consumer = readConsumer();
+            final String eventTypeIdentifier = readString();
+            final int dataSize = in.readInt();
+            final Map<DataType, String> data;
+            if (dataSize < 0) data = null;
+            else {
+                data = new HashMap<>();
+                for (int i = dataSize; i > 0; i--) {
+                    final String identifier = readString();
+                    final String value = readString();
+                    final DataType dataType = identifier == null ? null : dataTypeCodes.byIdentifier(identifier);
+                    if (dataType != null) data.put(dataType, value);
+                }
+            }
+            final Long userProfileId = readNullableLong();
+            ConsumerEventType eventType = null;
+            if (eventTypeIdentifier != null) {
+                eventType = eventTypes.get(eventTypeIdentifier);
+                if (eventType == null) {
+                    eventType = this.data.consumerEventTypeCodes().byIdentifier(eventTypeIdentifier);
+                    if (eventType != null) eventTypes.put(eventTypeIdentifier, eventType);
+                }
+            }
+            final ConsumerEvent event = new ConsumerEvent(id, eventMillis == null ? null : new Timestamp(eventMillis), partner, product, consumer, eventType, data, userProfileId);
+            if (requestMillis != null) event.setRequestTimestamp(new Timestamp(requestMillis));
+            eventCount++;
+            return event;
+        }
+
+        ZapRecord readZap() throws IOException {
+            if (version == VERSION_EVENTS) {
+                final ConsumerEvent event = readEvent();
+                if ((event == null) || (event.getEventTimestamp() == null) || (event.getProduct() == null)) return null;
+                final ZapRecord zap = ZapRecord.of(event, event.getProduct().id, dataTypeCodes, lastZapSource);
+                lastZapSource = zap.source;
+                return zap;
+            }
+            if (!in.readBoolean()) return null;
+            final long id = in.readLong();
+            final long timeMillis = in.readLong();
+            final long tvChannelId = in.readLong();
+            final String origin = ZapRecord.canonicalOrigin(readString());
+            final Partner partner = readPartner();
+            final Consumer consumer = readConsumer();
+            final Long userProfileId = readNullableLong();
+            final String deviceId = readString();
+            final String deviceType = readString();
+            if ((lastZapSource == null) || !lastZapSource.matches(partner, consumer, userProfileId, deviceId, deviceType)) {
+                lastZapSource = new ZapRecord.Source(partner, consumer, userProfileId, deviceId, deviceType);
+            }
+            eventCount++;
+            return new ZapRecord(id, timeMillis, tvChannelId, lastZapSource, origin);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
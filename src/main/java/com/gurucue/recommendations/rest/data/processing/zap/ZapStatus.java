@@ -0,0 +1,139 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A point-in-time snapshot of the zap processing state, for diagnostic
+ * purposes.
+ */
+public final class ZapStatus implements TranslatorAware {
+    public final boolean running;
+    public final int queueSize;
+    /** Above this queue size new zaps are rejected, to be sent again later. */
+    public final int queueSoftLimit;
+    public final long rejectedZaps;
+    public final int workerThreads;
+    public final int minWorkerThreads;
+    public final int maxWorkerThreads;
+    /** The recent average processing time of a zap. */
+    public final long serviceNanos;
+    public final int deviceCount;
+    public final long estimatedDeviceBytes;
+    public final long memoryBudgetBytes;
+    public final long idleEvictionCount;
+    public final long pressureEvictionCount;
+    /** The buffering delay of partners without enough events to tune their own. */
+    public final long bufferingDelayMillis;
+    public final List<PartnerBufferingStatus> partnerBuffering;
+    public final int liveViewers;
+    public final EventDelayDistribution eventDelays;
+    public final ZapTimerStatus timers;
+    /** The state of zap processing shared with other nodes, null if this node processes all zaps alone. */
+    public final ZapClusterStatus cluster;
+    /** The state of the channel handing zaps from serving nodes to zap workers, null if not used. */
+    public final ZapChannelStatus channel;
+
+    ZapStatus(
+            final boolean running,
+            final int queueSize,
+            final int queueSoftLimit,
+            final long rejectedZaps,
+            final int workerThreads,
+            final int minWorkerThreads,
+            final int maxWorkerThreads,
+            final long serviceNanos,
+            final int deviceCount,
+            final long estimatedDeviceBytes,
+            final long memoryBudgetBytes,
+            final long idleEvictionCount,
+            final long pressureEvictionCount,
+            final long bufferingDelayMillis,
+            final List<PartnerBufferingStatus> partnerBuffering,
+            final int liveViewers,
+            final EventDelayDistribution eventDelays,
+            final ZapTimerStatus timers,
+            final ZapClusterStatus cluster,
+            final ZapChannelStatus channel
+    ) {
+        this.running = running;
+        this.queueSize = queueSize;
+        this.queueSoftLimit = queueSoftLimit;
+        this.rejectedZaps = rejectedZaps;
+        this.workerThreads = workerThreads;
+        this.minWorkerThreads = minWorkerThreads;
+        this.maxWorkerThreads = maxWorkerThreads;
+        this.serviceNanos = serviceNanos;
+        this.deviceCount = deviceCount;
+        this.estimatedDeviceBytes = estimatedDeviceBytes;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.idleEvictionCount = idleEvictionCount;
+        this.pressureEvictionCount = pressureEvictionCount;
+        this.bufferingDelayMillis = bufferingDelayMillis;
+        this.partnerBuffering = partnerBuffering;
+        this.liveViewers = liveViewers;
+        this.eventDelays = eventDelays;
+        this.timers = timers;
+        this.cluster = cluster;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the status of a node that doesn't process zaps, but hands
+     * them over to a zap worker.
+     *
+     * @param channel the state of the channel to the zap worker, null if zaps are not handed over
+     * @return the status
+     */
+    static ZapStatus notProcessing(final ZapChannelStatus channel) {
+        return new ZapStatus(false, 0, 0, 0L, 0, 0, 0, 0L, 0, 0L, 0L, 0L, 0L, 0L, Collections.<PartnerBufferingStatus>emptyList(), 0, null, null, null, channel);
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("zapProcessing");
+        translator.addKeyValue("running", running);
+        translator.addKeyValue("queueSize", queueSize);
+        translator.addKeyValue("queueSoftLimit", queueSoftLimit);
+        translator.addKeyValue("rejectedZaps", rejectedZaps);
+        translator.addKeyValue("workerThreads", workerThreads);
+        translator.addKeyValue("minWorkerThreads", minWorkerThreads);
+        translator.addKeyValue("maxWorkerThreads", maxWorkerThreads);
+        translator.addKeyValue("serviceNanos", serviceNanos);
+        translator.addKeyValue("deviceCount", deviceCount);
+        translator.addKeyValue("estimatedDeviceBytes", estimatedDeviceBytes);
+        translator.addKeyValue("memoryBudgetBytes", memoryBudgetBytes);
+        translator.addKeyValue("idleEvictions", idleEvictionCount);
+        translator.addKeyValue("pressureEvictions", pressureEvictionCount);
+        translator.addKeyValue("bufferingDelayMillis", bufferingDelayMillis);
+        translator.addKeyValue("partnerBuffering", partnerBuffering);
+        translator.addKeyValue("liveViewers", liveViewers);
+        if (eventDelays != null) translator.addKeyValue("eventDelays", Collections.<TranslatorAware>singletonList(eventDelays));
+        if (timers != null) translator.addKeyValue("timers", Collections.<TranslatorAware>singletonList(timers));
+        if (cluster != null) translator.addKeyValue("cluster", Collections.<TranslatorAware>singletonList(cluster));
+        if (channel != null) translator.addKeyValue("channel", Collections.<TranslatorAware>singletonList(channel));
+        translator.endObject();
+    }
+}
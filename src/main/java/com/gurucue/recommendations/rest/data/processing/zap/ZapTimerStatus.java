@@ -0,0 +1,53 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * The state of the zap timers: how many are pending, and how late the
+ * expired ones were invoked compared to their scheduled time.
+ */
+public final class ZapTimerStatus implements TranslatorAware {
+    public final int pendingTimers;
+    public final long firedTimers;
+    public final long meanLagMillis;
+    /** The maximum lag since the last statistics were logged. */
+    public final long maxLagMillis;
+
+    ZapTimerStatus(final int pendingTimers, final long firedTimers, final long meanLagMillis, final long maxLagMillis) {
+        this.pendingTimers = pendingTimers;
+        this.firedTimers = firedTimers;
+        this.meanLagMillis = meanLagMillis;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("timers");
+        translator.addKeyValue("pending", pendingTimers);
+        translator.addKeyValue("fired", firedTimers);
+        translator.addKeyValue("meanLagMillis", meanLagMillis);
+        translator.addKeyValue("maxLagMillis", maxLagMillis);
+        translator.endObject();
+    }
+}
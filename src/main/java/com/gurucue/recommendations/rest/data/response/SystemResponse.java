@@ -18,6 +18,9 @@
  */
 package com.gurucue.recommendations.rest.data.response;
 
+import com.gurucue.recommendations.rest.ServiceRole;
+import com.gurucue.recommendations.rest.data.processing.zap.ConsumerEventProcessor;
+import com.gurucue.recommendations.rest.recommender.RecommenderProviderImpl;
 import com.gurucue.recommendations.rest.servlet.RecommendationServlet;
 import com.gurucue.recommendations.translator.DataTranslator;
 import com.gurucue.recommendations.ResponseStatus;
@@ -26,6 +29,7 @@ import com.gurucue.recommendations.translator.TranslatorAware;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -57,11 +61,17 @@ public class SystemResponse extends RestResponse {
             time = dateFormat.format(new Date());
         }
         translator.addKeyValue("timestamp", time);
+        translator.addKeyValue("role", ServiceRole.CURRENT.identifier);
         final List<TranslatorAware> debuggedConsumers = new ArrayList<>();
         for (final String username : RecommendationServlet.debugLoggedConsumers.keySet()) {
             debuggedConsumers.add(new LoggedConsumerData(username));
         }
         translator.addKeyValue("debuggedConsumers", debuggedConsumers);
+        translator.addKeyValue("zapProcessing", Collections.<TranslatorAware>singletonList(ConsumerEventProcessor.INSTANCE.getStatus()));
+        if (ServiceRole.CURRENT.servesRecommendations) {
+            translator.addKeyValue("recommenders", new ArrayList<TranslatorAware>(RecommenderProviderImpl.INSTANCE.getStatus()));
+            translator.addKeyValue("resultCache", Collections.<TranslatorAware>singletonList(RecommendationServlet.resultCache.getStatus()));
+        }
     }
 
     private static final class ThreadData implements TranslatorAware {
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.response;
+
+import com.gurucue.recommendations.ResponseStatus;
+import com.gurucue.recommendations.rest.data.processing.zap.ViewershipSeries;
+import com.gurucue.recommendations.translator.DataTranslator;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Returns the viewer counts of a partner's tv-channels over a range of time.
+ */
+public class ViewershipHistoryResponse extends RestResponse {
+    private final long fromMillis;
+    private final long toMillis;
+    private final long stepMillis;
+    private final List<ViewershipSeries> series;
+
+    public ViewershipHistoryResponse(final long fromMillis, final long toMillis, final long stepMillis, final List<ViewershipSeries> series) {
+        super(ResponseStatus.OK);
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.stepMillis = stepMillis;
+        this.series = series;
+    }
+
+    @Override
+    protected void translateRest(final DataTranslator translator) throws IOException {
+        translator.addKeyValue("from", fromMillis / 1000L);
+        translator.addKeyValue("to", toMillis / 1000L);
+        translator.addKeyValue("step", stepMillis / 1000L);
+        translator.addKeyValue("series", series);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.response;
+
+import com.gurucue.recommendations.ResponseStatus;
+import com.gurucue.recommendations.rest.data.processing.zap.LiveChannelViewership;
+import com.gurucue.recommendations.translator.DataTranslator;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Returns the live viewer counts of a partner's tv-channels.
+ */
+public class ViewershipResponse extends RestResponse {
+    private final long timestampMillis;
+    private final List<LiveChannelViewership> tvChannels;
+
+    public ViewershipResponse(final long timestampMillis, final List<LiveChannelViewership> tvChannels) {
+        super(ResponseStatus.OK);
+        this.timestampMillis = timestampMillis;
+        this.tvChannels = tvChannels;
+    }
+
+    @Override
+    protected void translateRest(final DataTranslator translator) throws IOException {
+        translator.addKeyValue("timestamp", timestampMillis / 1000L);
+        translator.addKeyValue("tvChannels", tvChannels);
+    }
+}
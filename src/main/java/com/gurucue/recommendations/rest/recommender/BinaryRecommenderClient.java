@@ -0,0 +1,329 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.BasicRecommender;
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.BinaryCodec;
+import com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+import com.gurucue.recommendations.rest.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A recommender reached over the binary recommender protocol, see
+ * {@link BinaryCodec} and {@link BinaryRecommenderServer}, used in place
+ * of an RMI proxy by {@link RmiRecommender} for replicas listed as
+ * binary://host:port.
+ * <p>
+ * All requests share one persistent connection. A writer thread writes
+ * the queued requests back to back, without waiting for responses, and a
+ * reader thread hands each response to the request with its ID. Callers
+ * only wait for their response, so interrupting a caller, as a timed-out
+ * request is, doesn't disturb the connection. A broken connection fails
+ * the requests awaiting responses, and the next request reconnects,
+ * waiting at most RECSRV_RECOMMENDER_CONNECT_TIMEOUT_MILLIS for the server.
+ */
+final class BinaryRecommenderClient implements BasicRecommender, DeltaRecommender {
+    private static final Logger log = LogManager.getLogger(BinaryRecommenderClient.class);
+    private static final long CALL_TIMEOUT_MILLIS = 30000L; // a safety net, callers give up much sooner
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) Math.min(Math.max(Configuration.getLong("RECSRV_RECOMMENDER_CONNECT_TIMEOUT_MILLIS", 1000L), 1L), Integer.MAX_VALUE);
+    private static final int WRITE_BATCH = 64;
+
+    private final long recommenderId;
+    private final String host;
+    private final int port;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private Connection connection = null; // access must be guarded with synchronized(this)
+    private boolean closed = false; // access must be guarded with synchronized(this)
+
+    BinaryRecommenderClient(final long recommenderId, final String host, final int port) {
+        this.recommenderId = recommenderId;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Creates a client of the recommender at the given address.
+     *
+     * @param recommenderId the ID of the recommender at the server
+     * @param address host:port, or just the host to use the {@link BinaryRecommenderServer#DEFAULT_PORT}
+     * @return the client
+     */
+    static BinaryRecommenderClient forAddress(final long recommenderId, final String address) {
+        final int colon = address.lastIndexOf(':');
+        if (colon < 0) return new BinaryRecommenderClient(recommenderId, address, BinaryRecommenderServer.DEFAULT_PORT);
+        return new BinaryRecommenderClient(recommenderId, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1), 10));
+    }
+
+    @Override
+    public Recommendations recommendations(final long consumerId, final RecommendProduct[] candidateProducts, final RecommendationSettings settings) throws RemoteException {
+        try {
+            return call(consumerId, null, CandidateDelta.unfingerprinted(candidateProducts), settings);
+        }
+        catch (UnknownCandidateSetException e) {
+            throw new RemoteException("Unexpected response to unfingerprinted candidates: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Recommendations similar(final long[] productIdsForSimilar, final RecommendProduct[] candidateProducts, final RecommendationSettings settings) throws RemoteException {
+        try {
+            return call(0L, productIdsForSimilar, CandidateDelta.unfingerprinted(candidateProducts), settings);
+        }
+        catch (UnknownCandidateSetException e) {
+            throw new RemoteException("Unexpected response to unfingerprinted candidates: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Recommendations recommendations(final long consumerId, final CandidateDelta candidates, final RecommendationSettings settings) throws RemoteException, UnknownCandidateSetException {
+        return call(consumerId, null, candidates, settings);
+    }
+
+    @Override
+    public Recommendations similar(final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws RemoteException, UnknownCandidateSetException {
+        return call(0L, productIdsForSimilar, candidates, settings);
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (connection != null) connection.close(null);
+        connection = null;
+    }
+
+    /**
+     * Returns the current connection, connecting if there is none. The
+     * connecting happens outside the lock, so a server that doesn't answer
+     * holds up only the requests that need a new connection.
+     */
+    private Connection connection() throws RemoteException {
+        synchronized (this) {
+            if (closed) throw new RemoteException("The client of the recommender " + recommenderId + " at " + host + ":" + port + " was closed");
+            if ((connection != null) && !connection.isClosed()) return connection;
+        }
+        final SocketChannel channel;
+        try {
+            channel = connect();
+        }
+        catch (IOException e) {
+            throw new RemoteException("Failed to connect to the recommender " + recommenderId + " at " + host + ":" + port + ": " + e.toString(), e);
+        }
+        synchronized (this) {
+            if (!closed && ((connection == null) || connection.isClosed())) {
+                connection = new Connection(channel);
+                return connection;
+            }
+        }
+        // closed meanwhile, or another request connected first
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Failed to close a surplus connection to the recommender " + recommenderId + " at " + host + ":" + port + ": " + e.toString());
+        }
+        return connection();
+    }
+
+    private SocketChannel connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            return channel;
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Recommendations call(final long consumerId, final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws RemoteException, UnknownCandidateSetException {
+        final int requestId = nextRequestId.incrementAndGet();
+        final ByteBuffer request;
+        try {
+            request = BinaryCodec.request(requestId, recommenderId, consumerId, productIdsForSimilar, candidates, settings);
+        }
+        catch (IOException e) {
+            throw new RemoteException("Failed to encode a request: " + e.toString(), e);
+        }
+        final Connection c = connection();
+        final CompletableFuture<ByteBuffer> pending = c.send(requestId, request);
+        final ByteBuffer response;
+        try {
+            response = pending.get(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the recommender " + recommenderId + " at " + host + ":" + port);
+        }
+        catch (TimeoutException e) {
+            throw new RemoteException("The recommender " + recommenderId + " at " + host + ":" + port + " did not respond in " + CALL_TIMEOUT_MILLIS + " ms");
+        }
+        catch (ExecutionException e) {
+            throw new RemoteException("The connection to the recommender " + recommenderId + " at " + host + ":" + port + " failed: " + e.getCause().toString(), e.getCause());
+        }
+        finally {
+            c.pending.remove(requestId);
+        }
+
+        final BinaryCodec.Reader in = new BinaryCodec.Reader(response);
+        try {
+            in.readInt(); // the request ID
+            final byte type = in.readByte();
+            if (type == BinaryCodec.TYPE_RESULT) return BinaryCodec.readResult(in);
+            if (type != BinaryCodec.TYPE_ERROR) throw new RemoteException("Unexpected response frame type: " + type);
+            final byte code = in.readByte();
+            final String message = in.readString();
+            if (code == BinaryCodec.ERROR_UNKNOWN_CANDIDATE_SET) throw new UnknownCandidateSetException(message);
+            throw new RemoteException("The recommender " + recommenderId + " at " + host + ":" + port + " failed: " + message);
+        }
+        catch (RuntimeException e) {
+            throw new RemoteException("Malformed response from the recommender " + recommenderId + " at " + host + ":" + port + ": " + e.toString(), e);
+        }
+    }
+
+    /**
+     * A connection to the server, with its writer and reader threads.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final ConcurrentMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+        private final LinkedBlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<>();
+        private final Thread writer;
+        private final Thread reader;
+        private volatile boolean isClosed = false;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+            final String name = " of binary recommender " + recommenderId + " at " + host + ":" + port;
+            writer = new Thread(this::writeLoop, "Writer" + name);
+            writer.setDaemon(true);
+            reader = new Thread(this::readLoop, "Reader" + name);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+            log.info("Connected to the binary recommender " + recommenderId + " at " + host + ":" + port);
+        }
+
+        boolean isClosed() {
+            return isClosed;
+        }
+
+        CompletableFuture<ByteBuffer> send(final int requestId, final ByteBuffer request) {
+            final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+            pending.put(requestId, result);
+            outgoing.add(request);
+            if (isClosed) result.completeExceptionally(new IOException("The connection is closed"));
+            return result;
+        }
+
+        private void writeLoop() {
+            final List<ByteBuffer> batch = new ArrayList<>(WRITE_BATCH);
+            try {
+                while (!isClosed) {
+                    batch.add(outgoing.take());
+                    outgoing.drainTo(batch, WRITE_BATCH - 1);
+                    final ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+                    final ByteBuffer last = buffers[buffers.length - 1];
+                    while (last.hasRemaining()) channel.write(buffers);
+                    batch.clear();
+                }
+            }
+            catch (InterruptedException e) {
+                // closed
+            }
+            catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readLoop() {
+            final ByteBuffer header = ByteBuffer.allocate(4);
+            try {
+                while (!isClosed) {
+                    header.clear();
+                    readFully(header);
+                    final int length = header.getInt(0);
+                    if ((length < 5) || (length > BinaryCodec.MAX_FRAME_SIZE)) throw new IOException("Invalid frame length: " + length);
+                    final ByteBuffer frame = ByteBuffer.allocate(length);
+                    readFully(frame);
+                    frame.flip();
+                    final CompletableFuture<ByteBuffer> waiting = pending.remove(frame.getInt(0));
+                    if (waiting != null) waiting.complete(frame); // else the caller gave up
+                }
+            }
+            catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFully(final ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new EOFException("The server closed the connection");
+            }
+        }
+
+        /**
+         * Closes the connection, failing the requests awaiting responses.
+         *
+         * @param cause the failure of the connection, or null when the client is closed
+         */
+        void close(final IOException cause) {
+            synchronized (this) {
+                if (isClosed) return;
+                isClosed = true;
+            }
+            if (cause != null) log.warn("The connection to the binary recommender " + recommenderId + " at " + host + ":" + port + " failed: " + cause.toString());
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                log.warn("Failed to close the connection to the binary recommender " + recommenderId + " at " + host + ":" + port + ": " + e.toString());
+            }
+            writer.interrupt();
+            final IOException failure = cause == null ? new IOException("The client was closed") : cause;
+            for (final CompletableFuture<ByteBuffer> waiting : pending.values()) waiting.completeExceptionally(failure);
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+import java.util.Arrays;
+
+/**
+ * The candidate products of a recommender request, with a fingerprint
+ * identifying them. Candidate sets of tv-grid requests are the same for
+ * many consumers, so a recommender replica that already holds a candidate
+ * set is sent only its fingerprint, or a {@link CandidateDelta} from a
+ * set it holds, instead of all the products.
+ * <p>
+ * The fingerprint doesn't depend on the order of the products, it is the
+ * sum of the hashes of products, where a product hash mixes the product ID
+ * with the hash code of its tags. Both ends compute the same fingerprint,
+ * because the hash codes of maps and strings are specified.
+ */
+public final class CandidateSet {
+    private final RecommendProduct[] products;
+    private final long fingerprint;
+    /** Whether a product ID repeats, in which case the set can't be reconstructed from a delta. */
+    private final boolean hasDuplicates;
+    /** The hashes of products by product ID. */
+    private final TLongLongMap productHashes;
+
+    private CandidateSet(final RecommendProduct[] products, final long fingerprint, final boolean hasDuplicates, final TLongLongMap productHashes) {
+        this.products = products;
+        this.fingerprint = fingerprint;
+        this.hasDuplicates = hasDuplicates;
+        this.productHashes = productHashes;
+    }
+
+    public static CandidateSet of(final RecommendProduct[] products) {
+        long sum = 0L;
+        boolean hasDuplicates = false;
+        final TLongLongMap hashes = new TLongLongHashMap(products.length);
+        for (final RecommendProduct product : products) {
+            final long hash = CandidateDelta.productHash(product);
+            sum += hash;
+            if (hashes.put(product.productId, hash) != hashes.getNoEntryValue()) hasDuplicates = true;
+        }
+        return new CandidateSet(products, CandidateDelta.fingerprint(sum, products.length), hasDuplicates, hashes);
+    }
+
+    public RecommendProduct[] products() {
+        return products;
+    }
+
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    public int size() {
+        return products.length;
+    }
+
+    /**
+     * Returns the delta with all products, for a receiver holding no
+     * candidate set to base it on.
+     *
+     * @return the delta without a base
+     */
+    CandidateDelta fullDelta() {
+        return new CandidateDelta(0L, fingerprint, products, CandidateDelta.NO_IDS);
+    }
+
+    /**
+     * Returns the delta to send to a holder of the given candidate set, so
+     * it can reconstruct this candidate set. If there is no base, or it
+     * has nothing in common with this set, the delta contains all products.
+     *
+     * @param base the candidate set held by the receiver, or null
+     * @return the delta from the base to this set
+     */
+    public CandidateDelta deltaFrom(final CandidateSet base) {
+        if (base == this) return new CandidateDelta(fingerprint, fingerprint, CandidateDelta.NO_PRODUCTS, CandidateDelta.NO_IDS);
+        if ((base == null) || hasDuplicates || base.hasDuplicates) return fullDelta();
+        if (base.fingerprint == fingerprint) return new CandidateDelta(fingerprint, fingerprint, CandidateDelta.NO_PRODUCTS, CandidateDelta.NO_IDS);
+        final TLongLongMap ours = productHashes;
+        final TLongLongMap theirs = base.productHashes;
+        final RecommendProduct[] added = new RecommendProduct[products.length];
+        int addedCount = 0;
+        for (final RecommendProduct product : products) {
+            final long hash = ours.get(product.productId);
+            if (!theirs.containsKey(product.productId) || (theirs.get(product.productId) != hash)) added[addedCount++] = product;
+        }
+        // a changed product is removed and added again
+        final long[] removed = new long[base.products.length];
+        int removedCount = 0;
+        for (final RecommendProduct product : base.products) {
+            final long hash = theirs.get(product.productId);
+            if (!ours.containsKey(product.productId) || (ours.get(product.productId) != hash)) removed[removedCount++] = product.productId;
+        }
+        if (addedCount >= products.length) return fullDelta();
+        return new CandidateDelta(base.fingerprint, fingerprint, Arrays.copyOf(added, addedCount), Arrays.copyOf(removed, removedCount));
+    }
+}
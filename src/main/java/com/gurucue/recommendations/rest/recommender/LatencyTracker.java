@@ -0,0 +1,116 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of a recommender, to estimate their
+ * percentiles. The estimate used for hedging and the tail used for
+ * timeouts are recomputed only every so many samples, so they don't cost
+ * a sort on every request.
+ */
+final class LatencyTracker {
+    private static final int RECOMPUTE_INTERVAL = 16;
+    private static final int TAIL_PERCENTILE = 99;
+
+    private final long[] samples; // a ring buffer of latencies in ns
+    private final int percentile;
+    private final int minSampleCount;
+    private final long defaultNanos;
+    private int count = 0;
+    private int next = 0;
+    private int sinceEstimate = 0;
+    private long estimateNanos;
+    private long tailNanos = 0L;
+
+    /**
+     * @param capacity how many of the most recent latencies to keep
+     * @param percentile the percentile of latencies to estimate
+     * @param minSampleCount the number of latencies needed for an estimate
+     * @param defaultNanos the estimate until there are enough latencies
+     */
+    LatencyTracker(final int capacity, final int percentile, final int minSampleCount, final long defaultNanos) {
+        this.samples = new long[capacity];
+        this.percentile = percentile;
+        this.minSampleCount = Math.min(Math.max(minSampleCount, 1), capacity);
+        this.defaultNanos = defaultNanos;
+        this.estimateNanos = defaultNanos;
+    }
+
+    synchronized void record(final long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+        if (++sinceEstimate >= RECOMPUTE_INTERVAL) {
+            sinceEstimate = 0;
+            if (count < minSampleCount) {
+                estimateNanos = defaultNanos;
+                tailNanos = 0L;
+            }
+            else {
+                final long[] sorted = sorted();
+                estimateNanos = percentileOf(sorted, percentile);
+                tailNanos = percentileOf(sorted, TAIL_PERCENTILE);
+            }
+        }
+    }
+
+    /**
+     * Returns the configured percentile of the recent latencies, as of the
+     * last recomputation, or the default if there are too few of them.
+     */
+    synchronized long estimateNanos() {
+        return estimateNanos;
+    }
+
+    /**
+     * Returns the 99th percentile of the recent latencies, as of the last
+     * recomputation, or 0 if there are too few of them.
+     */
+    synchronized long tailNanos() {
+        return tailNanos;
+    }
+
+    /**
+     * Computes the given percentile of the recent latencies.
+     *
+     * @param p the percentile, between 0 and 100
+     * @return the latency in ns, 0 if there are none
+     */
+    synchronized long percentileNanos(final int p) {
+        if (count == 0) return 0L;
+        return percentileOf(sorted(), p);
+    }
+
+    private long[] sorted() {
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long percentileOf(final long[] sorted, final int p) {
+        final int index = (int) (((long) p * sorted.length + 99L) / 100L) - 1; // nearest rank
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+
+    synchronized int size() {
+        return count;
+    }
+}
@@ -104,11 +104,13 @@ public final class RecommendationsFilter implements StatefulFilter<VideoData> {
             availableProducts[indexer.count++] = new RecommendProduct(productId, videoData.tags);
             dataLookup.put(productId, videoData);
         });
+        final CandidateSet candidates = CandidateSet.of(availableProducts);
+        logger.append("Candidate set fingerprint: ").append(Long.toHexString(candidates.fingerprint())).append("\n");
 
         Recommendations recommendationsResult = null;
         final long nanoPrepare = System.nanoTime();
         try {
-            recommendationsResult = provider.invoke(recommenderName, availableProducts, invoker);
+            recommendationsResult = provider.invoke(recommenderName, candidates, invoker);
         }
         catch (RuntimeException e) {
             logger.append("ERROR: Recommender failed with an exception, making random selection: ").append(e.toString());
@@ -18,10 +18,9 @@
  */
 package com.gurucue.recommendations.rest.recommender;
 
-import com.gurucue.recommendations.recommender.RecommendProduct;
 import com.gurucue.recommendations.recommender.Recommendations;
 
 @FunctionalInterface
 public interface RecommenderInvoker {
-    Recommendations invoke(RmiRecommender recommender, RecommendProduct[] candidateProducts);
+    Recommendations invoke(RmiRecommender recommender, CandidateSet candidates);
 }
@@ -27,8 +27,8 @@ import com.gurucue.recommendations.data.jdbc.JdbcDataLink;
 import com.gurucue.recommendations.recommender.RecommendProduct;
 import com.gurucue.recommendations.recommender.RecommendationSettings;
 import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.rest.Configuration;
 import com.gurucue.recommendations.rest.data.RequestCache;
-import com.gurucue.recommendations.rest.data.RequestLogger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -36,6 +36,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -49,6 +50,8 @@ import java.util.concurrent.ConcurrentMap;
 public final class RecommenderProviderImpl implements RecommenderProvider {
     public static final RecommenderProviderImpl INSTANCE = new RecommenderProviderImpl();
     private static final Logger log = LogManager.getLogger(RecommenderProviderImpl.class);
+    /** How long a request has for its answer, the recommender calls made on its behalf don't wait longer. */
+    public static final long REQUEST_BUDGET_NANOS = Math.max(Configuration.getLong("RECSRV_REQUEST_BUDGET_MILLIS", 2500L), 1L) * 1000000L;
 
     private final ConcurrentMap<String, RmiRecommender> recommenders = new ConcurrentHashMap<>();
 
@@ -60,7 +63,10 @@ public final class RecommenderProviderImpl implements RecommenderProvider {
             final long consumerId,
             final RecommendationSettings settings
     ) {
-        return new RecommendationsFilter(this, recommenderName, settings, (recommender, candidateProducts) -> recommender.recommendations(RequestCache.get().getLogger(), consumerId, settings, candidateProducts));
+        return new RecommendationsFilter(this, recommenderName, settings, (recommender, candidates) -> {
+            final RequestCache cache = RequestCache.get();
+            return recommender.recommendations(cache.getLogger(), cache.getDeadlineNanos(REQUEST_BUDGET_NANOS), consumerId, settings, candidates);
+        });
     }
 
     @Override
@@ -69,7 +75,10 @@ public final class RecommenderProviderImpl implements RecommenderProvider {
             final long[] productIdsForSimilar,
             final RecommendationSettings settings
     ) {
-        return new RecommendationsFilter(this, recommenderName, settings, (recommender, candidateProducts) -> recommender.similar(RequestCache.get().getLogger(), productIdsForSimilar, settings, candidateProducts));
+        return new RecommendationsFilter(this, recommenderName, settings, (recommender, candidates) -> {
+            final RequestCache cache = RequestCache.get();
+            return recommender.similar(cache.getLogger(), cache.getDeadlineNanos(REQUEST_BUDGET_NANOS), productIdsForSimilar, settings, candidates);
+        });
     }
 
     public void shutdown() {
@@ -80,6 +89,11 @@ public final class RecommenderProviderImpl implements RecommenderProvider {
         for (final RmiRecommender recommender : buffer) recommender.shutdown();
     }
 
+    /**
+     * Reads the recommenders from the database. The hostname of a
+     * recommender may list several hosts separated by commas, each running
+     * a replica of the recommender, see {@link RmiRecommender}.
+     */
     public void refreshRecommenders() {
         log.info("refreshing recommender provider");
 
@@ -147,30 +161,43 @@ public final class RecommenderProviderImpl implements RecommenderProvider {
         }
     }
 
+    /**
+     * Returns the state of the invocations of each recommender.
+     *
+     * @return the statuses of the recommenders, ordered by name
+     */
+    public List<RecommenderStatus> getStatus() {
+        final List<RmiRecommender> buffer = new ArrayList<>(recommenders.values());
+        buffer.sort(Comparator.comparing(RmiRecommender::getName));
+        final List<RecommenderStatus> result = new ArrayList<>(buffer.size());
+        for (final RmiRecommender recommender : buffer) result.add(recommender.getStatus());
+        return result;
+    }
+
     Recommendations recommendations(final String recommenderName, final long consumerId, final RecommendationSettings settings, final RecommendProduct[] candidateProducts) {
-        final RequestLogger logger = RequestCache.get().getLogger();
+        final RequestCache cache = RequestCache.get();
         Recommendations result = null;
         final RmiRecommender r = recommenders.get(recommenderName);
         if (r != null) {
-            result = r.recommendations(logger, consumerId, settings, candidateProducts);
+            result = r.recommendations(cache.getLogger(), cache.getDeadlineNanos(REQUEST_BUDGET_NANOS), consumerId, settings, CandidateSet.of(candidateProducts));
         }
         return result;
     }
 
     Recommendations similar(final String recommenderName, final long[] productIdsForSimilar, final RecommendationSettings settings, final RecommendProduct[] candidateProducts) {
-        final RequestLogger logger = RequestCache.get().getLogger();
+        final RequestCache cache = RequestCache.get();
         Recommendations result = null;
         final RmiRecommender r = recommenders.get(recommenderName);
         if (r != null) {
-            result = r.similar(logger, productIdsForSimilar, settings, candidateProducts);
+            result = r.similar(cache.getLogger(), cache.getDeadlineNanos(REQUEST_BUDGET_NANOS), productIdsForSimilar, settings, CandidateSet.of(candidateProducts));
         }
         return result;
     }
 
-    Recommendations invoke(final String recommenderName, final RecommendProduct[] candidateProducts, final RecommenderInvoker invoker) {
+    Recommendations invoke(final String recommenderName, final CandidateSet candidates, final RecommenderInvoker invoker) {
         final RmiRecommender r = recommenders.get(recommenderName);
         if (r != null) {
-            return invoker.invoke(r, candidateProducts);
+            return invoker.invoke(r, candidates);
         }
         return null;
     }
@@ -0,0 +1,122 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * A point-in-time snapshot of the invocations of a recommender and its
+ * replicas, for diagnostic purposes.
+ */
+public final class RecommenderStatus implements TranslatorAware {
+    public final String name;
+    public final long id;
+    /** The hosts of the replicas, separated by commas. */
+    public final String hostnames;
+    public final long requestCount;
+    /** The number of requests that were also sent to a second replica. */
+    public final long hedgedCount;
+    /** The number of hedged requests answered first by the second replica. */
+    public final long hedgeWinCount;
+    public final long failureCount;
+    public final long timeoutCount;
+    /** The number of requests not sent at all because their deadline had passed. */
+    public final long deadlineExceededCount;
+    /** The number of retries not made because the remaining time wouldn't fit an answer. */
+    public final long retriesSkippedCount;
+    /** How long an attempt currently waits for an answer. */
+    public final long timeoutMillis;
+    /** After how long without an answer a request is sent to a second replica. */
+    public final long hedgeDelayMillis;
+    public final long p50Millis;
+    public final long p95Millis;
+    /** The number of candidate products in requests. */
+    public final long candidateCount;
+    /** The number of candidate products transferred, less than in requests when deltas are used. */
+    public final long candidatesSentCount;
+    /** The number of deltas from candidate sets a replica didn't hold anymore. */
+    public final long unknownCandidateSetCount;
+
+    RecommenderStatus(
+            final String name,
+            final long id,
+            final String hostnames,
+            final long requestCount,
+            final long hedgedCount,
+            final long hedgeWinCount,
+            final long failureCount,
+            final long timeoutCount,
+            final long deadlineExceededCount,
+            final long retriesSkippedCount,
+            final long timeoutMillis,
+            final long hedgeDelayMillis,
+            final long p50Millis,
+            final long p95Millis,
+            final long candidateCount,
+            final long candidatesSentCount,
+            final long unknownCandidateSetCount
+    ) {
+        this.name = name;
+        this.id = id;
+        this.hostnames = hostnames;
+        this.requestCount = requestCount;
+        this.hedgedCount = hedgedCount;
+        this.hedgeWinCount = hedgeWinCount;
+        this.failureCount = failureCount;
+        this.timeoutCount = timeoutCount;
+        this.deadlineExceededCount = deadlineExceededCount;
+        this.retriesSkippedCount = retriesSkippedCount;
+        this.timeoutMillis = timeoutMillis;
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.candidateCount = candidateCount;
+        this.candidatesSentCount = candidatesSentCount;
+        this.unknownCandidateSetCount = unknownCandidateSetCount;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        translator.beginObject("recommender");
+        translator.addKeyValue("name", name);
+        translator.addKeyValue("id", id);
+        translator.addKeyValue("hostnames", hostnames);
+        translator.addKeyValue("requests", requestCount);
+        translator.addKeyValue("hedged", hedgedCount);
+        translator.addKeyValue("hedgeWins", hedgeWinCount);
+        translator.addKeyValue("hedgeRatePercent", requestCount == 0L ? 0L : (hedgedCount * 100L) / requestCount);
+        translator.addKeyValue("hedgeWinRatePercent", hedgedCount == 0L ? 0L : (hedgeWinCount * 100L) / hedgedCount);
+        translator.addKeyValue("failures", failureCount);
+        translator.addKeyValue("timeouts", timeoutCount);
+        translator.addKeyValue("deadlinesExceeded", deadlineExceededCount);
+        translator.addKeyValue("retriesSkipped", retriesSkippedCount);
+        translator.addKeyValue("timeoutMillis", timeoutMillis);
+        translator.addKeyValue("hedgeDelayMillis", hedgeDelayMillis);
+        translator.addKeyValue("p50Millis", p50Millis);
+        translator.addKeyValue("p95Millis", p95Millis);
+        translator.addKeyValue("candidates", candidateCount);
+        translator.addKeyValue("candidatesSent", candidatesSentCount);
+        translator.addKeyValue("candidatesSentPercent", candidateCount == 0L ? 0L : (candidatesSentCount * 100L) / candidateCount);
+        translator.addKeyValue("unknownCandidateSets", unknownCandidateSetCount);
+        translator.endObject();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-process cache of request results, with a short time-to-live,
+ * for clients asking for the same results repeatedly. Results are cached
+ * per consumer, so all results of a consumer can be discarded at once when
+ * something happens that may change them, e.g. a new consumer event.
+ * <p>
+ * A result is stored only if no invalidation of its consumer happened since
+ * its computation started, so a result computed from the state before an
+ * event is never served after the event. Invalidations reach only the cache
+ * of the node receiving the event, the time-to-live bounds the staleness
+ * on other nodes.
+ * <p>
+ * When the cache is full, all results of the least recently used consumer
+ * are evicted. Expired results are removed when they are looked up.
+ *
+ * @param <V> the type of the cached results
+ */
+public final class ResultCache<V> {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final boolean enabled;
+    /** Results by consumer ID, in the order of access, the least recently used first. */
+    private final LinkedHashMap<Long, Map<String, Entry<V>>> consumers = new LinkedHashMap<>(1024, 0.75f, true);
+    /** The time of the last invalidation by consumer ID, the oldest first, retained for the time-to-live. */
+    private final LinkedHashMap<Long, Long> invalidations = new LinkedHashMap<>(1024);
+    private int size = 0;
+    private long hitCount = 0L;
+    private long missCount = 0L;
+    private long storeCount = 0L;
+    private long staleCount = 0L;
+    private long invalidationCount = 0L;
+    private long evictionCount = 0L;
+    private long expirationCount = 0L;
+
+    /**
+     * Creates a cache. It is disabled, never storing anything, if any of
+     * the parameters is not positive.
+     *
+     * @param maxEntries the maximum number of results cached
+     * @param ttlNanos for how long a result is served after its computation started
+     */
+    public ResultCache(final int maxEntries, final long ttlNanos) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.enabled = (maxEntries > 0) && (ttlNanos > 0L);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached result, or null if there is no such result or
+     * it expired.
+     *
+     * @param consumerId the ID of the consumer the result was computed for
+     * @param key the normalized request, identifying the result among results of the consumer
+     * @return the cached result, or null
+     */
+    public V get(final long consumerId, final String key) {
+        return get(consumerId, key, System.nanoTime());
+    }
+
+    synchronized V get(final long consumerId, final String key, final long nowNanos) {
+        if (!enabled) return null;
+        final Map<String, Entry<V>> results = consumers.get(consumerId);
+        final Entry<V> entry = results == null ? null : results.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (nowNanos - entry.expiresNanos >= 0L) {
+            results.remove(key);
+            if (results.isEmpty()) consumers.remove(consumerId);
+            size--;
+            expirationCount++;
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * Caches the given result, unless the consumer was invalidated after
+     * the computation of the result started, or the result is already
+     * older than the time-to-live.
+     *
+     * @param consumerId the ID of the consumer the result was computed for
+     * @param key the normalized request, identifying the result among results of the consumer
+     * @param value the result
+     * @param startNanos the {@link System#nanoTime()} when the computation of the result started
+     */
+    public void put(final long consumerId, final String key, final V value, final long startNanos) {
+        put(consumerId, key, value, startNanos, System.nanoTime());
+    }
+
+    synchronized void put(final long consumerId, final String key, final V value, final long startNanos, final long nowNanos) {
+        if (!enabled) return;
+        final Long invalidatedNanos = invalidations.get(consumerId);
+        if ((nowNanos - startNanos >= ttlNanos) || ((invalidatedNanos != null) && (invalidatedNanos.longValue() - startNanos >= 0L))) {
+            staleCount++;
+            return;
+        }
+        Map<String, Entry<V>> results = consumers.get(consumerId);
+        if (results == null) {
+            results = new HashMap<>();
+            consumers.put(consumerId, results);
+        }
+        if (results.put(key, new Entry<>(value, startNanos + ttlNanos)) == null) size++;
+        storeCount++;
+        if (size > maxEntries) {
+            final Iterator<Map<String, Entry<V>>> eldest = consumers.values().iterator();
+            while ((size > maxEntries) && eldest.hasNext()) {
+                final int n = eldest.next().size();
+                eldest.remove();
+                size -= n;
+                evictionCount += n;
+            }
+        }
+    }
+
+    /**
+     * Discards all results of the given consumer, and prevents storing
+     * results whose computation is already under way.
+     *
+     * @param consumerId the ID of the consumer whose results to discard
+     */
+    public void invalidate(final long consumerId) {
+        invalidate(consumerId, System.nanoTime());
+    }
+
+    synchronized void invalidate(final long consumerId, final long nowNanos) {
+        if (!enabled) return;
+        final Map<String, Entry<V>> results = consumers.remove(consumerId);
+        if (results != null) {
+            size -= results.size();
+            invalidationCount++;
+        }
+        // re-insert, to keep the invalidations ordered by time
+        invalidations.remove(consumerId);
+        invalidations.put(consumerId, nowNanos);
+        // a computation started before the oldest invalidations could not be stored anyway
+        final Iterator<Long> oldest = invalidations.values().iterator();
+        while (oldest.hasNext() && (nowNanos - oldest.next().longValue() >= ttlNanos)) oldest.remove();
+    }
+
+    public synchronized ResultCacheStatus getStatus() {
+        return new ResultCacheStatus(enabled, size, maxEntries, ttlNanos / 1000000L, hitCount, missCount, storeCount, staleCount, invalidationCount, evictionCount, expirationCount);
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresNanos;
+
+        Entry(final V value, final long expiresNanos) {
+            this.value = value;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.translator.DataTranslator;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import java.io.IOException;
+
+/**
+ * A point-in-time snapshot of the counters of a {@link ResultCache}, for
+ * diagnostic purposes.
+ */
+public final class ResultCacheStatus implements TranslatorAware {
+    public final boolean enabled;
+    public final int entries;
+    public final int maxEntries;
+    public final long ttlMillis;
+    public final long hitCount;
+    public final long missCount;
+    public final long storeCount;
+    /** The number of results not stored, because their consumer was invalidated meanwhile or they took too long. */
+    public final long staleCount;
+    /** The number of invalidations that discarded cached results. */
+    public final long invalidationCount;
+    public final long evictionCount;
+    public final long expirationCount;
+
+    ResultCacheStatus(
+            final boolean enabled,
+            final int entries,
+            final int maxEntries,
+            final long ttlMillis,
+            final long hitCount,
+            final long missCount,
+            final long storeCount,
+            final long staleCount,
+            final long invalidationCount,
+            final long evictionCount,
+            final long expirationCount
+    ) {
+        this.enabled = enabled;
+        this.entries = entries;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.storeCount = storeCount;
+        this.staleCount = staleCount;
+        this.invalidationCount = invalidationCount;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+    }
+
+    @Override
+    public void translate(final DataTranslator translator) throws IOException {
+        final long lookups = hitCount + missCount;
+        translator.beginObject("resultCache");
+        translator.addKeyValue("enabled", enabled);
+        translator.addKeyValue("entries", entries);
+        translator.addKeyValue("maxEntries", maxEntries);
+        translator.addKeyValue("ttlMillis", ttlMillis);
+        translator.addKeyValue("hits", hitCount);
+        translator.addKeyValue("misses", missCount);
+        translator.addKeyValue("hitRatePercent", lookups == 0L ? 0L : (hitCount * 100L) / lookups);
+        translator.addKeyValue("stores", storeCount);
+        translator.addKeyValue("staleDiscards", staleCount);
+        translator.addKeyValue("invalidations", invalidationCount);
+        translator.addKeyValue("evictions", evictionCount);
+        translator.addKeyValue("expirations", expirationCount);
+        translator.endObject();
+    }
+}
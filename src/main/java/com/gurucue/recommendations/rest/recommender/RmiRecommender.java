@@ -20,10 +20,13 @@ package com.gurucue.recommendations.rest.recommender;
 
 import com.gurucue.recommendations.ProcessingException;
 import com.gurucue.recommendations.recommender.BasicRecommender;
-import com.gurucue.recommendations.recommender.RecommendProduct;
 import com.gurucue.recommendations.recommender.RecommendationSettings;
 import com.gurucue.recommendations.recommender.Recommendations;
 import com.gurucue.recommendations.recommender.RecommenderNotReadyException;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+import com.gurucue.recommendations.rest.Configuration;
 import com.gurucue.recommendations.rest.data.RequestCache;
 import com.gurucue.recommendations.rest.data.RequestLogger;
 import org.apache.logging.log4j.LogManager;
@@ -31,51 +34,114 @@ import org.apache.logging.log4j.Logger;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Invokes the real recommender via RMI.
+ * <p>
+ * A recommender may run as several replicas, on the hosts listed in its
+ * hostname separated by commas. Requests go to the replicas in turn. When
+ * a replica hasn't answered after the RECSRV_HEDGE_PERCENTILE of recent
+ * latencies, the request is sent to the next replica too, and the first
+ * answer is used. This keeps a single slow replica, e.g. in a GC pause,
+ * from setting the tail latency, at the cost of a few percent more
+ * requests. Hedging is disabled with RECSRV_HEDGE_PERCENTILE set to 0.
+ * <p>
+ * A replica that is also a {@link DeltaRecommender} is sent only the
+ * difference of the candidate products from a {@link CandidateSet} it was
+ * sent recently, or just its fingerprint if it is the same. This is
+ * disabled with RECSRV_CANDIDATE_DELTAS set to false.
+ * <p>
+ * A replica listed as binary://host[:port] is reached over the binary
+ * recommender protocol of a
+ * {@link com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer}
+ * instead of RMI, through one persistent connection multiplexing all
+ * requests.
+ * <p>
+ * A call waits for an answer no longer than the request's deadline, and
+ * each attempt no longer than RECSRV_RECOMMENDER_TIMEOUT_MULTIPLIER times
+ * the 99th percentile of recent latencies, kept between
+ * RECSRV_RECOMMENDER_MIN_TIMEOUT_MILLIS and RECSRV_RECOMMENDER_TIMEOUT_MILLIS.
+ * A failed or timed out attempt is retried with another replica only if
+ * the remaining time fits a usual answer.
  */
 public final class RmiRecommender {
     private static final Logger log = LogManager.getLogger(RmiRecommender.class);
+    private static final int THREADS_PER_REPLICA = 3;
+    private static final int HEDGE_PERCENTILE = (int) Math.min(Math.max(Configuration.getLong("RECSRV_HEDGE_PERCENTILE", 95L), 0L), 100L);
+    private static final long HEDGE_MIN_NANOS = Math.max(Configuration.getLong("RECSRV_HEDGE_MIN_MILLIS", 10L), 1L) * 1000000L;
+    private static final long HEDGE_DEFAULT_NANOS = Math.max(Configuration.getLong("RECSRV_HEDGE_DEFAULT_MILLIS", 200L), 1L) * 1000000L; // until enough latencies are known
+    private static final boolean CANDIDATE_DELTAS = Configuration.getBoolean("RECSRV_CANDIDATE_DELTAS", true);
+    private static final int CANDIDATE_SETS_PER_REPLICA = 8;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_TIMEOUT_NANOS = Math.max(Configuration.getLong("RECSRV_RECOMMENDER_TIMEOUT_MILLIS", 2000L), 1L) * 1000000L;
+    private static final long MIN_TIMEOUT_NANOS = Math.min(Math.max(Configuration.getLong("RECSRV_RECOMMENDER_MIN_TIMEOUT_MILLIS", 100L), 1L) * 1000000L, MAX_TIMEOUT_NANOS);
+    private static final long TIMEOUT_MULTIPLIER = Math.max(Configuration.getLong("RECSRV_RECOMMENDER_TIMEOUT_MULTIPLIER", 3L), 1L);
 
     private final long recommenderId;
     private String recommenderHostname;
     private String name;
-    private BasicRecommender recommender;
-    private final ExecutorService asyncRecommenderInvoker;
+    private volatile Replica[] replicas;
+    private final ThreadPoolExecutor asyncRecommenderInvoker;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final LatencyTracker latencies = new LatencyTracker(1024, HEDGE_PERCENTILE == 0 ? 95 : HEDGE_PERCENTILE, 50, HEDGE_DEFAULT_NANOS);
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgedCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong deadlineExceededCount = new AtomicLong();
+    private final AtomicLong retriesSkippedCount = new AtomicLong();
+    private final AtomicLong candidateCount = new AtomicLong();
+    private final AtomicLong candidatesSentCount = new AtomicLong();
+    private final AtomicLong unknownCandidateSetCount = new AtomicLong();
 
     public RmiRecommender(final String name, final long recommenderId, final String recommenderHostname) {
         this.recommenderId = recommenderId;
         this.recommenderHostname = recommenderHostname == null ? "127.0.0.1" : recommenderHostname;
         this.name = name;
-        this.recommender = null;
-        this.asyncRecommenderInvoker = Executors.newFixedThreadPool(3, runnable -> new Thread(runnable, "Async recommender invoker: " + name + "@" + recommenderHostname + " [" + recommenderId + "]"));
-        log.info("Recommender " + this.name + " (" + this.recommenderId + "@" + this.recommenderHostname + ") instantiated");
+        this.replicas = replicas(this.recommenderHostname, null);
+        this.asyncRecommenderInvoker = (ThreadPoolExecutor) Executors.newFixedThreadPool(THREADS_PER_REPLICA * replicas.length, runnable -> new Thread(runnable, "Async recommender invoker: " + name + "@" + recommenderHostname + " [" + recommenderId + "]"));
+        log.info("Recommender " + this.name + " (" + this.recommenderId + "@" + this.recommenderHostname + ") instantiated with " + replicas.length + " replica(s)");
     }
 
-    private BasicRecommender getRecommender() throws RecommenderNotReadyException {
-        try {
-            synchronized (this) {
-                if (recommender != null) return recommender;
-                log.debug("[REC " + recommenderId + "] Looking up RMI proxy AI" + recommenderId + " at " + recommenderHostname);
-                final Registry registry = LocateRegistry.getRegistry(recommenderHostname);
-                return recommender = (BasicRecommender) registry.lookup("AI" + recommenderId);
+    /**
+     * Creates the replicas residing on the given comma-separated hosts,
+     * reusing the existing replicas on the same hosts.
+     */
+    private Replica[] replicas(final String hostnames, final Replica[] existing) {
+        final String[] hosts = hostnames.split(",");
+        final Replica[] result = new Replica[hosts.length];
+        int count = 0;
+        for (final String host : hosts) {
+            final String hostname = host.trim();
+            if (hostname.isEmpty()) continue;
+            Replica replica = null;
+            if (existing != null) {
+                for (final Replica r : existing) {
+                    if (r.hostname.equals(hostname)) {
+                        replica = r;
+                        break;
+                    }
+                }
             }
+            result[count++] = replica == null ? new Replica(recommenderId, hostname) : replica;
         }
-        catch (Exception e) {
-            final String message = "Failed to obtain a RMI proxy for the recommender " + recommenderId + " located at " + recommenderHostname + ": " + e.toString();
-            log.error(message, e);
-            throw new RecommenderNotReadyException(message, e);
-        }
+        if (count == 0) return new Replica[]{new Replica(recommenderId, "127.0.0.1")};
+        if (count == result.length) return result;
+        final Replica[] trimmed = new Replica[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
     }
 
     public long getId() {
@@ -92,63 +158,294 @@ public final class RmiRecommender {
 
     public void reconfigure(final String newName, final String newRecommenderHostname) {
         final String realRecommenderHostname = newRecommenderHostname == null ? "127.0.0.1" : newRecommenderHostname;
+        final int replicaCount;
         synchronized (this) {
             if (!recommenderHostname.equals(realRecommenderHostname)) {
                 recommenderHostname = realRecommenderHostname;
-                recommender = null;
+                final Replica[] previous = replicas;
+                replicas = replicas(realRecommenderHostname, previous);
+                for (final Replica replica : previous) {
+                    boolean kept = false;
+                    for (final Replica r : replicas) kept |= r == replica;
+                    if (!kept) replica.close();
+                }
+                final int threadCount = THREADS_PER_REPLICA * replicas.length;
+                if (threadCount > asyncRecommenderInvoker.getMaximumPoolSize()) {
+                    asyncRecommenderInvoker.setMaximumPoolSize(threadCount);
+                    asyncRecommenderInvoker.setCorePoolSize(threadCount);
+                }
+                else {
+                    asyncRecommenderInvoker.setCorePoolSize(threadCount);
+                    asyncRecommenderInvoker.setMaximumPoolSize(threadCount);
+                }
             }
             name = newName;
+            replicaCount = replicas.length;
         }
-        log.info("Recommender " + this.recommenderId + " reconfigured with name " + newName + " and residing at server " + realRecommenderHostname);
+        log.info("Recommender " + this.recommenderId + " reconfigured with name " + newName + " and residing at server " + realRecommenderHostname + " with " + replicaCount + " replica(s)");
     }
 
-    private static final long TIMEOUT_NS = 2L * 1000L * 1000000L; // 2 seconds in ns
+    /**
+     * Returns how long to wait for an attempt: a multiple of the tail of
+     * recent latencies, or the longest timeout until enough are known.
+     */
+    private long attemptTimeoutNanos() {
+        final long tail = latencies.tailNanos();
+        if (tail <= 0L) return MAX_TIMEOUT_NANOS;
+        return Math.min(Math.max(tail * TIMEOUT_MULTIPLIER, MIN_TIMEOUT_NANOS), MAX_TIMEOUT_NANOS);
+    }
 
-    private Recommendations asyncInvoke(final RequestLogger logger, final Callable<Recommendations> job) {
+    private Recommendations asyncInvoke(final RequestLogger logger, final long deadlineNanos, final RecommenderCall call) {
         if (asyncRecommenderInvoker.isShutdown()) throw new ProcessingException("The recommender " + recommenderId + " (" + this.recommenderId + "@" + this.recommenderHostname + ") has been shut down");
+        final Replica[] replicas = this.replicas;
+        requestCount.incrementAndGet();
         long now = System.nanoTime();
-        final long limit = now + TIMEOUT_NS;
+        if (deadlineNanos - now <= 0L) {
+            deadlineExceededCount.incrementAndGet();
+            logger.subLogger(getClass().getSimpleName()).warn("[REC " + recommenderId + "] Not invoking the recommender, the request's deadline has passed");
+            return null;
+        }
+        final long limit = deadlineNanos - now < MAX_TIMEOUT_NANOS ? deadlineNanos : now + MAX_TIMEOUT_NANOS;
+        final long attemptTimeout = attemptTimeoutNanos();
+        int replicaIndex = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
         int i = 0;
-        while ((now < limit) && (i < 3)) { // wait until 2 seconds have passed, but no more than 3 iterations
-            final Future<Recommendations> task;
+        while (true) {
+            final long attemptLimit = limit - now < attemptTimeout ? limit : now + attemptTimeout;
+            final Replica primary = replicas[replicaIndex];
+            final Replica secondary = (replicas.length > 1) && (HEDGE_PERCENTILE > 0) ? replicas[(replicaIndex + 1) % replicas.length] : null;
+            final ExecutorCompletionService<Recommendations> completion = new ExecutorCompletionService<>(asyncRecommenderInvoker);
+            final long primaryStart = now;
+            long secondaryStart = 0L;
+            final Future<Recommendations> primaryTask;
+            Future<Recommendations> secondaryTask = null;
             try {
-                task = asyncRecommenderInvoker.submit(job);
+                primaryTask = completion.submit(() -> call.invoke(primary));
             } catch (RejectedExecutionException e) {
                 RequestCache.get().getLogger().subLogger(getClass().getSimpleName()).error("Failed to async invoke a recommender: " + e.toString(), e);
                 return null;
             }
 
             try {
-                return task.get(limit - now, TimeUnit.NANOSECONDS);
-            } catch (CancellationException e) {
-                logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async invocation cancelled: " + e.toString(), e);
-            } catch (ExecutionException e) {
-                logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async execution failed: " + e.toString(), e);
-                synchronized (this) {
-                    recommender = null; // reset the recommender, so we get a new instance on next getRecommender()
+                int outstanding = 1;
+                Future<Recommendations> done = null;
+                if (secondary != null) {
+                    // hedge: if the replica is slower than usual, ask the next one too
+                    done = completion.poll(Math.min(Math.max(latencies.estimateNanos(), HEDGE_MIN_NANOS), attemptLimit - now), TimeUnit.NANOSECONDS);
+                    secondaryStart = System.nanoTime();
+                    if ((done == null) && (attemptLimit - secondaryStart > 0L)) {
+                        try {
+                            secondaryTask = completion.submit(() -> call.invoke(secondary));
+                            outstanding++;
+                            hedgedCount.incrementAndGet();
+                        } catch (RejectedExecutionException e) {
+                            logger.subLogger(getClass().getSimpleName()).warn("[REC " + recommenderId + "] Failed to hedge the request to " + secondary.hostname + ": " + e.toString());
+                        }
+                    }
+                }
+                while (outstanding > 0) {
+                    if (done == null) {
+                        now = System.nanoTime();
+                        if (attemptLimit - now > 0L) done = completion.poll(attemptLimit - now, TimeUnit.NANOSECONDS);
+                        if (done == null) {
+                            timeoutCount.incrementAndGet();
+                            // so the estimates reflect the slow answers too, unless cut short by the deadline
+                            if (attemptLimit - primaryStart >= attemptTimeout) latencies.record(attemptTimeout);
+                            logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async execution timed out after " + ((attemptLimit - primaryStart) / 1000000L) + " ms at " + primary.hostname + (secondaryTask == null ? "" : " and " + secondary.hostname));
+                            break;
+                        }
+                    }
+                    outstanding--;
+                    final boolean isSecondary = done == secondaryTask;
+                    final Replica replica = isSecondary ? secondary : primary;
+                    try {
+                        final Recommendations result = done.get();
+                        final long answered = System.nanoTime();
+                        latencies.record(answered - (isSecondary ? secondaryStart : primaryStart));
+                        if (isSecondary) {
+                            hedgeWinCount.incrementAndGet();
+                            // the primary takes at least this long, so the estimates don't see only the faster replicas
+                            if (!primaryTask.isDone()) latencies.record(answered - primaryStart);
+                        }
+                        return result;
+                    } catch (ExecutionException e) {
+                        failureCount.incrementAndGet();
+                        logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async execution failed at " + replica.hostname + ": " + e.toString(), e);
+                        replica.reset(); // so we get a new instance on next getRecommender()
+                    }
+                    done = null;
                 }
             } catch (InterruptedException e) {
                 logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async execution interrupted: " + e.toString(), e);
-            } catch (TimeoutException e) {
-                logger.subLogger(getClass().getSimpleName()).error("[REC " + recommenderId + "] Recommender async execution timed out: " + e.toString(), e);
+            } finally {
+                primaryTask.cancel(true);
+                if (secondaryTask != null) secondaryTask.cancel(true);
             }
 
-            task.cancel(true);
             now = System.nanoTime();
-            i++;
+            if (++i >= MAX_ATTEMPTS) break;
+            if (limit - now < latencies.estimateNanos()) {
+                // a usual answer wouldn't arrive in time anyway
+                retriesSkippedCount.incrementAndGet();
+                logger.subLogger(getClass().getSimpleName()).warn("[REC " + recommenderId + "] Not retrying the recommender, only " + (Math.max(limit - now, 0L) / 1000000L) + " ms remain");
+                break;
+            }
+            replicaIndex = (replicaIndex + 1) % replicas.length; // retry with another replica, if there is one
         }
         return null;
     }
 
-    public Recommendations recommendations(final RequestLogger logger, final long consumerId, final RecommendationSettings settings, final RecommendProduct[] candidateProducts) {
-        return asyncInvoke(logger, () -> getRecommender().recommendations(consumerId, candidateProducts, settings));
+    public Recommendations recommendations(final RequestLogger logger, final long deadlineNanos, final long consumerId, final RecommendationSettings settings, final CandidateSet candidates) {
+        candidateCount.addAndGet(candidates.size());
+        return asyncInvoke(logger, deadlineNanos, (replica) -> {
+            final BasicRecommender recommender = replica.getRecommender();
+            if (CANDIDATE_DELTAS && (recommender instanceof DeltaRecommender)) {
+                return invokeWithDelta(replica, candidates, (delta) -> ((DeltaRecommender) recommender).recommendations(consumerId, delta, settings));
+            }
+            candidatesSentCount.addAndGet(candidates.size());
+            return recommender.recommendations(consumerId, candidates.products(), settings);
+        });
+    }
+
+    public Recommendations similar(final RequestLogger logger, final long deadlineNanos, final long[] productIdsForSimilar, final RecommendationSettings settings, final CandidateSet candidates) {
+        candidateCount.addAndGet(candidates.size());
+        return asyncInvoke(logger, deadlineNanos, (replica) -> {
+            final BasicRecommender recommender = replica.getRecommender();
+            if (CANDIDATE_DELTAS && (recommender instanceof DeltaRecommender)) {
+                return invokeWithDelta(replica, candidates, (delta) -> ((DeltaRecommender) recommender).similar(productIdsForSimilar, delta, settings));
+            }
+            candidatesSentCount.addAndGet(candidates.size());
+            return recommender.similar(productIdsForSimilar, candidates.products(), settings);
+        });
     }
 
-    public Recommendations similar(final RequestLogger logger, final long[] productIdsForSimilar, final RecommendationSettings settings, final RecommendProduct[] candidateProducts) {
-        return asyncInvoke(logger, () -> getRecommender().similar(productIdsForSimilar, candidateProducts, settings));
+    /**
+     * Sends the candidates as a delta from a candidate set the replica
+     * holds, and sends them all if the replica doesn't hold it anymore.
+     */
+    private Recommendations invokeWithDelta(final Replica replica, final CandidateSet candidates, final DeltaCall call) throws Exception {
+        final CandidateDelta delta = replica.deltaFor(candidates);
+        Recommendations result;
+        try {
+            candidatesSentCount.addAndGet(delta.added.length);
+            result = call.invoke(delta);
+        }
+        catch (UnknownCandidateSetException e) {
+            if (delta.isFull()) throw e;
+            // the replica restarted or evicted the set
+            unknownCandidateSetCount.incrementAndGet();
+            replica.forgetCandidateSets();
+            candidatesSentCount.addAndGet(candidates.size());
+            result = call.invoke(candidates.fullDelta());
+        }
+        replica.holds(candidates);
+        return result;
+    }
+
+    public RecommenderStatus getStatus() {
+        final Replica[] replicas = this.replicas;
+        final StringBuilder hostnames = new StringBuilder(32 * replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            if (i > 0) hostnames.append(",");
+            hostnames.append(replicas[i].hostname);
+        }
+        return new RecommenderStatus(name, recommenderId, hostnames.toString(), requestCount.get(), hedgedCount.get(), hedgeWinCount.get(), failureCount.get(), timeoutCount.get(),
+                deadlineExceededCount.get(), retriesSkippedCount.get(), attemptTimeoutNanos() / 1000000L,
+                Math.max(latencies.estimateNanos(), HEDGE_MIN_NANOS) / 1000000L, latencies.percentileNanos(50) / 1000000L, latencies.percentileNanos(95) / 1000000L,
+                candidateCount.get(), candidatesSentCount.get(), unknownCandidateSetCount.get());
     }
 
     public void shutdown() {
         asyncRecommenderInvoker.shutdown();
+        for (final Replica replica : replicas) replica.close();
+    }
+
+    /**
+     * A call of a recommender replica.
+     */
+    @FunctionalInterface
+    private interface RecommenderCall {
+        Recommendations invoke(Replica replica) throws Exception;
+    }
+
+    /**
+     * A call of a {@link DeltaRecommender} with the given candidates.
+     */
+    @FunctionalInterface
+    private interface DeltaCall {
+        Recommendations invoke(CandidateDelta candidates) throws Exception;
+    }
+
+    /**
+     * A replica of the recommender, residing on a host, with its RMI proxy
+     * or the client of its binary protocol.
+     */
+    private static final class Replica {
+        private static final String BINARY_SCHEME = "binary://";
+        final long recommenderId;
+        final String hostname;
+        private final BinaryRecommenderClient binaryClient; // null if the replica is reached via RMI
+        private BasicRecommender recommender = null; // access must be guarded with synchronized(this)
+        /** The candidate sets the replica was sent recently, the most recently used last; access must be guarded with synchronized(this). */
+        private final LinkedHashMap<Long, CandidateSet> candidateSets = new LinkedHashMap<Long, CandidateSet>(CANDIDATE_SETS_PER_REPLICA * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, CandidateSet> eldest) {
+                return size() > CANDIDATE_SETS_PER_REPLICA;
+            }
+        };
+
+        Replica(final long recommenderId, final String hostname) {
+            this.recommenderId = recommenderId;
+            this.hostname = hostname;
+            this.binaryClient = hostname.startsWith(BINARY_SCHEME) ? BinaryRecommenderClient.forAddress(recommenderId, hostname.substring(BINARY_SCHEME.length())) : null;
+        }
+
+        BasicRecommender getRecommender() throws RecommenderNotReadyException {
+            if (binaryClient != null) return binaryClient; // it connects on its own
+            try {
+                synchronized (this) {
+                    if (recommender != null) return recommender;
+                    log.debug("[REC " + recommenderId + "] Looking up RMI proxy AI" + recommenderId + " at " + hostname);
+                    final Registry registry = LocateRegistry.getRegistry(hostname);
+                    return recommender = (BasicRecommender) registry.lookup("AI" + recommenderId);
+                }
+            }
+            catch (Exception e) {
+                final String message = "Failed to obtain a RMI proxy for the recommender " + recommenderId + " located at " + hostname + ": " + e.toString();
+                log.error(message, e);
+                throw new RecommenderNotReadyException(message, e);
+            }
+        }
+
+        synchronized void reset() {
+            recommender = null;
+            candidateSets.clear(); // the replica may have been restarted
+        }
+
+        void close() {
+            if (binaryClient != null) binaryClient.close();
+        }
+
+        /**
+         * Returns the delta of the given candidates from the candidate set
+         * most recently sent to the replica.
+         */
+        CandidateDelta deltaFor(final CandidateSet candidates) {
+            CandidateSet base = null;
+            synchronized (this) {
+                if (candidateSets.get(candidates.fingerprint()) != null) return candidates.deltaFrom(candidates);
+                for (final CandidateSet set : candidateSets.values()) base = set;
+            }
+            return candidates.deltaFrom(base);
+        }
+
+        synchronized void holds(final CandidateSet candidates) {
+            candidateSets.put(candidates.fingerprint(), candidates);
+        }
+
+        synchronized void forgetCandidateSets() {
+            candidateSets.clear();
+        }
     }
 }
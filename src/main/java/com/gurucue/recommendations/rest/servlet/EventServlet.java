@@ -56,6 +56,7 @@ import java.util.Map;
 @WebServlet(name = "Event", urlPatterns = { "/rest/event" }, description = "REST interface for events.")
 public final class EventServlet extends RestServlet {
     private static final long serialVersionUID = 7142104276642767759L;
+    private static final int RETRY_AFTER_SECONDS = 5; // when rejecting a zap because the zap queue is over its soft limit
 
     public EventServlet() {
         super("Event");
@@ -82,6 +83,7 @@ public final class EventServlet extends RestServlet {
         event.setResponseCode(-1);
 
         Product product = null;
+        long consumerId = -1L; // known after the consumer is found
 
         // collect some stats
         boolean consumerWasCreated = false;
@@ -92,6 +94,8 @@ public final class EventServlet extends RestServlet {
         Integer responseCode = ResponseStatus.OK.getCode();
         StringBuilder responseMessage = new StringBuilder(64);
         String addedConsumer = null;
+        final RestResponse result;
+        boolean saved = false;
 
         try {
         	
@@ -113,6 +117,7 @@ public final class EventServlet extends RestServlet {
                 consumerWasCreated = false;
             }
             consumerNano = System.nanoTime();
+            consumerId = consumerEntity.id;
 
             final Consumer consumer = new Consumer(consumerEntity.id, username, partner, new Timestamp(consumerEntity.activated)); // TODO: this is for backwards compatibility
             
@@ -220,7 +225,7 @@ public final class EventServlet extends RestServlet {
                 event.setFailedRequest(request);
                 event.setFailureCondition(response.resultMessage);
             }
-            return response;
+            result = response;
 
         }
         catch (Throwable e) {
@@ -241,7 +246,9 @@ public final class EventServlet extends RestServlet {
             }
             finally {
                 final long preQueueNano = System.nanoTime();
-                ConsumerEventProcessor.INSTANCE.saveNewServiceEvent(event);
+                saved = ConsumerEventProcessor.INSTANCE.saveNewServiceEvent(event);
+                // the event may change the recommendations of the consumer
+                if (saved && (consumerId >= 0L)) RecommendationServlet.resultCache.invalidate(consumerId);
                 final long postQueueNano = System.nanoTime();
                 final long totalNano = postQueueNano - startNano;
                 if (totalNano > 5000000L) { // more than 5 ms: log timings
@@ -268,6 +275,10 @@ public final class EventServlet extends RestServlet {
             }
         }
 
+        // too many zaps are waiting to be processed: the event was not saved, have it sent again later instead of blocking
+        if (!saved) throw new HttpServiceUnavailableException(RETRY_AFTER_SECONDS, "Too many zaps are waiting to be processed, retry later");
+        return result;
+
     }
     
     private static long getUserProfileId(final String userProfile , final DataLink dataLink, final Partner partner,final ConsumerEntity consumerEntity, final RequestCache cache) {
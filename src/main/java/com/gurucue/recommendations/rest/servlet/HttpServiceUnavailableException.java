@@ -0,0 +1,39 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Thrown to indicate a 503 Service Unavailable, when the service is
+ * temporarily overloaded. Constructors require the number of seconds after
+ * which the client may retry, which is sent in the <code>Retry-After</code>
+ * header.
+ */
+public class HttpServiceUnavailableException extends HttpException {
+    private static final long serialVersionUID = -2470931685315824127L;
+
+    public HttpServiceUnavailableException(final int retryAfterSeconds) {
+        super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable", new HttpHeader[]{new HttpHeader("Retry-After", Integer.toString(retryAfterSeconds))});
+    }
+
+    public HttpServiceUnavailableException(final int retryAfterSeconds, final String message) {
+        super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message, new HttpHeader[]{new HttpHeader("Retry-After", Integer.toString(retryAfterSeconds))});
+    }
+}
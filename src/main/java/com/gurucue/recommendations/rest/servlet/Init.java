@@ -25,6 +25,7 @@ import com.gurucue.recommendations.data.jdbc.JdbcDataProvider;
 import com.gurucue.recommendations.data.postgresql.PostgreSqlDataProvider;
 import com.gurucue.recommendations.rest.GcPauseGauger;
 import com.gurucue.recommendations.rest.PeriodicStatusLogger;
+import com.gurucue.recommendations.rest.ServiceRole;
 import com.gurucue.recommendations.rest.data.DatabaseWorkerThread;
 import com.gurucue.recommendations.rest.data.processing.zap.ConsumerEventProcessor;
 import com.gurucue.recommendations.rest.recommender.BlenderHandler;
@@ -51,7 +52,8 @@ public class Init implements ServletContextListener {
     @Override
     public void contextInitialized(ServletContextEvent servletContextEvent) {
 
-        logger.info("rest-api initializing...");
+        final ServiceRole role = ServiceRole.CURRENT;
+        logger.info("rest-api initializing in the role " + role.identifier + "...");
 
         ServletContext ctx = servletContextEvent.getServletContext();
         Map<String, ? extends ServletRegistration> register = ctx.getServletRegistrations();
@@ -78,10 +80,13 @@ public class Init implements ServletContextListener {
 
         // Start the background database worker
         DatabaseWorkerThread.INSTANCE.start();
-        // Initialize the AI engine: just referencing it will suffice
-        RecommenderProviderImpl.INSTANCE.refreshRecommenders();
-        BlenderHandler bh = BlenderHandler.INSTANCE;
-        // Initialize the livetv-consumption conversion
+        if (role.servesRecommendations) {
+            // Initialize the AI engine: just referencing it will suffice
+            RecommenderProviderImpl.INSTANCE.refreshRecommenders();
+            BlenderHandler bh = BlenderHandler.INSTANCE;
+        }
+        // Initialize the livetv-consumption conversion, restoring the zap state saved at the last shutdown if snapshots are enabled,
+        // or only the hand-over of zaps to a zap worker on a serving node
         ConsumerEventProcessor.INSTANCE.start();
     }
 
@@ -89,10 +94,12 @@ public class Init implements ServletContextListener {
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
         logger.info("Received shutdown signal, shutting down timer...");
         Timer.INSTANCE.stop();
-        logger.info("Shutting down recommenders...");
-        RecommenderProviderImpl.INSTANCE.shutdown();
-        logger.info("Shutting down blenders...");
-        BlenderHandler.INSTANCE.shutdown();
+        if (ServiceRole.CURRENT.servesRecommendations) {
+            logger.info("Shutting down recommenders...");
+            RecommenderProviderImpl.INSTANCE.shutdown();
+            logger.info("Shutting down blenders...");
+            BlenderHandler.INSTANCE.shutdown();
+        }
         logger.info("Shutting down livetv-consumption conversion...");
         ConsumerEventProcessor.INSTANCE.stop();
         logger.info("Shutting down database workers...");
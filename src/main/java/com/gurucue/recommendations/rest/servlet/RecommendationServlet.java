@@ -34,6 +34,8 @@ import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.dto.ConsumerEntity;
 import com.gurucue.recommendations.entity.LogSvcRecommendation;
 import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.rest.Configuration;
+import com.gurucue.recommendations.rest.ServiceRole;
 import com.gurucue.recommendations.rest.data.DatabaseWorkerJob;
 import com.gurucue.recommendations.rest.data.DatabaseWorkerThread;
 import com.gurucue.recommendations.rest.data.RequestCache;
@@ -44,6 +46,7 @@ import com.gurucue.recommendations.rest.data.response.RestResponse;
 import com.gurucue.recommendations.rest.recommender.BlenderGroup;
 import com.gurucue.recommendations.rest.recommender.BlenderHandler;
 import com.gurucue.recommendations.rest.recommender.RecommenderProviderImpl;
+import com.gurucue.recommendations.rest.recommender.ResultCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -61,13 +64,20 @@ public class RecommendationServlet extends RestServlet {
     private static final long serialVersionUID = -2499235720685131707L;
 
     public static final ConcurrentHashMap<String, Boolean> debugLoggedConsumers = new ConcurrentHashMap<>(50); // TODO: find something better to manage debugged consumers
+    /** Recent responses, served again to repeated requests, invalidated by new events of their consumers. */
+    public static final ResultCache<CachedRecommendations> resultCache = new ResultCache<>(
+            (int) Configuration.getLong("RECSRV_RESULT_CACHE_ENTRIES", 10000L),
+            Configuration.getLong("RECSRV_RESULT_CACHE_TTL_MILLIS", 10000L) * 1000000L
+    );
 
     public RecommendationServlet() {
         super("Recommendation");
     }
 
     protected RestResponse restPost(final RequestCache cache, final String[] pathFragments, final MimeType requestFormat, final String request) throws ResponseException {
+        if (!ServiceRole.CURRENT.servesRecommendations) throw new ResponseException(ResponseStatus.INTERNAL_PROCESSING_ERROR, "This node does not serve recommendation requests, its role is " + ServiceRole.CURRENT.identifier);
         final long startNano = System.nanoTime();
+        cache.setDeadline(startNano + RecommenderProviderImpl.REQUEST_BUDGET_NANOS);
         final RequestLogger logger = cache.getLogger().subLogger(getClass().getSimpleName());
 
         BlendParameters recInputBlendParams = null;
@@ -102,14 +112,17 @@ public class RecommendationServlet extends RestServlet {
 
             final long timeObtainConsumer = System.nanoTime();
             final String responseMessage;
+            final boolean consumerCreated;
             ConsumerEntity consumerEntity = link.getConsumerManager().getByPartnerIdAndUsernameAndTypeAndParent(partner.getId().longValue(), username, 1L, 0L);
             if (consumerEntity == null) {
                 consumerEntity = link.getConsumerManager().merge(partner.getId().longValue(), username, false, null, 1L, 0L);
                 responseMessage = "OK, added consumer " + username;
+                consumerCreated = true;
                 blenderLog.append("Created a new consumer ").append(consumerEntity.id).append(" (").append(username).append("); ");
             }
             else {
                 responseMessage = "OK";
+                consumerCreated = false;
                 blenderLog.append("Serving an existing consumer ").append(consumerEntity.id).append(" (").append(username).append("); ");
             }
 
@@ -127,8 +140,27 @@ public class RecommendationServlet extends RestServlet {
 
             if (blender == null) throw new ResponseException(ResponseStatus.NO_BLENDER_FOR_PARTNER);
 
+            // a new consumer has nothing cached, and debugged consumers are always blended to get their logs
+            final boolean isDebugged = debugLoggedConsumers.containsKey(username);
+            final String cacheKey;
+            if (consumerCreated || isDebugged || !resultCache.isEnabled()) cacheKey = null;
+            else {
+                // a refreshed blender is a new instance, so results of its predecessor are never served
+                cacheKey = partner.getId() + "/" + blender.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(blender)) + "/" + recommendationInput.cacheKey();
+                final CachedRecommendations cached = resultCache.get(consumerEntity.id, cacheKey);
+                if (cached != null) {
+                    blenderResult = cached.blenderResult;
+                    blenderLog.append("serving a cached response, timings:\n    obtaining consumer: ").append(timeServiceLog1 - timeObtainConsumer)
+                            .append(" ns\n    total processing time: ").append(System.nanoTime() - timeObtainConsumer)
+                            .append(" ns"); // don't end with a newline, the logger does that
+                    logger.debug(blenderLog.toString());
+                    serviceLog.setResponseCode(cached.response.resultCode);
+                    return cached.response;
+                }
+            }
+
             final long timeBlendingStart = System.nanoTime();
-            final BlendEnvironment environment = new BlendEnvironment(link.getProvider(), RecommenderProviderImpl.INSTANCE, transaction, partner, consumerEntity, currentTimestampMillis, debugLoggedConsumers.containsKey(username));
+            final BlendEnvironment environment = new BlendEnvironment(link.getProvider(), RecommenderProviderImpl.INSTANCE, transaction, partner, consumerEntity, currentTimestampMillis, isDebugged);
             blenderResult = blender.blend(VideoData.class, environment, recInputBlendParams);
             final long timeBlendingEnd = System.nanoTime();
 
@@ -149,6 +181,8 @@ public class RecommendationServlet extends RestServlet {
             final MovieRecommendationsResponse response = MovieRecommendationsResponse.fromDataSet(blenderResult.dataSet, responseMessage, attributeCodes, logger, partner);
 
             final long timeResponseFormattingEnd = System.nanoTime();
+            // the blending started after the request did, so an event of the consumer received meanwhile prevents caching
+            if (cacheKey != null) resultCache.put(consumerEntity.id, cacheKey, new CachedRecommendations(response, blenderResult), startNano);
             // the last output finished with a newline
             blenderLog.append("Additional timings:\n    assembling this log output: ").append(timeLoggingEnd - timeLoggingStart)
                     .append(" ns\n    formatting the ").append(requestFormat.CONTENT_FORMAT.NAME).append(" response: ").append(timeResponseFormattingEnd - timeLoggingEnd)
@@ -190,6 +224,20 @@ public class RecommendationServlet extends RestServlet {
         }
     }
 
+    /**
+     * A response cached together with the blender result it was formatted
+     * from, which is logged for every request the response is served to.
+     */
+    public static final class CachedRecommendations {
+        final MovieRecommendationsResponse response;
+        final BlenderResult<VideoData> blenderResult;
+
+        CachedRecommendations(final MovieRecommendationsResponse response, final BlenderResult<VideoData> blenderResult) {
+            this.response = response;
+            this.blenderResult = blenderResult;
+        }
+    }
+
     public static final class LogJob extends DatabaseWorkerJob {
         private static final Logger log = LogManager.getLogger(DatabaseWorkerJob.class);
 
@@ -34,6 +34,7 @@ import com.gurucue.recommendations.data.DataManager;
 import com.gurucue.recommendations.dto.ConsumerEntity;
 import com.gurucue.recommendations.entity.LogSvcRecommendation;
 import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.rest.ServiceRole;
 import com.gurucue.recommendations.rest.data.DatabaseWorkerJob;
 import com.gurucue.recommendations.rest.data.DatabaseWorkerThread;
 import com.gurucue.recommendations.rest.data.RequestCache;
@@ -63,7 +64,9 @@ public final class SearchServlet extends RestServlet {
     }
 
     protected RestResponse restPost(final RequestCache cache, final String[] pathFragments, final MimeType requestFormat, final String request) throws ResponseException {
+        if (!ServiceRole.CURRENT.servesRecommendations) throw new ResponseException(ResponseStatus.INTERNAL_PROCESSING_ERROR, "This node does not serve search requests, its role is " + ServiceRole.CURRENT.identifier);
         final long startNano = System.nanoTime();
+        cache.setDeadline(startNano + RecommenderProviderImpl.REQUEST_BUDGET_NANOS);
         final RequestLogger logger = cache.getLogger().subLogger(getClass().getSimpleName());
 
         BlendParameters recInputBlendParams = null;
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.servlet;
+
+import com.gurucue.recommendations.ResponseException;
+import com.gurucue.recommendations.ResponseStatus;
+import com.gurucue.recommendations.Timer;
+import com.gurucue.recommendations.rest.ServiceRole;
+import com.gurucue.recommendations.rest.data.RequestCache;
+import com.gurucue.recommendations.rest.data.processing.zap.ConsumerEventProcessor;
+import com.gurucue.recommendations.rest.data.processing.zap.ViewershipSeries;
+import com.gurucue.recommendations.rest.data.response.ViewershipHistoryResponse;
+import com.gurucue.recommendations.rest.data.response.ViewershipResponse;
+import com.gurucue.recommendations.translator.TranslatorAware;
+
+import javax.servlet.annotation.WebServlet;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Returns the viewership of the partner's tv-channels: the live viewership
+ * at <code>/rest/viewership</code>, and the stored viewership over a range
+ * of time at <code>/rest/viewership/&lt;from&gt;/&lt;to&gt;[/&lt;step&gt;[/&lt;tv-channel ID&gt;]]</code>,
+ * with times in seconds since the epoch and the step in seconds.
+ */
+@WebServlet(name = "Viewership", urlPatterns = { "/rest/viewership", "/rest/viewership/*" }, description = "REST interface to tv-channel viewership.")
+public class ViewershipServlet extends RestServlet {
+    private static final long serialVersionUID = 2816650432779118537L;
+    private static final long DEFAULT_STEP_SECONDS = 300L; // the sampling interval
+    private static final long MAX_STEPS = 10000L;
+
+    public ViewershipServlet() {
+        super("Viewership");
+    }
+
+    @Override
+    protected TranslatorAware restGet(final RequestCache cache, final String[] pathFragments) throws ResponseException {
+        if (!ConsumerEventProcessor.INSTANCE.processesZaps()) throw new ResponseException(ResponseStatus.INTERNAL_PROCESSING_ERROR, "This node does not process zaps, its role is " + ServiceRole.CURRENT.identifier);
+        final long partnerId = cache.getPartner().getId().longValue();
+        if (pathFragments.length == 0) return new ViewershipResponse(Timer.currentTimeMillis(), ConsumerEventProcessor.INSTANCE.getLiveViewership(partnerId));
+        if (pathFragments.length > 4) throw new ResponseException(ResponseStatus.MALFORMED_REQUEST);
+        final long fromMillis = parseLong(pathFragments, 0, 0L) * 1000L;
+        final long toMillis = parseLong(pathFragments, 1, 0L) * 1000L;
+        final long stepMillis = parseLong(pathFragments, 2, DEFAULT_STEP_SECONDS) * 1000L;
+        final long tvChannelId = parseLong(pathFragments, 3, 0L);
+        if ((toMillis <= fromMillis) || (stepMillis <= 0L)) throw new ResponseException(ResponseStatus.MALFORMED_REQUEST, "The time range must not be empty and the step must be positive");
+        if (((toMillis - fromMillis) / stepMillis) >= MAX_STEPS) throw new ResponseException(ResponseStatus.MALFORMED_REQUEST, "Too many steps in the time range, the maximum is " + MAX_STEPS);
+        final List<ViewershipSeries> series;
+        try {
+            series = ConsumerEventProcessor.INSTANCE.getViewershipHistory(partnerId, tvChannelId, fromMillis, toMillis, stepMillis);
+        }
+        catch (IOException e) {
+            throw new ResponseException(ResponseStatus.INTERNAL_PROCESSING_ERROR, e, "Failed to read the viewership store: " + e.toString());
+        }
+        if (series == null) throw new ResponseException(ResponseStatus.INTERNAL_PROCESSING_ERROR, "The viewership store is disabled");
+        return new ViewershipHistoryResponse(fromMillis, toMillis, stepMillis, series);
+    }
+
+    private static long parseLong(final String[] pathFragments, final int index, final long defaultValue) throws ResponseException {
+        if (index >= pathFragments.length) {
+            if (index < 2) throw new ResponseException(ResponseStatus.MALFORMED_REQUEST, "The start and the end of the time range are required");
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(pathFragments[index], 10);
+        }
+        catch (NumberFormatException e) {
+            throw new ResponseException(ResponseStatus.ILLEGAL_INTEGER, "Not an integer: " + pathFragments[index]);
+        }
+    }
+}
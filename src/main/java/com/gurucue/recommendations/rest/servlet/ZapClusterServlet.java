@@ -0,0 +1,124 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.servlet;
+
+import com.gurucue.recommendations.rest.data.processing.zap.ConsumerEventProcessor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The interface between nodes sharing zap processing, not meant for
+ * partners. A GET request is the heartbeat, answered with 200 OK while
+ * this node takes part in zap processing. A POST request to
+ * <code>/rest/zap-cluster/zaps</code> delivers a batch of forwarded zaps,
+ * and a POST request to <code>/rest/zap-cluster/leave</code> notifies this
+ * node that the node named in the request body is leaving.
+ */
+@WebServlet(name = "ZapCluster", urlPatterns = { "/rest/zap-cluster", "/rest/zap-cluster/*" }, description = "Interface between nodes sharing zap processing.")
+public class ZapClusterServlet extends HttpServlet {
+    private static final long serialVersionUID = -6302781937541263405L;
+    private static final Logger log = LogManager.getLogger(ZapClusterServlet.class);
+    private static final int MAX_NODE_NAME_LENGTH = 4096;
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        if (!authorize(req, resp)) return;
+        if (req.getPathInfo() != null && !"/".equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (ConsumerEventProcessor.INSTANCE.isClusterMember()) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("text/plain; charset=UTF-8");
+            resp.getWriter().write("OK");
+        }
+        else {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        if (!authorize(req, resp)) return;
+        final String path = req.getPathInfo();
+        if ("/zaps".equals(path)) {
+            try {
+                ConsumerEventProcessor.INSTANCE.receiveForwardedZaps(req.getInputStream());
+            }
+            catch (IllegalStateException e) {
+                // zap processing is not running (anymore), the sender must route the zaps elsewhere
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                return;
+            }
+            catch (IOException e) {
+                log.error("Failed to read forwarded zaps from " + req.getRemoteAddr() + ": " + e.toString(), e);
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+        else if ("/leave".equals(path)) {
+            final String node = readText(req.getInputStream());
+            if (node == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The name of the leaving node is missing or too long");
+                return;
+            }
+            ConsumerEventProcessor.INSTANCE.clusterNodeLeft(node);
+            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+        else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    private static boolean authorize(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        if (!ConsumerEventProcessor.INSTANCE.isClustered()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        if (!ConsumerEventProcessor.INSTANCE.authorizesClusterRequest(req.getHeader(ConsumerEventProcessor.CLUSTER_SECRET_HEADER))) {
+            log.warn("Refused a zap cluster request without a valid secret from " + req.getRemoteAddr());
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    private static String readText(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, n);
+            if (bytes.size() > MAX_NODE_NAME_LENGTH) return null;
+        }
+        final String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        return text.length() == 0 ? null : text;
+    }
+}
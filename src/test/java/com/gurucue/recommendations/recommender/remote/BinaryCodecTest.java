@@ -0,0 +1,78 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.recommender.remote;
+
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.recommender.remote.BinaryCodec}.
+ */
+public class BinaryCodecTest extends TestCase {
+    /**
+     * A serializable class that is not part of the recommendation settings.
+     */
+    private static final class Gadget implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static Object roundTrip(final Object value) throws IOException {
+        final BinaryCodec.Writer out = new BinaryCodec.Writer(256);
+        out.beginFrame(1, BinaryCodec.TYPE_RECOMMENDATIONS);
+        out.writeSerialized(value);
+        final ByteBuffer frame = out.endFrame();
+        frame.position(frame.position() + 4); // the length
+        final BinaryCodec.Reader in = new BinaryCodec.Reader(frame);
+        in.readInt();
+        in.readByte();
+        return in.readSerialized();
+    }
+
+    @Test
+    public void testOnlySettingsClassesAreDeserialized() throws Exception {
+        assertTrue(BinaryCodec.SETTINGS_CLASSES.contains(RecommendationSettings.class.getName()));
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("tv-channel", "1");
+        assertEquals("The types of settings fields should be deserialized", tags, roundTrip(tags));
+        assertTrue(Arrays.equals(new long[]{1L, 2L}, (long[]) roundTrip(new long[]{1L, 2L})));
+        try {
+            roundTrip(new Gadget());
+            fail("Other classes should not be deserialized");
+        }
+        catch (InvalidClassException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(Gadget.class.getName()));
+        }
+        try {
+            roundTrip(new Gadget[]{new Gadget()});
+            fail("Arrays of other classes should not be deserialized");
+        }
+        catch (InvalidClassException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.BufferingDelays}.
+ */
+public class BufferingDelaysTest extends TestCase {
+    private static final long MINUTE = 60000L;
+
+    private static BufferingDelays newDelays() {
+        return new BufferingDelays(MINUTE, 60, 10, 90, MINUTE, 5L * MINUTE, 30L * MINUTE, 100L);
+    }
+
+    private static EventDelayDistribution distribution(final int bucket, final long count) {
+        final long[] counts = new long[60];
+        counts[bucket] = count;
+        return new EventDelayDistribution(MINUTE, counts, bucket * MINUTE * count, bucket * MINUTE);
+    }
+
+    @Test
+    public void testNoDelaysGiveTheLowestDelay() {
+        final BufferingDelays delays = newDelays();
+        assertEquals("Without events the delay should be at its lower bound", 5L * MINUTE, delays.delayFor(new EventDelayDistribution(MINUTE, new long[60], 0L, 0L)));
+    }
+
+    @Test
+    public void testDelayCoversThePercentileWithMargin() {
+        final BufferingDelays delays = newDelays();
+        final long[] counts = new long[60];
+        counts[2] = 85L;
+        counts[10] = 10L;
+        counts[40] = 5L;
+        assertEquals("The p90 delay is in the 11th minute, plus a minute of margin", 12L * MINUTE, delays.delayFor(new EventDelayDistribution(MINUTE, counts, 0L, 40L * MINUTE)));
+    }
+
+    @Test
+    public void testDelayIsBounded() {
+        final BufferingDelays delays = newDelays();
+        assertEquals("Short delays should be raised to the lower bound", 5L * MINUTE, delays.delayFor(distribution(0, 1000L)));
+        assertEquals("Long delays should be cut to the upper bound", 30L * MINUTE, delays.delayFor(distribution(45, 1000L)));
+    }
+
+    @Test
+    public void testTuneSetsTheCommonDelay() {
+        final BufferingDelays delays = newDelays();
+        final long now = 100L * MINUTE;
+        for (int i = 0; i < 1000; i++) delays.record(null, now, now - (20L * MINUTE));
+        delays.tune(now, delays.distribution(now), new StringBuilder());
+        assertEquals("The common delay should cover the recorded delays", 22L * MINUTE, delays.globalDelayMillis());
+        assertEquals("Events without a partner should use the common delay", 22L * MINUTE, delays.delayMillis(null));
+        assertEquals("The longest delay should be the common delay", 22L * MINUTE, delays.maxDelayMillis());
+        assertTrue("Events without a partner should not be listed per partner", delays.status().isEmpty());
+    }
+}
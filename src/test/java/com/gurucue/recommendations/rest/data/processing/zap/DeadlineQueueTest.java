@@ -0,0 +1,66 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.DeadlineQueue}.
+ */
+public class DeadlineQueueTest extends TestCase {
+    @Test
+    public void testDrainsOnlyDueItemsInDeadlineOrder() {
+        final DeadlineQueue<String> queue = new DeadlineQueue<>();
+        queue.schedule(300L, "c");
+        queue.schedule(100L, "a");
+        queue.schedule(400L, "d");
+        queue.schedule(200L, "b");
+        final List<String> due = new ArrayList<>();
+        assertEquals("Two items should be due", 2, queue.drainDue(200L, due));
+        assertEquals("The first due item should be \"a\"", "a", due.get(0));
+        assertEquals("The second due item should be \"b\"", "b", due.get(1));
+        assertEquals("Two items should remain queued", 2, queue.size());
+    }
+
+    @Test
+    public void testNothingDueBeforeFirstDeadline() {
+        final DeadlineQueue<String> queue = new DeadlineQueue<>();
+        queue.schedule(100L, "a");
+        final List<String> due = new ArrayList<>();
+        assertEquals("No item should be due", 0, queue.drainDue(99L, due));
+        assertTrue("The output list should remain empty", due.isEmpty());
+        assertEquals("The item should remain queued", 1, queue.size());
+    }
+
+    @Test
+    public void testRescheduledItemIsDrainedPerDeadline() {
+        final DeadlineQueue<String> queue = new DeadlineQueue<>();
+        queue.schedule(100L, "a");
+        queue.schedule(50L, "a");
+        final List<String> due = new ArrayList<>();
+        assertEquals("Only the earlier deadline should be due", 1, queue.drainDue(60L, due));
+        assertEquals("The later deadline should be due afterwards", 1, queue.drainDue(100L, due));
+        assertEquals("The item should be drained once per deadline", 2, due.size());
+        assertEquals("The queue should be empty", 0, queue.size());
+    }
+}
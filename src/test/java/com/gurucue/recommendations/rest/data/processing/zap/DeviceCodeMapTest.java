@@ -0,0 +1,68 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.DeviceCodeMap}.
+ */
+public class DeviceCodeMapTest extends TestCase {
+    @Test
+    public void testGetOrAddCreatesOnce() {
+        final DeviceCodeMap<String> map = new DeviceCodeMap<>();
+        assertTrue("A new map should be empty", map.isEmpty());
+        final String first = map.getOrAdd(65, () -> "first");
+        final String second = map.getOrAdd(65, () -> {
+            fail("The factory should not be invoked for a present code");
+            return "second";
+        });
+        assertSame("The existing value should be returned", first, second);
+        assertSame("The value should be found by its code", first, map.get(65));
+        assertNull("Another code in the same stripe should have no value", map.get(1));
+        assertSame("The removed value should be returned", first, map.remove(65));
+        assertTrue("Nothing should remain", map.isEmpty());
+    }
+
+    @Test
+    public void testVisitsAndRetainsEntriesOfAllStripes() {
+        final DeviceCodeMap<String> map = new DeviceCodeMap<>();
+        for (int code = 1; code <= 1000; code++) map.put(code, "device-" + code);
+        final Map<Integer, String> visited = new HashMap<>();
+        assertTrue("All entries should be visited", map.forEachEntry((code, value) -> {
+            map.remove(code + 1000); // the map may be modified while visiting
+            visited.put(code, value);
+            return true;
+        }));
+        assertEquals("Every entry should be visited once", 1000, visited.size());
+        assertEquals("The values should be visited with their codes", "device-500", visited.get(500));
+        map.retainEntries((code, value) -> (code & 1) == 0);
+        final int[] count = { 0 };
+        map.forEachEntry((code, value) -> {
+            assertEquals("Only even codes should be retained", 0, code & 1);
+            count[0]++;
+            return true;
+        });
+        assertEquals("Half of the entries should be retained", 500, count[0]);
+    }
+}
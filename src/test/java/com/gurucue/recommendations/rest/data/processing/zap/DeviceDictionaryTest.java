@@ -0,0 +1,77 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.DeviceDictionary}.
+ */
+public class DeviceDictionaryTest extends TestCase {
+    @Test
+    public void testAssignsDistinctCodesToDistinctKeys() {
+        final DeviceDictionary<String> dictionary = new DeviceDictionary<>();
+        final Set<Integer> codes = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            final String key = "device-" + i;
+            final String value = dictionary.putIfAbsent(key, (final int code) -> key + "@" + code);
+            final int code = dictionary.code(key);
+            assertTrue("A registered key should have a code", code != DeviceDictionary.NO_CODE);
+            assertTrue("The code " + code + " should not be assigned twice", codes.add(code));
+            assertEquals("The value should be created for the assigned code", key + "@" + code, value);
+            assertEquals("The code should map back to the key", key, dictionary.key(code));
+            assertSame("The value should be found by the code", value, dictionary.get(code));
+            assertSame("The value should be found by the key", value, dictionary.get(key));
+        }
+        assertEquals("All keys should be registered", 10000, dictionary.size());
+        assertEquals("All values should be listed", 10000, dictionary.values().size());
+    }
+
+    @Test
+    public void testReturnsExistingValueWithoutCreatingAnother() {
+        final DeviceDictionary<String> dictionary = new DeviceDictionary<>();
+        final String first = dictionary.putIfAbsent("box", (final int code) -> "first");
+        final String second = dictionary.putIfAbsent("box", (final int code) -> {
+            fail("The factory should not be invoked for a registered key");
+            return "second";
+        });
+        assertSame("The existing value should be returned", first, second);
+        assertEquals("Only one key should be registered", 1, dictionary.size());
+    }
+
+    @Test
+    public void testRemoveReleasesTheCode() {
+        final DeviceDictionary<String> dictionary = new DeviceDictionary<>();
+        final String value = dictionary.putIfAbsent("box", (final int code) -> "value");
+        final int code = dictionary.code("box");
+        assertFalse("A different value should not be removed", dictionary.remove(code, "other"));
+        assertTrue("The registered value should be removed", dictionary.remove(code, value));
+        assertNull("The key should not be registered anymore", dictionary.get("box"));
+        assertEquals("The key should not have a code anymore", DeviceDictionary.NO_CODE, dictionary.code("box"));
+        assertNull("The code should not map to a key anymore", dictionary.key(code));
+        assertNull("The code should not map to a value anymore", dictionary.get(code));
+        assertEquals("Nothing should remain registered", 0, dictionary.size());
+        dictionary.putIfAbsent("box", (final int newCode) -> "again");
+        assertTrue("A re-registered key should get a new code", dictionary.code("box") != code);
+    }
+}
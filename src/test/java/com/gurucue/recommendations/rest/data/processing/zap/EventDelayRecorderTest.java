@@ -0,0 +1,87 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.EventDelayRecorder}.
+ */
+public class EventDelayRecorderTest extends TestCase {
+    private static final long MINUTE = 60000L;
+    private static final long START = 1000L * MINUTE;
+
+    @Test
+    public void testDelaysAreCountedPerBucket() {
+        final EventDelayRecorder recorder = new EventDelayRecorder(MINUTE, 60, 10);
+        recorder.record(START, START - 30000L); // 30 seconds
+        recorder.record(START, START - 90000L); // 1.5 minutes
+        recorder.record(START, START - 100000L); // 1 minute 40 seconds
+        recorder.record(START, START + 5000L); // from the future, counts as no delay
+        final EventDelayDistribution distribution = recorder.distribution(START);
+        assertEquals("There should be 4 delays", 4L, distribution.totalCount);
+        assertEquals("The first bucket should have 2 delays", 2L, distribution.counts[0]);
+        assertEquals("The second bucket should have 2 delays", 2L, distribution.counts[1]);
+        assertEquals("The maximum delay should be 100 seconds", 100000L, distribution.maxMillis);
+        assertEquals("The mean delay should be 55 seconds", 55000L, distribution.meanMillis());
+        assertEquals("The median should be in the first bucket", 0, distribution.percentileBucket(50));
+        assertEquals("The 90th percentile should be in the second bucket", 1, distribution.percentileBucket(90));
+        assertEquals("The 90th percentile should be capped at the maximum", 100000L, distribution.percentileMillis(90));
+    }
+
+    @Test
+    public void testLongDelaysGoToTheLastBucket() {
+        final EventDelayRecorder recorder = new EventDelayRecorder(MINUTE, 60, 10);
+        recorder.record(START, START - 120L * MINUTE);
+        final EventDelayDistribution distribution = recorder.distribution(START);
+        assertEquals("The last bucket should have the delay", 1L, distribution.counts[59]);
+    }
+
+    @Test
+    public void testOldIntervalsAreForgotten() {
+        final EventDelayRecorder recorder = new EventDelayRecorder(MINUTE, 60, 10);
+        recorder.record(START, START - 1000L);
+        recorder.record(START + 5L * MINUTE, START + 5L * MINUTE - 1000L);
+        assertEquals("Both delays should be within the window", 2L, recorder.distribution(START + 9L * MINUTE).totalCount);
+        assertEquals("Only the later delay should be within the window", 1L, recorder.distribution(START + 10L * MINUTE).totalCount);
+        recorder.record(START + 10L * MINUTE, START + 10L * MINUTE); // reuses the interval of the first delay
+        assertEquals("The reused interval should only have the new delay", 2L, recorder.distribution(START + 10L * MINUTE).totalCount);
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothingWithinAnInterval() throws InterruptedException {
+        final EventDelayRecorder recorder = new EventDelayRecorder(MINUTE, 60, 10);
+        recorder.record(START, START); // open the interval before the threads start
+        final int threadCount = 8;
+        final int recordsPerThread = 100000;
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int delayMinutes = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < recordsPerThread; i++) recorder.record(START, START - delayMinutes * MINUTE);
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) thread.join();
+        final EventDelayDistribution distribution = recorder.distribution(START);
+        assertEquals("All delays should be counted", 1L + (threadCount * (long) recordsPerThread), distribution.totalCount);
+        assertEquals("The maximum delay should be from the slowest thread", (threadCount - 1) * MINUTE, distribution.maxMillis);
+    }
+}
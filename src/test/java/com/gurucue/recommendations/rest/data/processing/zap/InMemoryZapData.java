@@ -0,0 +1,157 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Zap processing data held in memory, for replaying zaps without a
+ * database. The code tables are given by the caller, tv-channels and their
+ * schedules are added before the replay, and the produced events are
+ * collected into {@link #emitted}.
+ */
+final class InMemoryZapData implements ZapData {
+    private final DataTypeCodes dataTypeCodes;
+    private final ConsumerEventTypeCodes consumerEventTypeCodes;
+    private final ProductTypeCodes productTypeCodes;
+    private final List<Partner> partners = new ArrayList<>();
+    private final List<TvChannelProduct> tvChannels = new ArrayList<>();
+    private final Map<Long, TreeMap<Long, TvProgrammeProduct>> schedules = new ConcurrentHashMap<>(); // tv-channel ID -> begin time -> tv-programme
+    private final Map<Long, Product> products = new ConcurrentHashMap<>(); // product ID -> tv-channel or tv-programme
+    final List<ConsumerEvent> emitted = Collections.synchronizedList(new ArrayList<ConsumerEvent>());
+    /** Run on every {@link #release()}, to act at that point while zaps are being read. */
+    volatile Runnable onRelease = null;
+    /** Run on every {@link #checkpoint(boolean)} after work, to hold up a processing thread at that point. */
+    volatile Runnable onCheckpoint = null;
+
+    InMemoryZapData(final DataTypeCodes dataTypeCodes, final ConsumerEventTypeCodes consumerEventTypeCodes, final ProductTypeCodes productTypeCodes) {
+        this.dataTypeCodes = dataTypeCodes;
+        this.consumerEventTypeCodes = consumerEventTypeCodes;
+        this.productTypeCodes = productTypeCodes;
+    }
+
+    void addTvChannel(final Partner partner, final TvChannelProduct tvChannel) {
+        partners.add(partner);
+        tvChannels.add(tvChannel);
+        schedules.put(tvChannel.id, new TreeMap<Long, TvProgrammeProduct>());
+        products.put(tvChannel.id, tvChannel);
+    }
+
+    void addTvProgramme(final TvChannelProduct tvChannel, final TvProgrammeProduct tvProgramme) {
+        final TreeMap<Long, TvProgrammeProduct> schedule = schedules.get(tvChannel.id);
+        synchronized (schedule) {
+            schedule.put(tvProgramme.beginTimeMillis, tvProgramme);
+        }
+        products.put(tvProgramme.id, tvProgramme);
+    }
+
+    @Override
+    public DataTypeCodes dataTypeCodes() {
+        return dataTypeCodes;
+    }
+
+    @Override
+    public ConsumerEventTypeCodes consumerEventTypeCodes() {
+        return consumerEventTypeCodes;
+    }
+
+    @Override
+    public ProductTypeCodes productTypeCodes() {
+        return productTypeCodes;
+    }
+
+    @Override
+    public void forEachTvChannel(final BiConsumer<Partner, TvChannelProduct> action) {
+        for (int i = 0; i < tvChannels.size(); i++) action.accept(partners.get(i), tvChannels.get(i));
+    }
+
+    @Override
+    public TvProgrammeProduct tvProgrammeAt(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+        final TreeMap<Long, TvProgrammeProduct> schedule = schedules.get(tvChannel.id);
+        if (schedule == null) return null;
+        synchronized (schedule) {
+            final Map.Entry<Long, TvProgrammeProduct> entry = schedule.floorEntry(millis);
+            if ((entry == null) || (entry.getValue().endTimeMillis <= millis)) return null;
+            return entry.getValue();
+        }
+    }
+
+    @Override
+    public TvProgrammeProduct firstTvProgrammeAfter(final Partner partner, final TvChannelProduct tvChannel, final long millis) {
+        final TreeMap<Long, TvProgrammeProduct> schedule = schedules.get(tvChannel.id);
+        if (schedule == null) return null;
+        synchronized (schedule) {
+            final Map.Entry<Long, TvProgrammeProduct> entry = schedule.higherEntry(millis);
+            return entry == null ? null : entry.getValue();
+        }
+    }
+
+    @Override
+    public List<Partner> partners() {
+        final List<Partner> result = new ArrayList<>();
+        for (final Partner partner : partners) {
+            if (!result.contains(partner)) result.add(partner);
+        }
+        return result;
+    }
+
+    @Override
+    public Product product(final Partner partner, final long id) {
+        return products.get(id);
+    }
+
+    @Override
+    public void emit(final ConsumerEvent event) {
+        emitted.add(event);
+    }
+
+    @Override
+    public void checkpoint(final boolean idle) {
+        // nothing is held between lookups
+        final Runnable action = onCheckpoint;
+        if ((action != null) && !idle) action.run();
+    }
+
+    @Override
+    public void release() {
+        // nothing is held for threads
+        final Runnable action = onRelease;
+        if (action != null) action.run();
+    }
+
+    @Override
+    public void appendStatistics(final StringBuilder output) {
+        // no statistics
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.IntervalAccumulator},
+ * comparing it against Guava's TreeRangeSet of closed ranges, which it replaced.
+ */
+public class IntervalAccumulatorTest extends TestCase {
+    @Test
+    public void testMergesOverlappingAndTouchingIntervals() {
+        final IntervalAccumulator intervals = new IntervalAccumulator();
+        intervals.add(10L, 20L);
+        intervals.add(30L, 40L);
+        intervals.add(20L, 25L); // touches the first
+        assertEquals("There should be 2 intervals", 2, intervals.size());
+        assertEquals("The first interval should be extended", 25L, intervals.upper(0));
+        intervals.add(26L, 29L); // touches neither
+        assertEquals("There should be 3 intervals", 3, intervals.size());
+        intervals.add(0L, 100L); // covers all
+        assertEquals("There should be 1 interval", 1, intervals.size());
+        assertEquals("The lower bound should be 0", 0L, intervals.lower(0));
+        assertEquals("The upper bound should be 100", 100L, intervals.upper(0));
+        assertEquals("The coverage should be 100", 100L, intervals.coverage());
+    }
+
+    @Test
+    public void testRejectsInvertedInterval() {
+        final IntervalAccumulator intervals = new IntervalAccumulator();
+        try {
+            intervals.add(2L, 1L);
+            fail("An inverted interval should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected, the same as Range.closed()
+        }
+    }
+
+    @Test
+    public void testRandomAdditionsMatchTreeRangeSet() {
+        final Random random = new Random(20170901L);
+        for (int round = 0; round < 500; round++) {
+            final IntervalAccumulator intervals = new IntervalAccumulator(1);
+            final RangeSet<Long> expected = TreeRangeSet.create();
+            final int additions = 1 + random.nextInt(200);
+            final int span = 10 + random.nextInt(10000); // small spans make a lot of overlaps
+            for (int i = 0; i < additions; i++) {
+                final long lower = random.nextInt(span);
+                final long upper = lower + (random.nextInt(4) == 0 ? 0 : random.nextInt(span / 10 + 1));
+                intervals.add(lower, upper);
+                expected.add(Range.closed(lower, upper));
+                assertSame(expected, intervals, "round " + round + ", addition " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testAscendingPlaybackMatchesTreeRangeSet() {
+        final Random random = new Random(42L);
+        final IntervalAccumulator intervals = new IntervalAccumulator();
+        final RangeSet<Long> expected = TreeRangeSet.create();
+        long offset = 0L;
+        for (int i = 0; i < 10000; i++) {
+            final long length = random.nextInt(60000);
+            if (random.nextInt(10) == 0) offset += random.nextInt(120000); // skip forward
+            intervals.add(offset, offset + length);
+            expected.add(Range.closed(offset, offset + length));
+            offset += length;
+        }
+        assertSame(expected, intervals, "ascending playback");
+    }
+
+    private static void assertSame(final RangeSet<Long> expected, final IntervalAccumulator actual, final String context) {
+        assertEquals("The number of intervals should match, " + context, expected.asRanges().size(), actual.size());
+        final Iterator<Range<Long>> iterator = expected.asRanges().iterator();
+        long coverage = 0L;
+        for (int i = 0; iterator.hasNext(); i++) {
+            final Range<Long> range = iterator.next();
+            assertEquals("The lower bound should match, " + context, range.lowerEndpoint().longValue(), actual.lower(i));
+            assertEquals("The upper bound should match, " + context, range.upperEndpoint().longValue(), actual.upper(i));
+            coverage += range.upperEndpoint() - range.lowerEndpoint();
+        }
+        assertEquals("The coverage should match, " + context, coverage, actual.coverage());
+    }
+}
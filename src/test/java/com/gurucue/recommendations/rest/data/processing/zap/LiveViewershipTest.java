@@ -0,0 +1,147 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.LiveViewership}:
+ * replays zaps, takes the live viewer counts at every viewership interval,
+ * and checks them against the {@link Viewership} figures generated for the
+ * same moments, which are computed from the collected zaps instead.
+ */
+public class LiveViewershipTest extends TestCase {
+    private static final long T = 1500000000000L - (1500000000000L % 3600000L); // on a whole hour
+    private static final long MINUTE = 60000L;
+    private static final long SECOND = 1000L;
+    private static final long SAMPLE = ZapProcessor.VIEWERSHIP_INTERVAL;
+
+    private ZapFixtures fixtures;
+    private TvChannelProduct first;
+    private TvChannelProduct second;
+    private InMemoryZapData data;
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        first = fixtures.tvChannel(100L, "first");
+        second = fixtures.tvChannel(101L, "second");
+        data = fixtures.newData();
+        data.addTvChannel(fixtures.partner, first);
+        data.addTvChannel(fixtures.partner, second);
+        for (int hour = 0; hour < 24; hour++) {
+            final long begin = T + (hour * 60L * MINUTE);
+            data.addTvProgramme(first, fixtures.tvProgramme(1000L + hour, "first-" + hour, begin, begin + (60L * MINUTE)));
+            data.addTvProgramme(second, fixtures.tvProgramme(2000L + hour, "second-" + hour, begin, begin + (60L * MINUTE)));
+        }
+    }
+
+    /**
+     * Replays the zaps between the given times, and puts the live viewer
+     * counts taken at every viewership interval into the result, as
+     * "tv-channel@time" mapped to the count.
+     */
+    private void replayAndSample(final List<ConsumerEvent> zaps, final long fromMillis, final long untilMillis, final ZapReplay replay, final Map<String, Integer> result) {
+        for (long millis = fromMillis + SAMPLE; millis <= untilMillis; millis += SAMPLE) {
+            for (final ConsumerEvent zap : zaps) {
+                final long zapMillis = zap.getRequestTimestamp().getTime();
+                if ((zapMillis > millis - SAMPLE) && (zapMillis <= millis)) replay.replay(zap);
+            }
+            replay.advanceTo(millis);
+            result.put(first.id + "@" + millis, 0);
+            result.put(second.id + "@" + millis, 0);
+            for (final LiveChannelViewership viewership : replay.processor.liveViewership.snapshot(fixtures.partner.getId(), millis)) {
+                result.put(viewership.tvChannelId + "@" + millis, viewership.viewers);
+            }
+        }
+    }
+
+    /**
+     * Returns the viewer counts of the generated viewership until the given
+     * time, as "tv-channel@time" mapped to the count.
+     */
+    private Map<String, Integer> generated(final long untilMillis) {
+        final Map<String, Integer> result = new TreeMap<>();
+        for (final ConsumerEvent event : ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.viewership)) {
+            final long millis = event.getEventTimestamp().getTime();
+            if ((millis <= T) || (millis > untilMillis)) continue;
+            result.put(event.getProduct().id + "@" + millis, Integer.valueOf(event.getData().get(fixtures.dataTypeCodes.viewerCount), 10));
+        }
+        return result;
+    }
+
+    @Test
+    public void testLiveCountsMatchViewership() {
+        final Consumer consumer = fixtures.consumer(7L);
+        final List<ConsumerEvent> zaps = new ArrayList<>();
+        // tunes in, and stays on the tv-channel from one tv-programme into the next ones until its session expires
+        zaps.add(fixtures.zap(T + (2L * MINUTE) + (17L * SECOND), consumer, "stb-1", first));
+        // tunes in, switches the tv-channel, and switches the box off
+        zaps.add(fixtures.zap(T + (3L * MINUTE) + (17L * SECOND), consumer, "stb-2", first));
+        zaps.add(fixtures.zap(T + (21L * MINUTE) + (17L * SECOND), consumer, "stb-2", second));
+        zaps.add(fixtures.zap(T + (41L * MINUTE) + (17L * SECOND), consumer, "stb-2", null));
+        // zaps back and forth within a viewership interval
+        zaps.add(fixtures.zap(T + (31L * MINUTE) + (17L * SECOND), consumer, "stb-3", second));
+        zaps.add(fixtures.zap(T + (32L * MINUTE) + (17L * SECOND), consumer, "stb-3", first));
+        zaps.add(fixtures.zap(T + (33L * MINUTE) + (17L * SECOND), consumer, "stb-3", second));
+        // stays tuned in while idle until its session expires, and tunes in again after it was evicted
+        zaps.add(fixtures.zap(T + (61L * MINUTE) + (17L * SECOND), consumer, "stb-4", second));
+        zaps.add(fixtures.zap(T + (600L * MINUTE) + (17L * SECOND), consumer, "stb-4", first));
+
+        zaps.sort((a, b) -> a.getRequestTimestamp().compareTo(b.getRequestTimestamp()));
+
+        final long untilMillis = T + (720L * MINUTE);
+        final ZapReplay replay = new ZapReplay(data, T);
+        replay.start();
+        final Map<String, Integer> live = new TreeMap<>();
+        replayAndSample(zaps, T, T + (595L * MINUTE), replay, live);
+        assertEquals("All devices should be evicted after being idle", 0, replay.processor.events.size());
+        replayAndSample(zaps, T + (595L * MINUTE), untilMillis, replay, live);
+        final long delayMillis = replay.processor.bufferingDelayMillis(fixtures.partner);
+        replay.finish(untilMillis + (120L * MINUTE));
+
+        // a session expires when a tv-programme ends 6 hours after the device's last activity, the live counts
+        // learn that when the tv-programme's consumption is generated, one buffering delay after its end
+        final Map<String, Integer> expected = generated(untilMillis);
+        for (final String sample : new String[]{first.id + "@" + (T + (420L * MINUTE)), second.id + "@" + (T + (420L * MINUTE)), second.id + "@" + (T + (480L * MINUTE))}) {
+            assertEquals("The live count should lag the expired session by the buffering delay", Integer.valueOf(expected.get(sample).intValue() + 1), live.remove(sample));
+            expected.remove(sample);
+        }
+        assertEquals("The buffering delay should be one viewership interval", SAMPLE, delayMillis);
+        assertEquals("The live counts should equal the generated viewership", expected, live);
+
+        assertEquals("A device should count as it tunes in", Integer.valueOf(2), live.get(first.id + "@" + (T + (5L * MINUTE))));
+        assertEquals("A device should count on the tv-channel it switched to", Integer.valueOf(2), live.get(second.id + "@" + (T + (35L * MINUTE))));
+        assertEquals("A switched off device should not count", Integer.valueOf(1), live.get(second.id + "@" + (T + (45L * MINUTE))));
+        assertEquals("A device should keep counting in the next tv-programme", Integer.valueOf(1), live.get(first.id + "@" + (T + (125L * MINUTE))));
+        assertEquals("An expired session should not count", Integer.valueOf(0), live.get(first.id + "@" + (T + (425L * MINUTE))));
+        assertEquals("An expired session should not count", Integer.valueOf(1), live.get(second.id + "@" + (T + (425L * MINUTE))));
+        assertEquals("An expired session should not count", Integer.valueOf(0), live.get(second.id + "@" + (T + (485L * MINUTE))));
+        assertEquals("An evicted device should count again when it tunes in", Integer.valueOf(1), live.get(first.id + "@" + (T + (605L * MINUTE))));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.TimingWheel}.
+ */
+public class TimingWheelTest extends TestCase {
+    private static final TimerListener LISTENER = (expiryTime) -> {};
+
+    @Test
+    public void testTimerExpiresAtTheFirstTickAtOrAfterItsTime() {
+        final TimingWheel wheel = new TimingWheel(100L, 8, 1000L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        wheel.schedule(1250L, LISTENER);
+        assertEquals("The timer should not expire before its time", 0, wheel.advance(1200L, expired));
+        assertEquals("The timer should expire at the tick after its time", 1, wheel.advance(1300L, expired));
+        assertEquals("The expired timer should keep its time", 1250L, expired.get(0).millis);
+        assertEquals("The wheel should be empty", 0, wheel.size());
+    }
+
+    @Test
+    public void testTimerInThePastExpiresAtTheNextTick() {
+        final TimingWheel wheel = new TimingWheel(100L, 8, 1000L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        wheel.schedule(500L, LISTENER);
+        assertEquals("The overdue timer should expire at the next tick", 1, wheel.advance(1100L, expired));
+    }
+
+    @Test
+    public void testTimerSeveralRevolutionsAhead() {
+        final TimingWheel wheel = new TimingWheel(100L, 8, 0L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        wheel.schedule(2500L, LISTENER); // 25 ticks ahead in a wheel of 8 slots
+        for (long now = 100L; now < 2500L; now += 100L) {
+            assertEquals("The timer should not expire at " + now, 0, wheel.advance(now, expired));
+        }
+        assertEquals("The timer should expire after three revolutions", 1, wheel.advance(2500L, expired));
+    }
+
+    @Test
+    public void testCancel() {
+        final TimingWheel wheel = new TimingWheel(100L, 8, 0L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        final TimerListener other = (expiryTime) -> {};
+        final TimingWheel.Timeout timeout = wheel.schedule(300L, LISTENER);
+        wheel.schedule(300L, other);
+        wheel.schedule(1100L, LISTENER); // hashes into the same slot
+        assertTrue("The timer should be cancelled by its handle", wheel.cancel(timeout));
+        assertFalse("A cancelled timer cannot be cancelled again", wheel.cancel(timeout));
+        assertTrue("The timer should be cancelled by its time and listener", wheel.cancel(1100L, LISTENER));
+        assertFalse("There is no such timer anymore", wheel.cancel(1100L, LISTENER));
+        assertEquals("Only the other listener's timer should expire", 1, wheel.advance(2000L, expired));
+        assertSame("The other listener's timer should expire", other, expired.get(0).listener);
+    }
+
+    @Test
+    public void testCancelOverdueTimer() {
+        final TimingWheel wheel = new TimingWheel(100L, 8, 1000L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        wheel.schedule(250L, LISTENER); // put into the slot of the next tick, not the one its time hashes to
+        assertTrue("The overdue timer should be found", wheel.cancel(250L, LISTENER));
+        assertEquals("Nothing should expire", 0, wheel.advance(2000L, expired));
+    }
+
+    @Test
+    public void testRandomTimersExpireInTheirTick() {
+        final Random random = new Random(17L);
+        final TimingWheel wheel = new TimingWheel(10L, 64, 0L);
+        final List<TimingWheel.Timeout> expired = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            wheel.schedule(1L + random.nextInt(100000), LISTENER);
+        }
+        int count = 0;
+        for (long now = 0L; now <= 100000L; now += 1L + random.nextInt(50)) {
+            expired.clear();
+            count += wheel.advance(now, expired);
+            for (final TimingWheel.Timeout timeout : expired) {
+                assertTrue("A timer should not expire early: " + timeout.millis + " at " + now, timeout.millis <= now);
+                assertTrue("A timer should not expire late: " + timeout.millis + " at " + now, timeout.millis > now - 60L);
+            }
+        }
+        expired.clear();
+        count += wheel.advance(100010L, expired);
+        assertEquals("All timers should expire", 10000, count);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ViewershipIdCodec}.
+ */
+public class ViewershipIdCodecTest extends TestCase {
+    @Test
+    public void testRoundTripSortsTheIds() {
+        final long[] ids = { 5000000000L, 17L, 0L, 17L, Long.MAX_VALUE, 123456789L };
+        final String encoded = ViewershipIdCodec.encode(ids.clone(), ids.length);
+        assertTrue("The compact form should carry the prefix", encoded.startsWith(ViewershipIdCodec.PREFIX));
+        final long[] expected = ids.clone();
+        Arrays.sort(expected);
+        assertTrue("The decoded IDs should be the sorted input", Arrays.equals(expected, ViewershipIdCodec.decode(encoded)));
+    }
+
+    @Test
+    public void testRoundTripOfRandomIds() {
+        final Random random = new Random(3L);
+        for (int round = 0; round < 100; round++) {
+            final int count = random.nextInt((round % 10) == 0 ? 50000 : 2000); // large lists are sorted differently
+            final long[] ids = new long[count + 10]; // only a prefix is encoded
+            for (int i = 0; i < ids.length; i++) ids[i] = (round % 20) == 0 ? random.nextLong() >>> 1 : 1000000L + random.nextInt(5000000);
+            final String encoded = ViewershipIdCodec.encode(ids, count);
+            final long[] expected = Arrays.copyOf(ids, count);
+            Arrays.sort(expected);
+            assertTrue("Round " + round + " should decode the encoded IDs", Arrays.equals(expected, ViewershipIdCodec.decode(encoded)));
+        }
+    }
+
+    @Test
+    public void testCompactFormIsSmallerThanCommaSeparated() {
+        final long[] ids = new long[10000];
+        final StringBuilder commaSeparated = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 20000000L + (i * 37L);
+            if (i > 0) commaSeparated.append(",");
+            commaSeparated.append(ids[i]);
+        }
+        final String encoded = ViewershipIdCodec.encode(ids, ids.length);
+        assertTrue("The compact form should be at least 3 times smaller: " + encoded.length() + " vs " + commaSeparated.length(), (encoded.length() * 3) < commaSeparated.length());
+    }
+
+    @Test
+    public void testDecodesCommaSeparated() {
+        assertTrue("A comma-separated list should keep its order", Arrays.equals(new long[] { 42L, 7L, 1000000000000L }, ViewershipIdCodec.decode("42,7,1000000000000")));
+        assertEquals("Null should decode to no IDs", 0, ViewershipIdCodec.decode(null).length);
+        assertEquals("An empty string should decode to no IDs", 0, ViewershipIdCodec.decode("").length);
+        assertEquals("An empty compact list should decode to no IDs", 0, ViewershipIdCodec.decode(ViewershipIdCodec.encode(new long[0], 0)).length);
+    }
+
+    @Test
+    public void testMalformedInputIsRejected() {
+        final String encoded = ViewershipIdCodec.encode(new long[] { 1L, 300L, 70000L }, 3);
+        try {
+            ViewershipIdCodec.decode(ViewershipIdCodec.PREFIX + "gA"); // a count with its continuation bit set and nothing after it
+            fail("A truncated list should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ViewershipIdCodec.decode(encoded + "AA");
+            fail("Trailing data should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ViewershipIdCodec.decode("1,x,3");
+            fail("A comma-separated list with a non-number should be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ViewershipStore}.
+ */
+public class ViewershipStoreTest extends TestCase {
+    private static final long DAY = ViewershipStore.DAY_MILLIS;
+    private static final long HOUR = ViewershipStore.HOUR_MILLIS;
+    private static final long SAMPLE = ZapProcessor.VIEWERSHIP_INTERVAL;
+    private static final long START = 20000L * DAY; // midnight
+
+    private File directory;
+    private ViewershipStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("viewership-store-test").toFile();
+        store = new ViewershipStore(directory, 2, 5);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        final File[] files = directory.listFiles();
+        if (files != null) for (final File file : files) file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Appends an hour of samples starting at the given time: partner 1 has
+     * tv-channel 10 with i viewers in the i-th sample and tv-channel 11 with
+     * 100 viewers, partner 2 has tv-channel 20 with 7 viewers.
+     */
+    private void appendHour(final long startMillis) throws IOException {
+        for (int i = 0; i < 12; i++) {
+            final ViewershipStore.Rows rows = new ViewershipStore.Rows(3);
+            rows.add(1L, 10L, 500L + (i / 6), i, i); // the tv-programme changes at half past
+            rows.add(1L, 11L, 0L, 100, 100);
+            rows.add(2L, 20L, 700L, 7, 7);
+            store.append(startMillis + (i * SAMPLE), rows);
+        }
+    }
+
+    @Test
+    public void testQueryAtSampleResolution() throws IOException {
+        appendHour(START);
+        final List<ViewershipSeries> series = store.query(1L, 0L, START, START + HOUR, SAMPLE);
+        assertEquals("There should be a series per tv-channel and tv-programme of partner 1", 3, series.size());
+        final ViewershipSeries first = series.get(0);
+        assertEquals("Series should be ordered by tv-channel", 10L, first.tvChannelId);
+        assertEquals("Series should be ordered by tv-programme", 500L, first.tvProgrammeId);
+        assertEquals("The first tv-programme should have 6 samples", 6, first.timestampsMillis.length);
+        assertEquals("The third sample should have 2 viewers", 2, first.viewers[2]);
+        assertEquals("The third sample should be at its time", START + (2 * SAMPLE), first.timestampsMillis[2]);
+        assertEquals("The second tv-programme should follow", 501L, series.get(1).tvProgrammeId);
+        assertEquals("The tv-channel without a tv-programme should be last", 11L, series.get(2).tvChannelId);
+    }
+
+    @Test
+    public void testQueryDownsamplesAndFilters() throws IOException {
+        appendHour(START);
+        final List<ViewershipSeries> series = store.query(1L, 11L, START, START + HOUR, HOUR);
+        assertEquals("Only the requested tv-channel should be returned", 1, series.size());
+        assertEquals("An hour step should have one point", 1, series.get(0).timestampsMillis.length);
+        assertEquals("The average should be constant", 100, series.get(0).viewers[0]);
+        final List<ViewershipSeries> programme = store.query(1L, 10L, START, START + HOUR, HOUR);
+        assertEquals("The second tv-programme should average 6 to 11 viewers", 9, programme.get(1).viewers[0]); // 8.5 rounded up
+        assertEquals("The second tv-programme should peak at 11 viewers", 11, programme.get(1).peakViewers[0]);
+        assertTrue("Another partner's tv-channels should not be returned", store.query(3L, 0L, START, START + HOUR, HOUR).isEmpty());
+        assertTrue("A range without samples should be empty", store.query(1L, 0L, START + DAY, START + DAY + HOUR, HOUR).isEmpty());
+    }
+
+    @Test
+    public void testOldDaysAreDownsampledAndExpired() throws IOException {
+        appendHour(START);
+        appendHour(START + DAY);
+        appendHour(START + (3L * DAY)); // the first day passed the raw retention of 2 days
+        assertFalse("The raw file of the first day should be gone", new File(directory, "viewership-raw-" + java.time.LocalDate.ofEpochDay(20000L).format(java.time.format.DateTimeFormatter.BASIC_ISO_DATE) + ".col").exists());
+        final List<ViewershipSeries> hourly = store.query(1L, 10L, START, START + HOUR, SAMPLE);
+        assertEquals("The downsampled day should have a series per tv-programme", 2, hourly.size());
+        assertEquals("The downsampled day should have one point per hour", 1, hourly.get(0).timestampsMillis.length);
+        assertEquals("The hourly average should be kept", 3, hourly.get(0).viewers[0]); // 0 to 5 averages to 2.5, rounded up
+        assertEquals("The hourly peak should be kept", 5, hourly.get(0).peakViewers[0]);
+        assertEquals("The other partner should be downsampled too", 7, store.query(2L, 0L, START, START + HOUR, HOUR).get(0).viewers[0]);
+        assertEquals("The second day should still have samples", 6, store.query(1L, 10L, START + DAY, START + DAY + HOUR, SAMPLE).get(0).timestampsMillis.length);
+        appendHour(START + (6L * DAY)); // the first day passed the retention of 5 days
+        assertTrue("The expired day should be gone", store.query(1L, 0L, START, START + DAY, HOUR).isEmpty());
+    }
+
+    @Test
+    public void testIncompleteBlockIsIgnored() throws IOException {
+        appendHour(START);
+        store.close();
+        final File raw = directory.listFiles()[0];
+        try (final FileOutputStream out = new FileOutputStream(raw, true)) {
+            out.write(new byte[] { 0x56, 0x57, 0x42, 0x53, 0, 0, 0 }); // a block cut short while being written
+        }
+        assertEquals("The complete blocks should be read", 3, store.query(1L, 0L, START, START + HOUR, SAMPLE).size());
+    }
+
+    @Test
+    public void testAppendAfterTornBlock() throws IOException {
+        appendHour(START);
+        store.close();
+        final File raw = directory.listFiles()[0];
+        final long length = raw.length();
+        try (final FileChannel channel = FileChannel.open(raw.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length - 10L); // the last block was cut short by a crash
+        }
+        appendHour(START + HOUR); // appending after a restart
+        final List<ViewershipSeries> series = store.query(1L, 11L, START, START + (2L * HOUR), SAMPLE);
+        assertEquals("The blocks appended after the torn one should be read", 23, series.get(0).timestampsMillis.length); // the torn sample is lost
+        assertEquals("The torn block should be removed, the file should hold whole blocks", (length * 2L) - (length / 12L), raw.length());
+    }
+}
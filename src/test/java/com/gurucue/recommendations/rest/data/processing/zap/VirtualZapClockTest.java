@@ -0,0 +1,82 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.TimerListener;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.VirtualZapClock}.
+ */
+public class VirtualZapClockTest extends TestCase {
+    @Test
+    public void testTimersFireInOrderWithTheClockAtTheirTime() {
+        final VirtualZapClock clock = new VirtualZapClock(1000L);
+        final List<Long> fired = new ArrayList<>();
+        final TimerListener listener = (expiryTime) -> {
+            assertEquals("The clock should show the timer's time", expiryTime, clock.currentTimeMillis());
+            fired.add(expiryTime);
+        };
+        clock.schedule(3000L, listener);
+        clock.schedule(2000L, listener);
+        clock.schedule(5000L, listener);
+        assertEquals("Two timers should fire", 2, clock.advanceTo(4000L));
+        assertEquals("The earlier timer should fire first", Long.valueOf(2000L), fired.get(0));
+        assertEquals("The later timer should fire second", Long.valueOf(3000L), fired.get(1));
+        assertEquals("The clock should be at the target time", 4000L, clock.currentTimeMillis());
+        assertEquals("One timer should remain", 1, clock.pendingTimers());
+    }
+
+    @Test
+    public void testTimerScheduledByTimerFiresInTheSameAdvance() {
+        final VirtualZapClock clock = new VirtualZapClock(0L);
+        final List<Long> fired = new ArrayList<>();
+        clock.schedule(100L, new TimerListener() {
+            @Override
+            public void onTimerExpired(final long expiryTime) {
+                fired.add(expiryTime);
+                if (expiryTime < 300L) clock.schedule(expiryTime + 100L, this); // a periodic timer
+            }
+        });
+        assertEquals("The periodic timer should fire three times", 3, clock.advanceTo(350L));
+        assertEquals("The last firing should be at 300", Long.valueOf(300L), fired.get(2));
+    }
+
+    @Test
+    public void testUnscheduledTimerDoesNotFire() {
+        final VirtualZapClock clock = new VirtualZapClock(0L);
+        final List<Long> fired = new ArrayList<>();
+        final TimerListener listener = (expiryTime) -> fired.add(expiryTime);
+        clock.schedule(100L, listener);
+        clock.unschedule(100L, listener);
+        assertEquals("No timer should fire", 0, clock.advanceTo(200L));
+        assertTrue("Nothing should have fired", fired.isEmpty());
+    }
+
+    @Test
+    public void testTimeNeverMovesBackward() {
+        final VirtualZapClock clock = new VirtualZapClock(1000L);
+        clock.advanceTo(500L);
+        assertEquals("The clock should stay put", 1000L, clock.currentTimeMillis());
+    }
+}
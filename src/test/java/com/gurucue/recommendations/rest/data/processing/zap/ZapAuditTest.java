@@ -0,0 +1,114 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapAudit}.
+ */
+public class ZapAuditTest extends TestCase {
+    private static final long T = 1500000000000L;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("zap-audit-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = directory.listFiles();
+        if (files != null) for (final File file : files) file.delete();
+        directory.delete();
+    }
+
+    private String decode(final File segment, final String deviceId, final int expectedCount) throws IOException {
+        final StringWriter text = new StringWriter();
+        final PrintWriter out = new PrintWriter(text);
+        assertEquals("Unexpected number of decoded decisions", expectedCount, ZapAudit.decode(segment, deviceId, out));
+        out.flush();
+        return text.toString();
+    }
+
+    @Test
+    public void testDecodesDecisionsOfDevice() throws IOException {
+        final ZapAudit audit = new ZapAudit(directory, 1048576L, 4);
+        audit.open();
+        audit.zap(1, "stb-1", null, T, null);
+        audit.zap(2, "stb-2", null, T + 1000L, null);
+        audit.watched(1, "stb-1", null, 77L, T, T + 60000L);
+        audit.watched(2, "stb-2", null, 77L, T + 1000L, null);
+        audit.productConsumption(1, "stb-1", null, 88L, T + 120000L);
+        audit.close();
+        assertEquals("Five decisions should be recorded", 5L, audit.recordCount());
+
+        final long[] segments = ZapAudit.segments(directory);
+        assertEquals("There should be one segment", 1, segments.length);
+        final File segment = ZapAudit.segmentFile(directory, segments[0]);
+        decode(segment, null, 7); // with the two devices
+        final String text = decode(segment, "stb-1", 4);
+        assertTrue("The device should be described", text.contains("device stb-1 of consumer -1"));
+        assertTrue("The watch interval should be decoded", text.contains("stb-1: tv-programme 77 watched from 2017-07-14T02:40:00Z to 2017-07-14T02:41:00Z"));
+        assertTrue("The consumption should be decoded", text.contains("stb-1: consumption of product 88 at 2017-07-14T02:42:00Z"));
+        assertFalse("Other devices should be left out", text.contains("stb-2"));
+    }
+
+    @Test
+    public void testNewSegmentRecordsDevicesAgain() throws IOException {
+        final ZapAudit audit = new ZapAudit(directory, 10L, 2);
+        audit.open();
+        for (int i = 0; i < 3; i++) {
+            audit.productHistory(1, "stb-1", null, 88L, 2, i, 0);
+            audit.flush(); // over the segment size, so the next record goes into a new segment
+        }
+        audit.close();
+
+        final long[] segments = ZapAudit.segments(directory);
+        assertEquals("Only the newest segments should be kept", 2, segments.length);
+        final String text = decode(ZapAudit.segmentFile(directory, segments[0]), "stb-1", 2);
+        assertTrue("A segment should describe its devices", text.contains("device stb-1"));
+        assertTrue("The history should be decoded", text.contains("stb-1: product 88 (path #2): 2 zaps spent, 0 remaining"));
+    }
+
+    @Test
+    public void testTornRecordEndsSegment() throws IOException {
+        final ZapAudit audit = new ZapAudit(directory, 1048576L, 4);
+        audit.open();
+        audit.zap(1, "stb-1", null, T, null);
+        audit.zap(1, "stb-1", null, T + 1000L, null);
+        audit.close();
+
+        final File segment = ZapAudit.segmentFile(directory, ZapAudit.segments(directory)[0]);
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3L);
+        }
+        final String text = decode(segment, null, 2);
+        assertTrue("The incomplete record should be reported", text.contains("ends with an incomplete record"));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapChannel}:
+ * appends zaps with a writer, or writes segments directly, and checks the
+ * zaps a reader hands over.
+ */
+public class ZapChannelTest extends TestCase {
+    private static final long T = 1500000000000L;
+
+    private File directory;
+    private ZapFixtures fixtures;
+    private InMemoryZapData data;
+    private TvChannelProduct tvChannel;
+    private Consumer consumer;
+    private final List<ConsumerEvent> received = Collections.synchronizedList(new ArrayList<ConsumerEvent>());
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("zap-channel-test").toFile();
+        fixtures = new ZapFixtures();
+        data = fixtures.newData();
+        tvChannel = fixtures.tvChannel(100L, "first");
+        data.addTvChannel(fixtures.partner, tvChannel);
+        consumer = fixtures.consumer(7L);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = directory.listFiles();
+        if (files != null) for (final File file : files) file.delete();
+        directory.delete();
+    }
+
+    private ConsumerEvent zap(final int i) {
+        return fixtures.zap(T + (i * 1000L), consumer, "stb-1", tvChannel);
+    }
+
+    private ZapChannel.Reader newReader() {
+        return new ZapChannel.Reader(directory, data, received::add);
+    }
+
+    private void append(final ZapChannel.Writer writer, final int from, final int to) {
+        for (int i = from; i < to; i++) writer.append(zap(i));
+    }
+
+    /**
+     * Encodes a zap as a record of a segment, with its length and CRC-32.
+     */
+    private byte[] record(final int i) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new ZapSnapshot.Writer(new DataOutputStream(payload)).writeEvent(zap(i));
+        final byte[] bytes = payload.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        return record.toByteArray();
+    }
+
+    private void write(final long sequence, final byte[]... parts) throws IOException {
+        try (final FileOutputStream out = new FileOutputStream(ZapChannel.segmentFile(directory, sequence), true)) {
+            for (final byte[] part : parts) out.write(part);
+        }
+    }
+
+    /**
+     * Waits for the reader to hand over the given number of zaps in total.
+     */
+    private void awaitReceived(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ((received.size() < count) && (System.currentTimeMillis() < deadline)) Thread.sleep(10L);
+        assertEquals("The reader should hand over all zaps", count, received.size());
+    }
+
+    private void assertReceived(final int... expected) {
+        final long[] times = new long[received.size()];
+        for (int i = 0; i < times.length; i++) times[i] = received.get(i).getEventTimestamp().getTime();
+        final long[] expectedTimes = new long[expected.length];
+        for (int i = 0; i < expected.length; i++) expectedTimes[i] = T + (expected[i] * 1000L);
+        assertEquals("Zaps should be handed over in the order they were appended", Arrays.toString(expectedTimes), Arrays.toString(times));
+    }
+
+    private static int[] range(final int from, final int to) {
+        final int[] result = new int[to - from];
+        for (int i = from; i < to; i++) result[i - from] = i;
+        return result;
+    }
+
+    @Test
+    public void testAppendedZapsAreReadInOrderAcrossSegments() throws Exception {
+        final ZapChannel.Writer writer = new ZapChannel.Writer(directory, 4096L, 10L);
+        writer.open();
+        append(writer, 0, 500);
+        writer.close();
+        assertTrue("Small segments should rotate", ZapChannel.segments(directory).length > 1);
+
+        final ZapChannel.Reader reader = newReader();
+        reader.start();
+        awaitReceived(500);
+        Thread.sleep(300L); // to move past the read segments
+        reader.stop();
+        assertReceived(range(0, 500));
+        assertSame("Products should be resolved through the data", tvChannel, received.get(0).getProduct());
+        assertEquals("Read segments should be deleted, except the last one", 1, ZapChannel.segments(directory).length);
+        assertEquals("Nothing should be skipped", 0L, reader.status().failureCount);
+    }
+
+    @Test
+    public void testReaderResumesAtCheckpoint() throws Exception {
+        ZapChannel.Writer writer = new ZapChannel.Writer(directory, 4096L, 10L);
+        writer.open();
+        append(writer, 0, 100);
+        writer.close();
+        ZapChannel.Reader reader = newReader();
+        reader.start();
+        awaitReceived(100);
+        reader.stop();
+
+        writer = new ZapChannel.Writer(directory, 4096L, 10L);
+        writer.open();
+        append(writer, 100, 150);
+        writer.close();
+        received.clear();
+        reader = newReader();
+        reader.start();
+        awaitReceived(50);
+        Thread.sleep(300L); // nothing more should come
+        reader.stop();
+        assertReceived(range(100, 150));
+    }
+
+    @Test
+    public void testDamagedRecordIsSkipped() throws Exception {
+        final byte[] damaged = record(1);
+        damaged[damaged.length - 1] ^= 0x55; // fails the CRC-32
+        write(1L, record(0), damaged, record(2));
+        write(2L, record(3));
+        final ZapChannel.Reader reader = newReader();
+        reader.start();
+        awaitReceived(2);
+        reader.stop();
+        assertReceived(0, 3);
+        assertEquals("The damaged record should be counted", 1L, reader.status().failureCount);
+    }
+
+    @Test
+    public void testTornRecordIsSkipped() throws Exception {
+        final byte[] torn = record(1);
+        write(1L, record(0), Arrays.copyOf(torn, torn.length / 2));
+        write(2L, record(2));
+        final ZapChannel.Reader reader = newReader();
+        reader.start();
+        awaitReceived(2);
+        reader.stop();
+        assertReceived(0, 2);
+        assertEquals("The torn record should be counted", 1L, reader.status().failureCount);
+    }
+
+    @Test
+    public void testRecordCompletedWhileRotatingIsRead() throws Exception {
+        // the writer flushes the rest of a record and starts a new segment just after
+        // the reader found the record incomplete, and before it looks for a later segment
+        final byte[] split = record(1);
+        final int half = split.length / 2;
+        write(1L, record(0), Arrays.copyOf(split, half));
+        data.onRelease = () -> {
+            if (received.size() != 1) return;
+            data.onRelease = null;
+            try {
+                write(1L, Arrays.copyOfRange(split, half, split.length));
+                write(2L, record(2));
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        final ZapChannel.Reader reader = newReader();
+        reader.start();
+        awaitReceived(3);
+        reader.stop();
+        assertReceived(0, 1, 2);
+        assertEquals("Nothing should be skipped", 0L, reader.status().failureCount);
+    }
+
+    @Test
+    public void testSecondWriterAndReaderAreRejected() throws Exception {
+        final ZapChannel.Writer writer = new ZapChannel.Writer(directory, 4096L, 10L);
+        writer.open();
+        try {
+            new ZapChannel.Writer(directory, 4096L, 10L).open();
+            fail("A second writer should be rejected");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        finally {
+            writer.close();
+        }
+        final ZapChannel.Reader reader = newReader();
+        reader.start();
+        try {
+            newReader().start();
+            fail("A second reader should be rejected");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        finally {
+            reader.stop();
+        }
+    }
+}
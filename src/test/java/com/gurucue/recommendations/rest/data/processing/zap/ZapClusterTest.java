@@ -0,0 +1,209 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapCluster}:
+ * a node "a" shares zap processing with a node "b", whose interface is
+ * served by an HTTP server within the test and passes the forwarded
+ * batches to b's {@link ZapCluster#receive(InputStream)}. The zaps each
+ * node processes are counted in the queue of its zap processor, which has
+ * no processing threads.
+ */
+public class ZapClusterTest extends TestCase {
+    private static final long T = 1500000000000L;
+    private static final String SECRET = "s3cret";
+    private static final int PARTITION_COUNT = 16;
+
+    private ZapFixtures fixtures;
+    private TvChannelProduct tvChannel;
+    private Consumer consumer;
+    private HttpServer server;
+    private volatile boolean failForwards = false;
+    private String nodeA;
+    private String nodeB;
+    private ZapReplay replayA;
+    private ZapReplay replayB;
+    private ZapCluster clusterA;
+    private ZapCluster clusterB;
+    private final List<String> devicesOfA = new ArrayList<>();
+    private final List<String> devicesOfB = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        tvChannel = fixtures.tvChannel(100L, "first");
+        consumer = fixtures.consumer(7L);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/b/rest/zap-cluster", this::serveB);
+        server.start();
+        nodeA = "http://127.0.0.1:1/a"; // never called
+        nodeB = "http://127.0.0.1:" + server.getAddress().getPort() + "/b";
+        final List<String> nodes = Arrays.asList(nodeA, nodeB);
+        replayA = newReplay();
+        replayB = newReplay();
+        clusterA = new ZapCluster(replayA.processor, nodeA, nodes, PARTITION_COUNT, 3600000L, 1000, SECRET);
+        clusterB = new ZapCluster(replayB.processor, nodeB, nodes, PARTITION_COUNT, 3600000L, 1000, SECRET); // not started, processes whatever it receives
+        final ZapPartitioner partitioner = new ZapPartitioner(nodes, PARTITION_COUNT);
+        for (int i = 0; (devicesOfA.size() < 3) || (devicesOfB.size() < 3); i++) {
+            final String device = "stb-" + i;
+            (nodeB.equals(partitioner.ownerOf(device)) ? devicesOfB : devicesOfA).add(device);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clusterA.stop();
+        server.stop(0);
+        replayA.processor.stop();
+        replayB.processor.stop();
+    }
+
+    private ZapReplay newReplay() {
+        final InMemoryZapData data = fixtures.newData();
+        data.addTvChannel(fixtures.partner, tvChannel);
+        final ZapReplay replay = new ZapReplay(data, T);
+        replay.start();
+        return replay;
+    }
+
+    private void serveB(final HttpExchange exchange) throws IOException {
+        int status = 200;
+        if (!clusterB.authorizes(exchange.getRequestHeaders().getFirst(ZapCluster.SECRET_HEADER))) status = 403;
+        else if (exchange.getRequestURI().getPath().endsWith("/zaps")) {
+            if (failForwards) status = 500;
+            else {
+                try (final InputStream in = exchange.getRequestBody()) {
+                    clusterB.receive(in);
+                }
+            }
+        }
+        exchange.sendResponseHeaders(status, -1L);
+        exchange.close();
+    }
+
+    private ConsumerEvent zap(final String device) {
+        return fixtures.zap(T, consumer, device, tvChannel);
+    }
+
+    private static int queued(final ZapReplay replay) {
+        return replay.processor.status(null, null).queueSize;
+    }
+
+    /**
+     * Waits for the zap processor of the given node to have the given
+     * number of zaps queued.
+     */
+    private static void awaitQueued(final ZapReplay replay, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ((queued(replay) < count) && (System.currentTimeMillis() < deadline)) Thread.sleep(10L);
+        assertEquals("Unexpected number of zaps processed by the node", count, queued(replay));
+    }
+
+    private byte[] batch(final String device, final int hops) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        clusterA.writeBatch(Collections.singletonList(new ZapCluster.Forward(zap(device), hops)), bytes);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testZapsAreForwardedToTheOwner() throws Exception {
+        clusterA.start();
+        assertEquals("Both nodes should be members", nodeA + "," + nodeB, clusterA.status().members);
+        for (final String device : devicesOfA) clusterA.submit(zap(device));
+        for (final String device : devicesOfB) clusterA.submit(zap(device));
+        awaitQueued(replayB, devicesOfB.size());
+        assertEquals("The zaps of its own devices should stay with the node", devicesOfA.size(), queued(replayA));
+        assertEquals("The zaps of the other node's devices should be received by it", (long) devicesOfB.size(), clusterB.status().receivedZaps);
+    }
+
+    @Test
+    public void testReceivedBatchIsRouted() throws Exception {
+        clusterA.start();
+        assertEquals("A batch should be read entirely", 1, clusterA.receive(new ByteArrayInputStream(batch(devicesOfA.get(0), 0))));
+        assertEquals("A zap of an own device should be processed", 1, queued(replayA));
+        clusterA.receive(new ByteArrayInputStream(batch(devicesOfB.get(0), 0)));
+        awaitQueued(replayB, 1);
+        assertEquals("A zap of another node's device should be forwarded", 1, queued(replayA));
+    }
+
+    @Test
+    public void testZapForwardedTooOftenIsProcessedLocally() throws Exception {
+        clusterA.start();
+        clusterA.receive(new ByteArrayInputStream(batch(devicesOfB.get(0), ZapCluster.MAX_HOPS - 1)));
+        assertEquals("A zap at the hop limit should be processed by the node that has it", 1, queued(replayA));
+        Thread.sleep(200L);
+        assertEquals("A zap at the hop limit should not be forwarded", 0, queued(replayB));
+    }
+
+    @Test
+    public void testFailedForwardIsRoutedAnew() throws Exception {
+        clusterA.start();
+        failForwards = true;
+        for (final String device : devicesOfB) clusterA.submit(zap(device));
+        awaitQueued(replayA, devicesOfB.size());
+        assertEquals("The node that failed should be gone", nodeA, clusterA.status().members);
+        assertEquals("Nothing should reach the node that failed", 0, queued(replayB));
+    }
+
+    @Test
+    public void testInvalidBatchIsRejected() throws Exception {
+        try {
+            clusterA.receive(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+            fail("An invalid batch should be rejected");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertEquals("Nothing should be processed", 0, queued(replayA));
+    }
+
+    @Test
+    public void testSecretIsRequired() throws Exception {
+        assertTrue("The shared secret should be accepted", clusterA.authorizes(SECRET));
+        assertFalse("A wrong secret should be refused", clusterA.authorizes("secret"));
+        assertFalse("A missing secret should be refused", clusterA.authorizes(null));
+        final ZapCluster stranger = new ZapCluster(replayA.processor, nodeA, Arrays.asList(nodeA, nodeB), PARTITION_COUNT, 3600000L, 1000, "other");
+        stranger.start();
+        try {
+            assertEquals("A node with another secret should not join", nodeA, stranger.status().members);
+        }
+        finally {
+            stranger.stop();
+        }
+    }
+}
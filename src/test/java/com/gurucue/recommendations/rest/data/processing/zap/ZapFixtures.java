@@ -0,0 +1,143 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.ConsumerEventTypeCodes;
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.data.ProductTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.ConsumerEventType;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.Partner;
+import com.gurucue.recommendations.entity.ProductType;
+import com.gurucue.recommendations.entity.product.Product;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import com.gurucue.recommendations.entity.value.AttributeValues;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entities and code tables for tests and benchmarks that run zaps through
+ * a zap processor with {@link InMemoryZapData}, instead of loading them
+ * from a database.
+ */
+final class ZapFixtures {
+    static final String[] DATA_TYPES = {
+            "device-id", "device-type", "status", "action", "speed", "watch-offset", "origin", "origin-wait",
+            "origin-id", "origin-code", "tv-channel-id", "zap-count", "zap-offset", "watch-duration",
+            "watch-percentage", "content-duration", "viewer-count", "tv-programme-id", "consumer-id-list", "zap-id-list"
+    };
+    static final String[] CONSUMER_EVENT_TYPES = { "zap", "consumption", "livetv-consumption", "viewership" };
+    static final String[] PRODUCT_TYPES = { "tv-channel", "tv-programme", "video" };
+
+    final DataTypeCodes dataTypeCodes;
+    final ConsumerEventTypeCodes consumerEventTypeCodes;
+    final ProductTypeCodes productTypeCodes;
+    final Partner partner;
+
+    ZapFixtures() {
+        final List<DataType> dataTypes = new ArrayList<>(DATA_TYPES.length);
+        for (int i = 0; i < DATA_TYPES.length; i++) dataTypes.add(new DataType((long) (i + 1), DATA_TYPES[i]));
+        dataTypeCodes = new DataTypeCodes(dataTypes);
+        final List<ConsumerEventType> consumerEventTypes = new ArrayList<>(CONSUMER_EVENT_TYPES.length);
+        for (int i = 0; i < CONSUMER_EVENT_TYPES.length; i++) consumerEventTypes.add(new ConsumerEventType((long) (i + 1), CONSUMER_EVENT_TYPES[i]));
+        consumerEventTypeCodes = new ConsumerEventTypeCodes(consumerEventTypes);
+        final List<ProductType> productTypes = new ArrayList<>(PRODUCT_TYPES.length);
+        for (int i = 0; i < PRODUCT_TYPES.length; i++) productTypes.add(new ProductType((long) (i + 1), PRODUCT_TYPES[i]));
+        productTypeCodes = new ProductTypeCodes(productTypes);
+        partner = new Partner(6L, "test", "test");
+    }
+
+    InMemoryZapData newData() {
+        return new InMemoryZapData(dataTypeCodes, consumerEventTypeCodes, productTypeCodes);
+    }
+
+    TvChannelProduct tvChannel(final long id, final String code) {
+        return new TvChannelProduct(id, productTypeCodes.idForTvChannel, partner.getId(), code, null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES);
+    }
+
+    TvProgrammeProduct tvProgramme(final long id, final String code, final long beginTimeMillis, final long endTimeMillis) {
+        return new TvProgrammeProduct(id, productTypeCodes.idForTvProgramme, partner.getId(), code, null, null, null, AttributeValues.NO_VALUES, AttributeValues.NO_VALUES, beginTimeMillis, endTimeMillis);
+    }
+
+    Consumer consumer(final long id) {
+        return new Consumer(id, "consumer-" + id, partner, null);
+    }
+
+    /**
+     * Creates a zap delivered at the moment it happened.
+     *
+     * @param millis the time of the zap
+     * @param consumer who zapped
+     * @param deviceId the device on which the zap happened
+     * @param product what was zapped to, null for a device status change
+     * @return the zap
+     */
+    ConsumerEvent zap(final long millis, final Consumer consumer, final String deviceId, final Product product) {
+        final Map<DataType, String> data = new HashMap<>();
+        data.put(dataTypeCodes.deviceId, deviceId);
+        final Timestamp timestamp = new Timestamp(millis);
+        final ConsumerEvent event = new ConsumerEvent(null, timestamp, partner, product, consumer, consumerEventTypeCodes.zap, data, null);
+        event.setRequestTimestamp(timestamp);
+        return event;
+    }
+
+    /**
+     * Creates a zap that starts playing a catch-up or VoD product from the
+     * given offset, delivered at the moment it happened.
+     *
+     * @param millis the time of the zap
+     * @param consumer who zapped
+     * @param deviceId the device on which the zap happened
+     * @param product what is played
+     * @param watchOffsetSeconds where in the product the playout starts
+     * @return the zap
+     */
+    ConsumerEvent play(final long millis, final Consumer consumer, final String deviceId, final Product product, final long watchOffsetSeconds) {
+        final ConsumerEvent event = zap(millis, consumer, deviceId, product);
+        event.getData().put(dataTypeCodes.action, "play");
+        event.getData().put(dataTypeCodes.speed, "1");
+        event.getData().put(dataTypeCodes.watchOffset, Long.toString(watchOffsetSeconds, 10));
+        return event;
+    }
+
+    /**
+     * Returns the emitted events of the given type, in the order of their
+     * emission.
+     *
+     * @param data the data the events were emitted to
+     * @param eventType the type of the events to return
+     * @return the events
+     */
+    static List<ConsumerEvent> emitted(final InMemoryZapData data, final ConsumerEventType eventType) {
+        final List<ConsumerEvent> result = new ArrayList<>();
+        synchronized (data.emitted) {
+            for (final ConsumerEvent event : data.emitted) {
+                if (event.getEventType() == eventType) result.add(event);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapPartitioner}.
+ */
+public class ZapPartitionerTest extends TestCase {
+    private static final int PARTITIONS = 1024;
+
+    @Test
+    public void testAssignmentDoesNotDependOnNodeOrder() {
+        final ZapPartitioner a = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n2:8080", "http://n3:8080"), PARTITIONS);
+        final ZapPartitioner b = new ZapPartitioner(Arrays.asList("http://n3:8080", "http://n1:8080", "http://n2:8080"), PARTITIONS);
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            assertEquals("Partition " + partition + " should have the same owner on all nodes", a.ownerOf(partition), b.ownerOf(partition));
+        }
+        for (int i = 0; i < 1000; i++) {
+            final String key = "device-" + i;
+            final int partition = a.partitionOf(key);
+            assertTrue("The partition should be in range", (partition >= 0) && (partition < PARTITIONS));
+            assertEquals("A device should always be in the same partition", partition, b.partitionOf(key));
+        }
+    }
+
+    @Test
+    public void testSpreadsPartitionsEvenly() {
+        final ZapPartitioner partitioner = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n2:8080", "http://n3:8080", "http://n4:8080"), PARTITIONS);
+        int total = 0;
+        for (final String node : partitioner.nodes()) {
+            final int owned = partitioner.ownedCount(node);
+            assertTrue(node + " should own roughly a quarter of the partitions, but owns " + owned, (owned > PARTITIONS / 8) && (owned < (PARTITIONS * 3) / 8));
+            total += owned;
+        }
+        assertEquals("Every partition should have an owner", PARTITIONS, total);
+        final int[] devices = new int[PARTITIONS];
+        for (int i = 0; i < 100000; i++) devices[partitioner.partitionOf("device-" + i)]++;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            assertTrue("Partition " + partition + " should get devices", devices[partition] > 0);
+        }
+    }
+
+    @Test
+    public void testJoiningNodeTakesOverOnlyPartitionsItOwns() {
+        final ZapPartitioner before = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n2:8080", "http://n3:8080"), PARTITIONS);
+        final ZapPartitioner after = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n2:8080", "http://n3:8080", "http://n4:8080"), PARTITIONS);
+        int moved = 0;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (before.ownerOf(partition).equals(after.ownerOf(partition))) continue;
+            assertEquals("A partition should move only to the joining node", "http://n4:8080", after.ownerOf(partition));
+            moved++;
+        }
+        assertEquals("All partitions of the joining node should have moved", after.ownedCount("http://n4:8080"), moved);
+        int lost = 0;
+        for (final String node : before.nodes()) lost += before.lostCount(node, after);
+        assertEquals("The partitions given up should be the partitions moved", moved, lost);
+    }
+
+    @Test
+    public void testLeavingNodeGivesUpOnlyItsPartitions() {
+        final ZapPartitioner before = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n2:8080", "http://n3:8080"), PARTITIONS);
+        final ZapPartitioner after = new ZapPartitioner(Arrays.asList("http://n1:8080", "http://n3:8080"), PARTITIONS);
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if ("http://n2:8080".equals(before.ownerOf(partition))) continue;
+            assertEquals("A partition of a remaining node should stay with it", before.ownerOf(partition), after.ownerOf(partition));
+        }
+        assertEquals("The leaving node should give up all its partitions", before.ownedCount("http://n2:8080"), before.lostCount("http://n2:8080", after));
+        assertEquals("The remaining nodes should not give up any partitions", 0, before.lostCount("http://n1:8080", after) + before.lostCount("http://n3:8080", after));
+    }
+
+    @Test
+    public void testNoNodesOwnNothing() {
+        final ZapPartitioner partitioner = new ZapPartitioner(Collections.<String>emptyList(), PARTITIONS);
+        assertNull("Without nodes a device should have no owner", partitioner.ownerOf("device"));
+    }
+}
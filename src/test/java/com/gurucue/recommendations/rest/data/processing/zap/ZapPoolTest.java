@@ -0,0 +1,188 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for the pool of processing threads of the
+ * {@link com.gurucue.recommendations.rest.data.processing.zap.ZapProcessor}:
+ * how it grows and shrinks, how it keeps the zaps of a device in order, and
+ * when it turns zaps away.
+ */
+public class ZapPoolTest extends TestCase {
+    private static final long T = 1500000000000L;
+    private static final long WAIT_MILLIS = 10000L;
+
+    private ZapFixtures fixtures;
+    private InMemoryZapData data;
+    private TvChannelProduct tvChannel;
+    private Consumer consumer;
+    private ZapProcessor processor;
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        data = fixtures.newData();
+        tvChannel = fixtures.tvChannel(100L, "first");
+        data.addTvChannel(fixtures.partner, tvChannel);
+        data.addTvProgramme(tvChannel, fixtures.tvProgramme(1000L, "programme", T - 3600000L, T + 3600000L));
+        consumer = fixtures.consumer(7L);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        data.onCheckpoint = null;
+        if (processor != null) processor.stop();
+        if (directory != null) {
+            final File[] files = directory.listFiles();
+            if (files != null) for (final File file : files) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Blocks the processing threads after their work until the returned
+     * latch is released.
+     */
+    private CountDownLatch holdThreads(final CountDownLatch entered) {
+        final CountDownLatch gate = new CountDownLatch(1);
+        data.onCheckpoint = () -> {
+            entered.countDown();
+            try {
+                gate.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        return gate;
+    }
+
+    private int workerThreads() {
+        return processor.status(null, null).workerThreads;
+    }
+
+    @Test
+    public void testGrowsToMaximumAndShrinksToMinimum() throws InterruptedException {
+        processor = new ZapProcessor(null, new VirtualZapClock(T), data, 3, new ZapProcessor.PoolSettings(1, 200000000L, 1L, 1000), "none", null, null);
+        final CountDownLatch gate = holdThreads(new CountDownLatch(1));
+        processor.start();
+        assertEquals("The pool should start with the minimum", 1, workerThreads());
+
+        // every zap is of another device, so each blocked thread leaves the queue to grow
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        int sequence = 0;
+        while ((workerThreads() < 3) && (System.currentTimeMillis() < deadline)) {
+            processor.submit(fixtures.zap(T + sequence, consumer, "stb-" + sequence, tvChannel));
+            sequence++;
+            Thread.sleep(20L);
+        }
+        assertEquals("The pool should grow to the maximum while the queue is backlogged", 3, workerThreads());
+        for (int i = 0; i < 20; i++) {
+            processor.submit(fixtures.zap(T + sequence, consumer, "stb-" + sequence, tvChannel));
+            sequence++;
+            Thread.sleep(20L);
+        }
+        assertEquals("The pool should not grow above the maximum", 3, workerThreads());
+
+        gate.countDown();
+        final long shrinkDeadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while ((workerThreads() > 1) && (System.currentTimeMillis() < shrinkDeadline)) Thread.sleep(20L);
+        assertEquals("The pool should shrink to the minimum when the threads are idle", 1, workerThreads());
+        assertEquals("All the zaps should be processed", 0, processor.status(null, null).queueSize);
+    }
+
+    @Test
+    public void testKeepsZapsOfDeviceInOrder() throws IOException {
+        directory = Files.createTempDirectory("zap-pool-test").toFile();
+        processor = new ZapProcessor(null, new VirtualZapClock(T), data, 4, new ZapProcessor.PoolSettings(4, 60000000000L, 1000000000L, 1000), "none", null, new ZapAudit(directory, 64L * 1048576L, 4));
+        processor.start();
+        final int deviceCount = 4;
+        final int zapCount = 500;
+        for (int i = 0; i < zapCount; i++) {
+            for (int device = 0; device < deviceCount; device++) {
+                processor.submit(fixtures.zap(T + (i * 1000L), consumer, "stb-" + device, tvChannel));
+            }
+        }
+        processor.stop(); // processes the queued zaps and closes the audit journal
+        processor = null;
+
+        final long[] segments = ZapAudit.segments(directory);
+        assertEquals("There should be one segment", 1, segments.length);
+        for (int device = 0; device < deviceCount; device++) {
+            final StringWriter text = new StringWriter();
+            final PrintWriter out = new PrintWriter(text);
+            ZapAudit.decode(ZapAudit.segmentFile(directory, segments[0]), "stb-" + device, out);
+            out.flush();
+            long previousMillis = Long.MIN_VALUE;
+            int count = 0;
+            for (final String line : text.toString().split("\n")) {
+                final int at = line.indexOf(": zap at ");
+                if (at < 0) continue;
+                final String instant = line.substring(at + 9, line.indexOf(' ', at + 9));
+                final long millis = Instant.parse(instant).toEpochMilli();
+                assertTrue("The zaps of stb-" + device + " should be processed in order, but " + instant + " came after " + Instant.ofEpochMilli(previousMillis), millis > previousMillis);
+                previousMillis = millis;
+                count++;
+            }
+            assertEquals("All the zaps of stb-" + device + " should be processed", zapCount, count);
+        }
+    }
+
+    @Test
+    public void testTurnsZapsAwayAboveSoftLimit() throws InterruptedException {
+        processor = new ZapProcessor(null, new VirtualZapClock(T), data, 1, new ZapProcessor.PoolSettings(1, 60000000000L, 1000000000L, 3), "none", null, null);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = holdThreads(entered);
+        processor.start();
+
+        assertTrue("An empty queue should admit a zap", processor.admits());
+        processor.submit(fixtures.zap(T, consumer, "stb-0", tvChannel));
+        assertTrue("The thread should take the zap", entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= 3; i++) {
+            assertTrue("A queue below the soft limit should admit a zap", processor.admits());
+            processor.submit(fixtures.zap(T + i, consumer, "stb-" + i, tvChannel));
+        }
+        assertFalse("A queue at the soft limit should turn a zap away", processor.admits());
+        assertFalse("A queue at the soft limit should turn a zap away", processor.admits());
+        final ZapStatus status = processor.status(null, null);
+        assertEquals("The zaps should wait in the queue", 3, status.queueSize);
+        assertEquals("The soft limit should be reported", 3, status.queueSoftLimit);
+        assertEquals("The turned away zaps should be counted", 2L, status.rejectedZaps);
+
+        gate.countDown();
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while ((processor.status(null, null).queueSize > 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(20L);
+        assertTrue("A drained queue should admit a zap again", processor.admits());
+    }
+}
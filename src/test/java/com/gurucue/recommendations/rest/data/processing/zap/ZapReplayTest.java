@@ -0,0 +1,193 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapReplay}:
+ * replays a known sequence of zaps through a zap processor and checks the
+ * live-tv consumptions produced from them.
+ */
+public class ZapReplayTest extends TestCase {
+    private static final long T = 1500000000000L - (1500000000000L % 3600000L); // on a whole hour
+    private static final long MINUTE = 60000L;
+
+    private ZapFixtures fixtures;
+    private TvChannelProduct first;
+    private TvChannelProduct second;
+    private TvProgrammeProduct news;
+    private TvProgrammeProduct film;
+    private TvProgrammeProduct series;
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        first = fixtures.tvChannel(100L, "first");
+        second = fixtures.tvChannel(101L, "second");
+        news = fixtures.tvProgramme(1000L, "news", T, T + (60L * MINUTE));
+        film = fixtures.tvProgramme(1001L, "film", T + (60L * MINUTE), T + (120L * MINUTE));
+        series = fixtures.tvProgramme(2000L, "series", T, T + (120L * MINUTE));
+    }
+
+    private InMemoryZapData newData() {
+        final InMemoryZapData data = fixtures.newData();
+        data.addTvChannel(fixtures.partner, first);
+        data.addTvChannel(fixtures.partner, second);
+        data.addTvProgramme(first, news);
+        data.addTvProgramme(first, film);
+        data.addTvProgramme(second, series);
+        // long zaps out of the last tv-programmes continue into these, which end after the replay
+        data.addTvProgramme(first, fixtures.tvProgramme(1002L, "night", T + (120L * MINUTE), T + (480L * MINUTE)));
+        data.addTvProgramme(second, fixtures.tvProgramme(2001L, "night", T + (120L * MINUTE), T + (480L * MINUTE)));
+        return data;
+    }
+
+    private ConsumerEvent consumptionOf(final List<ConsumerEvent> consumptions, final TvProgrammeProduct tvProgramme) {
+        ConsumerEvent found = null;
+        for (final ConsumerEvent consumption : consumptions) {
+            if (consumption.getProduct().id != tvProgramme.id) continue;
+            assertNull("There should be a single consumption of tv-programme " + tvProgramme.id, found);
+            found = consumption;
+        }
+        assertNotNull("There should be a consumption of tv-programme " + tvProgramme.id, found);
+        return found;
+    }
+
+    @Test
+    public void testLiveTvConsumptions() {
+        final InMemoryZapData data = newData();
+        final Consumer consumer = fixtures.consumer(7L);
+        final ZapReplay replay = new ZapReplay(data, T);
+        replay.start();
+        replay.replay(fixtures.zap(T + (10L * MINUTE), consumer, "stb-1", first));
+        replay.replay(fixtures.zap(T + (40L * MINUTE), consumer, "stb-1", second));
+        replay.replay(fixtures.zap(T + (50L * MINUTE), consumer, "stb-1", first));
+        replay.replay(fixtures.zap(T + (70L * MINUTE), consumer, "stb-1", second));
+        replay.finish(T + (240L * MINUTE));
+        assertEquals("All four zaps should be replayed", 4L, replay.zapCount());
+
+        final List<ConsumerEvent> consumptions = ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.liveTvConsumption);
+        assertEquals("Each watched tv-programme should be consumed once", 3, consumptions.size());
+
+        // watched 10-40 and 50-60, then stayed on the tv-channel into the film
+        final ConsumerEvent newsConsumption = consumptionOf(consumptions, news);
+        assertEquals("Unexpected consumer", consumer, newsConsumption.getConsumer());
+        assertEquals("Unexpected device", "stb-1", newsConsumption.getData().get(fixtures.dataTypeCodes.deviceId));
+        assertEquals("Unexpected zap count", "2", newsConsumption.getData().get(fixtures.dataTypeCodes.zapCount));
+        assertEquals("Unexpected watch offset", "600", newsConsumption.getData().get(fixtures.dataTypeCodes.watchOffset));
+        assertEquals("Unexpected watch duration", "2400", newsConsumption.getData().get(fixtures.dataTypeCodes.watchDuration));
+        assertEquals("Unexpected watch percentage", "66", newsConsumption.getData().get(fixtures.dataTypeCodes.watchPercentage));
+        assertEquals("A long zap should be consumed at the end of the tv-programme", news.endTimeMillis, newsConsumption.getEventTimestamp().getTime());
+
+        // the long zap from the news, watched 60-70
+        final ConsumerEvent filmConsumption = consumptionOf(consumptions, film);
+        assertEquals("A long zap should not count as a zap", "0", filmConsumption.getData().get(fixtures.dataTypeCodes.zapCount));
+        assertEquals("Unexpected zap offset", "600", filmConsumption.getData().get(fixtures.dataTypeCodes.zapOffset));
+        assertEquals("Unexpected watch duration", "600", filmConsumption.getData().get(fixtures.dataTypeCodes.watchDuration));
+        assertEquals("The consumption should end with the zap-out", T + (70L * MINUTE), filmConsumption.getEventTimestamp().getTime());
+
+        // watched 40-50 and from 70 to the end
+        final ConsumerEvent seriesConsumption = consumptionOf(consumptions, series);
+        assertEquals("Unexpected zap count", "2", seriesConsumption.getData().get(fixtures.dataTypeCodes.zapCount));
+        assertEquals("Unexpected watch offset", "2400", seriesConsumption.getData().get(fixtures.dataTypeCodes.watchOffset));
+        assertEquals("Unexpected watch duration", "3600", seriesConsumption.getData().get(fixtures.dataTypeCodes.watchDuration));
+    }
+
+    @Test
+    public void testZapsBeforeDeviceEvictionAreKept() {
+        final InMemoryZapData data = newData();
+        final Consumer consumer = fixtures.consumer(7L);
+        final ZapReplay replay = new ZapReplay(data, T);
+        replay.start();
+        replay.replay(fixtures.zap(T + (10L * MINUTE), consumer, "stb-1", first));
+        final DeviceState evicted = replay.processor.events.get("stb-1");
+        assertTrue("The device should be evicted", replay.processor.events.remove(evicted.code, evicted));
+        replay.replay(fixtures.zap(T + (30L * MINUTE), consumer, "stb-1", first)); // registered again, with a new code
+        assertTrue("The device should get a new code", replay.processor.events.code("stb-1") != evicted.code);
+        replay.finish(T + (240L * MINUTE));
+
+        // watched from 10 to the end, across the eviction
+        final ConsumerEvent newsConsumption = consumptionOf(ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.liveTvConsumption), news);
+        assertEquals("Unexpected watch offset", "600", newsConsumption.getData().get(fixtures.dataTypeCodes.watchOffset));
+        assertEquals("Unexpected watch duration", "3000", newsConsumption.getData().get(fixtures.dataTypeCodes.watchDuration));
+    }
+
+    @Test
+    public void testHandOffForwardsQueuedZaps() {
+        final InMemoryZapData data = newData();
+        final Consumer consumer = fixtures.consumer(7L);
+        final ZapReplay replay = new ZapReplay(data, T);
+        replay.start();
+        replay.replay(fixtures.zap(T + (10L * MINUTE), consumer, "stb-1", first));
+        replay.advanceTo(T + (20L * MINUTE));
+        final ConsumerEvent queued = fixtures.zap(T + (25L * MINUTE), consumer, "stb-1", second);
+        replay.processor.submit(queued); // no processing threads: stays in the queue
+
+        final List<ConsumerEvent> forwarded = new ArrayList<>();
+        final ZapPartitioner partitioner = new ZapPartitioner(Collections.singletonList("other"), 16);
+        assertEquals("The device should be handed off", 1, replay.processor.handOff(partitioner, "self", (node, event) -> {
+            assertEquals("Unexpected node", "other", node);
+            forwarded.add(event);
+        }));
+        assertEquals("The continuing zap and the queued zap should be forwarded", 2, forwarded.size());
+        assertEquals("The continuing zap should be to the tuned tv-channel", first.id, forwarded.get(0).getProduct().id);
+        assertSame("The queued zap should be forwarded after the continuing zap", queued, forwarded.get(1));
+        assertTrue("The device should remain handed off", replay.processor.events.get("stb-1").handedOff);
+        replay.finish(T + (240L * MINUTE));
+
+        // watched from 10 to the hand-off, the queued zap is not processed here
+        final List<ConsumerEvent> consumptions = ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.liveTvConsumption);
+        assertEquals("Only the news should be consumed here", 1, consumptions.size());
+        final ConsumerEvent newsConsumption = consumptionOf(consumptions, news);
+        assertEquals("Unexpected watch duration", "600", newsConsumption.getData().get(fixtures.dataTypeCodes.watchDuration));
+    }
+
+    @Test
+    public void testReplayIsDeterministic() {
+        final String[] summaries = new String[2];
+        for (int run = 0; run < summaries.length; run++) {
+            final InMemoryZapData data = newData();
+            final ZapReplay replay = new ZapReplay(data, T);
+            replay.start();
+            for (int i = 0; i < 20; i++) {
+                final Consumer consumer = fixtures.consumer(10L + i);
+                replay.replay(fixtures.zap(T + ((5L + i) * MINUTE), consumer, "stb-" + i, (i & 1) == 0 ? first : second));
+            }
+            replay.finish(T + (240L * MINUTE));
+            final StringBuilder summary = new StringBuilder();
+            for (final ConsumerEvent consumption : ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.liveTvConsumption)) {
+                summary.append(consumption.getProduct().id).append(':').append(consumption.getData().get(fixtures.dataTypeCodes.deviceId))
+                        .append(':').append(consumption.getData().get(fixtures.dataTypeCodes.watchDuration)).append(';');
+            }
+            summaries[run] = summary.toString();
+        }
+        assertFalse("Consumptions should be produced", summaries[0].isEmpty());
+        assertEquals("Replaying the same zaps should produce the same consumptions", summaries[0], summaries[1]);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import com.gurucue.recommendations.entity.product.TvProgrammeProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapReprocessing.Output}:
+ * replays zaps in partitions of consumers through the replay harness, and
+ * checks that the collected events are those of a single replay of all the
+ * zaps, limited to the reprocessed range.
+ */
+public class ZapReprocessingTest extends TestCase {
+    private static final long T = 1500000000000L - (1500000000000L % 3600000L); // on a whole hour
+    private static final long MINUTE = 60000L;
+
+    private ZapFixtures fixtures;
+    private TvChannelProduct first;
+    private TvChannelProduct second;
+    private TvProgrammeProduct news;
+    private TvProgrammeProduct film;
+    private List<ConsumerEvent> zaps;
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        first = fixtures.tvChannel(100L, "first");
+        second = fixtures.tvChannel(101L, "second");
+        news = fixtures.tvProgramme(1000L, "news", T, T + (60L * MINUTE));
+        film = fixtures.tvProgramme(1001L, "film", T + (60L * MINUTE), T + (120L * MINUTE));
+        final Consumer[] consumers = { fixtures.consumer(7L), fixtures.consumer(8L), fixtures.consumer(9L) };
+        zaps = new ArrayList<>();
+        for (int minute = 5; minute < 180; minute += 5) {
+            final Consumer consumer = consumers[minute % consumers.length];
+            zaps.add(fixtures.zap(T + (minute * MINUTE), consumer, "stb-" + consumer.getId(), (minute % 2) == 0 ? first : second));
+        }
+    }
+
+    private InMemoryZapData newData() {
+        final InMemoryZapData data = fixtures.newData();
+        data.addTvChannel(fixtures.partner, first);
+        data.addTvChannel(fixtures.partner, second);
+        data.addTvProgramme(first, news);
+        data.addTvProgramme(first, film);
+        data.addTvProgramme(second, fixtures.tvProgramme(2000L, "series", T, T + (120L * MINUTE)));
+        data.addTvProgramme(first, fixtures.tvProgramme(1002L, "night", T + (120L * MINUTE), T + (480L * MINUTE)));
+        data.addTvProgramme(second, fixtures.tvProgramme(2001L, "night", T + (120L * MINUTE), T + (480L * MINUTE)));
+        return data;
+    }
+
+    /**
+     * Summarizes events by their product, tv-programme and time, with
+     * the viewer count and the sorted ID lists of viewership.
+     */
+    private Map<String, String> summary(final List<ConsumerEvent> events) {
+        final DataTypeCodes codes = fixtures.dataTypeCodes;
+        final Map<String, String> result = new TreeMap<>();
+        for (final ConsumerEvent event : events) {
+            final Map<DataType, String> data = event.getData();
+            final String key = event.getProduct().id + ":" + data.get(codes.tvProgrammeId) + ":" + event.getEventTimestamp().getTime()
+                    + ":" + (event.getConsumer() == null ? "" : event.getConsumer().getId());
+            final String value = data.get(codes.viewerCount) + ":" + data.get(codes.watchDuration)
+                    + ":" + Arrays.toString(ViewershipIdCodec.decode(data.get(codes.consumerIdList)))
+                    + ":" + Arrays.toString(ViewershipIdCodec.decode(data.get(codes.zapIdList)));
+            assertNull("Duplicate event " + key, result.put(key, value));
+        }
+        return result;
+    }
+
+    @Test
+    public void testPartitionsAddUpToSingleReplay() {
+        final long fromMillis = T + (30L * MINUTE);
+        final long toMillis = T + (150L * MINUTE);
+
+        final InMemoryZapData data = newData();
+        final ZapReplay single = new ZapReplay(data, T);
+        single.start();
+        for (final ConsumerEvent zap : zaps) single.replay(zap);
+        single.finish(T + (480L * MINUTE));
+        final List<ConsumerEvent> expectedConsumptions = new ArrayList<>();
+        for (final ConsumerEvent event : ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.liveTvConsumption)) {
+            final long millis = event.getEventTimestamp().getTime();
+            if ((millis >= fromMillis) && (millis < toMillis)) expectedConsumptions.add(event);
+        }
+        final List<ConsumerEvent> expectedViewership = new ArrayList<>();
+        for (final ConsumerEvent event : ZapFixtures.emitted(data, fixtures.consumerEventTypeCodes.viewership)) {
+            final long millis = event.getEventTimestamp().getTime();
+            if ((millis >= fromMillis) && (millis < toMillis)) expectedViewership.add(event);
+        }
+        assertFalse("The range should contain consumptions", expectedConsumptions.isEmpty());
+        assertFalse("The range should contain viewership", expectedViewership.isEmpty());
+
+        final ZapReprocessing.Output output = new ZapReprocessing.Output(newData(), fromMillis, toMillis);
+        final int partitionCount = 2;
+        for (int partition = 0; partition < partitionCount; partition++) {
+            final ZapReplay replay = new ZapReplay(output, T);
+            replay.start();
+            for (final ConsumerEvent zap : zaps) {
+                if ((zap.getConsumer().getId() % partitionCount) == partition) replay.replay(zap);
+            }
+            replay.finish(T + (480L * MINUTE));
+        }
+
+        assertEquals("The consumptions should be those of a single replay", summary(expectedConsumptions), summary(output.consumptions()));
+        assertEquals("The summed up viewership should be that of a single replay", summary(expectedViewership), summary(output.viewership()));
+    }
+
+    @Test
+    public void testOtherConsumptionsAreSkipped() {
+        final Consumer consumer = fixtures.consumer(7L);
+        final ZapReprocessing.Output output = new ZapReprocessing.Output(newData(), T, T + (240L * MINUTE));
+        final ZapReplay replay = new ZapReplay(output, T);
+        replay.start();
+        replay.replay(fixtures.play(T + (10L * MINUTE), consumer, "stb-7", news, 0L));
+        replay.replay(fixtures.zap(T + (40L * MINUTE), consumer, "stb-7", first));
+        replay.finish(T + (240L * MINUTE));
+
+        for (final ConsumerEvent event : output.consumptions()) {
+            assertSame("Only live-tv consumptions should be collected", fixtures.consumerEventTypeCodes.liveTvConsumption, event.getEventType());
+        }
+        assertEquals("The catch-up consumption should be skipped", 1L, output.skippedCount.get());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.data.processing.zap;
+
+import com.gurucue.recommendations.data.DataTypeCodes;
+import com.gurucue.recommendations.entity.Consumer;
+import com.gurucue.recommendations.entity.ConsumerEvent;
+import com.gurucue.recommendations.entity.DataType;
+import com.gurucue.recommendations.entity.product.TvChannelProduct;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.data.processing.zap.ZapSnapshot}:
+ * saves the zap state in the middle of a replay, restores it into a new
+ * zap processor, and checks that replaying the rest of the zaps produces
+ * the same events as the uninterrupted replay.
+ */
+public class ZapSnapshotTest extends TestCase {
+    private static final long T = 1500000000000L - (1500000000000L % 3600000L); // on a whole hour
+    private static final long MINUTE = 60000L;
+
+    private ZapFixtures fixtures;
+    private TvChannelProduct first;
+    private TvChannelProduct second;
+    private List<ConsumerEvent> zaps;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        fixtures = new ZapFixtures();
+        first = fixtures.tvChannel(100L, "first");
+        second = fixtures.tvChannel(101L, "second");
+        final Consumer[] consumers = { fixtures.consumer(7L), fixtures.consumer(8L), fixtures.consumer(9L) };
+        zaps = new ArrayList<>();
+        for (int minute = 3; minute < 180; minute += 7) {
+            final Consumer consumer = consumers[minute % consumers.length];
+            zaps.add(fixtures.zap(T + (minute * MINUTE), consumer, "stb-" + consumer.getId(), (minute % 2) == 0 ? first : second));
+        }
+        file = File.createTempFile("zap-snapshot-test", ".bin");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private InMemoryZapData newData() {
+        final InMemoryZapData data = fixtures.newData();
+        data.addTvChannel(fixtures.partner, first);
+        data.addTvChannel(fixtures.partner, second);
+        data.addTvProgramme(first, fixtures.tvProgramme(1000L, "news", T, T + (60L * MINUTE)));
+        data.addTvProgramme(first, fixtures.tvProgramme(1001L, "film", T + (60L * MINUTE), T + (480L * MINUTE)));
+        data.addTvProgramme(second, fixtures.tvProgramme(2000L, "series", T, T + (480L * MINUTE)));
+        return data;
+    }
+
+    /**
+     * Summarizes events by their type, product, tv-programme, time and
+     * consumer, with the viewer count, the watch duration and the ID lists
+     * of viewership.
+     */
+    private Map<String, String> summary(final List<ConsumerEvent> events) {
+        final DataTypeCodes codes = fixtures.dataTypeCodes;
+        final Map<String, String> result = new TreeMap<>();
+        for (final ConsumerEvent event : events) {
+            final Map<DataType, String> data = event.getData();
+            final String key = event.getEventType().getIdentifier() + ":" + event.getProduct().id + ":" + data.get(codes.tvProgrammeId)
+                    + ":" + event.getEventTimestamp().getTime() + ":" + (event.getConsumer() == null ? "" : event.getConsumer().getId());
+            final String value = data.get(codes.viewerCount) + ":" + data.get(codes.watchDuration)
+                    + ":" + Arrays.toString(ViewershipIdCodec.decode(data.get(codes.consumerIdList)))
+                    + ":" + Arrays.toString(ViewershipIdCodec.decode(data.get(codes.zapIdList)));
+            assertNull("Duplicate event " + key, result.put(key, value));
+        }
+        return result;
+    }
+
+    @Test
+    public void testRestoredStateContinuesTheReplay() throws Exception {
+        final long saveMillis = T + (62L * MINUTE);
+        final long endMillis = T + (480L * MINUTE);
+
+        final InMemoryZapData data = newData();
+        final ZapReplay uninterrupted = new ZapReplay(data, T);
+        uninterrupted.start();
+        int i = 0;
+        while (zaps.get(i).getRequestTimestamp().getTime() < saveMillis) uninterrupted.replay(zaps.get(i++));
+        uninterrupted.advanceTo(saveMillis);
+        ZapSnapshot.save(uninterrupted.processor, file);
+        final int emittedBeforeSave = data.emitted.size();
+        final int deviceCount = uninterrupted.processor.events.size();
+        for (int j = i; j < zaps.size(); j++) uninterrupted.replay(zaps.get(j));
+        uninterrupted.finish(endMillis);
+        final List<ConsumerEvent> expected = new ArrayList<>(data.emitted.subList(emittedBeforeSave, data.emitted.size()));
+        assertFalse("There should be events after the save", expected.isEmpty());
+
+        final InMemoryZapData restoredData = newData();
+        final ZapReplay restored = new ZapReplay(restoredData, saveMillis, file.getPath());
+        restored.start();
+        assertEquals("All devices should be restored", deviceCount, restored.processor.events.size());
+        for (int j = i; j < zaps.size(); j++) restored.replay(zaps.get(j));
+        restored.finish(endMillis);
+
+        assertEquals("The restored state should produce the events of the uninterrupted replay", summary(expected), summary(restoredData.emitted));
+    }
+}
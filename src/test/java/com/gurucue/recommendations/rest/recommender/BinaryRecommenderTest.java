@@ -0,0 +1,204 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendation;
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.CandidateSetStore;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.recommender.BinaryRecommenderClient}
+ * talking to the {@link com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer}
+ * over the loopback interface.
+ */
+public class BinaryRecommenderTest extends TestCase {
+    private BinaryRecommenderServer server;
+    private BinaryRecommenderClient client;
+
+    /**
+     * Recommends the candidates in reverse order, tagging them with the
+     * consumer ID or the first product for similar, so each response tells
+     * which request it belongs to.
+     */
+    private static final class EchoRecommender implements DeltaRecommender {
+        private final CandidateSetStore store = new CandidateSetStore(4);
+
+        @Override
+        public Recommendations recommendations(final long consumerId, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+            if (consumerId < 0L) throw new IllegalStateException("negative consumer");
+            return echo(store.resolve(candidates), Long.toString(consumerId));
+        }
+
+        @Override
+        public Recommendations similar(final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+            return echo(store.resolve(candidates), "similar to " + productIdsForSimilar[0]);
+        }
+
+        private static Recommendations echo(final RecommendProduct[] products, final String requester) {
+            final Recommendation[] result = new Recommendation[products.length];
+            for (int i = 0; i < products.length; i++) {
+                final RecommendProduct product = products[products.length - 1 - i];
+                final Map<String, String> tags = new HashMap<>(product.tags);
+                tags.put("requester", requester);
+                result[i] = new Recommendation(product.productId, tags, i * 0.5, i == 0 ? null : "explanation " + i, i == 0 ? null : Collections.singletonMap("pretty", 0.25f));
+            }
+            return new Recommendations(result);
+        }
+    }
+
+    private static RecommendProduct[] products(final long firstId, final int count) {
+        final RecommendProduct[] result = new RecommendProduct[count];
+        for (int i = 0; i < count; i++) {
+            final Map<String, String> tags = new HashMap<>();
+            tags.put("tv-channel", Long.toString((firstId + i) % 5L));
+            result[i] = new RecommendProduct(firstId + i, tags);
+        }
+        return result;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new BinaryRecommenderServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.register(7L, new EchoRecommender());
+        server.start();
+        client = BinaryRecommenderClient.forAddress(7L, InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort());
+    }
+
+    @Override
+    protected void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Recommendations result = client.recommendations(42L, products(-3L, 100), null);
+        assertEquals(100, result.recommendations.length);
+        final Recommendation first = result.recommendations[0];
+        assertEquals(96L, first.productId);
+        assertEquals("42", first.tags.get("requester"));
+        assertEquals("1", first.tags.get("tv-channel"));
+        assertNull(first.explanation);
+        assertNull(first.prettyExplanations);
+        final Recommendation second = result.recommendations[1];
+        assertEquals(95L, second.productId);
+        assertEquals(0.5, second.prediction, 0.0);
+        assertEquals("explanation 1", second.explanation);
+        assertEquals(0.25f, second.prettyExplanations.get("pretty"), 0.0f);
+        assertEquals("The last product should have a negative ID", -3L, result.recommendations[99].productId);
+
+        final Recommendations similar = client.similar(new long[]{5L, 6L}, products(1L, 3), null);
+        assertEquals("similar to 5", similar.recommendations[0].tags.get("requester"));
+    }
+
+    @Test
+    public void testDeltas() throws Exception {
+        final CandidateSet base = CandidateSet.of(products(1L, 50));
+        client.recommendations(1L, base.deltaFrom(null), null);
+        assertEquals("A held set should be served from its fingerprint", 50, client.recommendations(1L, base.deltaFrom(base), null).recommendations.length);
+        final CandidateSet next = CandidateSet.of(products(5L, 50));
+        assertEquals(50, client.recommendations(1L, next.deltaFrom(base), null).recommendations.length);
+        try {
+            client.recommendations(1L, CandidateSet.of(products(202L, 50)).deltaFrom(CandidateSet.of(products(200L, 50))), null);
+            fail("A delta from an unknown set should be refused");
+        }
+        catch (UnknownCandidateSetException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        try {
+            client.recommendations(-1L, products(1L, 3), null);
+            fail("A failing recommender should fail the request");
+        }
+        catch (RemoteException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("negative consumer"));
+        }
+        final BinaryRecommenderClient unknown = BinaryRecommenderClient.forAddress(8L, InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort());
+        try {
+            unknown.recommendations(1L, products(1L, 3), null);
+            fail("An unknown recommender should fail the request");
+        }
+        catch (RemoteException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("no recommender 8"));
+        }
+        finally {
+            unknown.close();
+        }
+        assertEquals("The connection should survive failed requests", 3, client.recommendations(1L, products(1L, 3), null).recommendations.length);
+    }
+
+    @Test
+    public void testConcurrentRequestsShareTheConnection() throws Exception {
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final long consumerId = i;
+                results.add(callers.submit(() -> client.recommendations(consumerId, products(consumerId, 1 + (int) (consumerId % 20)), null).recommendations[0].tags.get("requester")));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("Each response should reach its own request", Integer.toString(i), results.get(i).get());
+            }
+        }
+        finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        assertEquals(3, client.recommendations(1L, products(1L, 3), null).recommendations.length);
+        final int port = server.getPort();
+        server.close();
+        try {
+            client.recommendations(1L, products(1L, 3), null);
+            fail("A request should fail without the server");
+        }
+        catch (RemoteException e) {
+            // expected
+        }
+        server = new BinaryRecommenderServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 2);
+        server.register(7L, new EchoRecommender());
+        server.start();
+        assertEquals("The client should reconnect", 3, client.recommendations(1L, products(1L, 3), null).recommendations.length);
+    }
+}
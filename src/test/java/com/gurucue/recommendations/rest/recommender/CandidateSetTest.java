@@ -0,0 +1,144 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.CandidateSetStore;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.recommender.CandidateSet}
+ * and the {@link com.gurucue.recommendations.recommender.remote.CandidateSetStore}.
+ */
+public class CandidateSetTest extends TestCase {
+
+    private static RecommendProduct product(final long id, final String channel) {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("channel", channel);
+        return new RecommendProduct(id, tags);
+    }
+
+    private static RecommendProduct[] products(final long firstId, final int count) {
+        final RecommendProduct[] result = new RecommendProduct[count];
+        for (int i = 0; i < count; i++) result[i] = product(firstId + i, "c" + ((firstId + i) % 7));
+        return result;
+    }
+
+    @Test
+    public void testFingerprintIgnoresOrder() {
+        final RecommendProduct[] forward = products(100L, 50);
+        final RecommendProduct[] backward = new RecommendProduct[forward.length];
+        for (int i = 0; i < forward.length; i++) backward[i] = forward[forward.length - 1 - i];
+        assertEquals("The order of products should not matter", CandidateSet.of(forward).fingerprint(), CandidateSet.of(backward).fingerprint());
+        final RecommendProduct[] retagged = forward.clone();
+        retagged[3] = product(retagged[3].productId, "other");
+        assertFalse("Changed tags should change the fingerprint", CandidateSet.of(forward).fingerprint() == CandidateSet.of(retagged).fingerprint());
+        assertFalse("A missing product should change the fingerprint", CandidateSet.of(forward).fingerprint() == CandidateSet.of(products(100L, 49)).fingerprint());
+    }
+
+    @Test
+    public void testDeltaRoundTrip() throws UnknownCandidateSetException {
+        final CandidateSetStore store = new CandidateSetStore(4);
+        final CandidateSet base = CandidateSet.of(products(1L, 100));
+        final CandidateDelta full = base.deltaFrom(null);
+        assertTrue(full.isFull());
+        assertEquals(100, store.resolve(full).length);
+
+        final RecommendProduct[] next = products(3L, 100); // 1 and 2 are gone, 101 and 102 are new
+        next[50] = product(next[50].productId, "changed");
+        final CandidateSet changed = CandidateSet.of(next);
+        final CandidateDelta delta = changed.deltaFrom(base);
+        assertFalse(delta.isFull());
+        assertEquals("New and changed products should be sent", 3, delta.added.length);
+        assertEquals("Removed and changed products should be listed", 3, delta.removed.length);
+        final RecommendProduct[] resolved = store.resolve(delta);
+        assertEquals(100, resolved.length);
+        assertEquals("The reconstruction should match", changed.fingerprint(), CandidateSet.of(resolved).fingerprint());
+
+        final CandidateDelta same = changed.deltaFrom(changed);
+        assertEquals("The same set should be sent as the fingerprint only", 0, same.added.length + same.removed.length);
+        assertEquals(100, store.resolve(same).length);
+    }
+
+    @Test
+    public void testUnknownBase() {
+        final CandidateSetStore store = new CandidateSetStore(4);
+        final CandidateSet base = CandidateSet.of(products(1L, 10));
+        final CandidateSet next = CandidateSet.of(products(2L, 10));
+        try {
+            store.resolve(next.deltaFrom(base));
+            fail("A delta from an unknown set should be refused");
+        }
+        catch (UnknownCandidateSetException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMismatchedDelta() throws UnknownCandidateSetException {
+        final CandidateSetStore store = new CandidateSetStore(4);
+        final CandidateSet base = CandidateSet.of(products(1L, 10));
+        store.resolve(base.deltaFrom(null));
+        final CandidateSet next = CandidateSet.of(products(2L, 10));
+        final CandidateDelta delta = next.deltaFrom(base);
+        try {
+            store.resolve(new CandidateDelta(delta.baseFingerprint, delta.fingerprint, delta.added, new long[0]));
+            fail("A delta not producing the fingerprint should be refused");
+        }
+        catch (UnknownCandidateSetException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDuplicatesAreSentInFull() {
+        final RecommendProduct[] products = products(1L, 10);
+        final CandidateSet base = CandidateSet.of(products);
+        products[9] = new RecommendProduct(1L, Collections.<String, String>emptyMap());
+        assertTrue("A set with a repeated product ID should be sent in full", CandidateSet.of(products).deltaFrom(base).isFull());
+    }
+
+    @Test
+    public void testStoreEvictsLeastRecentlyUsed() throws UnknownCandidateSetException {
+        final CandidateSetStore store = new CandidateSetStore(2);
+        final CandidateSet a = CandidateSet.of(products(1L, 10));
+        final CandidateSet b = CandidateSet.of(products(2L, 10));
+        final CandidateSet c = CandidateSet.of(products(3L, 10));
+        store.resolve(a.deltaFrom(null));
+        store.resolve(b.deltaFrom(null));
+        store.resolve(a.deltaFrom(a));
+        store.resolve(c.deltaFrom(null));
+        assertEquals(2, store.size());
+        store.resolve(a.deltaFrom(a));
+        try {
+            store.resolve(b.deltaFrom(b));
+            fail("The least recently used set should be evicted");
+        }
+        catch (UnknownCandidateSetException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.recommender.LatencyTracker}.
+ */
+public class LatencyTrackerTest extends TestCase {
+
+    @Test
+    public void testDefaultUntilEnoughSamples() {
+        final LatencyTracker tracker = new LatencyTracker(100, 95, 32, 7L);
+        for (int i = 1; i <= 16; i++) tracker.record(i);
+        assertEquals("The default should be used with too few samples", 7L, tracker.estimateNanos());
+        for (int i = 17; i <= 32; i++) tracker.record(i);
+        assertEquals("The estimate should be the percentile of the samples", 31L, tracker.estimateNanos());
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyTracker tracker = new LatencyTracker(100, 95, 1, 0L);
+        for (int i = 96; i >= 1; i--) tracker.record(i * 1000L); // the estimate is recomputed every 16 samples
+        assertEquals("The median should be the 48th sample", 48000L, tracker.percentileNanos(50));
+        assertEquals("The 95th percentile should be the 92nd sample", 92000L, tracker.percentileNanos(95));
+        assertEquals("The 100th percentile should be the maximum", 96000L, tracker.percentileNanos(100));
+        assertEquals("The estimate should be the configured percentile", 92000L, tracker.estimateNanos());
+    }
+
+    @Test
+    public void testKeepsOnlyRecentSamples() {
+        final LatencyTracker tracker = new LatencyTracker(16, 50, 1, 0L);
+        for (int i = 0; i < 16; i++) tracker.record(1000000L);
+        for (int i = 0; i < 16; i++) tracker.record(10L);
+        assertEquals("The capacity should bound the samples", 16, tracker.size());
+        assertEquals("Old samples should be forgotten", 10L, tracker.percentileNanos(100));
+        assertEquals("The estimate should follow the recent samples", 10L, tracker.estimateNanos());
+    }
+
+    @Test
+    public void testTail() {
+        final LatencyTracker tracker = new LatencyTracker(200, 50, 32, 7L);
+        for (int i = 1; i <= 16; i++) tracker.record(i);
+        assertEquals("There should be no tail with too few samples", 0L, tracker.tailNanos());
+        for (int i = 192; i > 16; i--) tracker.record(i); // a multiple of 16 samples in all, so the estimates are recomputed
+        assertEquals("The tail should be the 99th percentile", 191L, tracker.tailNanos());
+        assertEquals("The estimate should still be the configured percentile", 96L, tracker.estimateNanos());
+    }
+
+    @Test
+    public void testEmpty() {
+        final LatencyTracker tracker = new LatencyTracker(16, 95, 1, 5L);
+        assertEquals("There is no percentile without samples", 0L, tracker.percentileNanos(95));
+        assertEquals("The default should be used without samples", 5L, tracker.estimateNanos());
+    }
+}
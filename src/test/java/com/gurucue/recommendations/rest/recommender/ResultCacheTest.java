@@ -0,0 +1,95 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.recommender.ResultCache}.
+ */
+public class ResultCacheTest extends TestCase {
+
+    @Test
+    public void testHitUntilExpired() {
+        final ResultCache<String> cache = new ResultCache<>(10, 100L);
+        assertNull("Nothing should be cached initially", cache.get(1L, "a", 0L));
+        cache.put(1L, "a", "result", 0L, 10L);
+        assertEquals("The result should be served", "result", cache.get(1L, "a", 50L));
+        assertNull("Another request should not be served", cache.get(1L, "b", 50L));
+        assertNull("Another consumer should not be served", cache.get(2L, "a", 50L));
+        assertNull("The result should expire after the time-to-live from its computation start", cache.get(1L, "a", 100L));
+        final ResultCacheStatus status = cache.getStatus();
+        assertEquals(1L, status.hitCount);
+        assertEquals(4L, status.missCount);
+        assertEquals(1L, status.expirationCount);
+        assertEquals(0, status.entries);
+    }
+
+    @Test
+    public void testInvalidation() {
+        final ResultCache<String> cache = new ResultCache<>(10, 100L);
+        cache.put(1L, "a", "result", 0L, 10L);
+        cache.put(1L, "b", "result", 0L, 10L);
+        cache.put(2L, "a", "other", 0L, 10L);
+        cache.invalidate(1L, 20L);
+        assertNull("Results of the invalidated consumer should be discarded", cache.get(1L, "a", 30L));
+        assertNull("Results of the invalidated consumer should be discarded", cache.get(1L, "b", 30L));
+        assertEquals("Results of other consumers should remain", "other", cache.get(2L, "a", 30L));
+        assertEquals(1, cache.getStatus().entries);
+    }
+
+    @Test
+    public void testNoStoreAfterInvalidationDuringComputation() {
+        final ResultCache<String> cache = new ResultCache<>(10, 100L);
+        cache.invalidate(1L, 20L);
+        cache.put(1L, "a", "stale", 10L, 30L);
+        assertNull("A result computed across an invalidation should not be stored", cache.get(1L, "a", 40L));
+        cache.put(1L, "a", "fresh", 25L, 40L);
+        assertEquals("A result computed after the invalidation should be stored", "fresh", cache.get(1L, "a", 50L));
+        cache.put(1L, "b", "slow", 50L, 150L);
+        assertNull("A result taking longer than the time-to-live should not be stored", cache.get(1L, "b", 160L));
+        assertEquals(2L, cache.getStatus().staleCount);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedConsumer() {
+        final ResultCache<String> cache = new ResultCache<>(3, 1000L);
+        cache.put(1L, "a", "1a", 0L, 0L);
+        cache.put(1L, "b", "1b", 0L, 0L);
+        cache.put(2L, "a", "2a", 0L, 0L);
+        assertEquals("1a", cache.get(1L, "a", 1L));
+        cache.put(3L, "a", "3a", 0L, 2L);
+        assertNull("The least recently used consumer should be evicted", cache.get(2L, "a", 3L));
+        assertEquals("1b", cache.get(1L, "b", 3L));
+        assertEquals("3a", cache.get(3L, "a", 3L));
+        final ResultCacheStatus status = cache.getStatus();
+        assertEquals(3, status.entries);
+        assertEquals(1L, status.evictionCount);
+    }
+
+    @Test
+    public void testDisabled() {
+        final ResultCache<String> cache = new ResultCache<>(0, 100L);
+        assertFalse(cache.isEnabled());
+        cache.put(1L, "a", "result", 0L, 10L);
+        assertNull("A disabled cache should not store anything", cache.get(1L, "a", 20L));
+        assertEquals(0L, cache.getStatus().missCount);
+    }
+}
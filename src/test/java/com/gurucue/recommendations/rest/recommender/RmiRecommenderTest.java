@@ -0,0 +1,163 @@
+/*
+ * This file is part of Guru Cue Search & Recommendation Engine.
+ * Copyright (C) 2017 Guru Cue Ltd.
+ *
+ * Guru Cue Search & Recommendation Engine is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General
+ * Public License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Guru Cue Search & Recommendation Engine is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Guru Cue Search & Recommendation Engine. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.gurucue.recommendations.rest.recommender;
+
+import com.gurucue.recommendations.recommender.RecommendProduct;
+import com.gurucue.recommendations.recommender.Recommendation;
+import com.gurucue.recommendations.recommender.RecommendationSettings;
+import com.gurucue.recommendations.recommender.Recommendations;
+import com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer;
+import com.gurucue.recommendations.recommender.remote.CandidateDelta;
+import com.gurucue.recommendations.recommender.remote.CandidateSetStore;
+import com.gurucue.recommendations.recommender.remote.DeltaRecommender;
+import com.gurucue.recommendations.recommender.remote.UnknownCandidateSetException;
+import com.gurucue.recommendations.rest.data.RequestLogger;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test case for the {@link com.gurucue.recommendations.rest.recommender.RmiRecommender}
+ * with two stub replicas, each behind a {@link com.gurucue.recommendations.recommender.remote.BinaryRecommenderServer}
+ * on the loopback interface.
+ */
+public class RmiRecommenderTest extends TestCase {
+    private static final long RECOMMENDER_ID = 7L;
+    private static final RequestLogger logger = RequestLogger.getLogger("RmiRecommenderTest", "[test] ");
+
+    private StubRecommender[] stubs;
+    private BinaryRecommenderServer[] servers;
+    private RmiRecommender recommender;
+
+    /**
+     * Answers with a single recommendation tagged with the replica's name,
+     * after the configured delay, or fails if so configured.
+     */
+    private static final class StubRecommender implements DeltaRecommender {
+        private final CandidateSetStore store = new CandidateSetStore(4);
+        private final String name;
+        final AtomicInteger callCount = new AtomicInteger();
+        volatile long delayMillis = 0L;
+        volatile boolean failing = false;
+
+        StubRecommender(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Recommendations recommendations(final long consumerId, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+            callCount.incrementAndGet();
+            final RecommendProduct[] products = store.resolve(candidates);
+            if (delayMillis > 0L) {
+                try {
+                    Thread.sleep(delayMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) throw new IllegalStateException("failing replica " + name);
+            return new Recommendations(new Recommendation[]{new Recommendation(products[0].productId, Collections.singletonMap("replica", name), 1.0, null, null)});
+        }
+
+        @Override
+        public Recommendations similar(final long[] productIdsForSimilar, final CandidateDelta candidates, final RecommendationSettings settings) throws UnknownCandidateSetException {
+            return recommendations(productIdsForSimilar[0], candidates, settings);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        stubs = new StubRecommender[]{new StubRecommender("first"), new StubRecommender("second")};
+        servers = new BinaryRecommenderServer[stubs.length];
+        final StringBuilder hostnames = new StringBuilder(64);
+        for (int i = 0; i < stubs.length; i++) {
+            servers[i] = new BinaryRecommenderServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+            servers[i].register(RECOMMENDER_ID, stubs[i]);
+            servers[i].start();
+            if (i > 0) hostnames.append(",");
+            hostnames.append("binary://").append(InetAddress.getLoopbackAddress().getHostAddress()).append(":").append(servers[i].getPort());
+        }
+        recommender = new RmiRecommender("test", RECOMMENDER_ID, hostnames.toString()); // the first request goes to the first replica
+    }
+
+    @Override
+    protected void tearDown() {
+        recommender.shutdown();
+        for (final BinaryRecommenderServer server : servers) server.close();
+    }
+
+    private Recommendations recommend(final long timeoutMillis) {
+        final CandidateSet candidates = CandidateSet.of(new RecommendProduct[]{new RecommendProduct(42L, Collections.<String, String>emptyMap())});
+        return recommender.recommendations(logger, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), 1L, null, candidates);
+    }
+
+    private static String replicaOf(final Recommendations result) {
+        assertNotNull("There should be an answer", result);
+        return result.recommendations[0].tags.get("replica");
+    }
+
+    @Test
+    public void testFastPrimaryIsNotHedged() {
+        assertEquals("first", replicaOf(recommend(5000L)));
+        final RecommenderStatus status = recommender.getStatus();
+        assertEquals("A fast answer should not be hedged", 0L, status.hedgedCount);
+        assertEquals("The second replica should not be called", 0, stubs[1].callCount.get());
+    }
+
+    @Test
+    public void testHedgeWins() {
+        stubs[0].delayMillis = 1000L; // much longer than the default hedge delay
+        final long startNano = System.nanoTime();
+        assertEquals("The hedged request should answer first", "second", replicaOf(recommend(5000L)));
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNano);
+        assertTrue("The slow replica should not be waited for: " + elapsedMillis + " ms", elapsedMillis < 1000L);
+        final RecommenderStatus status = recommender.getStatus();
+        assertEquals(1L, status.hedgedCount);
+        assertEquals(1L, status.hedgeWinCount);
+        assertEquals(0L, status.failureCount);
+        // the slow primary's latency is known to be at least the hedge delay
+        assertTrue("The primary's elapsed time should be recorded: p95 " + status.p95Millis + " ms", status.p95Millis >= status.hedgeDelayMillis);
+    }
+
+    @Test
+    public void testFailover() {
+        stubs[0].failing = true;
+        assertEquals("The other replica should answer after a failure", "second", replicaOf(recommend(5000L)));
+        final RecommenderStatus status = recommender.getStatus();
+        assertEquals(1L, status.failureCount);
+        assertEquals(0L, status.hedgeWinCount);
+        assertEquals(0L, status.retriesSkippedCount);
+    }
+
+    @Test
+    public void testRetrySkippedNearDeadline() {
+        stubs[0].failing = true;
+        assertNull("No answer should arrive after the failure", recommend(50L)); // shorter than a usual answer is estimated to take
+        final RecommenderStatus status = recommender.getStatus();
+        assertEquals(1L, status.failureCount);
+        assertEquals(1L, status.retriesSkippedCount);
+        assertEquals("The other replica should not be tried", 0, stubs[1].callCount.get());
+    }
+}